@@ -0,0 +1,52 @@
+package org.logannelson.filesystem.benchmark;
+//Entry point of benchmarks.jar: JMH with the GC profiler and JSON results by default.
+import org.logannelson.filesystem.service.FileSystemBackend;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/*
+* Takes the usual JMH command line (e.g. a benchmark regex, -p entries=1000, -f 2).
+* Unless overridden there:
+* - the GC profiler runs, adding allocation rate and bytes allocated per operation
+*   (gc.alloc.rate.norm) next to the timings;
+* - results go to jmh-result-<timestamp>.json in the working directory, one file per
+*   run, so runs of different releases can be compared side by side;
+* - -Dfms.backend given to this JVM is passed on to the forks, with room for the in-memory
+*   backend's content outside the heap.
+* */
+public final class BenchmarkRunner {
+
+    //A cap, not a reservation: room for LargeFileBenchmark's biggest file while it is written
+    private static final String MAX_DIRECT_MEMORY = "12g";
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+        if (commandLine.getProfilers().isEmpty()) {
+            options.addProfiler(GCProfiler.class);
+        }
+        if (!commandLine.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if (!commandLine.getResult().hasValue()) {
+            options.result("jmh-result-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"))
+                    + ".json");
+        }
+        String backend = System.getProperty(FileSystemBackend.PROPERTY);
+        if (backend != null && !commandLine.getJvmArgsPrepend().hasValue()) {
+            options.jvmArgsPrepend("-D" + FileSystemBackend.PROPERTY + "=" + backend,
+                    "-XX:MaxDirectMemorySize=" + MAX_DIRECT_MEMORY);
+        }
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,149 @@
+package org.logannelson.filesystem.benchmark;
+//Many threads on the service at once: independent paths, one folder, one file.
+import org.logannelson.filesystem.service.FileSystemService;
+import org.logannelson.filesystem.service.PathLockManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+* Shows how the path locks scale. Run it once per thread count and compare the totals
+* (JMH sums throughput over the threads):
+*   java -jar benchmarks.jar ContentionBenchmark -t 1
+*   java -jar benchmarks.jar ContentionBenchmark -t 4   (and so on, up to the core count)
+* The *Independent benchmarks give every thread its own folder and file, so they only
+* share stripes by hash and should grow close to linearly with the threads (the write
+* ones until the disk is the limit). *SameFolder writers share only the folder's intent
+* lock, which never blocks them. *SameFile writers take turns, so their total stays flat,
+* while readers of one file do not wait for each other and grow like independent ones.
+* The lock* benchmarks take and release the locks alone, without touching the disk.
+* */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+@Threads(4)
+public class ContentionBenchmark {
+
+    //More than any machine's core count, so threads never share a folder
+    private static final int FOLDERS = 256;
+    private static final int FILE_SIZE = 4096;
+    private static final String CONTENT = "x".repeat(FILE_SIZE);
+
+    private Sandbox sandbox;
+    private FileSystemService service;
+    private PathLockManager locks;
+    private Path sharedFolder;
+    private Path sharedFile;
+    private final AtomicInteger nextThread = new AtomicInteger();
+
+    //Each benchmark thread's own paths
+    @State(Scope.Thread)
+    public static class ThreadPaths {
+        Path folder;
+        Path file;
+        Path fileInSharedFolder;
+
+        @Setup(Level.Trial)
+        public void setUp(ContentionBenchmark benchmark) {
+            int index = benchmark.nextThread.getAndIncrement() % FOLDERS;
+            folder = benchmark.sandbox.getRoot().resolve("folder-" + index);
+            file = folder.resolve("file.txt");
+            fileInSharedFolder = benchmark.sharedFolder.resolve("file-" + index + ".txt");
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        sandbox = new Sandbox();
+        for (int i = 0; i < FOLDERS; i++) {
+            Path folder = Files.createDirectories(sandbox.getRoot().resolve("folder-" + i));
+            sandbox.textFile(folder.resolve("file.txt"), FILE_SIZE);
+        }
+        sharedFolder = Files.createDirectories(sandbox.getRoot().resolve("shared"));
+        for (int i = 0; i < FOLDERS; i++) {
+            sandbox.textFile(sharedFolder.resolve("file-" + i + ".txt"), FILE_SIZE);
+        }
+        sharedFile = sharedFolder.resolve("file-0.txt");
+        service = sandbox.start();
+        locks = service.getLockManager();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sandbox.delete();
+    }
+
+    /*
+    * Section: the locks alone
+    * */
+    @Benchmark
+    public void lockIndependent(ThreadPaths paths) {
+        //Released at once: the cost is taking and releasing
+        locks.lockExclusive(paths.file).close();
+    }
+
+    @Benchmark
+    public void lockSameFolder(ThreadPaths paths) {
+        //Released at once: the cost is taking and releasing
+        locks.lockExclusive(paths.fileInSharedFolder).close();
+    }
+
+    @Benchmark
+    public void lockSameFileShared() {
+        //Released at once: the cost is taking and releasing
+        locks.lockShared(sharedFile).close();
+    }
+
+    @Benchmark
+    public void lockSameFileExclusive() {
+        //Released at once: the cost is taking and releasing
+        locks.lockExclusive(sharedFile).close();
+    }
+
+    /*
+    * Section: through the service
+    * */
+    @Benchmark
+    public String readIndependent(ThreadPaths paths) throws IOException {
+        return service.readFile(paths.file);
+    }
+
+    @Benchmark
+    public String readSameFile() throws IOException {
+        return service.readFile(sharedFile);
+    }
+
+    @Benchmark
+    public void writeIndependent(ThreadPaths paths) throws IOException {
+        service.writeFile(paths.file, CONTENT);
+    }
+
+    @Benchmark
+    public void writeSameFolder(ThreadPaths paths) throws IOException {
+        service.writeFile(paths.fileInSharedFolder, CONTENT);
+    }
+
+    @Benchmark
+    public void writeSameFile() throws IOException {
+        service.writeFile(sharedFile, CONTENT);
+    }
+}
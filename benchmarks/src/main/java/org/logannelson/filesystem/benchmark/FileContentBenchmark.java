@@ -0,0 +1,72 @@
+package org.logannelson.filesystem.benchmark;
+//Reading, writing and mapping single files from tiny to tens of megabytes.
+import org.logannelson.filesystem.service.FileSystemService;
+import org.logannelson.filesystem.service.MappedTextFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+//readFile returns one String, so sizes stop well below 2 GB; LargeFileBenchmark covers the rest
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class FileContentBenchmark {
+
+    @Param({"1024", "1048576", "67108864"})
+    public int size;
+
+    private Sandbox sandbox;
+    private FileSystemService service;
+    private Path file;
+    private Path target;
+    private String content;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        sandbox = new Sandbox();
+        file = sandbox.textFile(sandbox.getRoot().resolve("source.txt"), size);
+        target = sandbox.getRoot().resolve("target.txt");
+        service = sandbox.start();
+        content = service.readFile(file);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sandbox.delete();
+    }
+
+    @Benchmark
+    public String readFile() throws IOException {
+        return service.readFile(file);
+    }
+
+    //Atomic: a temp file, then a rename over the target
+    @Benchmark
+    public void writeFile() throws IOException {
+        service.writeFile(target, content);
+    }
+
+    @Benchmark
+    public long openMappedFile() throws IOException {
+        try (MappedTextFile mapped = service.openMappedFile(file)) {
+            return mapped.size();
+        }
+    }
+}
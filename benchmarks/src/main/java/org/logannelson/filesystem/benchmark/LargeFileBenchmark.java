@@ -0,0 +1,82 @@
+package org.logannelson.filesystem.benchmark;
+//Multi-gigabyte files: mapping with a full line index, and copying.
+import org.logannelson.filesystem.service.FileSystemService;
+import org.logannelson.filesystem.service.LineIndex;
+import org.logannelson.filesystem.service.MappedTextFile;
+import org.logannelson.filesystem.service.OperationProgress;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/*
+* One call takes seconds, so every invocation is timed on its own (single shot).
+* Needs free disk space of about twice the largest size.
+* */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class LargeFileBenchmark {
+
+    @Param({"1073741824", "4294967296"})
+    public long size;
+
+    private Sandbox sandbox;
+    private FileSystemService service;
+    private Path file;
+    private Path copyDirectory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        sandbox = new Sandbox();
+        file = sandbox.textFile(sandbox.getRoot().resolve("large.txt"), size);
+        copyDirectory = Files.createDirectories(sandbox.getRoot().resolve("copies"));
+        service = sandbox.start();
+    }
+
+    /*
+    * Line indexes are cached by path, size and modification time; a new time
+    * makes the next invocation build one from scratch. A copy that is already there
+    * would be skipped, so it is removed.
+    * */
+    @Setup(Level.Invocation)
+    public void resetInvocation() throws IOException {
+        sandbox.touch(file);
+        sandbox.deleteIfPresent(copyDirectory.resolve(file.getFileName()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sandbox.delete();
+    }
+
+    @Benchmark
+    public long openAndIndexLines() throws Exception {
+        try (MappedTextFile mapped = service.openMappedFile(file)) {
+            LineIndex index = service.getLineIndex(mapped).completion().get();
+            return index.getKnownLineCount();
+        }
+    }
+
+    @Benchmark
+    public Path copy() throws IOException {
+        return service.copy(file, copyDirectory, new OperationProgress());
+    }
+}
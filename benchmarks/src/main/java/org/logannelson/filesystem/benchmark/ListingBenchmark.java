@@ -0,0 +1,76 @@
+package org.logannelson.filesystem.benchmark;
+//Listing wide directories: cached, uncached and one page out of the middle.
+import org.logannelson.filesystem.model.FileItem;
+import org.logannelson.filesystem.service.DirectoryCursor;
+import org.logannelson.filesystem.service.FileSystemService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+* listDirectory is served from the listing cache after the first call, so it measures
+* the warm path; openDirectory always reads the directory, so draining its cursor is the
+* cold cost (minus the page cache).
+* */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ListingBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int entries;
+
+    private Sandbox sandbox;
+    private FileSystemService service;
+    private Path directory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        sandbox = new Sandbox();
+        directory = sandbox.wideDirectory("wide", entries);
+        service = sandbox.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sandbox.delete();
+    }
+
+    @Benchmark
+    public List<FileItem> listDirectoryCached() throws IOException {
+        return service.listDirectory(directory);
+    }
+
+    @Benchmark
+    public void listDirectoryUncached(Blackhole blackhole) throws IOException {
+        try (DirectoryCursor cursor = service.openDirectory(directory)) {
+            while (cursor.hasNext()) {
+                blackhole.consume(cursor.next());
+            }
+        }
+    }
+
+    @Benchmark
+    public List<FileItem> listDirectoryPage() throws IOException {
+        return service.listDirectory(directory, entries / 2, 100);
+    }
+}
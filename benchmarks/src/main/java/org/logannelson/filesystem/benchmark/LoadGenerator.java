@@ -0,0 +1,291 @@
+package org.logannelson.filesystem.benchmark;
+//Drives a FileSystemServer with many keep-alive clients and reports requests/sec and latency percentiles.
+import org.logannelson.filesystem.server.FileSystemServer;
+import org.logannelson.filesystem.service.FileSystemBackend;
+import org.logannelson.filesystem.service.LatencyHistogram;
+import org.logannelson.filesystem.service.MeteredFileSystemService;
+import org.logannelson.filesystem.service.ServiceMetrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+* Not a JMH benchmark: JMH measures one JVM calling methods, this measures the server as
+* its clients see it, over real sockets. Each connection is a thread sending one request,
+* waiting for the answer, then sending the next (closed loop), so requests/sec is what the
+* server sustains at that concurrency and the latencies include the network stack.
+*
+*   java -cp benchmarks/target/benchmarks.jar org.logannelson.filesystem.benchmark.LoadGenerator
+*        [--target host:port] [--connections 32] [--seconds 10] [--warmup 3]
+*        [--mix list:read:write] [--files 200] [--file-size 4096]
+*
+* Without --target it starts a server of its own on a free loopback port, on a temporary
+* sandbox (-Dfms.backend applies). It creates its files under a fresh folder first, then
+* mixes listing that folder, reading a random file and rewriting a random file in the
+* given proportions (default 20:70:10), and deletes the folder at the end.
+* Latencies of the warmup seconds are not counted.
+* */
+public final class LoadGenerator {
+
+    private final String host;
+    private final int port;
+    private final int connections;
+    private final int seconds;
+    private final int warmup;
+    private final int[] mix;
+    private final int files;
+    private final byte[] content;
+    private final String folder = "loadgen-" + Long.toString(System.nanoTime(), 36);
+
+    private final LatencyHistogram[] histograms = {new LatencyHistogram(), new LatencyHistogram(), new LatencyHistogram()};
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private volatile boolean measuring;
+    private volatile boolean stopped;
+
+    private static final String[] KINDS = {"list", "read", "write"};
+
+    private LoadGenerator(InetSocketAddress target, int connections, int seconds, int warmup, int[] mix,
+                          int files, int fileSize) {
+        this.host = target.getHostString();
+        this.port = target.getPort();
+        this.connections = connections;
+        this.seconds = seconds;
+        this.warmup = warmup;
+        this.mix = mix;
+        this.files = files;
+        this.content = new byte[fileSize];
+        byte[] line = "the quick brown fox jumps over the lazy dog 0123456789\n".getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < fileSize; i++) {
+            content[i] = line[i % line.length];
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String target = null;
+        int connections = 32;
+        int seconds = 10;
+        int warmup = 3;
+        int[] mix = {20, 70, 10};
+        int files = 200;
+        int fileSize = 4096;
+        for (int i = 0; i < args.length; i++) {
+            String value = i + 1 < args.length ? args[i + 1] : "";
+            switch (args[i]) {
+                case "--target" -> target = value;
+                case "--connections" -> connections = Integer.parseInt(value);
+                case "--seconds" -> seconds = Integer.parseInt(value);
+                case "--warmup" -> warmup = Integer.parseInt(value);
+                case "--mix" -> mix = Arrays.stream(value.split(":")).mapToInt(Integer::parseInt).toArray();
+                case "--files" -> files = Integer.parseInt(value);
+                case "--file-size" -> fileSize = Integer.parseInt(value);
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+            i++;
+        }
+        if (mix.length != 3 || Arrays.stream(mix).sum() <= 0) {
+            throw new IllegalArgumentException("--mix takes three weights, list:read:write");
+        }
+
+        if (target != null) {
+            int colon = target.lastIndexOf(':');
+            InetSocketAddress address = new InetSocketAddress(target.substring(0, colon),
+                    Integer.parseInt(target.substring(colon + 1)));
+            new LoadGenerator(address, connections, seconds, warmup, mix, files, fileSize).run();
+            return;
+        }
+
+        //A server of our own, on its own sandbox, the way App --server sets it up
+        Path root = Files.createTempDirectory("fms-loadgen-").resolve("FileSystemSandbox");
+        ServiceMetrics metrics = new ServiceMetrics();
+        try (MeteredFileSystemService service = new MeteredFileSystemService(
+                     FileSystemBackend.fromSystemProperty().create(root), metrics);
+             FileSystemServer server = new FileSystemServer(service, metrics, 0)) {
+            server.start();
+            System.out.println("Started a server on " + server.getAddress() + " (" + FileSystemBackend.fromSystemProperty()
+                    .name().toLowerCase(Locale.ROOT) + " backend)");
+            new LoadGenerator(server.getAddress(), connections, seconds, warmup, mix, files, fileSize).run();
+        }
+    }
+
+    private void run() throws Exception {
+        try (Client setup = new Client()) {
+            setup.expect(201, setup.send("POST", "/mkdir/" + folder, null));
+            for (int i = 0; i < files; i++) {
+                setup.expect(200, setup.send("PUT", fileUrl(i), content));
+            }
+        }
+        System.out.printf("%d connections, %d s (+%d s warmup), mix list:read:write %d:%d:%d, %d files of %d bytes%n",
+                connections, seconds, warmup, mix[0], mix[1], mix[2], files, content.length);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            Thread thread = new Thread(this::drive, "load-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        Thread.sleep(warmup * 1000L);
+        measuring = true;
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        measuring = false;
+        long elapsed = System.nanoTime() - start;
+        stopped = true;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        report(elapsed);
+
+        try (Client cleanup = new Client()) {
+            cleanup.expect(200, cleanup.send("DELETE", "/files/" + folder + "?permanent=true", null));
+        }
+    }
+
+    //One connection's closed loop
+    private void drive() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int total = mix[0] + mix[1] + mix[2];
+        try (Client client = new Client()) {
+            while (!stopped) {
+                int pick = random.nextInt(total);
+                int kind = pick < mix[0] ? 0 : pick < mix[0] + mix[1] ? 1 : 2;
+                long start = System.nanoTime();
+                int status = switch (kind) {
+                    case 0 -> client.send("GET", "/list/" + folder, null);
+                    case 1 -> client.send("GET", fileUrl(random.nextInt(files)), null);
+                    default -> client.send("PUT", fileUrl(random.nextInt(files)), content);
+                };
+                long latency = System.nanoTime() - start;
+                if (measuring) {
+                    histograms[kind].record(latency);
+                    if (status != 200) {
+                        errors.incrementAndGet();
+                    }
+                    if (kind == 1) {
+                        bytesRead.addAndGet(client.lastBodyLength);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println(Thread.currentThread().getName() + " stopped: " + e);
+            errors.incrementAndGet();
+        }
+    }
+
+    private void report(long elapsedNanos) {
+        double secondsMeasured = elapsedNanos / 1e9;
+        LatencyHistogram all = new LatencyHistogram();
+        long count = 0;
+        System.out.printf("%-6s %10s %10s %10s %10s %10s %10s%n", "", "req/s", "mean us", "p50 us", "p90 us", "p99 us", "max us");
+        for (int kind = 0; kind < KINDS.length; kind++) {
+            LatencyHistogram histogram = histograms[kind];
+            count += histogram.getCount();
+            print(KINDS[kind], histogram, secondsMeasured);
+        }
+        System.out.printf("total  %10.0f requests/s, %d requests, %d errors, %.1f MB/s read%n",
+                count / secondsMeasured, count, errors.get(), bytesRead.get() / secondsMeasured / (1024 * 1024));
+    }
+
+    private static void print(String name, LatencyHistogram histogram, double seconds) {
+        System.out.printf("%-6s %10.0f %10.1f %10.1f %10.1f %10.1f %10.1f%n", name,
+                histogram.getCount() / seconds,
+                histogram.getMean() / 1000.0,
+                histogram.getValueAtPercentile(50) / 1000.0,
+                histogram.getValueAtPercentile(90) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0,
+                histogram.getMax() / 1000.0);
+    }
+
+    private String fileUrl(int index) {
+        return "/files/" + folder + "/file-" + index + ".txt";
+    }
+
+    /*
+    * A minimal HTTP/1.1 keep-alive client for the server's answers, which always carry a
+    * Content-Length. Bodies are read and dropped.
+    * */
+    private final class Client implements AutoCloseable {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final byte[] drain = new byte[64 * 1024];
+        long lastBodyLength;
+
+        Client() throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        }
+
+        //The status of the answer
+        int send(String method, String url, byte[] body) throws IOException {
+            String head = method + " " + url + " HTTP/1.1\r\nHost: " + host + "\r\n"
+                    + (body != null ? "Content-Length: " + body.length + "\r\n" : "")
+                    + "\r\n";
+            out.write(head.getBytes(StandardCharsets.US_ASCII));
+            if (body != null) {
+                out.write(body);
+            }
+            out.flush();
+
+            String statusLine = readLine();
+            int status = Integer.parseInt(statusLine.split(" ")[1]);
+            long length = 0;
+            for (String line = readLine(); !line.isEmpty(); line = readLine()) {
+                if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                    length = Long.parseLong(line.substring(15).trim());
+                }
+            }
+            for (long left = length; left > 0; ) {
+                int n = in.read(drain, 0, (int) Math.min(drain.length, left));
+                if (n < 0) {
+                    throw new EOFException("Server closed the connection inside a body");
+                }
+                left -= n;
+            }
+            lastBodyLength = length;
+            return status;
+        }
+
+        void expect(int status, int actual) throws IOException {
+            if (actual != status) {
+                throw new IOException("Expected " + status + ", got " + actual);
+            }
+        }
+
+        private String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+            for (int b = in.read(); b != '\n'; b = in.read()) {
+                if (b < 0) {
+                    throw new EOFException("Server closed the connection");
+                }
+                if (b != '\r') {
+                    line.write(b);
+                }
+            }
+            return line.toString(StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
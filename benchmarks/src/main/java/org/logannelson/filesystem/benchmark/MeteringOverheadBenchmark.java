@@ -0,0 +1,72 @@
+package org.logannelson.filesystem.benchmark;
+//What MeteredFileSystemService adds to the cheapest calls, compared with the bare service.
+import org.logannelson.filesystem.model.DirectorySize;
+import org.logannelson.filesystem.model.FileItem;
+import org.logannelson.filesystem.service.FileSystemService;
+import org.logannelson.filesystem.service.MeteredFileSystemService;
+import org.logannelson.filesystem.service.ServiceMetrics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+* Cached lookups that never touch the disk, so the metering is as large a share of
+* the call as it can be. Four threads, to include contention on the counters.
+* */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class MeteringOverheadBenchmark {
+
+    @Param({"false", "true"})
+    public boolean metered;
+
+    private Sandbox sandbox;
+    private FileSystemService service;
+    private Path directory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        sandbox = new Sandbox();
+        directory = sandbox.wideDirectory("small", 10);
+        FileSystemService bare = sandbox.start();
+        service = metered ? new MeteredFileSystemService(bare, new ServiceMetrics()) : bare;
+        service.listDirectory(directory);
+        service.getDirectorySize(directory);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sandbox.delete();
+    }
+
+    @Benchmark
+    public List<FileItem> listDirectoryCached() throws IOException {
+        return service.listDirectory(directory);
+    }
+
+    @Benchmark
+    public DirectorySize getCachedDirectorySize() {
+        return service.getCachedDirectorySize(directory);
+    }
+}
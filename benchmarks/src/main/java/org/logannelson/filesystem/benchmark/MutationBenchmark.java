@@ -0,0 +1,116 @@
+package org.logannelson.filesystem.benchmark;
+//Small changes: create, rename, delete to the trash and back, batches, path checks.
+import org.logannelson.filesystem.model.TrashEntry;
+import org.logannelson.filesystem.service.BatchOperation;
+import org.logannelson.filesystem.service.BatchResult;
+import org.logannelson.filesystem.service.FileSystemService;
+import org.logannelson.filesystem.service.OperationProgress;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+* Every benchmark leaves the sandbox as it found it (created, then removed again),
+* so the numbers include both halves and iterations do not pile up files.
+* */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class MutationBenchmark {
+
+    private static final int BATCH_SIZE = 100;
+    private static final int BATCH_PARALLELISM = 4;
+
+    private Sandbox sandbox;
+    private FileSystemService service;
+    private Path directory;
+    private Path file;
+    private Path outside;
+    private List<BatchOperation> creates;
+    private List<BatchOperation> deletes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        sandbox = new Sandbox();
+        directory = Files.createDirectories(sandbox.getRoot().resolve("work"));
+        file = sandbox.textFile(directory.resolve("file.txt"), 4096);
+        outside = sandbox.getRoot().resolve("../outside.txt");
+        creates = new ArrayList<>();
+        deletes = new ArrayList<>();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            String name = "batch-" + i + ".txt";
+            creates.add(BatchOperation.createFile(directory, name, "x"));
+            deletes.add(BatchOperation.delete(directory.resolve(name)));
+        }
+        service = sandbox.start();
+        service.listDirectory(directory); //Watched and cached, like a folder open in the browser
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sandbox.delete();
+    }
+
+    @Benchmark
+    public Path createFileAndDelete() throws IOException {
+        Path created = service.createFile(directory, "created.txt", "content");
+        service.deletePermanently(created, new OperationProgress());
+        return created;
+    }
+
+    @Benchmark
+    public Path createDirectoryAndDelete() throws IOException {
+        Path created = service.createDirectory(directory, "folder");
+        service.deletePermanently(created, new OperationProgress());
+        return created;
+    }
+
+    @Benchmark
+    public Path renameAndBack() throws IOException {
+        Path renamed = service.rename(file, "renamed.txt");
+        return service.rename(renamed, file.getFileName().toString());
+    }
+
+    @Benchmark
+    public Path deleteToTrashAndRestore() throws IOException {
+        TrashEntry entry = service.delete(file);
+        return service.restore(entry);
+    }
+
+    //The deletes go to the trash, which purges its oldest entries by itself
+    @Benchmark
+    public List<BatchResult> batchCreateAndDelete() throws IOException {
+        service.runBatch(creates, BATCH_PARALLELISM);
+        return service.runBatch(deletes, BATCH_PARALLELISM);
+    }
+
+    //The sandbox check alone: the path is rejected before anything touches the disk
+    @Benchmark
+    public IOException ensureUnderRootRejects() {
+        try {
+            service.readFile(outside);
+            throw new IllegalStateException("A path outside the sandbox was accepted: " + outside);
+        } catch (IOException e) {
+            return e;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package org.logannelson.filesystem.benchmark;
+//A throwaway sandbox with synthetic content, and the service running on it.
+import org.logannelson.filesystem.service.FileSystemBackend;
+import org.logannelson.filesystem.service.FileSystemService;
+import org.logannelson.filesystem.service.OperationProgress;
+import org.logannelson.filesystem.service.SaveOptions;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+/*
+* Each sandbox is a temporary folder with the service's root, FileSystemSandbox, in it;
+* the name index is saved next to the root, so it goes with the folder too. Content is
+* created with plain java.nio before start(), so building it is not measured and the
+* indexes see it on their first walk. delete() closes the service, so no trial leaves
+* threads or a shutdown hook behind for the next one.
+*
+* With -Dfms.backend=memory the service keeps everything in RAM: start() loads the content
+* built on disk into it and removes it from the disk, and the helpers below that change the
+* tree between invocations go through the service instead of java.nio.
+* */
+final class Sandbox {
+
+    //What text files are made of: short lines with a word search benchmarks can look for
+    private static final byte[] LINE = "the quick brown fox jumps over the lazy dog 0123456789\n"
+            .getBytes(StandardCharsets.US_ASCII);
+    static final String NEEDLE = "needle";
+    private static final int WRITE_CHUNK = 1024 * 1024;
+
+    private final Path home;
+    private final Path root;
+    private final FileSystemBackend backend = FileSystemBackend.fromSystemProperty();
+    private FileSystemService service;
+
+    Sandbox() throws IOException {
+        this.home = Files.createTempDirectory("fms-benchmark-");
+        this.root = home.resolve("FileSystemSandbox");
+        Files.createDirectories(root);
+    }
+
+    //Getters
+    Path getRoot() {
+        return root;
+    }
+
+    FileSystemService getService() {
+        return service;
+    }
+
+    /*
+    * Section: building content
+    * */
+
+    //A directory with this many empty files directly in it
+    Path wideDirectory(String name, int entries) throws IOException {
+        Path directory = Files.createDirectories(root.resolve(name));
+        for (int i = 0; i < entries; i++) {
+            Files.createFile(directory.resolve("entry-" + i + ".txt"));
+        }
+        return directory;
+    }
+
+    /*
+    * width chains of nested folders, each depth levels deep, with filesPerDirectory text
+    * files of fileSize bytes in every folder. The last file of each chain contains NEEDLE.
+    * */
+    Path deepTree(String name, int width, int depth, int filesPerDirectory, int fileSize) throws IOException {
+        Path tree = Files.createDirectories(root.resolve(name));
+        for (int chain = 0; chain < width; chain++) {
+            Path directory = tree;
+            for (int level = 0; level < depth; level++) {
+                directory = Files.createDirectories(directory.resolve("level-" + chain + "-" + level));
+                for (int i = 0; i < filesPerDirectory; i++) {
+                    textFile(directory.resolve("file-" + level + "-" + i + ".txt"), fileSize);
+                }
+            }
+            Files.writeString(directory.resolve("found.txt"), "a " + NEEDLE + " at the bottom\n");
+        }
+        return tree;
+    }
+
+    //A text file of exactly size bytes, written in chunks so multi-GB files need no big buffer
+    Path textFile(Path file, long size) throws IOException {
+        byte[] chunk = new byte[(int) Math.min(WRITE_CHUNK, Math.max(size, 1))];
+        for (int i = 0; i < chunk.length; i++) {
+            chunk[i] = LINE[i % LINE.length];
+        }
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long written = 0; written < size; written += chunk.length) {
+                out.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+            }
+        }
+        return file;
+    }
+
+    /*
+    * Section: lifecycle
+    * */
+
+    //Starts the service on the content built so far and waits until its name index is ready
+    FileSystemService start() throws IOException, InterruptedException {
+        service = backend.create(root);
+        if (backend == FileSystemBackend.MEMORY) {
+            load(root);
+            deleteTree(root);
+        }
+        while (!service.isNameIndexReady()) {
+            Thread.sleep(10);
+        }
+        return service;
+    }
+
+    //Copies what is below directory on disk into the service, at the same paths
+    private void load(Path directory) throws IOException {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                if (Files.isDirectory(entry)) {
+                    service.createDirectory(directory, entry.getFileName().toString());
+                    load(entry);
+                } else {
+                    //Text is ASCII, so chars and bytes are the same
+                    try (Reader in = Files.newBufferedReader(entry, StandardCharsets.US_ASCII)) {
+                        service.writeFile(entry, in::transferTo);
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+    * Section: changes between invocations, on whichever backend runs
+    * */
+    boolean exists(Path path) throws IOException {
+        if (backend == FileSystemBackend.DISK) {
+            return Files.exists(path);
+        }
+        try {
+            service.getItem(path);
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    void deleteIfPresent(Path path) throws IOException {
+        if (backend == FileSystemBackend.DISK) {
+            deleteTree(path);
+        } else if (exists(path)) {
+            service.deletePermanently(path, new OperationProgress());
+        }
+    }
+
+    //Moves and renames source to target, which must not exist
+    void moveTo(Path source, Path target) throws IOException {
+        if (backend == FileSystemBackend.DISK) {
+            Files.move(source, target);
+            return;
+        }
+        Path renamed = service.rename(source, target.getFileName().toString());
+        if (!renamed.getParent().equals(target.getParent())) {
+            service.move(renamed, target.getParent(), new OperationProgress());
+        }
+    }
+
+    //A new modification time, a second later than the current one on disk
+    void touch(Path file) throws IOException {
+        if (backend == FileSystemBackend.DISK) {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 1000));
+        } else {
+            service.patchFile(file, List.of(), -1, SaveOptions.DEFAULT);
+        }
+    }
+
+    //Stops the service (watcher, indexes, pools), then removes everything
+    void delete() throws IOException {
+        if (service != null) {
+            service.close();
+            service = null;
+        }
+        deleteTree(home);
+    }
+
+    static void deleteTree(Path path) throws IOException {
+        if (Files.notExists(path)) {
+            return;
+        }
+        Files.walkFileTree(path, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,114 @@
+package org.logannelson.filesystem.benchmark;
+//Whole-tree operations on deep trees: copy, permanent delete, sizes and searches.
+import org.logannelson.filesystem.model.DirectorySize;
+import org.logannelson.filesystem.model.SearchResult;
+import org.logannelson.filesystem.service.FileSystemService;
+import org.logannelson.filesystem.service.OperationProgress;
+import org.logannelson.filesystem.service.SearchOptions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+* TREE_WIDTH chains of depth folders with FILES_PER_DIRECTORY small files in each:
+* at depth 256 that is 4,096 folders and 65,536 files.
+* Copy and delete change the tree, so each invocation is timed on its own and the
+* tree is put back in between.
+* */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class TreeBenchmark {
+
+    private static final int TREE_WIDTH = 16;
+    private static final int FILES_PER_DIRECTORY = 16;
+    private static final int FILE_SIZE = 4096;
+
+    @Param({"16", "256"})
+    public int depth;
+
+    private Sandbox sandbox;
+    private FileSystemService service;
+    private Path tree;
+    private Path copies;
+    private Path scratch;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        sandbox = new Sandbox();
+        tree = sandbox.deepTree("tree", TREE_WIDTH, depth, FILES_PER_DIRECTORY, FILE_SIZE);
+        copies = Files.createDirectories(sandbox.getRoot().resolve("copies"));
+        scratch = sandbox.getRoot().resolve("scratch");
+        service = sandbox.start();
+    }
+
+    //A fresh target for copy and a fresh victim for delete
+    @Setup(Level.Invocation)
+    public void resetInvocation() throws IOException {
+        sandbox.deleteIfPresent(copies.resolve(tree.getFileName()));
+        if (!sandbox.exists(scratch)) {
+            service.copy(tree, copies, new OperationProgress());
+            sandbox.moveTo(copies.resolve(tree.getFileName()), scratch);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sandbox.delete();
+    }
+
+    @Benchmark
+    public Path copyTree() throws IOException {
+        return service.copy(tree, copies, new OperationProgress());
+    }
+
+    @Benchmark
+    public OperationProgress deletePermanently() throws IOException {
+        OperationProgress progress = new OperationProgress();
+        service.deletePermanently(scratch, progress);
+        return progress;
+    }
+
+    //Cached after the first walk, so this is the lookup
+    @Benchmark
+    public DirectorySize getDirectorySize() throws IOException {
+        return service.getDirectorySize(tree);
+    }
+
+    @Benchmark
+    public List<SearchResult> searchInFolder() throws IOException {
+        List<SearchResult> found = new ArrayList<>();
+        service.searchInFolder(tree, Sandbox.NEEDLE, new SearchOptions(false, true),
+                result -> {
+                    synchronized (found) {
+                        found.add(result);
+                    }
+                }, new OperationProgress());
+        return found;
+    }
+
+    @Benchmark
+    public List<Path> findByName() {
+        return service.findByName("found", 100);
+    }
+}
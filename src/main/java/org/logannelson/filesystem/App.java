@@ -1,8 +1,13 @@
 package org.logannelson.filesystem;
 
+import org.logannelson.filesystem.server.FileSystemServer;
+import org.logannelson.filesystem.service.FileSystemBackend;
+import org.logannelson.filesystem.service.MeteredFileSystemService;
+import org.logannelson.filesystem.service.ServiceMetrics;
 import org.logannelson.filesystem.ui.MainFrame;
 
 import javax.swing.SwingUtilities;
+import java.io.IOException;
 
 public class App {
 
@@ -11,12 +16,42 @@ public class App {
     * Section 1
     * This is the application entry point.
     * This launches the main Swing window and initializes the application.
+    * With --server [port] it runs headless instead and serves the sandbox to clients (see Section 2).
     * */
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length > 0 && args[0].equals("--server")) {
+            runServer(args.length > 1 ? Integer.parseInt(args[1]) : FileSystemServer.DEFAULT_PORT);
+            return;
+        }
+
         //Always start Swing apps on the Event Dispatch Thread
         SwingUtilities.invokeLater(() -> {
             MainFrame mainFrame = new MainFrame();
             mainFrame.setVisible(true);
         });
     }
+
+    /*
+    * Section 2
+    * Headless mode: the same metered service the window would use (backend from -Dfms.backend),
+    * served on the loopback address until the process is stopped (Ctrl+C).
+    * */
+    private static void runServer(int port) throws IOException, InterruptedException {
+        ServiceMetrics metrics = new ServiceMetrics();
+        MeteredFileSystemService service = new MeteredFileSystemService(FileSystemBackend.fromSystemProperty().create(), metrics);
+        metrics.registerMBeans();
+
+        FileSystemServer server = new FileSystemServer(service, metrics, port);
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+            } catch (IOException e) {
+                //Exiting anyway
+            }
+        }));
+        System.out.println("Serving " + service.getStartDirectory() + " on http://"
+                + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/");
+        server.awaitClose();
+    }
 }
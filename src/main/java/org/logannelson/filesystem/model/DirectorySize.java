@@ -0,0 +1,32 @@
+package org.logannelson.filesystem.model;
+//Recursive totals of one directory: everything below it, not counting itself.
+public class DirectorySize {
+    private final long bytes;
+    private final long fileCount;
+    private final long directoryCount;
+
+    public DirectorySize(long bytes, long fileCount, long directoryCount) {
+        this.bytes = bytes;
+        this.fileCount = fileCount;
+        this.directoryCount = directoryCount;
+    }
+
+    //Getters
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getFileCount() {
+        return fileCount;
+    }
+
+    public long getDirectoryCount() {
+        return directoryCount;
+    }
+
+    //Methods//
+    @Override
+    public String toString() {
+        return bytes + " bytes in " + fileCount + " files, " + directoryCount + " folders";
+    }
+}
@@ -0,0 +1,343 @@
+package org.logannelson.filesystem.model;
+//Compact, column-wise listing of one directory.
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.RandomAccess;
+import java.util.function.IntPredicate;
+
+/*
+* Stores a listing as a few primitive arrays instead of one FileItem per entry:
+* all names packed into one UTF-8 byte array with offsets, sizes and modification
+* times in long arrays, and the directory flags as bits.
+* That is roughly 25 bytes plus the name per entry, against several hundred for
+* a FileItem with its Path, String and FileTime. FileItem and Path objects are only
+* created when an entry is asked for, e.g. when a list row is painted.
+*
+* Snapshots are immutable. A Builder can hand out snapshots of what it has read so far
+* without copying; they share its arrays, which only ever grow past their end.
+* */
+public class DirectorySnapshot {
+
+    private static final int NO_ENTRY = -1;
+
+    private final Path directory;
+    private final int size;
+    private final byte[] names;
+    private final int[] nameOffsets; //size + 1 entries
+    private final long[] sizes;
+    private final long[] modifiedMillis;
+    private final long[] directoryBits;
+
+    private volatile int[] nameIndex; //Hash table over names, built on first lookup
+    private volatile SnapshotSortKeys sortKeys; //Created on first use
+
+    private DirectorySnapshot(Path directory, int size, byte[] names, int[] nameOffsets,
+                              long[] sizes, long[] modifiedMillis, long[] directoryBits) {
+        this.directory = directory;
+        this.size = size;
+        this.names = names;
+        this.nameOffsets = nameOffsets;
+        this.sizes = sizes;
+        this.modifiedMillis = modifiedMillis;
+        this.directoryBits = directoryBits;
+    }
+
+    public static DirectorySnapshot empty(Path directory) {
+        return new Builder(directory).build();
+    }
+
+    //Getters
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public String getName(int index) {
+        checkIndex(index);
+        return new String(names, nameOffsets[index], nameOffsets[index + 1] - nameOffsets[index], StandardCharsets.UTF_8);
+    }
+
+    public Path getPath(int index) {
+        return directory.resolve(getName(index));
+    }
+
+    public boolean isDirectory(int index) {
+        checkIndex(index);
+        return (directoryBits[index >>> 6] & (1L << index)) != 0;
+    }
+
+    public long getSize(int index) {
+        checkIndex(index);
+        return sizes[index];
+    }
+
+    public FileTime getLastModifiedTime(int index) {
+        checkIndex(index);
+        return FileTime.fromMillis(modifiedMillis[index]);
+    }
+
+    public long getLastModifiedMillis(int index) {
+        checkIndex(index);
+        return modifiedMillis[index];
+    }
+
+    //Creates a FileItem for one entry. Not cached: callers that keep it, own it.
+    public FileItem getItem(int index) {
+        String name = getName(index);
+        return new FileItem(directory.resolve(name), name, isDirectory(index), sizes[index],
+                FileTime.fromMillis(modifiedMillis[index]));
+    }
+
+    //Read-only List view; each get() creates its FileItem on the spot
+    public List<FileItem> asList() {
+        return new ItemList();
+    }
+
+    /*
+    * Index of the entry with the given name, or -1.
+    * The first call builds a hash table over the names (two ints per entry),
+    * after that a lookup costs about one name comparison.
+    * */
+    public int indexOf(String name) {
+        byte[] key = name.getBytes(StandardCharsets.UTF_8);
+        int[] table = nameIndex;
+        if (table == null) {
+            table = buildNameIndex();
+            nameIndex = table;
+        }
+
+        int mask = table.length - 1;
+        for (int slot = hash(key, 0, key.length) & mask; table[slot] != NO_ENTRY; slot = (slot + 1) & mask) {
+            if (nameEquals(table[slot], key)) {
+                return table[slot];
+            }
+        }
+        return NO_ENTRY;
+    }
+
+    //Raw columns for sorting, not copied; may be longer than size()
+    long[] sizeColumn() {
+        return sizes;
+    }
+
+    long[] modifiedColumn() {
+        return modifiedMillis;
+    }
+
+    //Sort orders for this snapshot, shared by everyone showing it
+    public SnapshotSortKeys getSortKeys() {
+        SnapshotSortKeys keys = sortKeys;
+        if (keys == null) {
+            synchronized (this) {
+                keys = sortKeys;
+                if (keys == null) {
+                    keys = new SnapshotSortKeys(this);
+                    sortKeys = keys;
+                }
+            }
+        }
+        return keys;
+    }
+
+    /*
+    * Matcher for "name contains text", ignoring case, to test many entries with.
+    * ASCII text is matched on the UTF-8 bytes without decoding any name;
+    * other text falls back to decoding each name.
+    * */
+    public IntPredicate nameMatcher(String text) {
+        String lowerCase = text.toLowerCase(Locale.ROOT);
+        if (lowerCase.isEmpty()) {
+            return index -> true;
+        }
+        if (!isAscii(lowerCase)) {
+            return index -> getName(index).toLowerCase(Locale.ROOT).contains(lowerCase);
+        }
+        byte[] needle = lowerCase.getBytes(StandardCharsets.US_ASCII);
+        return index -> containsIgnoreCase(index, needle);
+    }
+
+    private boolean containsIgnoreCase(int index, byte[] needle) {
+        checkIndex(index);
+        int last = nameOffsets[index + 1] - needle.length;
+        for (int start = nameOffsets[index]; start <= last; start++) {
+            if (toLowerAscii(names[start]) != needle[0]) {
+                continue;
+            }
+            int i = 1;
+            while (i < needle.length && toLowerAscii(names[start + i]) == needle[i]) {
+                i++;
+            }
+            if (i == needle.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //Non-ASCII bytes are negative, so they never match an ASCII char
+    private static int toLowerAscii(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+    //Approximate heap used by the arrays, for sizing caches
+    public long estimatedBytes() {
+        return names.length + 4L * nameOffsets.length + 8L * (sizes.length + modifiedMillis.length + directoryBits.length);
+    }
+
+    private int[] buildNameIndex() {
+        int capacity = Integer.highestOneBit(Math.max(2, size) * 2 - 1) << 1;
+        int[] table = new int[capacity];
+        Arrays.fill(table, NO_ENTRY);
+        int mask = capacity - 1;
+        for (int i = 0; i < size; i++) {
+            int slot = hash(names, nameOffsets[i], nameOffsets[i + 1]) & mask;
+            while (table[slot] != NO_ENTRY) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i;
+        }
+        return table;
+    }
+
+    private boolean nameEquals(int index, byte[] key) {
+        return Arrays.equals(names, nameOffsets[index], nameOffsets[index + 1], key, 0, key.length);
+    }
+
+    private static int hash(byte[] bytes, int from, int to) {
+        int h = 1;
+        for (int i = from; i < to; i++) {
+            h = 31 * h + bytes[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DirectorySnapshot[" + directory + ", " + size + " entries]";
+    }
+
+    private final class ItemList extends AbstractList<FileItem> implements RandomAccess {
+        @Override
+        public FileItem get(int index) {
+            return getItem(index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    /*
+    * Section: building
+    * Appends entries into growing arrays. Not thread-safe; snapshot() may be handed
+    * to other threads, the Builder itself stays with the thread that fills it.
+    * */
+    public static class Builder {
+
+        private final Path directory;
+        private int size;
+        private byte[] names = new byte[1024];
+        private int namesLength;
+        private int[] nameOffsets = new int[65];
+        private long[] sizes = new long[64];
+        private long[] modifiedMillis = new long[64];
+        private long[] directoryBits = new long[1];
+
+        public Builder(Path directory) {
+            this.directory = directory;
+        }
+
+        public Builder add(String name, boolean isDirectory, long fileSize, long lastModifiedMillis) {
+            byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+            if (namesLength + encoded.length > names.length) {
+                names = Arrays.copyOf(names, Math.max(names.length * 2, namesLength + encoded.length));
+            }
+            System.arraycopy(encoded, 0, names, namesLength, encoded.length);
+            return append(encoded.length, isDirectory, fileSize, lastModifiedMillis);
+        }
+
+        //Records an entry whose name bytes were just written at namesLength
+        private Builder append(int nameLength, boolean isDirectory, long fileSize, long lastModifiedMillis) {
+            if (size == sizes.length) {
+                int capacity = size * 2;
+                nameOffsets = Arrays.copyOf(nameOffsets, capacity + 1);
+                sizes = Arrays.copyOf(sizes, capacity);
+                modifiedMillis = Arrays.copyOf(modifiedMillis, capacity);
+                directoryBits = Arrays.copyOf(directoryBits, (capacity + 63) >>> 6);
+            }
+            namesLength += nameLength;
+            sizes[size] = fileSize;
+            modifiedMillis[size] = lastModifiedMillis;
+            if (isDirectory) {
+                directoryBits[size >>> 6] |= 1L << size;
+            }
+            nameOffsets[size + 1] = namesLength;
+            size++;
+            return this;
+        }
+
+        //Copies one entry of another snapshot, without going through a FileItem
+        public Builder add(DirectorySnapshot source, int index) {
+            source.checkIndex(index);
+            int from = source.nameOffsets[index];
+            int length = source.nameOffsets[index + 1] - from;
+            if (namesLength + length > names.length) {
+                names = Arrays.copyOf(names, Math.max(names.length * 2, namesLength + length));
+            }
+            System.arraycopy(source.names, from, names, namesLength, length);
+            return append(length, source.isDirectory(index), source.sizes[index], source.modifiedMillis[index]);
+        }
+
+        public Builder add(FileItem item) {
+            return add(item.getName(), item.isDirectory(), item.getSize(),
+                    item.getLastModifiedTime() != null ? item.getLastModifiedTime().toMillis() : 0);
+        }
+
+        public int size() {
+            return size;
+        }
+
+        //The entries added so far, without copying
+        public DirectorySnapshot snapshot() {
+            return new DirectorySnapshot(directory, size, names, nameOffsets, sizes, modifiedMillis, directoryBits);
+        }
+
+        //Final snapshot, with the arrays trimmed to fit
+        public DirectorySnapshot build() {
+            return new DirectorySnapshot(directory, size,
+                    Arrays.copyOf(names, namesLength),
+                    Arrays.copyOf(nameOffsets, size + 1),
+                    Arrays.copyOf(sizes, size),
+                    Arrays.copyOf(modifiedMillis, size),
+                    Arrays.copyOf(directoryBits, (size + 63) >>> 6));
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package org.logannelson.filesystem.model;
+//Describes a single change to a file or directory.
+import java.nio.file.Path;
+import java.util.List;
+
+public class FileChangeEvent {
+
+    public enum Type {
+        CREATED,
+        MODIFIED,
+        RENAMED,
+        DELETED,
+        //Changes in the directory were lost, listeners should reload it
+        OVERFLOW,
+        //Several changes made by one batch, reported together
+        BATCH
+    }
+
+    private final Type type;
+    private final Path path;
+    private final Path previousPath;
+    private final FileItem item;
+    private final List<FileChangeEvent> changes;
+
+    /*
+    * path: the affected entry (the directory itself for OVERFLOW)
+    * previousPath: old location for RENAMED, otherwise null
+    * item: current state of the entry, null for DELETED, OVERFLOW and BATCH
+    * */
+    public FileChangeEvent(Type type, Path path, Path previousPath, FileItem item) {
+        this(type, path, previousPath, item, List.of());
+    }
+
+    private FileChangeEvent(Type type, Path path, Path previousPath, FileItem item, List<FileChangeEvent> changes) {
+        this.type = type;
+        this.path = path;
+        this.previousPath = previousPath;
+        this.item = item;
+        this.changes = changes;
+    }
+
+    public static FileChangeEvent created(FileItem item) {
+        return new FileChangeEvent(Type.CREATED, item.getPath(), null, item);
+    }
+
+    public static FileChangeEvent modified(FileItem item) {
+        return new FileChangeEvent(Type.MODIFIED, item.getPath(), null, item);
+    }
+
+    public static FileChangeEvent renamed(Path previousPath, FileItem item) {
+        return new FileChangeEvent(Type.RENAMED, item.getPath(), previousPath, item);
+    }
+
+    public static FileChangeEvent deleted(Path path) {
+        return new FileChangeEvent(Type.DELETED, path, null, null);
+    }
+
+    public static FileChangeEvent overflow(Path directory) {
+        return new FileChangeEvent(Type.OVERFLOW, directory, null, null);
+    }
+
+    //path is null for a batch; the changes themselves say what changed where
+    public static FileChangeEvent batch(List<FileChangeEvent> changes) {
+        return new FileChangeEvent(Type.BATCH, null, null, null, List.copyOf(changes));
+    }
+
+    //Getters
+    public Type getType() {
+        return type;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public Path getPreviousPath() {
+        return previousPath;
+    }
+
+    public FileItem getItem() {
+        return item;
+    }
+
+    //The changes of a BATCH, in the order they were made; empty for other types
+    public List<FileChangeEvent> getChanges() {
+        return changes;
+    }
+
+    //Directory whose listing this event changes; null for a BATCH
+    public Path getDirectory() {
+        if (type == Type.BATCH) {
+            return null;
+        }
+        return type == Type.OVERFLOW ? path : path.getParent();
+    }
+
+    @Override
+    public String toString() {
+        if (type == Type.BATCH) {
+            return type + " of " + changes.size() + " changes";
+        }
+        return previousPath != null
+                ? type + " " + previousPath + " -> " + path
+                : type + " " + path;
+    }
+}
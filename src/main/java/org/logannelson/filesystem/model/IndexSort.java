@@ -0,0 +1,214 @@
+package org.logannelson.filesystem.model;
+//Sorts entry indexes by primitive keys, without boxing.
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntPredicate;
+
+/*
+* Stable merge sort over an int[] of indexes, with the comparison done on the
+* caller's primitive columns. Halves above PARALLEL_THRESHOLD are sorted as
+* fork-join tasks, so large listings use every core.
+* Plain long columns skip comparisons altogether with a radix sort.
+* */
+final class IndexSort {
+
+    @FunctionalInterface
+    interface IndexComparator {
+        int compare(int a, int b);
+    }
+
+    private static final int PARALLEL_THRESHOLD = 1 << 14;
+    private static final int INSERTION_THRESHOLD = 32;
+    private static final int RADIX_BITS = 11;
+    private static final int RADIX = 1 << RADIX_BITS;
+
+    private IndexSort() {
+    }
+
+    //Returns 0..size-1 in sorted order
+    static int[] sort(int size, IndexComparator comparator) {
+        int[] indexes = new int[size];
+        for (int i = 0; i < size; i++) {
+            indexes[i] = i;
+        }
+        int[] buffer = new int[size];
+        if (size >= PARALLEL_THRESHOLD) {
+            ForkJoinPool.commonPool().invoke(new SortTask(indexes, buffer, 0, size, comparator));
+        } else {
+            mergeSort(indexes, buffer, 0, size, comparator);
+        }
+        return indexes;
+    }
+
+    /*
+    * Returns 0..size-1 ordered by keys[0..size), signed, ties in index order.
+    * LSD radix sort: a few linear passes, skipping digits that are the same everywhere
+    * (for file sizes usually all the high ones).
+    * */
+    static int[] sortByKey(long[] keys, int size) {
+        int[] indexes = new int[size];
+        for (int i = 0; i < size; i++) {
+            indexes[i] = i;
+        }
+        int[] buffer = new int[size];
+        int[] counts = new int[RADIX + 1];
+        for (int shift = 0; shift < Long.SIZE && size > 1; shift += RADIX_BITS) {
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < size; i++) {
+                counts[digit(keys[indexes[i]], shift) + 1]++;
+            }
+            if (counts[digit(keys[indexes[0]], shift) + 1] == size) {
+                continue; //Every key has this digit
+            }
+            for (int d = 0; d < RADIX; d++) {
+                counts[d + 1] += counts[d];
+            }
+            for (int i = 0; i < size; i++) {
+                int index = indexes[i];
+                buffer[counts[digit(keys[index], shift)]++] = index;
+            }
+            int[] swap = indexes;
+            indexes = buffer;
+            buffer = swap;
+        }
+        return indexes;
+    }
+
+    //Flipping the sign bit makes signed order match unsigned digit order
+    private static int digit(long key, int shift) {
+        return (int) ((key ^ Long.MIN_VALUE) >>> shift) & (RADIX - 1);
+    }
+
+    /*
+    * The first n indexes of the sorted order, among those accepted by include.
+    * Keeps a bounded heap instead of sorting everything: O(size log n).
+    * */
+    static int[] top(int size, int n, IndexComparator comparator, IntPredicate include) {
+        int[] heap = new int[Math.max(0, Math.min(n, size))];
+        int count = 0;
+        for (int i = 0; i < size && heap.length > 0; i++) {
+            if (!include.test(i)) {
+                continue;
+            }
+            if (count < heap.length) {
+                heap[count] = i;
+                siftUp(heap, count++, comparator);
+            } else if (comparator.compare(i, heap[0]) < 0) {
+                heap[0] = i;
+                siftDown(heap, count, comparator);
+            }
+        }
+
+        //Heap root is the largest kept; sort what is left
+        int[] result = new int[count];
+        System.arraycopy(heap, 0, result, 0, count);
+        mergeSort(result, new int[count], 0, count, comparator);
+        return result;
+    }
+
+    //Max-heap on the comparator: the root is the entry that would drop out first
+    private static void siftUp(int[] heap, int position, IndexComparator comparator) {
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (comparator.compare(heap[position], heap[parent]) <= 0) {
+                return;
+            }
+            swap(heap, position, parent);
+            position = parent;
+        }
+    }
+
+    private static void siftDown(int[] heap, int count, IndexComparator comparator) {
+        int position = 0;
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= count) {
+                return;
+            }
+            if (child + 1 < count && comparator.compare(heap[child + 1], heap[child]) > 0) {
+                child++;
+            }
+            if (comparator.compare(heap[child], heap[position]) <= 0) {
+                return;
+            }
+            swap(heap, position, child);
+            position = child;
+        }
+    }
+
+    private static void swap(int[] array, int i, int j) {
+        int t = array[i];
+        array[i] = array[j];
+        array[j] = t;
+    }
+
+    private static void mergeSort(int[] a, int[] buffer, int from, int to, IndexComparator comparator) {
+        if (to - from <= INSERTION_THRESHOLD) {
+            insertionSort(a, from, to, comparator);
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(a, buffer, from, mid, comparator);
+        mergeSort(a, buffer, mid, to, comparator);
+        merge(a, buffer, from, mid, to, comparator);
+    }
+
+    private static void insertionSort(int[] a, int from, int to, IndexComparator comparator) {
+        for (int i = from + 1; i < to; i++) {
+            int value = a[i];
+            int j = i - 1;
+            while (j >= from && comparator.compare(a[j], value) > 0) {
+                a[j + 1] = a[j];
+                j--;
+            }
+            a[j + 1] = value;
+        }
+    }
+
+    //Merges [from, mid) and [mid, to); takes from the left on ties, so the sort is stable
+    private static void merge(int[] a, int[] buffer, int from, int mid, int to, IndexComparator comparator) {
+        if (comparator.compare(a[mid - 1], a[mid]) <= 0) {
+            return; //Already in order
+        }
+        System.arraycopy(a, from, buffer, from, mid - from);
+        int i = from;
+        int j = mid;
+        int k = from;
+        while (i < mid && j < to) {
+            a[k++] = comparator.compare(a[j], buffer[i]) < 0 ? a[j++] : buffer[i++];
+        }
+        while (i < mid) {
+            a[k++] = buffer[i++];
+        }
+    }
+
+    private static final class SortTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] a;
+        private final int[] buffer;
+        private final int from;
+        private final int to;
+        private final IndexComparator comparator;
+
+        SortTask(int[] a, int[] buffer, int from, int to, IndexComparator comparator) {
+            this.a = a;
+            this.buffer = buffer;
+            this.from = from;
+            this.to = to;
+            this.comparator = comparator;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from < PARALLEL_THRESHOLD) {
+                mergeSort(a, buffer, from, to, comparator);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new SortTask(a, buffer, from, mid, comparator), new SortTask(a, buffer, mid, to, comparator));
+            merge(a, buffer, from, mid, to, comparator);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.logannelson.filesystem.model;
+//One file found by a search, with the lines that matched (if it was a content search).
+import java.nio.file.Path;
+import java.util.List;
+
+public class SearchResult {
+    private final Path path;
+    private final List<MatchingLine> lines;
+
+    public SearchResult(Path path, List<MatchingLine> lines) {
+        this.path = path;
+        this.lines = List.copyOf(lines);
+    }
+
+    //Getters
+    public Path getPath() {
+        return path;
+    }
+
+    //Empty for name searches
+    public List<MatchingLine> getLines() {
+        return lines;
+    }
+
+    @Override
+    public String toString() {
+        return path + (lines.isEmpty() ? "" : " (" + lines.size() + " lines)");
+    }
+
+    //A line of the file, trimmed for display; numbers start at 1
+    public static class MatchingLine {
+        private final long number;
+        private final String text;
+
+        public MatchingLine(long number, String text) {
+            this.number = number;
+            this.text = text;
+        }
+
+        public long getNumber() {
+            return number;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        @Override
+        public String toString() {
+            return number + ": " + text;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.logannelson.filesystem.model;
+//Sort orders of one snapshot, computed once and reused for every re-sort.
+import java.text.Collator;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+/*
+* For each column the ascending order of the snapshot's entries, as an int[] of indexes.
+* Names are compared by collation key bytes (computed once, in parallel, then dropped)
+* with a parallel merge sort; sizes and times are radix sorted straight from the
+* snapshot's long columns. Ties keep listing order.
+*
+* Once an order exists, any view of it (descending, folders first, filtered) is a single
+* linear pass, so re-sorting never compares anything and never touches the disk.
+* */
+public final class SnapshotSortKeys {
+
+    private final DirectorySnapshot snapshot;
+    private final AtomicReferenceArray<int[]> orders = new AtomicReferenceArray<>(SortColumn.values().length);
+
+    SnapshotSortKeys(DirectorySnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    //Collator used for name order: locale aware, ignores case
+    public static Collator nameCollator() {
+        Collator collator = Collator.getInstance();
+        collator.setStrength(Collator.SECONDARY);
+        return collator;
+    }
+
+    //Ascending order for the column. Computed on first use, which may take a while.
+    public synchronized int[] order(SortColumn column) {
+        int[] order = orders.get(column.ordinal());
+        if (order == null) {
+            order = computeOrder(column);
+            orders.set(column.ordinal(), order);
+        }
+        return order;
+    }
+
+    //The order if it has already been computed, otherwise null. Never blocks on a sort.
+    public int[] orderIfComputed(SortColumn column) {
+        return orders.get(column.ordinal());
+    }
+
+    /*
+    * The first n entries accepted by include, in column order.
+    * Reads them off the full order when there is one; otherwise keeps a bounded heap,
+    * e.g. "largest 100 files" without sorting the whole listing.
+    * */
+    public int[] top(SortColumn column, boolean descending, int n, IntPredicate include) {
+        int[] order = orderIfComputed(column);
+        if (order == null && column == SortColumn.NAME) {
+            order = order(column); //Name keys are needed either way
+        }
+
+        if (order != null) {
+            int[] result = new int[Math.max(0, Math.min(n, order.length))];
+            int count = 0;
+            for (int k = 0; k < order.length && count < result.length; k++) {
+                int index = order[descending ? order.length - 1 - k : k];
+                if (include.test(index)) {
+                    result[count++] = index;
+                }
+            }
+            return Arrays.copyOf(result, count);
+        }
+
+        IndexSort.IndexComparator ascending = comparator(column);
+        IndexSort.IndexComparator comparator = descending ? (a, b) -> ascending.compare(b, a) : ascending;
+        return IndexSort.top(snapshot.size(), n, comparator, include);
+    }
+
+    private int[] computeOrder(SortColumn column) {
+        if (column == SortColumn.NAME) {
+            byte[][] keys = collationKeys();
+            return IndexSort.sort(snapshot.size(), (a, b) -> Arrays.compareUnsigned(keys[a], keys[b]));
+        }
+        return IndexSort.sortByKey(column(column), snapshot.size());
+    }
+
+    //Long columns only; name order goes through collation keys
+    private IndexSort.IndexComparator comparator(SortColumn column) {
+        long[] keys = column(column);
+        return (a, b) -> Long.compare(keys[a], keys[b]);
+    }
+
+    private long[] column(SortColumn column) {
+        return switch (column) {
+            case SIZE -> snapshot.sizeColumn();
+            case MODIFIED -> snapshot.modifiedColumn();
+            case NAME -> throw new IllegalArgumentException("Name order needs collation keys");
+        };
+    }
+
+    //Collators are not thread-safe, so each worker thread gets its own copy
+    private byte[][] collationKeys() {
+        Collator collator = nameCollator();
+        ThreadLocal<Collator> collators = ThreadLocal.withInitial(() -> (Collator) collator.clone());
+        byte[][] keys = new byte[snapshot.size()][];
+        IntStream.range(0, keys.length).parallel().forEach(i ->
+                keys[i] = collators.get().getCollationKey(snapshot.getName(i)).toByteArray());
+        return keys;
+    }
+}
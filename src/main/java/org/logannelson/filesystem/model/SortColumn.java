@@ -0,0 +1,22 @@
+package org.logannelson.filesystem.model;
+//Columns a directory listing can be sorted by.
+public enum SortColumn {
+    NAME("Name"),
+    SIZE("Size"),
+    MODIFIED("Modified");
+
+    private final String label;
+
+    SortColumn(String label) {
+        this.label = label;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    @Override
+    public String toString() {
+        return label;
+    }
+}
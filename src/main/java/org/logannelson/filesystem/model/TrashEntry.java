@@ -0,0 +1,40 @@
+package org.logannelson.filesystem.model;
+//An item that was deleted into the trash and can still be restored.
+import java.nio.file.Path;
+import java.time.Instant;
+
+public class TrashEntry {
+    private final String id;
+    private final Path originalPath;
+    private final Instant deletedAt;
+    private final boolean directory;
+
+    public TrashEntry(String id, Path originalPath, Instant deletedAt, boolean directory) {
+        this.id = id;
+        this.originalPath = originalPath;
+        this.deletedAt = deletedAt;
+        this.directory = directory;
+    }
+
+    //Getters
+    public String getId() {
+        return id;
+    }
+
+    public Path getOriginalPath() {
+        return originalPath;
+    }
+
+    public Instant getDeletedAt() {
+        return deletedAt;
+    }
+
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    @Override
+    public String toString() {
+        return originalPath + " (deleted " + deletedAt + ")";
+    }
+}
@@ -0,0 +1,406 @@
+package org.logannelson.filesystem.server;
+//One client connection: reads requests off it in turn and answers each from the service.
+import org.logannelson.filesystem.model.DirectorySize;
+import org.logannelson.filesystem.model.FileItem;
+import org.logannelson.filesystem.model.SearchResult;
+import org.logannelson.filesystem.model.TrashEntry;
+import org.logannelson.filesystem.service.FileContent;
+import org.logannelson.filesystem.service.FileSystemService;
+import org.logannelson.filesystem.service.OperationProgress;
+import org.logannelson.filesystem.service.OperationScheduler;
+import org.logannelson.filesystem.service.SaveOptions;
+import org.logannelson.filesystem.service.ScheduledOperation;
+import org.logannelson.filesystem.service.ServiceMetrics;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.StringJoiner;
+
+/*
+* Runs on its own thread (virtual where available) for as long as the client keeps the
+* connection open, so a slow client only ever holds up itself. Requests on one connection
+* are answered in order (HTTP/1.1 keep-alive, no pipelining tricks needed).
+* File bodies go out with FileContent.transferTo straight into the socket: on disk that is
+* sendfile, and the bytes never pass through the heap.
+* Paths in URLs and answers are relative to the sandbox root, with '/' separators.
+* The service locks the paths of each call itself. A file is sent from service.openContent,
+* one version of it opened under its lock, so the length in the head matches the bytes that
+* follow without the lock being held while they go out. Nothing is locked while waiting on
+* the client: a GET body is sent from an open snapshot, a PUT body has arrived in full
+* before writeFile runs.
+* */
+final class Connection implements Runnable {
+
+    private static final int READ_BUFFER_BYTES = 16 * 1024;
+    private static final int DEFAULT_FIND_LIMIT = 100;
+    private static final int MAX_MEMORY_BODY_BYTES = 1024 * 1024;
+    private static final String JSON = "application/json";
+
+    private final FileSystemService service;
+    private final ServiceMetrics metrics;
+    private final SocketChannel channel;
+    private final Path root;
+    private final OperationScheduler scheduler;
+
+    //A request the service could not carry out; answered with status, the connection stays open
+    private static final class Failure extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        Failure(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    Connection(FileSystemService service, ServiceMetrics metrics, SocketChannel channel) {
+        this.service = service;
+        this.metrics = metrics;
+        this.channel = channel;
+        this.root = service.getStartDirectory();
+        this.scheduler = service.getScheduler();
+    }
+
+    @Override
+    public void run() {
+        try (SocketChannel client = channel) {
+            InputStream in = new BufferedInputStream(Channels.newInputStream(client), READ_BUFFER_BYTES);
+            while (true) {
+                Request request;
+                try {
+                    request = Request.read(in);
+                } catch (Request.Malformed e) {
+                    send(e.status, JSON, Json.error(e.getMessage()), false);
+                    return;
+                }
+                if (request == null || !answer(request) || !request.isKeepAlive() || !request.finish()) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            //The client went away or reset the connection; there is no one left to answer
+        }
+    }
+
+    /*
+    * Section: routing
+    * */
+
+    //False if the answer was cut short, so the connection must close
+    private boolean answer(Request request) throws IOException {
+        if (request.hasBody() && "100-continue".equalsIgnoreCase(request.getHeader("expect"))) {
+            channel.write(ByteBuffer.wrap("HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII)));
+        }
+        String target = request.getPath();
+        int slash = target.indexOf('/', 1);
+        String endpoint = slash < 0 ? target.substring(1) : target.substring(1, slash);
+        String rest = slash < 0 ? "" : target.substring(slash + 1);
+
+        try {
+            switch (request.getMethod() + " " + endpoint) {
+                case "GET files" -> {
+                    return getFile(request, resolve(rest));
+                }
+                case "PUT files" -> putFile(request, resolve(rest));
+                case "DELETE files" -> delete(request, resolve(rest));
+                case "GET list" -> list(request, resolve(rest));
+                case "POST mkdir" -> createDirectory(request, resolve(rest));
+                case "POST rename" -> rename(request, resolve(rest));
+                case "POST copy" -> copyOrMove(request, resolve(rest), false);
+                case "POST move" -> copyOrMove(request, resolve(rest), true);
+                case "GET size" -> size(request, resolve(rest));
+                case "GET find" -> find(request);
+                case "GET search" -> search(request);
+                case "GET metrics" -> metrics(request);
+                default -> throw new Failure(404, "No endpoint " + request.getMethod() + " /" + endpoint);
+            }
+        } catch (Failure e) {
+            send(e.status, JSON, Json.error(e.getMessage()), request.isKeepAlive());
+        } catch (NoSuchFileException e) {
+            send(404, JSON, Json.error("Not found: " + relative(e.getFile())), request.isKeepAlive());
+        } catch (FileAlreadyExistsException e) {
+            send(409, JSON, Json.error("Already exists: " + relative(e.getFile())), request.isKeepAlive());
+        } catch (NotDirectoryException | DirectoryNotEmptyException | IllegalArgumentException e) {
+            send(400, JSON, Json.error(e.toString()), request.isKeepAlive());
+        } catch (IOException e) {
+            //Also the client having gone mid-body; answering then fails too and closes the connection
+            send(500, JSON, Json.error(e.getMessage()), request.isKeepAlive());
+        }
+        return true;
+    }
+
+    /*
+    * Section: endpoints
+    * */
+
+    private boolean getFile(Request request, Path file) throws IOException {
+        FileItem item = scheduler.runInteractive(file, () -> service.getItem(file));
+        if (item.isDirectory()) {
+            throw new Failure(400, "Is a directory, use /list: " + relative(file));
+        }
+        //The lock is only held to open it: a slow client must not keep writers of the file waiting
+        try (FileContent content = scheduler.runInteractive(file, () -> service.openContent(file))) {
+            long size = content.size();
+            writeFully(head(200, "application/octet-stream", size, request.isKeepAlive()));
+            //Headers are out: from here a failure can only be reported by closing the connection
+            try {
+                long sent = scheduler.runInteractive(file, () -> content.transferTo(0, size, channel));
+                return sent == size;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    /*
+    * The body is the new content, as UTF-8 text. It is read in full before the service is
+    * called, into memory up to MAX_MEMORY_BODY_BYTES and into a temp file beyond that:
+    * writeFile holds the file's lock (and intent locks on its folders) while it reads the
+    * source, and a client that stalls mid-upload must not keep them for as long as it likes.
+    * */
+    private void putFile(Request request, Path file) throws IOException {
+        String contentLength = request.getHeader("content-length");
+        if (contentLength == null) {
+            throw new Failure(411, "PUT needs a Content-Length");
+        }
+        if (Long.parseLong(contentLength) <= MAX_MEMORY_BODY_BYTES) {
+            byte[] bytes = request.body().readAllBytes();
+            write(file, new ByteArrayInputStream(bytes));
+        } else {
+            Path spool = Files.createTempFile("fms-upload-", ".tmp");
+            try {
+                Files.copy(request.body(), spool, StandardCopyOption.REPLACE_EXISTING);
+                try (InputStream spooled = Files.newInputStream(spool)) {
+                    write(file, spooled);
+                }
+            } finally {
+                Files.deleteIfExists(spool);
+            }
+        }
+        sendJson(200, Json.item(service.getItem(file), relative(file)), request);
+    }
+
+    private void write(Path file, InputStream content) throws IOException {
+        Reader body = new InputStreamReader(content, StandardCharsets.UTF_8);
+        service.writeFile(file, body::transferTo, SaveOptions.DEFAULT);
+    }
+
+    //To the trash unless ?permanent=true
+    private void delete(Request request, Path target) throws IOException {
+        requireBelowRoot(target);
+        if (!"true".equals(request.getParameter("permanent"))) {
+            TrashEntry entry = service.delete(target);
+            sendJson(200, "{\"trashId\":" + Json.quote(entry.getId()) + "}", request);
+            return;
+        }
+        OperationProgress progress = new OperationProgress();
+        scheduler.submit("Delete " + target.getFileName(), ScheduledOperation.Priority.BULK, target, progress, () -> {
+            service.deletePermanently(target, progress);
+            return null;
+        }).await();
+        progress.throwIfFailed("delete");
+        sendJson(200, "{\"files\":" + progress.getFilesProcessed()
+                + ",\"directories\":" + progress.getDirectoriesProcessed() + "}", request);
+    }
+
+    //?offset=&limit= for one page, otherwise the whole directory
+    private void list(Request request, Path directory) throws IOException {
+        String limit = request.getParameter("limit");
+        int offset = intParameter(request, "offset", 0);
+        List<FileItem> items = scheduler.runInteractive(directory, () -> limit == null
+                ? service.listDirectory(directory)
+                : service.listDirectory(directory, offset, intParameter(request, "limit", 0)));
+        StringJoiner json = new StringJoiner(",", "[", "]");
+        for (FileItem item : items) {
+            json.add(Json.item(item, relative(item.getPath())));
+        }
+        sendJson(200, json.toString(), request);
+    }
+
+    private void createDirectory(Request request, Path directory) throws IOException {
+        requireBelowRoot(directory);
+        Path created = service.createDirectory(directory.getParent(), directory.getFileName().toString());
+        sendJson(201, "{\"path\":" + Json.quote(relative(created)) + "}", request);
+    }
+
+    //?to= the new name, in the same directory
+    private void rename(Request request, Path source) throws IOException {
+        requireBelowRoot(source);
+        String newName = request.getParameter("to");
+        if (newName == null || newName.isBlank() || newName.contains("/") || newName.contains(File.separator)) {
+            throw new Failure(400, "rename needs ?to=<new name>, a plain name");
+        }
+        Path renamed = service.rename(source, newName);
+        sendJson(200, "{\"path\":" + Json.quote(relative(renamed)) + "}", request);
+    }
+
+    /*
+    * ?to= the target directory ("" for the root). Runs as a BULK operation, so it shows up
+    * in getOperations() and yields to interactive reads, and answers once it is done.
+    * Nothing is locked here: the operation runs on a scheduler thread, which locks for itself.
+    * */
+    private void copyOrMove(Request request, Path source, boolean move) throws IOException {
+        requireBelowRoot(source);
+        String to = request.getParameter("to");
+        if (to == null) {
+            throw new Failure(400, (move ? "move" : "copy") + " needs ?to=<target directory>");
+        }
+        Path targetDirectory = resolve(to);
+        String verb = move ? "Move " : "Copy ";
+        OperationProgress progress = new OperationProgress();
+        Path result = scheduler.submit(verb + source.getFileName(), ScheduledOperation.Priority.BULK, source, progress,
+                () -> move
+                        ? service.move(source, targetDirectory, progress)
+                        : service.copy(source, targetDirectory, progress)).await();
+        progress.throwIfFailed(verb.trim().toLowerCase());
+        sendJson(200, "{\"path\":" + Json.quote(relative(result))
+                + ",\"files\":" + progress.getFilesProcessed()
+                + ",\"bytes\":" + progress.getBytesProcessed() + "}", request);
+    }
+
+    private void size(Request request, Path directory) throws IOException {
+        DirectorySize size = service.getDirectorySize(directory);
+        sendJson(200, "{\"bytes\":" + size.getBytes()
+                + ",\"files\":" + size.getFileCount()
+                + ",\"directories\":" + size.getDirectoryCount() + "}", request);
+    }
+
+    //?name= a substring or glob, ?limit=
+    private void find(Request request) throws IOException {
+        String name = requiredParameter(request, "name");
+        StringJoiner json = new StringJoiner(",", "[", "]");
+        for (Path path : service.findByName(name, intParameter(request, "limit", DEFAULT_FIND_LIMIT))) {
+            json.add(Json.quote(relative(path)));
+        }
+        sendJson(200, json.toString(), request);
+    }
+
+    //?q= words to look for in file contents, ?limit=
+    private void search(Request request) throws IOException {
+        String query = requiredParameter(request, "q");
+        StringJoiner json = new StringJoiner(",", "[", "]");
+        for (SearchResult result : service.searchContent(query, intParameter(request, "limit", DEFAULT_FIND_LIMIT))) {
+            StringJoiner lines = new StringJoiner(",", "[", "]");
+            for (SearchResult.MatchingLine line : result.getLines()) {
+                lines.add("{\"number\":" + line.getNumber() + ",\"text\":" + Json.quote(line.getText()) + "}");
+            }
+            json.add("{\"path\":" + Json.quote(relative(result.getPath())) + ",\"lines\":" + lines + "}");
+        }
+        sendJson(200, json.toString(), request);
+    }
+
+    //The same per-operation counts and latencies as the status bar, one line each
+    private void metrics(Request request) throws IOException {
+        if (metrics == null) {
+            throw new Failure(404, "This server was started without metrics");
+        }
+        send(200, "text/plain; charset=utf-8", String.join("\n", metrics.getSummary()) + "\n", request.isKeepAlive());
+    }
+
+    /*
+    * Section: helpers
+    * */
+
+    //A path in a URL, below the sandbox root; never outside it, whatever ".." it contains
+    private Path resolve(String relative) throws Failure {
+        Path resolved = root.resolve(relative).normalize();
+        if (!resolved.startsWith(root)) {
+            throw new Failure(403, "Outside the sandbox: " + relative);
+        }
+        return resolved;
+    }
+
+    private void requireBelowRoot(Path path) throws Failure {
+        if (path.equals(root)) {
+            throw new Failure(400, "Not allowed on the sandbox root");
+        }
+    }
+
+    private String relative(String path) {
+        return path == null ? "" : relative(Path.of(path));
+    }
+
+    private String relative(Path path) {
+        return root.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    private static String requiredParameter(Request request, String name) throws Failure {
+        String value = request.getParameter(name);
+        if (value == null || value.isBlank()) {
+            throw new Failure(400, "Missing ?" + name + "=");
+        }
+        return value;
+    }
+
+    private static int intParameter(Request request, String name, int defaultValue) throws Failure {
+        String value = request.getParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new Failure(400, "?" + name + "= must be a number: " + value);
+        }
+    }
+
+    private void sendJson(int status, String json, Request request) throws IOException {
+        send(status, JSON, json, request.isKeepAlive());
+    }
+
+    //Head and body in one gathering write, so a small answer is one packet
+    private void send(int status, String contentType, String body, boolean keepAlive) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer[] buffers = {head(status, contentType, bytes.length, keepAlive), ByteBuffer.wrap(bytes)};
+        while (buffers[1].hasRemaining()) {
+            channel.write(buffers);
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static ByteBuffer head(int status, String contentType, long length, boolean keepAlive) {
+        String head = "HTTP/1.1 " + status + " " + reason(status) + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Length: " + length + "\r\n"
+                + (keepAlive ? "" : "Connection: close\r\n")
+                + "\r\n";
+        return ByteBuffer.wrap(head.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static String reason(int status) {
+        return switch (status) {
+            case 200 -> "OK";
+            case 201 -> "Created";
+            case 400 -> "Bad Request";
+            case 403 -> "Forbidden";
+            case 404 -> "Not Found";
+            case 409 -> "Conflict";
+            case 411 -> "Length Required";
+            case 431 -> "Request Header Fields Too Large";
+            default -> status >= 500 ? "Internal Server Error" : "Error";
+        };
+    }
+}
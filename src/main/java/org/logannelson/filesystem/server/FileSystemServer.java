@@ -0,0 +1,151 @@
+package org.logannelson.filesystem.server;
+//Serves one FileSystemService to any number of clients over HTTP/1.1, without a UI.
+import org.logannelson.filesystem.service.FileSystemService;
+import org.logannelson.filesystem.service.ServiceMetrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+* Section 1
+* One acceptor thread hands each connection to a thread of its own: a virtual thread where
+* the runtime has them (Java 21+), otherwise a daemon thread from a cached pool. The build
+* targets Java 17, so the virtual thread executor is looked up reflectively, as in the
+* OperationScheduler. Blocking sockets then cost one cheap thread per client.
+*
+* Endpoints (paths relative to the sandbox root):
+*   GET    /files/{path}                 file content, sent with transferTo (sendfile on disk)
+*   PUT    /files/{path}                 replaces or creates the file with the body (UTF-8 text)
+*   DELETE /files/{path}[?permanent=true] to the trash, or gone for good
+*   GET    /list/{path}[?offset=&limit=] directory entries as JSON
+*   POST   /mkdir/{path}                 creates the directory
+*   POST   /rename/{path}?to={name}      renames in place
+*   POST   /copy/{path}?to={directory}   (and /move) as a BULK operation, answered when done
+*   GET    /size/{path}                  bytes, files and folders below a directory
+*   GET    /find?name={pattern}          paths by name, /search?q={words} by content
+*   GET    /metrics                      the service's per-operation counts and latencies
+* Writers of a path wait for its readers and each other (the service's PathLockManager),
+* so clients and the window sharing one service never interleave on a path; reads run together.
+* Binds to the loopback address unless given another: there is no authentication.
+* */
+public final class FileSystemServer implements Closeable {
+
+    public static final int DEFAULT_PORT = 8341;
+
+    private final FileSystemService service;
+    private final ServiceMetrics metrics;
+    private final InetSocketAddress address;
+    private final Set<SocketChannel> connections = ConcurrentHashMap.newKeySet();
+    private ServerSocketChannel serverChannel;
+    private ExecutorService executor;
+    private Thread acceptor;
+
+    //metrics may be null; then /metrics answers 404
+    public FileSystemServer(FileSystemService service, ServiceMetrics metrics, InetSocketAddress address) {
+        this.service = service;
+        this.metrics = metrics;
+        this.address = address;
+    }
+
+    public FileSystemServer(FileSystemService service, ServiceMetrics metrics, int port) {
+        this(service, metrics, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    //Binds and starts accepting; returns at once. Port 0 picks a free one (see getAddress())
+    public synchronized void start() throws IOException {
+        if (serverChannel != null) {
+            throw new IllegalStateException("Already started");
+        }
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address);
+        executor = newExecutor();
+        acceptor = new Thread(this::acceptLoop, "fms-server-acceptor");
+        acceptor.start();
+    }
+
+    //Where it listens, with the actual port once started
+    public InetSocketAddress getAddress() throws IOException {
+        ServerSocketChannel channel = serverChannel;
+        return channel == null ? address : (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    //Waits until the server is closed (from another thread or a shutdown hook)
+    public void awaitClose() throws InterruptedException {
+        Thread thread = acceptor;
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    //Stops accepting and drops every open connection; requests in flight fail
+    @Override
+    public synchronized void close() throws IOException {
+        if (serverChannel == null) {
+            return;
+        }
+        serverChannel.close();
+        for (SocketChannel connection : connections) {
+            connection.close();
+        }
+        executor.shutdown();
+    }
+
+    private void acceptLoop() {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                //E.g. out of file descriptors: keep serving the connections there are
+                System.err.println("Accept failed: " + e.getMessage());
+                continue;
+            }
+            try {
+                //Answers are written head first, then body: do not hold the head back for the body
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                connections.add(channel);
+                executor.execute(() -> {
+                    try {
+                        new Connection(service, metrics, channel).run();
+                    } finally {
+                        connections.remove(channel);
+                    }
+                });
+            } catch (IOException | RuntimeException e) {
+                //Closed meanwhile, or the executor is shut down
+                connections.remove(channel);
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    //Nothing more to do
+                }
+            }
+        }
+    }
+
+    private static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "connection-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package org.logannelson.filesystem.server;
+//The few bits of JSON the server writes; it never reads any.
+import org.logannelson.filesystem.model.FileItem;
+
+final class Json {
+
+    private Json() {
+    }
+
+    static String quote(String text) {
+        StringBuilder out = new StringBuilder(text.length() + 2).append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"' -> out.append("\\\"");
+                case '\\' -> out.append("\\\\");
+                case '\n' -> out.append("\\n");
+                case '\r' -> out.append("\\r");
+                case '\t' -> out.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+                }
+            }
+        }
+        return out.append('"').toString();
+    }
+
+    //path is the item's path as the client names it (relative to the sandbox)
+    static String item(FileItem item, String path) {
+        return "{\"name\":" + quote(item.getName())
+                + ",\"path\":" + quote(path)
+                + ",\"directory\":" + item.isDirectory()
+                + ",\"size\":" + item.getSize()
+                + ",\"modified\":" + quote(item.getLastModifiedTime().toString()) + "}";
+    }
+
+    static String error(String message) {
+        return "{\"error\":" + quote(message == null ? "" : message) + "}";
+    }
+}
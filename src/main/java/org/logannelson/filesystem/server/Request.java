@@ -0,0 +1,253 @@
+package org.logannelson.filesystem.server;
+//One HTTP/1.1 request read off a connection: request line, headers and a bounded body.
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+* Only what the server's clients send: no chunked bodies (a body needs Content-Length),
+* no header continuation lines, and at most MAX_HEAD_BYTES of request line and headers.
+* The body is not read up front; body() streams it from the connection, and whatever the
+* handler leaves unread is skipped before the next request (see finish()).
+* */
+final class Request {
+
+    static final int MAX_HEAD_BYTES = 8 * 1024;
+
+    //Thrown for requests the server cannot read; the connection answers with status and closes
+    static final class Malformed extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        Malformed(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private final String method;
+    private final String path;
+    private final Map<String, String> query;
+    private final Map<String, String> headers;
+    private final boolean keepAlive;
+    private final Body body;
+
+    private Request(String method, String path, Map<String, String> query, Map<String, String> headers,
+                    boolean keepAlive, Body body) {
+        this.method = method;
+        this.path = path;
+        this.query = query;
+        this.headers = headers;
+        this.keepAlive = keepAlive;
+        this.body = body;
+    }
+
+    //Getters
+    String getMethod() {
+        return method;
+    }
+
+    //Percent-decoded, without the query
+    String getPath() {
+        return path;
+    }
+
+    String getParameter(String name) {
+        return query.get(name);
+    }
+
+    String getHeader(String name) {
+        return headers.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    boolean hasBody() {
+        return body.remaining > 0;
+    }
+
+    InputStream body() {
+        return body;
+    }
+
+    //Skips the unread body; false if the connection cannot be reused (the client stopped sending)
+    boolean finish() throws IOException {
+        while (body.remaining > 0) {
+            try {
+                if (body.skip(body.remaining) <= 0) {
+                    body.read();
+                }
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+    * Section: parsing
+    * */
+
+    //The next request, or null if the client closed the connection between requests
+    static Request read(InputStream in) throws IOException {
+        int[] headBytes = {0};
+        String requestLine = readLine(in, headBytes);
+        if (requestLine == null) {
+            return null;
+        }
+        String[] parts = requestLine.split(" ");
+        if (parts.length != 3 || !parts[2].startsWith("HTTP/1.")) {
+            throw new Malformed(400, "Bad request line: " + requestLine);
+        }
+
+        Map<String, String> headers = new HashMap<>();
+        for (String line = readLine(in, headBytes); ; line = readLine(in, headBytes)) {
+            if (line == null) {
+                throw new Malformed(400, "Connection closed inside the headers");
+            }
+            if (line.isEmpty()) {
+                break;
+            }
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                throw new Malformed(400, "Bad header: " + line);
+            }
+            headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+        }
+
+        if (headers.containsKey("transfer-encoding")) {
+            throw new Malformed(411, "Chunked bodies are not supported, send Content-Length");
+        }
+        long length = 0;
+        String contentLength = headers.get("content-length");
+        if (contentLength != null) {
+            try {
+                length = Long.parseLong(contentLength);
+            } catch (NumberFormatException e) {
+                length = -1;
+            }
+            if (length < 0) {
+                throw new Malformed(400, "Bad Content-Length: " + contentLength);
+            }
+        }
+
+        String connection = headers.getOrDefault("connection", "").toLowerCase(Locale.ROOT);
+        boolean keepAlive = parts[2].equals("HTTP/1.0") ? connection.equals("keep-alive") : !connection.equals("close");
+
+        String target = parts[1];
+        int question = target.indexOf('?');
+        String path = decodePath(question < 0 ? target : target.substring(0, question));
+        Map<String, String> query = question < 0 ? Map.of() : parseQuery(target.substring(question + 1));
+        return new Request(parts[0].toUpperCase(Locale.ROOT), path, query, headers, keepAlive, new Body(in, length));
+    }
+
+    //A line without its CRLF (or bare LF); null at end of stream before any byte of it
+    private static String readLine(InputStream in, int[] headBytes) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                if (line.size() == 0) {
+                    return null;
+                }
+                throw new Malformed(400, "Connection closed inside a line");
+            }
+            if (++headBytes[0] > MAX_HEAD_BYTES) {
+                throw new Malformed(431, "Request head longer than " + MAX_HEAD_BYTES + " bytes");
+            }
+            line.write(b);
+        }
+        String text = line.toString(StandardCharsets.ISO_8859_1);
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    //Like URLDecoder, but a '+' in a path is a plus, not a space
+    private static String decodePath(String raw) throws Malformed {
+        try {
+            return URLDecoder.decode(raw.replace("+", "%2B"), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new Malformed(400, "Bad escape in path: " + raw);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String raw) throws Malformed {
+        Map<String, String> query = new HashMap<>();
+        try {
+            for (String pair : raw.split("&")) {
+                if (pair.isEmpty()) {
+                    continue;
+                }
+                int equals = pair.indexOf('=');
+                String name = equals < 0 ? pair : pair.substring(0, equals);
+                String value = equals < 0 ? "" : pair.substring(equals + 1);
+                query.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+            }
+        } catch (IllegalArgumentException e) {
+            throw new Malformed(400, "Bad escape in query: " + raw);
+        }
+        return query;
+    }
+
+    //The next length bytes of the connection; closing it does not close the connection
+    private static final class Body extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        Body(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b < 0) {
+                throw closedEarly();
+            }
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(buffer, offset, (int) Math.min(length, remaining));
+            if (n < 0) {
+                throw closedEarly();
+            }
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() {
+            //The connection outlives the request
+        }
+
+        //A short body must fail the write, not save a truncated file
+        private EOFException closedEarly() {
+            return new EOFException("Connection closed with " + remaining + " bytes of the body unsent");
+        }
+    }
+}
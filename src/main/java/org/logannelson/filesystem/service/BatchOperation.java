@@ -0,0 +1,84 @@
+package org.logannelson.filesystem.service;
+//One create, write, rename or delete in a batch passed to runBatch.
+import java.nio.file.Path;
+import java.util.List;
+
+public class BatchOperation {
+
+    public enum Type {
+        CREATE_FILE,
+        CREATE_DIRECTORY,
+        WRITE,
+        RENAME,
+        DELETE
+    }
+
+    private final Type type;
+    private final Path path;
+    private final String name;
+    private final String content;
+
+    /*
+    * path: the parent directory for the creates, otherwise the file or directory itself
+    * name: of the new entry for the creates, the new name for RENAME, otherwise null
+    * content: text for CREATE_FILE and WRITE, otherwise null
+    * */
+    private BatchOperation(Type type, Path path, String name, String content) {
+        this.type = type;
+        this.path = path;
+        this.name = name;
+        this.content = content;
+    }
+
+    public static BatchOperation createFile(Path parentDirectory, String name, String initialContent) {
+        return new BatchOperation(Type.CREATE_FILE, parentDirectory, name, initialContent);
+    }
+
+    public static BatchOperation createDirectory(Path parentDirectory, String name) {
+        return new BatchOperation(Type.CREATE_DIRECTORY, parentDirectory, name, null);
+    }
+
+    public static BatchOperation write(Path file, String content) {
+        return new BatchOperation(Type.WRITE, file, null, content);
+    }
+
+    public static BatchOperation rename(Path target, String newName) {
+        return new BatchOperation(Type.RENAME, target, newName, null);
+    }
+
+    //Moves to the trash, like delete()
+    public static BatchOperation delete(Path target) {
+        return new BatchOperation(Type.DELETE, target, null, null);
+    }
+
+    //Getters
+    public Type getType() {
+        return type;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    //Every path this operation reads or writes, for checking against the sandbox up front
+    List<Path> affectedPaths() {
+        if (name == null) {
+            return List.of(path);
+        }
+        Path parent = type == Type.RENAME ? path.getParent() : path;
+        return parent != null ? List.of(path, parent.resolve(name)) : List.of(path);
+    }
+
+    @Override
+    public String toString() {
+        return name != null ? type + " " + path + " " + name : type + " " + path;
+    }
+}
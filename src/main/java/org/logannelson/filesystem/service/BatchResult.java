@@ -0,0 +1,53 @@
+package org.logannelson.filesystem.service;
+//Outcome of one operation of a batch.
+import org.logannelson.filesystem.model.TrashEntry;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+public class BatchResult {
+
+    private final BatchOperation operation;
+    private final Path path;
+    private final TrashEntry trashEntry;
+    private final IOException error;
+
+    /*
+    * path: the created, written or renamed entry, or the deleted one; null if it failed
+    * trashEntry: where a DELETE went, for restore(); otherwise null
+    * error: why it failed, null if it succeeded
+    * */
+    BatchResult(BatchOperation operation, Path path, TrashEntry trashEntry, IOException error) {
+        this.operation = operation;
+        this.path = path;
+        this.trashEntry = trashEntry;
+        this.error = error;
+    }
+
+    public BatchOperation getOperation() {
+        return operation;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public TrashEntry getTrashEntry() {
+        return trashEntry;
+    }
+
+    public IOException getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return error == null
+                ? operation + ": ok"
+                : operation + ": " + (error.getMessage() != null ? error.getMessage() : error.getClass().getSimpleName());
+    }
+}
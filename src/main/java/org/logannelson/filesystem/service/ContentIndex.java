@@ -0,0 +1,1044 @@
+package org.logannelson.filesystem.service;
+//Inverted index of the words in text files under the root, for searchContent.
+import org.logannelson.filesystem.model.SearchResult;
+import org.logannelson.filesystem.model.SearchResult.MatchingLine;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/*
+* For every word of every text file (letters and digits, lower-cased, 2 to 64 chars)
+* the ids of the files containing it. Postings live in immutable segments: the terms
+* sorted in one array, and each term's file ids as varint-encoded gaps in one shared
+* byte array, so most postings take a single byte.
+*
+* The first build walks the tree on one thread and hands the files through a bounded
+* queue to a pool of workers. Each worker collects postings in memory and turns them
+* into a compressed segment whenever it holds SEGMENT_POSTINGS, so memory stays bounded
+* however large the tree is; at the end all segments are merged into one.
+*
+* Later changes go into a small in-memory segment that is frozen every DELTA_DOCUMENTS
+* files. A changed or removed file only loses its live bit; its old postings are dropped
+* when segments are merged, once there are too many of them or too many dead files.
+* Updates run in order on one background thread; queries only take a read lock.
+* */
+final class ContentIndex implements Closeable {
+
+    static final long MAX_FILE_BYTES = Long.getLong("fms.contentIndexMaxFileBytes", 8L * 1024 * 1024);
+    private static final int SNIFF_BYTES = 8 * 1024; //A NUL byte in here means binary
+    private static final int MIN_TERM_LENGTH = 2;
+    private static final int MAX_TERM_LENGTH = 64;
+    private static final int QUEUE_CAPACITY = 256;
+    private static final long SEGMENT_POSTINGS = 2_000_000; //Per worker, before it writes a segment
+    private static final int DELTA_DOCUMENTS = 1000;
+    private static final int MAX_SEGMENTS = 8;
+    private static final int MIN_MERGE_GARBAGE = 10_000;
+    private static final int MAX_PREVIEW_LINES = 3;
+    private static final int MAX_PREVIEW_CHARS = 160;
+    private static final int NONE = -1;
+
+    private record Job(int document, Path path) { }
+    private static final Job END = new Job(-1, null);
+
+    record QueryTerm(String text, boolean prefix) {
+        boolean matches(String term) {
+            return prefix ? term.startsWith(text) : term.equals(text);
+        }
+    }
+
+    private final Path root;
+    private final Path excluded; //Not indexed, with everything below it
+    private final int parallelism;
+    private final ExecutorService updater;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final CompletableFuture<Void> built = new CompletableFuture<>();
+    private volatile ExecutorService workers; //Only while building
+
+    /*
+    * Documents and segments. Changed only under the write lock, and after the build only
+    * on the updater thread, which can therefore read them without locking.
+    * Ids are never reused; a dead id has a null path.
+    * */
+    private final List<Path> documentPaths = new ArrayList<>();
+    private long[] documentSizes = new long[1024];
+    private long[] documentModified = new long[1024];
+    private final Map<Path, Integer> documentIds = new HashMap<>();
+    private final BitSet live = new BitSet();
+    private int liveCount;
+    private int garbage; //Dead documents whose postings are still in segments
+    private List<Segment> segments = List.of();
+    private SegmentBuilder delta = new SegmentBuilder();
+
+    //Statistics
+    private volatile ContentIndexStatus.State state = ContentIndexStatus.State.NOT_BUILT;
+    private final AtomicLong buildFiles = new AtomicLong();
+    private final AtomicLong buildBytes = new AtomicLong();
+    private volatile long buildStartNanos;
+    private volatile long buildNanos;
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong totalQueryNanos = new AtomicLong();
+    private volatile long lastQueryNanos;
+
+    ContentIndex(Path root, Path excluded) {
+        this.root = root;
+        this.excluded = excluded;
+        this.parallelism = Math.max(2, Runtime.getRuntime().availableProcessors());
+        this.updater = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "content-index");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    //Starts the first build in the background, once
+    void start() {
+        if (started.compareAndSet(false, true)) {
+            state = ContentIndexStatus.State.BUILDING;
+            updater.execute(this::build);
+        }
+    }
+
+    ContentIndexStatus status() {
+        long documents;
+        long terms = 0;
+        long postingBytes = 0;
+        lock.readLock().lock();
+        try {
+            documents = liveCount;
+            for (Segment segment : segments) {
+                terms += segment.terms.length;
+                postingBytes += segment.postings.length;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        ContentIndexStatus.State current = state;
+        long nanos = current == ContentIndexStatus.State.BUILDING ? System.nanoTime() - buildStartNanos : buildNanos;
+        return new ContentIndexStatus(current, documents, terms, postingBytes,
+                buildFiles.get(), buildBytes.get(), nanos,
+                queries.get(), totalQueryNanos.get(), lastQueryNanos);
+    }
+
+    /*
+    * Section: building
+    * One producer (this thread) walks the tree and assigns ids in walk order;
+    * each worker takes ids in increasing order, so its postings lists come out sorted.
+    * */
+    private void build() {
+        buildStartNanos = System.nanoTime();
+        BlockingQueue<Job> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "content-index-worker-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        workers = pool;
+        try {
+            List<Future<List<Segment>>> results = new ArrayList<>();
+            for (int i = 0; i < parallelism; i++) {
+                results.add(pool.submit(() -> indexQueued(queue)));
+            }
+            try {
+                walkFiles(root, (file, attrs) -> {
+                    int document = addDocument(file, attrs);
+                    try {
+                        queue.put(new Job(document, file));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            } finally {
+                for (int i = 0; i < parallelism; i++) {
+                    queue.put(END);
+                }
+            }
+
+            List<Segment> written = new ArrayList<>();
+            for (Future<List<Segment>> result : results) {
+                written.addAll(result.get());
+            }
+            Segment merged = merge(written);
+            lock.writeLock().lock();
+            try {
+                segments = List.of(merged);
+                garbage = 0;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            buildNanos = System.nanoTime() - buildStartNanos;
+            state = ContentIndexStatus.State.READY;
+            built.complete(null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            built.completeExceptionally(new InterruptedIOException("Content index build was stopped"));
+        } catch (ExecutionException | RuntimeException e) {
+            built.completeExceptionally(e instanceof ExecutionException ? e.getCause() : e);
+        } finally {
+            pool.shutdownNow();
+            workers = null;
+        }
+    }
+
+    //Worker loop: reads and tokenizes files until END, writing a segment whenever the budget is full
+    private List<Segment> indexQueued(BlockingQueue<Job> queue) throws InterruptedException {
+        List<Segment> written = new ArrayList<>();
+        SegmentBuilder builder = new SegmentBuilder();
+        for (Job job = queue.take(); job != END; job = queue.take()) {
+            byte[] bytes = readText(job.path());
+            if (bytes == null) {
+                lock.writeLock().lock();
+                try {
+                    kill(job.document()); //Binary, too large or unreadable
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                continue;
+            }
+            builder.add(job.document(), new String(bytes, StandardCharsets.UTF_8));
+            buildFiles.incrementAndGet();
+            buildBytes.addAndGet(bytes.length);
+            if (builder.postingCount >= SEGMENT_POSTINGS) {
+                written.add(builder.build());
+                builder = new SegmentBuilder();
+            }
+        }
+        if (builder.documents > 0) {
+            written.add(builder.build());
+        }
+        return written;
+    }
+
+    private interface FileVisitor {
+        void visit(Path file, BasicFileAttributes attrs);
+    }
+
+    //Regular files that are small enough to index, below start; links are not followed
+    private void walkFiles(Path start, FileVisitor visitor) {
+        try {
+            Files.walkFileTree(start, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    return dir.equals(excluded) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() && attrs.size() <= MAX_FILE_BYTES) {
+                        visitor.visit(file, attrs);
+                    }
+                    return Thread.currentThread().isInterrupted() ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE; //Gone or unreadable
+                }
+            });
+        } catch (IOException e) {
+            //The walk reports per-entry failures above; this is the start directory itself
+        }
+    }
+
+    //Contents of a text file, or null if it is binary, too large or unreadable
+    private static byte[] readText(Path file) {
+        byte[] bytes;
+        try {
+            if (Files.size(file) > MAX_FILE_BYTES) {
+                return null;
+            }
+            bytes = Files.readAllBytes(file);
+        } catch (IOException e) {
+            return null;
+        }
+        return isBinary(bytes) ? null : bytes;
+    }
+
+    static boolean isBinary(byte[] bytes) {
+        for (int i = 0, end = Math.min(bytes.length, SNIFF_BYTES); i < end; i++) {
+            if (bytes[i] == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //Lower-case form of each ASCII letter or digit, 0 for everything else
+    private static final char[] ASCII_WORD_CHARS = new char[0x80];
+    static {
+        for (char c = 0; c < 0x80; c++) {
+            ASCII_WORD_CHARS[c] = Character.isLetterOrDigit(c) ? Character.toLowerCase(c) : 0;
+        }
+    }
+
+    //Receives each word in a reused buffer, so repeated words cost no allocation
+    private interface WordSink {
+        void word(char[] chars, int length);
+    }
+
+    static void tokenize(String text, Consumer<String> terms) {
+        tokenize(text, (chars, length) -> terms.accept(new String(chars, 0, length)));
+    }
+
+    /*
+    * Splits text into words: runs of letters and digits, lower-cased char by char.
+    * Words shorter than MIN_TERM_LENGTH or longer than MAX_TERM_LENGTH are skipped.
+    * */
+    private static void tokenize(String text, WordSink terms) {
+        char[] word = new char[MAX_TERM_LENGTH];
+        int length = 0;
+        boolean tooLong = false;
+        for (int i = 0, end = text.length(); i <= end; i++) {
+            char c = i < end ? text.charAt(i) : ' ';
+            char lower = c < 0x80 ? ASCII_WORD_CHARS[c] : Character.isLetterOrDigit(c) ? Character.toLowerCase(c) : 0;
+            if (lower != 0) {
+                if (length < MAX_TERM_LENGTH) {
+                    word[length++] = lower;
+                } else {
+                    tooLong = true;
+                }
+            } else if (length > 0) {
+                if (length >= MIN_TERM_LENGTH && !tooLong) {
+                    terms.word(word, length);
+                }
+                length = 0;
+                tooLong = false;
+            }
+        }
+    }
+
+    /*
+    * Section: updates
+    * Called by the service after its own changes and for watcher events.
+    * Before the first build has started there is nothing to update: the build reads
+    * the tree as it is then.
+    * */
+    void changed(Path path) {
+        if (started.get()) {
+            updater.execute(() -> update(path));
+        }
+    }
+
+    void removed(Path path) {
+        if (started.get()) {
+            updater.execute(() -> {
+                removeTree(path);
+                mergeIfNeeded();
+            });
+        }
+    }
+
+    void renamed(Path from, Path to) {
+        if (started.get()) {
+            updater.execute(() -> move(from, to));
+        }
+    }
+
+    private void update(Path path) {
+        if (path.startsWith(excluded)) {
+            return;
+        }
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            removeTree(path); //Gone again
+            mergeIfNeeded();
+            return;
+        }
+
+        if (attrs.isDirectory()) {
+            //Lost watcher events or a restored tree: drop what is gone, then add what is new or changed
+            removeMissing(path);
+            walkFiles(path, this::reindex);
+        } else if (attrs.isRegularFile() && attrs.size() <= MAX_FILE_BYTES) {
+            reindex(path, attrs);
+        } else {
+            removeTree(path);
+        }
+        mergeIfNeeded();
+    }
+
+    //Indexes a file again unless its size and modification time are what was indexed
+    private void reindex(Path file, BasicFileAttributes attrs) {
+        long size = attrs.size();
+        long modified = attrs.lastModifiedTime().toMillis();
+        Integer previous = documentIds.get(file);
+        if (previous != null && documentSizes[previous] == size && documentModified[previous] == modified) {
+            return; //E.g. the watcher reporting our own write
+        }
+
+        //Tokenized before taking the lock, so queries are not held up by a large file
+        byte[] bytes = readText(file);
+        Set<String> terms = new HashSet<>();
+        if (bytes != null) {
+            tokenize(new String(bytes, StandardCharsets.UTF_8), terms::add);
+        }
+        lock.writeLock().lock();
+        try {
+            if (previous != null) {
+                kill(previous);
+            }
+            if (bytes != null) {
+                delta.add(addDocumentLocked(file, size, modified), terms);
+            }
+            if (delta.documents >= DELTA_DOCUMENTS) {
+                List<Segment> frozen = new ArrayList<>(segments);
+                frozen.add(delta.build());
+                segments = frozen;
+                delta = new SegmentBuilder();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void removeTree(Path path) {
+        lock.writeLock().lock();
+        try {
+            Integer document = documentIds.get(path);
+            if (document != null) {
+                kill(document);
+                return;
+            }
+            for (int id : documentsUnder(path)) {
+                kill(id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //Files below directory that no longer exist
+    private void removeMissing(Path directory) {
+        List<Integer> missing = new ArrayList<>();
+        for (int id : documentsUnder(directory)) {
+            if (Files.notExists(documentPaths.get(id), LinkOption.NOFOLLOW_LINKS)) {
+                missing.add(id);
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            for (int id : missing) {
+                kill(id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //A rename only changes paths; the words stay the same
+    private void move(Path from, Path to) {
+        lock.writeLock().lock();
+        try {
+            Integer replaced = documentIds.get(to);
+            if (replaced != null) {
+                kill(replaced);
+            }
+            Integer document = documentIds.remove(from);
+            List<Integer> moved = document != null ? List.of(document) : documentsUnder(from);
+            for (int id : moved) {
+                Path oldPath = documentPaths.get(id);
+                Path newPath = to.resolve(from.relativize(oldPath).toString());
+                documentIds.remove(oldPath);
+                documentIds.put(newPath, id);
+                documentPaths.set(id, newPath);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (to.startsWith(excluded)) {
+            removeTree(to);
+        }
+    }
+
+    //Scans all documents; only used for directories, which are not in the map themselves
+    private List<Integer> documentsUnder(Path directory) {
+        List<Integer> ids = new ArrayList<>();
+        for (Map.Entry<Path, Integer> entry : documentIds.entrySet()) {
+            if (entry.getKey().startsWith(directory)) {
+                ids.add(entry.getValue());
+            }
+        }
+        return ids;
+    }
+
+    private int addDocument(Path file, BasicFileAttributes attrs) {
+        lock.writeLock().lock();
+        try {
+            return addDocumentLocked(file, attrs.size(), attrs.lastModifiedTime().toMillis());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int addDocumentLocked(Path file, long size, long modified) {
+        int id = documentPaths.size();
+        if (id == documentSizes.length) {
+            documentSizes = Arrays.copyOf(documentSizes, id * 2);
+            documentModified = Arrays.copyOf(documentModified, id * 2);
+        }
+        documentPaths.add(file);
+        documentSizes[id] = size;
+        documentModified[id] = modified;
+        Integer previous = documentIds.put(file, id);
+        if (previous != null) {
+            kill(previous);
+        }
+        live.set(id);
+        liveCount++;
+        return id;
+    }
+
+    private void kill(int id) {
+        if (!live.get(id)) {
+            return;
+        }
+        Path path = documentPaths.get(id);
+        documentIds.remove(path, id);
+        documentPaths.set(id, null);
+        live.clear(id);
+        liveCount--;
+        garbage++;
+    }
+
+    /*
+    * Merging is the slow part, so it runs without the lock: only this thread changes
+    * the segments and live bits. Queries keep using the old segments until the swap.
+    * */
+    private void mergeIfNeeded() {
+        if (segments.size() <= MAX_SEGMENTS && garbage <= Math.max(MIN_MERGE_GARBAGE, liveCount)) {
+            return;
+        }
+        List<Segment> merging = segments;
+        Segment merged = merge(merging);
+        lock.writeLock().lock();
+        try {
+            segments = List.of(merged);
+            garbage = 0; //The few dead files in the delta are dropped by the next merge
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //k-way merge over the sorted terms; dead documents are dropped
+    private Segment merge(List<Segment> inputs) {
+        PriorityQueue<SegmentCursor> cursors = new PriorityQueue<>(Comparator.comparing(SegmentCursor::term));
+        for (Segment segment : inputs) {
+            if (segment.terms.length > 0) {
+                cursors.add(new SegmentCursor(segment));
+            }
+        }
+
+        List<String> terms = new ArrayList<>();
+        IntList offsets = new IntList(1024);
+        PostingsWriter writer = new PostingsWriter(16 * 1024);
+        IntList documents = new IntList(1024);
+        while (!cursors.isEmpty()) {
+            String term = cursors.peek().term();
+            documents.clear();
+            while (!cursors.isEmpty() && cursors.peek().term().equals(term)) {
+                SegmentCursor cursor = cursors.poll();
+                cursor.segment.decode(cursor.position, documents);
+                if (++cursor.position < cursor.segment.terms.length) {
+                    cursors.add(cursor);
+                }
+            }
+            documents.sort(); //Segments of different workers interleave
+
+            int start = writer.length;
+            writer.startTerm();
+            for (int i = 0; i < documents.size; i++) {
+                if (live.get(documents.values[i])) {
+                    writer.add(documents.values[i]);
+                }
+            }
+            if (writer.length > start) {
+                terms.add(term);
+                offsets.add(start);
+            }
+        }
+        offsets.add(writer.length);
+        return new Segment(terms.toArray(new String[0]), offsets.toArray(), writer.toArray());
+    }
+
+    /*
+    * Section: queries
+    * */
+    List<SearchResult> search(String query, int limit) throws IOException {
+        start();
+        try {
+            built.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the content index");
+        } catch (ExecutionException e) {
+            throw new IOException("Content index could not be built", e.getCause());
+        }
+
+        List<QueryTerm> terms = parseQuery(query);
+        if (terms.isEmpty()) {
+            return List.of();
+        }
+
+        long start = System.nanoTime();
+        List<Path> paths = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            //Intersect starting from the shortest list
+            List<int[]> lists = new ArrayList<>();
+            for (QueryTerm term : terms) {
+                lists.add(lookup(term));
+            }
+            lists.sort(Comparator.comparingInt(list -> list.length));
+            int[] matches = lists.get(0);
+            for (int i = 1; i < lists.size() && matches.length > 0; i++) {
+                matches = intersect(matches, lists.get(i));
+            }
+            for (int i = 0; i < matches.length && paths.size() < limit; i++) {
+                if (live.get(matches[i])) {
+                    paths.add(documentPaths.get(matches[i]));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        long nanos = System.nanoTime() - start;
+        queries.incrementAndGet();
+        totalQueryNanos.addAndGet(nanos);
+        lastQueryNanos = nanos;
+
+        List<SearchResult> results = new ArrayList<>(paths.size());
+        for (Path path : paths) {
+            results.add(new SearchResult(path, matchingLines(path, terms)));
+        }
+        return results;
+    }
+
+    /*
+    * Words of the query, like tokenize(); a word directly followed by * matches as a prefix.
+    * Single-letter words are not indexed, so they are left out unless used as a prefix.
+    * */
+    static List<QueryTerm> parseQuery(String query) {
+        List<QueryTerm> terms = new ArrayList<>();
+        int i = 0;
+        while (i < query.length()) {
+            if (!Character.isLetterOrDigit(query.charAt(i))) {
+                i++;
+                continue;
+            }
+            StringBuilder word = new StringBuilder();
+            while (i < query.length() && Character.isLetterOrDigit(query.charAt(i))) {
+                word.append(Character.toLowerCase(query.charAt(i++)));
+            }
+            boolean prefix = i < query.length() && query.charAt(i) == '*';
+            if (prefix || word.length() >= MIN_TERM_LENGTH) {
+                terms.add(new QueryTerm(word.toString(), prefix));
+            }
+        }
+        return terms;
+    }
+
+    //Sorted ids of the documents containing the term, live or not
+    private int[] lookup(QueryTerm term) {
+        IntList documents = new IntList(64);
+        for (Segment segment : segments) {
+            if (term.prefix()) {
+                for (int i = segment.lowerBound(term.text());
+                     i < segment.terms.length && segment.terms[i].startsWith(term.text()); i++) {
+                    segment.decode(i, documents);
+                }
+            } else {
+                int i = Arrays.binarySearch(segment.terms, term.text());
+                if (i >= 0) {
+                    segment.decode(i, documents);
+                }
+            }
+        }
+        delta.collect(term, documents);
+        documents.sort();
+        return documents.toDistinctArray();
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int count = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    //First few lines containing any query word, read from disk now
+    private static List<MatchingLine> matchingLines(Path file, List<QueryTerm> terms) {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8))) {
+            return matchingLines(reader, terms);
+        } catch (IOException e) {
+            //Changed or removed since it was indexed; shown without lines
+            return new ArrayList<>();
+        }
+    }
+
+    static List<MatchingLine> matchingLines(BufferedReader reader, List<QueryTerm> terms) throws IOException {
+        List<MatchingLine> lines = new ArrayList<>();
+        long number = 0;
+        boolean[] found = new boolean[1];
+        for (String line = reader.readLine(); line != null && lines.size() < MAX_PREVIEW_LINES; line = reader.readLine()) {
+            number++;
+            found[0] = false;
+            tokenize(line, word -> {
+                for (int i = 0; i < terms.size() && !found[0]; i++) {
+                    found[0] = terms.get(i).matches(word);
+                }
+            });
+            if (found[0]) {
+                String text = line.strip();
+                if (text.length() > MAX_PREVIEW_CHARS) {
+                    text = text.substring(0, MAX_PREVIEW_CHARS) + "...";
+                }
+                lines.add(new MatchingLine(number, text));
+            }
+        }
+        return lines;
+    }
+
+    @Override
+    public void close() {
+        updater.shutdownNow();
+        ExecutorService pool = workers;
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    /*
+    * Section: storage
+    * */
+    private static final class Segment {
+        private final String[] terms; //Sorted
+        private final int[] offsets; //terms.length + 1 entries into postings
+        private final byte[] postings;
+
+        Segment(String[] terms, int[] offsets, byte[] postings) {
+            this.terms = terms;
+            this.offsets = offsets;
+            this.postings = postings;
+        }
+
+        //Index of the first term not below prefix
+        int lowerBound(String prefix) {
+            int i = Arrays.binarySearch(terms, prefix);
+            return i >= 0 ? i : -i - 1;
+        }
+
+        void decode(int term, IntList out) {
+            int document = -1;
+            for (int position = offsets[term], end = offsets[term + 1]; position < end; ) {
+                int gap = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = postings[position++];
+                    gap |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                document += gap;
+                out.add(document);
+            }
+        }
+    }
+
+    private static final class SegmentCursor {
+        private final Segment segment;
+        private int position;
+
+        SegmentCursor(Segment segment) {
+            this.segment = segment;
+        }
+
+        String term() {
+            return segment.terms[position];
+        }
+    }
+
+    /*
+    * Postings in memory, before they are compressed. Terms get ids from an open-addressing
+    * table looked up straight from the tokenizer's buffer, so a word only becomes a String
+    * the first time this builder sees it; lastDocument keeps each document from being
+    * added twice to a term. Documents must be added in increasing id order.
+    * */
+    private static final class SegmentBuilder implements WordSink {
+        private String[] terms = new String[1024];
+        private IntList[] postings = new IntList[1024];
+        private int[] lastDocument = new int[1024];
+        private int[] table = newTable(2048);
+        private int termCount;
+        private int document = -1;
+        private int documents;
+        private long postingCount;
+
+        void add(int document, String text) {
+            startDocument(document);
+            tokenize(text, this);
+        }
+
+        void add(int document, Collection<String> words) {
+            startDocument(document);
+            for (String word : words) {
+                int slot = slotOf(word);
+                addPosting(table[slot] != NONE ? table[slot] : insert(slot, word));
+            }
+        }
+
+        private void startDocument(int document) {
+            this.document = document;
+            documents++;
+        }
+
+        @Override
+        public void word(char[] chars, int length) {
+            int h = 0;
+            for (int i = 0; i < length; i++) {
+                h = 31 * h + chars[i]; //Same as String.hashCode()
+            }
+            int mask = table.length - 1;
+            int slot = mix(h) & mask;
+            for (int id = table[slot]; id != NONE; id = table[slot]) {
+                String term = terms[id];
+                if (sameChars(term, chars, length)) {
+                    addPosting(id);
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            addPosting(insert(slot, new String(chars, 0, length)));
+        }
+
+        //Adds the documents of the term, or of all terms starting with it, to out
+        void collect(QueryTerm term, IntList out) {
+            if (term.prefix()) {
+                for (int id = 0; id < termCount; id++) {
+                    if (terms[id].startsWith(term.text())) {
+                        out.addAll(postings[id]);
+                    }
+                }
+            } else {
+                int id = table[slotOf(term.text())];
+                if (id != NONE) {
+                    out.addAll(postings[id]);
+                }
+            }
+        }
+
+        Segment build() {
+            String[] sorted = Arrays.copyOf(terms, termCount);
+            Arrays.sort(sorted);
+            int[] offsets = new int[termCount + 1];
+            PostingsWriter writer = new PostingsWriter((int) Math.min(postingCount + 16, Integer.MAX_VALUE - 16));
+            for (int i = 0; i < sorted.length; i++) {
+                offsets[i] = writer.length;
+                writer.startTerm();
+                IntList list = postings[table[slotOf(sorted[i])]];
+                for (int j = 0; j < list.size; j++) {
+                    writer.add(list.values[j]);
+                }
+            }
+            offsets[termCount] = writer.length;
+            return new Segment(sorted, offsets, writer.toArray());
+        }
+
+        private void addPosting(int id) {
+            if (lastDocument[id] != document) {
+                lastDocument[id] = document;
+                postings[id].add(document);
+                postingCount++;
+            }
+        }
+
+        //Slot holding the term, or the free slot where it would go
+        private int slotOf(String term) {
+            int mask = table.length - 1;
+            int slot = mix(term.hashCode()) & mask;
+            while (table[slot] != NONE && !terms[table[slot]].equals(term)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private int insert(int slot, String term) {
+            if (termCount == terms.length) {
+                terms = Arrays.copyOf(terms, termCount * 2);
+                postings = Arrays.copyOf(postings, termCount * 2);
+                lastDocument = Arrays.copyOf(lastDocument, termCount * 2);
+            }
+            int id = termCount++;
+            terms[id] = term;
+            postings[id] = new IntList(2);
+            lastDocument[id] = NONE;
+            table[slot] = id;
+            if (termCount * 2 > table.length) {
+                rehash();
+            }
+            return id;
+        }
+
+        private void rehash() {
+            table = newTable(table.length * 2);
+            int mask = table.length - 1;
+            for (int id = 0; id < termCount; id++) {
+                int slot = mix(terms[id].hashCode()) & mask;
+                while (table[slot] != NONE) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = id;
+            }
+        }
+
+        private static boolean sameChars(String term, char[] chars, int length) {
+            if (term.length() != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (term.charAt(i) != chars[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int mix(int h) {
+            return h ^ (h >>> 16);
+        }
+
+        private static int[] newTable(int capacity) {
+            int[] table = new int[capacity];
+            Arrays.fill(table, NONE);
+            return table;
+        }
+    }
+
+    //Gaps between increasing ids as varints, 7 bits per byte, high bit set on all but the last
+    private static final class PostingsWriter {
+        private byte[] data;
+        private int length;
+        private int last;
+
+        PostingsWriter(int capacity) {
+            data = new byte[Math.max(16, capacity)];
+        }
+
+        void startTerm() {
+            last = -1;
+        }
+
+        void add(int document) {
+            if (length + 5 > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + 5));
+            }
+            int gap = document - last;
+            last = document;
+            while ((gap & ~0x7F) != 0) {
+                data[length++] = (byte) ((gap & 0x7F) | 0x80);
+                gap >>>= 7;
+            }
+            data[length++] = (byte) gap;
+        }
+
+        byte[] toArray() {
+            return Arrays.copyOf(data, length);
+        }
+    }
+
+    private static final class IntList {
+        private int[] values;
+        private int size;
+
+        IntList(int capacity) {
+            values = new int[capacity];
+        }
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        void addAll(IntList other) {
+            if (size + other.size > values.length) {
+                values = Arrays.copyOf(values, Math.max(values.length * 2, size + other.size));
+            }
+            System.arraycopy(other.values, 0, values, size, other.size);
+            size += other.size;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        void sort() {
+            Arrays.sort(values, 0, size);
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+
+        //Of a sorted list
+        int[] toDistinctArray() {
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                if (count == 0 || values[i] != values[count - 1]) {
+                    values[count++] = values[i];
+                }
+            }
+            size = count;
+            return toArray();
+        }
+    }
+}
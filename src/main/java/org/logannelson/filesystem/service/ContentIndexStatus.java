@@ -0,0 +1,107 @@
+package org.logannelson.filesystem.service;
+//Point-in-time numbers of the content index: size, build throughput and query latency.
+
+/*
+* While the index is building, the file and byte counts and the build time are
+* those so far, so the throughput can be shown live.
+* */
+public class ContentIndexStatus {
+
+    public enum State { NOT_BUILT, BUILDING, READY }
+
+    private final State state;
+    private final long documents;
+    private final long terms;
+    private final long postingBytes;
+    private final long buildFiles;
+    private final long buildBytes;
+    private final long buildNanos;
+    private final long queries;
+    private final long totalQueryNanos;
+    private final long lastQueryNanos;
+
+    ContentIndexStatus(State state, long documents, long terms, long postingBytes,
+                       long buildFiles, long buildBytes, long buildNanos,
+                       long queries, long totalQueryNanos, long lastQueryNanos) {
+        this.state = state;
+        this.documents = documents;
+        this.terms = terms;
+        this.postingBytes = postingBytes;
+        this.buildFiles = buildFiles;
+        this.buildBytes = buildBytes;
+        this.buildNanos = buildNanos;
+        this.queries = queries;
+        this.totalQueryNanos = totalQueryNanos;
+        this.lastQueryNanos = lastQueryNanos;
+    }
+
+    //Getters
+    public State getState() {
+        return state;
+    }
+
+    //Text files currently in the index
+    public long getDocuments() {
+        return documents;
+    }
+
+    //Distinct words in the compressed segments (the recent-updates buffer is not counted)
+    public long getTerms() {
+        return terms;
+    }
+
+    //Size of the compressed postings
+    public long getPostingBytes() {
+        return postingBytes;
+    }
+
+    public long getBuildFiles() {
+        return buildFiles;
+    }
+
+    public long getBuildBytes() {
+        return buildBytes;
+    }
+
+    public long getBuildNanos() {
+        return buildNanos;
+    }
+
+    public double getBuildFilesPerSecond() {
+        return buildNanos > 0 ? buildFiles * 1e9 / buildNanos : 0;
+    }
+
+    public double getBuildBytesPerSecond() {
+        return buildNanos > 0 ? buildBytes * 1e9 / buildNanos : 0;
+    }
+
+    public long getQueries() {
+        return queries;
+    }
+
+    //Index lookup only; reading the matching lines for previews is not included
+    public long getLastQueryNanos() {
+        return lastQueryNanos;
+    }
+
+    public long getAverageQueryNanos() {
+        return queries > 0 ? totalQueryNanos / queries : 0;
+    }
+
+    @Override
+    public String toString() {
+        String build = String.format("%,d files, %,.1f MB in %.1f s (%,.0f files/s, %,.1f MB/s)",
+                buildFiles, buildBytes / 1e6, buildNanos / 1e9,
+                getBuildFilesPerSecond(), getBuildBytesPerSecond() / 1e6);
+        switch (state) {
+            case NOT_BUILT:
+                return "Content index not built";
+            case BUILDING:
+                return "Indexing: " + build;
+            default:
+                return String.format("Indexed %s; %,d terms, %,.1f MB postings; query %.2f ms (avg %.2f ms over %,d)",
+                        build, terms, postingBytes / 1e6,
+                        lastQueryNanos / 1e6, getAverageQueryNanos() / 1e6, queries);
+        }
+    }
+}
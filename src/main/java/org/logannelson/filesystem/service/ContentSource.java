@@ -0,0 +1,14 @@
+package org.logannelson.filesystem.service;
+//Supplies file content by writing it out piece by piece.
+import java.io.IOException;
+import java.io.Writer;
+
+/*
+* Lets callers save large documents without first building one big String.
+* The service decides where the Writer goes (encoding, temp file, etc).
+* */
+@FunctionalInterface
+public interface ContentSource {
+
+    void writeTo(Writer out) throws IOException;
+}
@@ -0,0 +1,127 @@
+package org.logannelson.filesystem.service;
+//Forward-only cursor over the entries of one directory.
+import org.logannelson.filesystem.model.FileItem;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/*
+* Wraps a DirectoryStream so callers can read a directory page by page.
+* Only the current entry is held in memory, so reading the first N entries
+* of a huge directory costs the same as reading them from a small one.
+* Must be closed when done (try-with-resources).
+* */
+public class DirectoryCursor implements Iterator<FileItem>, Closeable {
+
+    private final DirectoryStream<Path> directoryStream;
+    private final Iterator<Path> paths;
+    private final Function<Path, FileItem> mapper;
+
+    private FileItem nextItem; //Lookahead, null when not yet read
+    private boolean closed;
+    private boolean exhausted; //True once every entry has been read
+
+    DirectoryCursor(DirectoryStream<Path> directoryStream, Function<Path, FileItem> mapper) {
+        this.directoryStream = directoryStream;
+        this.paths = directoryStream.iterator();
+        this.mapper = mapper;
+    }
+
+    @Override
+    public boolean hasNext() {
+        //The mapper returns null for entries that could not be read, skip those
+        while (nextItem == null && !closed && paths.hasNext()) {
+            nextItem = mapper.apply(paths.next());
+        }
+        if (nextItem == null && !closed) {
+            exhausted = true;
+        }
+        return nextItem != null;
+    }
+
+    @Override
+    public FileItem next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        FileItem item = nextItem;
+        nextItem = null;
+        return item;
+    }
+
+    /*
+    * Skips up to count entries without building FileItems for them.
+    * Returns the number of entries actually skipped.
+    * */
+    public long skip(long count) throws IOException {
+        long skipped = 0;
+        try {
+            if (nextItem != null && count > 0) {
+                nextItem = null;
+                skipped++;
+            }
+            while (skipped < count && !closed && paths.hasNext()) {
+                paths.next();
+                skipped++;
+            }
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+        return skipped;
+    }
+
+    /*
+    * Reads the next page of at most maxItems entries.
+    * Returns an empty list once the directory is exhausted.
+    * */
+    public List<FileItem> nextPage(int maxItems) throws IOException {
+        List<FileItem> page = new ArrayList<>(Math.min(maxItems, 1024));
+        try {
+            while (page.size() < maxItems && hasNext()) {
+                page.add(next());
+            }
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+        return page;
+    }
+
+    //True if the whole directory was read before the cursor was closed
+    public boolean isExhausted() {
+        return exhausted;
+    }
+
+    //Exposes the remaining entries as a Stream. Closing the stream closes the cursor.
+    public Stream<FileItem> stream() {
+        Spliterator<FileItem> spliterator = Spliterators.spliteratorUnknownSize(
+                this, Spliterator.ORDERED | Spliterator.NONNULL);
+        return StreamSupport.stream(spliterator, false).onClose(() -> {
+            try {
+                close();
+            } catch (IOException e) {
+                //Nothing useful to do if closing fails
+            }
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            nextItem = null;
+            directoryStream.close();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package org.logannelson.filesystem.service;
+//Bounded in-memory cache of directory listings.
+import org.logannelson.filesystem.model.DirectorySnapshot;
+
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/*
+* Keeps recently used directory listings in LRU order, as compact snapshots.
+* Bounded both by number of directories and by total number of entries.
+* Every invalidation bumps a version number; a listing read from disk is only
+* stored if no invalidation happened while it was being read, so a concurrent
+* change can never leave a stale listing behind.
+* */
+public class DirectoryListingCache {
+
+    private final int maxDirectories;
+    private final long maxTotalEntries;
+    private final Consumer<Path> evictionListener;
+
+    //Access-ordered, so iteration starts at the least recently used listing
+    private final LinkedHashMap<Path, DirectorySnapshot> listings = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalEntries;
+    private long version;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    //evictionListener is told about listings dropped to stay within bounds (not about invalidations)
+    public DirectoryListingCache(int maxDirectories, long maxTotalEntries, Consumer<Path> evictionListener) {
+        this.maxDirectories = maxDirectories;
+        this.maxTotalEntries = maxTotalEntries;
+        this.evictionListener = evictionListener;
+    }
+
+    //Returns the cached listing or null. Counts a hit or a miss.
+    public synchronized DirectorySnapshot get(Path directory) {
+        DirectorySnapshot listing = listings.get(directory);
+        if (listing != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return listing;
+    }
+
+    //Version to pass to put() once the listing has been read
+    public synchronized long version() {
+        return version;
+    }
+
+    //Largest single listing the cache will accept
+    public long maxListingSize() {
+        return maxTotalEntries / 2;
+    }
+
+    /*
+    * Stores a listing read from disk.
+    * Returns false if something was invalidated since expectedVersion, or if it is too large.
+    * */
+    public synchronized boolean put(Path directory, DirectorySnapshot items, long expectedVersion) {
+        if (expectedVersion != version || items.size() > maxListingSize()) {
+            return false;
+        }
+
+        //Snapshots are immutable, so they can be shared as they are
+        DirectorySnapshot previous = listings.put(directory, items);
+        if (previous != null) {
+            totalEntries -= previous.size();
+        }
+        totalEntries += items.size();
+        evictIfNeeded();
+        return true;
+    }
+
+    public synchronized void invalidate(Path directory) {
+        version++;
+        remove(directory);
+    }
+
+    //Drops the listing of the directory and of everything below it
+    public synchronized void invalidateTree(Path directory) {
+        version++;
+        Iterator<Map.Entry<Path, DirectorySnapshot>> iterator = listings.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, DirectorySnapshot> entry = iterator.next();
+            if (entry.getKey().startsWith(directory)) {
+                iterator.remove();
+                totalEntries -= entry.getValue().size();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        version++;
+        listings.clear();
+        totalEntries = 0;
+    }
+
+    private void remove(Path directory) {
+        DirectorySnapshot removed = listings.remove(directory);
+        if (removed != null) {
+            totalEntries -= removed.size();
+        }
+    }
+
+    private void evictIfNeeded() {
+        Iterator<Map.Entry<Path, DirectorySnapshot>> iterator = listings.entrySet().iterator();
+        while ((listings.size() > maxDirectories || totalEntries > maxTotalEntries) && iterator.hasNext()) {
+            Map.Entry<Path, DirectorySnapshot> eldest = iterator.next();
+            iterator.remove();
+            totalEntries -= eldest.getValue().size();
+            evictions.incrementAndGet();
+            notifyEvicted(eldest.getKey());
+        }
+    }
+
+    private void notifyEvicted(Path directory) {
+        if (evictionListener != null) {
+            evictionListener.accept(directory);
+        }
+    }
+
+    //Statistics
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public synchronized int getDirectoryCount() {
+        return listings.size();
+    }
+
+    public synchronized long getEntryCount() {
+        return totalEntries;
+    }
+
+    @Override
+    public String toString() {
+        return "DirectoryListingCache[directories=" + getDirectoryCount()
+                + ", entries=" + getEntryCount()
+                + ", hits=" + getHitCount()
+                + ", misses=" + getMissCount()
+                + ", evictions=" + getEvictionCount() + "]";
+    }
+}
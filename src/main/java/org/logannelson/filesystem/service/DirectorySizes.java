@@ -0,0 +1,418 @@
+package org.logannelson.filesystem.service;
+//Recursive size and file count of every directory under the root, for getDirectorySize.
+import org.logannelson.filesystem.model.DirectorySize;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+* One node per directory (files are not kept): the bytes and number of files directly
+* in it, and the totals of its whole subtree. The first walk lists every directory as
+* its own task on the operation pool and adds the totals up on the way back.
+*
+* After that a change only lists its own directory again, never deeper: the difference
+* in that directory's own bytes and files is added to it and to each ancestor, and
+* subdirectories that appeared are walked, those that disappeared dropped with their
+* totals. A renamed directory is relinked, so its subtree is not walked again.
+* Changed directories are collected for REFRESH_DELAY_MILLIS first, so a burst of writes
+* into one directory lists it once.
+*
+* A lookup is one hash probe per path component. Updates run in order on one background
+* thread; lookups only take a read lock. Nothing is saved between runs.
+* */
+final class DirectorySizes implements Closeable {
+
+    private static final long REFRESH_DELAY_MILLIS = 100;
+
+    private final Path root;
+    private final Path excluded; //Not counted, with everything below it
+    private final ForkJoinPool pool;
+    private final ScheduledExecutorService updater;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final CompletableFuture<Void> built = new CompletableFuture<>();
+    private final Set<Path> staleDirectories = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean refreshScheduled = new AtomicBoolean();
+
+    //Changed only under the write lock, and only on the updater thread. Null until the first walk is done.
+    private Node rootNode;
+
+    DirectorySizes(Path root, Path excluded, ForkJoinPool pool) {
+        this.root = root;
+        this.excluded = excluded;
+        this.pool = pool;
+        this.updater = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "directory-sizes");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    //Starts the first walk in the background, once
+    void start() {
+        if (started.compareAndSet(false, true)) {
+            updater.execute(() -> {
+                try {
+                    Node walked = pool.invoke(new WalkTask(root));
+                    lock.writeLock().lock();
+                    try {
+                        rootNode = walked;
+                    } finally {
+                        lock.writeLock().unlock();
+                    }
+                    built.complete(null);
+                } catch (RuntimeException e) {
+                    built.completeExceptionally(e);
+                }
+            });
+        }
+    }
+
+    /*
+    * Section: queries
+    * */
+
+    //Totals of the directory, or null while the first walk runs or if it is not a known directory
+    DirectorySize peek(Path directory) {
+        start();
+        lock.readLock().lock();
+        try {
+            Node node = find(directory);
+            return node != null ? node.toSize() : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //Waits for the first walk and for the changes reported so far
+    DirectorySize get(Path directory) throws IOException {
+        start();
+        try {
+            built.get();
+            updater.submit(this::refreshStale).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while computing directory sizes");
+        } catch (ExecutionException e) {
+            throw new IOException("Directory sizes could not be computed", e.getCause());
+        }
+
+        DirectorySize size = peek(directory);
+        if (size == null) {
+            throw new NoSuchFileException(directory.toString(), null, "Not a directory under the sandbox root");
+        }
+        return size;
+    }
+
+    /*
+    * Section: updates
+    * Called by the service after its own changes and for watcher events.
+    * Before the first walk has started there is nothing to update: the walk reads
+    * the tree as it is then.
+    * */
+
+    //A file or directory was created, written or restored; its parent is listed again
+    void changed(Path path) {
+        markStale(path.getParent());
+    }
+
+    void removed(Path path) {
+        markStale(path.getParent());
+    }
+
+    void renamed(Path from, Path to) {
+        if (started.get()) {
+            updater.execute(() -> move(from, to));
+            markStale(from.getParent());
+            markStale(to.getParent());
+        }
+    }
+
+    //Walks the directory again with everything below it, e.g. after lost watch events or a partial delete
+    void refresh(Path directory) {
+        if (started.get()) {
+            updater.execute(() -> rewalk(directory));
+        }
+    }
+
+    private void markStale(Path directory) {
+        if (directory == null || !started.get() || !isCounted(directory)) {
+            return;
+        }
+        staleDirectories.add(directory);
+        if (refreshScheduled.compareAndSet(false, true)) {
+            updater.schedule(this::refreshStale, REFRESH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void refreshStale() {
+        refreshScheduled.set(false);
+        for (Iterator<Path> it = staleDirectories.iterator(); it.hasNext(); ) {
+            Path directory = it.next();
+            it.remove();
+            refreshDirectory(directory);
+        }
+    }
+
+    //Lists one directory, without going deeper unless a subdirectory is new
+    private void refreshDirectory(Path directory) {
+        long bytes = 0;
+        long files = 0;
+        Set<String> subdirectories = new HashSet<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                BasicFileAttributes attrs = readAttributes(entry);
+                if (attrs == null) {
+                    continue;
+                }
+                if (attrs.isDirectory()) {
+                    if (!entry.equals(excluded)) {
+                        subdirectories.add(entry.getFileName().toString());
+                    }
+                } else {
+                    bytes += attrs.size();
+                    files++;
+                }
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            return; //Gone: dropped when its parent is listed
+        }
+
+        List<String> added = new ArrayList<>();
+        lock.writeLock().lock();
+        try {
+            Node node = find(directory);
+            if (node == null) {
+                return; //Not known: walked when its parent is listed
+            }
+            addOwn(node, bytes - node.ownBytes, files - node.ownFiles);
+            for (String name : new ArrayList<>(node.children.keySet())) {
+                if (!subdirectories.contains(name)) {
+                    detach(node, name);
+                }
+            }
+            for (String name : subdirectories) {
+                if (!node.children.containsKey(name)) {
+                    added.add(name);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        //Only this thread changes nodes, so the parent is still there after walking outside the lock
+        for (String name : added) {
+            Node walked = pool.invoke(new WalkTask(directory.resolve(name)));
+            lock.writeLock().lock();
+            try {
+                Node node = find(directory);
+                if (node != null) {
+                    attach(node, name, walked);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private void rewalk(Path directory) {
+        BasicFileAttributes attrs = readAttributes(directory);
+        if (attrs == null || !attrs.isDirectory()) {
+            markStale(directory.getParent());
+            return;
+        }
+        Node walked = pool.invoke(new WalkTask(directory));
+        lock.writeLock().lock();
+        try {
+            if (directory.equals(root)) {
+                rootNode = walked;
+                return;
+            }
+            Node parent = find(directory.getParent());
+            if (parent != null) {
+                String name = directory.getFileName().toString();
+                detach(parent, name);
+                attach(parent, name, walked);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void move(Path from, Path to) {
+        lock.writeLock().lock();
+        try {
+            Node oldParent = find(from.getParent());
+            Node newParent = find(to.getParent());
+            Node node = find(from);
+            if (oldParent == null || newParent == null || node == null) {
+                return; //A file, or not known: the parents are listed again anyway
+            }
+            String name = to.getFileName().toString();
+            detach(oldParent, from.getFileName().toString());
+            detach(newParent, name); //Replaced
+            attach(newParent, name, node);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+    * Section: tree
+    * */
+
+    //Adds to a directory's own counts, and to the totals of it and every ancestor
+    private static void addOwn(Node node, long bytes, long files) {
+        node.ownBytes += bytes;
+        node.ownFiles += files;
+        addTotals(node, bytes, files, 0);
+    }
+
+    private static void addTotals(Node node, long bytes, long files, long directories) {
+        for (Node n = node; n != null; n = n.parent) {
+            n.totalBytes += bytes;
+            n.totalFiles += files;
+            n.totalDirectories += directories;
+        }
+    }
+
+    private static void attach(Node parent, String name, Node child) {
+        child.parent = parent;
+        parent.children.put(name, child);
+        addTotals(parent, child.totalBytes, child.totalFiles, child.totalDirectories + 1);
+    }
+
+    private static void detach(Node parent, String name) {
+        Node child = parent.children.remove(name);
+        if (child != null) {
+            child.parent = null;
+            addTotals(parent, -child.totalBytes, -child.totalFiles, -(child.totalDirectories + 1));
+        }
+    }
+
+    private boolean isCounted(Path path) {
+        return path.startsWith(root) && !path.startsWith(excluded);
+    }
+
+    private Node find(Path path) {
+        Path normalized = path.toAbsolutePath().normalize();
+        if (rootNode == null || !isCounted(normalized)) {
+            return null;
+        }
+        Node node = rootNode;
+        Path relative = root.relativize(normalized);
+        for (int i = 0; i < relative.getNameCount() && node != null; i++) {
+            String name = relative.getName(i).toString();
+            if (!name.isEmpty()) {
+                node = node.children.get(name);
+            }
+        }
+        return node;
+    }
+
+    //Not following links; null if it is gone or cannot be read
+    private static BasicFileAttributes readAttributes(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void close() {
+        updater.shutdownNow();
+    }
+
+    private static final class Node {
+        Node parent;
+        final Map<String, Node> children = new HashMap<>(4);
+        long ownBytes;
+        long ownFiles;
+        long totalBytes; //Including own
+        long totalFiles;
+        long totalDirectories;
+
+        DirectorySize toSize() {
+            return new DirectorySize(totalBytes, totalFiles, totalDirectories);
+        }
+    }
+
+    /*
+    * Lists one directory and walks each subdirectory as a subtask that other pool
+    * threads can steal; returns the subtree with its totals.
+    * Links are not followed; anything unreadable counts as empty.
+    * */
+    private final class WalkTask extends RecursiveTask<Node> {
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+
+        WalkTask(Path directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        protected Node compute() {
+            Node node = new Node();
+            List<WalkTask> subtasks = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    BasicFileAttributes attrs = readAttributes(entry);
+                    if (attrs == null) {
+                        continue;
+                    }
+                    if (attrs.isDirectory()) {
+                        if (!entry.equals(excluded)) {
+                            subtasks.add(new WalkTask(entry));
+                        }
+                    } else {
+                        node.ownBytes += attrs.size();
+                        node.ownFiles++;
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                //Keep what was read; listed again on its next change
+            }
+
+            invokeAll(subtasks);
+            node.totalBytes = node.ownBytes;
+            node.totalFiles = node.ownFiles;
+            for (WalkTask subtask : subtasks) {
+                Node child = subtask.join();
+                child.parent = node;
+                node.children.put(subtask.directory.getFileName().toString(), child);
+                node.totalBytes += child.totalBytes;
+                node.totalFiles += child.totalFiles;
+                node.totalDirectories += child.totalDirectories + 1;
+            }
+            return node;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package org.logannelson.filesystem.service;
+//Watches individual directories for changes made outside the app.
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+* Thin wrapper around a WatchService.
+* Directories are registered one at a time (WatchService is not recursive),
+* and every event is handed to the listener on a single daemon thread.
+* The number of watched directories is bounded; when the oldest watch is
+* dropped the listener gets an OVERFLOW for it, since its changes are no longer seen.
+* If the platform has no WatchService the watcher reports itself unavailable.
+* */
+class DirectoryWatcher implements Closeable {
+
+    /*
+    * Receives raw change notifications.
+    * child is the affected entry, or null when events were lost (OVERFLOW).
+    * */
+    interface Listener {
+        void onChange(Path directory, WatchEvent.Kind<?> kind, Path child);
+    }
+
+    private final WatchService watchService;
+    private final Listener listener;
+    private final int maxWatched;
+    //Access-ordered so the least recently used watch is dropped first
+    private final LinkedHashMap<Path, WatchKey> keys = new LinkedHashMap<>(16, 0.75f, true);
+
+    DirectoryWatcher(FileSystem fileSystem, int maxWatched, Listener listener) {
+        this.listener = listener;
+        this.maxWatched = maxWatched;
+
+        WatchService service;
+        try {
+            service = fileSystem.newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            service = null;
+        }
+        this.watchService = service;
+
+        if (watchService != null) {
+            Thread thread = new Thread(this::pollLoop, "directory-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    boolean isAvailable() {
+        return watchService != null;
+    }
+
+    //Starts watching the directory. Does nothing if it is already watched.
+    boolean watch(Path directory) {
+        if (watchService == null) {
+            return false;
+        }
+
+        List<Path> dropped = new ArrayList<>();
+        synchronized (keys) {
+            if (keys.get(directory) != null) {
+                return true;
+            }
+            try {
+                WatchKey key = directory.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+                keys.put(directory, key);
+            } catch (IOException | ClosedWatchServiceException e) {
+                return false;
+            }
+
+            Iterator<Map.Entry<Path, WatchKey>> iterator = keys.entrySet().iterator();
+            while (keys.size() > maxWatched && iterator.hasNext()) {
+                Map.Entry<Path, WatchKey> eldest = iterator.next();
+                iterator.remove();
+                eldest.getValue().cancel();
+                dropped.add(eldest.getKey());
+            }
+        }
+
+        //Tell the listener outside the lock
+        for (Path path : dropped) {
+            notifyListener(path, StandardWatchEventKinds.OVERFLOW, null);
+        }
+        return true;
+    }
+
+    void unwatch(Path directory) {
+        WatchKey key;
+        synchronized (keys) {
+            key = keys.remove(directory);
+        }
+        if (key != null) {
+            key.cancel();
+        }
+    }
+
+    private void notifyListener(Path directory, WatchEvent.Kind<?> kind, Path child) {
+        try {
+            listener.onChange(directory, kind, child);
+        } catch (RuntimeException e) {
+            //A failing listener must not kill the watcher thread
+        }
+    }
+
+    private void pollLoop() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            Path directory = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                Path child = null;
+                if (event.kind() != StandardWatchEventKinds.OVERFLOW && event.context() instanceof Path name) {
+                    child = directory.resolve(name);
+                }
+                notifyListener(directory, event.kind(), child);
+            }
+
+            //Key is no longer valid once the directory is gone (or it was unwatched)
+            if (!key.reset()) {
+                boolean removed;
+                synchronized (keys) {
+                    removed = keys.remove(directory, key);
+                }
+                if (removed) {
+                    notifyListener(directory, StandardWatchEventKinds.OVERFLOW, null);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package org.logannelson.filesystem.service;
+//Receives change notifications from a FileSystemService.
+import org.logannelson.filesystem.model.FileChangeEvent;
+
+/*
+* Called for changes made through the service and for external changes
+* picked up by the directory watcher. May be called on any thread, and the
+* same change can be reported more than once, so handlers should be idempotent.
+* */
+@FunctionalInterface
+public interface FileChangeListener {
+
+    void onFileChange(FileChangeEvent event);
+}
@@ -0,0 +1,18 @@
+package org.logannelson.filesystem.service;
+//One version of a file's bytes, opened for sending.
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/*
+* Returned by FileSystemService.openContent. The size and the bytes stay those of the
+* moment it was opened, and no lock is held while it is read, so a slow reader never
+* keeps writers of the file waiting. Caller must close it.
+* */
+public interface FileContent extends Closeable {
+
+    long size();
+
+    //As FileSystemService.transferTo: fewer than count bytes only at the end
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException;
+}
@@ -0,0 +1,27 @@
+package org.logannelson.filesystem.service;
+//A run of bytes to write at a fixed position in a file.
+public class FileRegion {
+
+    private final long position;
+    private final byte[] data;
+
+    public FileRegion(long position, byte[] data) {
+        if (position < 0) {
+            throw new IllegalArgumentException("position must be non-negative: " + position);
+        }
+        this.position = position;
+        this.data = data;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public long getEnd() {
+        return position + data.length;
+    }
+}
@@ -0,0 +1,379 @@
+package org.logannelson.filesystem.service;
+//Finds the lines of a file that match a search, straight from its bytes.
+import org.logannelson.filesystem.model.SearchResult;
+import org.logannelson.filesystem.model.SearchResult.MatchingLine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+* Literal text is searched in the raw UTF-8 bytes with Boyer-Moore-Horspool, so nothing
+* is decoded except the lines that match; ASCII text ignores case by folding bytes.
+* A regex needs chars, so each window is decoded into a per-thread buffer first.
+*
+* Files larger than MAP_THRESHOLD are mapped one window at a time, smaller ones are read
+* into a per-thread buffer, where mapping would cost more than it saves. Windows end at
+* a line break, so a match never straddles two of them. Per thread that is two fixed
+* buffers plus one mapped window, whatever the size of the file; at most
+* MAX_MATCHES_PER_FILE lines are reported per file.
+* Line numbers are only counted up to the lines that match.
+* */
+final class FileScanner {
+
+    private static final int SNIFF_BYTES = 8 * 1024; //A NUL byte in here means binary
+    private static final int MAP_THRESHOLD = 256 * 1024;
+    private static final int LITERAL_WINDOW_BYTES = 16 * 1024 * 1024;
+    private static final int REGEX_WINDOW_BYTES = 1024 * 1024;
+    private static final int MAX_MATCHES_PER_FILE = 1000;
+    private static final int MAX_PREVIEW_CHARS = 200;
+    private static final int PREVIEW_CONTEXT = 60; //Shown before a match far into a long line
+
+    private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+    private final byte[] literal; //Lower-cased when foldCase; null for a regex
+    private final boolean foldCase;
+    private final int[] shifts;
+    private final Pattern regex;
+
+    private FileScanner(byte[] literal, boolean foldCase) {
+        this.literal = literal;
+        this.foldCase = foldCase;
+        this.regex = null;
+        this.shifts = new int[256];
+        Arrays.fill(shifts, literal.length);
+        for (int i = 0; i < literal.length - 1; i++) {
+            shifts[literal[i] & 0xFF] = literal.length - 1 - i;
+        }
+    }
+
+    private FileScanner(Pattern regex) {
+        this.literal = null;
+        this.foldCase = false;
+        this.shifts = null;
+        this.regex = regex;
+    }
+
+    //Throws IllegalArgumentException (PatternSyntaxException) for an empty pattern or a bad regex
+    static FileScanner create(String pattern, SearchOptions options) {
+        if (pattern.isEmpty()) {
+            throw new IllegalArgumentException("Empty search pattern");
+        }
+        int caseFlags = options.isMatchCase() ? 0 : Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+        if (options.isRegex()) {
+            return new FileScanner(Pattern.compile(pattern, caseFlags | Pattern.MULTILINE));
+        }
+        if (!options.isMatchCase() && !isAscii(pattern)) {
+            //Unicode case folding needs chars, and can change byte lengths
+            return new FileScanner(Pattern.compile(Pattern.quote(pattern), caseFlags));
+        }
+        String text = options.isMatchCase() ? pattern : pattern.toLowerCase(Locale.ROOT);
+        return new FileScanner(text.getBytes(StandardCharsets.UTF_8), !options.isMatchCase());
+    }
+
+    /*
+    * Reports the matching lines of one file to listener, a window at a time.
+    * Binary files are skipped; a file that cannot be read is recorded as a failure.
+    * */
+    void scan(Path file, Consumer<SearchResult> listener, OperationProgress progress) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            Buffers buffers = BUFFERS.get();
+            Windows windows = size <= MAP_THRESHOLD
+                    ? (position, length) -> buffers.read(channel)
+                    : (position, length) -> channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            scan(file, size, windows, listener, progress);
+        } catch (IOException e) {
+            progress.failed(file, e);
+        }
+    }
+
+    //Same for a file whose bytes are already in memory, e.g. on the in-memory backend
+    void scan(MappedTextFile file, Consumer<SearchResult> listener, OperationProgress progress) {
+        try {
+            //Windows of a MappedTextFile stop at its segment boundaries
+            scan(file.getPath(), file.size(), (position, length) -> file.window(position,
+                    (int) Math.min(length, MappedTextFile.SEGMENT_SIZE - (position & MappedTextFile.SEGMENT_MASK))),
+                    listener, progress);
+        } catch (IOException e) {
+            progress.failed(file.getPath(), e);
+        }
+    }
+
+    private void scan(Path file, long size, Windows windows, Consumer<SearchResult> listener,
+                      OperationProgress progress) throws IOException {
+        Buffers buffers = BUFFERS.get();
+        LineCounter lines = new LineCounter(windows);
+        int windowBytes = regex != null ? REGEX_WINDOW_BYTES : LITERAL_WINDOW_BYTES;
+        int matches = 0;
+        long position = 0;
+        while (position < size && matches < MAX_MATCHES_PER_FILE && !progress.isCancelled()) {
+            ByteBuffer window = windows.get(position, (int) Math.min(windowBytes, size - position));
+            int length = window.limit();
+            if (length == 0) {
+                break; //Shrunk while reading
+            }
+            if (position == 0 && isBinary(window)) {
+                return;
+            }
+
+            //End on a line break unless this is the last window; a longer line is cut
+            int end = length;
+            if (position + length < size) {
+                int lastBreak = lastIndexOf(window, length);
+                if (lastBreak >= 0) {
+                    end = lastBreak + 1;
+                }
+            }
+
+            List<MatchingLine> found = new ArrayList<>();
+            if (regex != null) {
+                scanRegex(window, end, buffers, lines, found, MAX_MATCHES_PER_FILE - matches);
+            } else {
+                lines.setWindow(position, window);
+                scanLiteral(window, end, position, lines, found, MAX_MATCHES_PER_FILE - matches);
+            }
+            if (!found.isEmpty()) {
+                matches += found.size();
+                listener.accept(new SearchResult(file, found));
+            }
+            position += end;
+        }
+        progress.fileDone(file, position); //Less than size if stopped early
+    }
+
+    //Where the bytes of a window come from; may return fewer than length bytes
+    private interface Windows {
+        ByteBuffer get(long position, int length) throws IOException;
+    }
+
+    /*
+    * Section: literal
+    * */
+    private void scanLiteral(ByteBuffer window, int end, long windowStart, LineCounter lines,
+                             List<MatchingLine> found, int max) throws IOException {
+        int from = 0;
+        while (found.size() < max) {
+            int match = indexOf(window, from, end);
+            if (match < 0) {
+                return;
+            }
+            int lineStart = match;
+            while (lineStart > 0 && window.get(lineStart - 1) != '\n') {
+                lineStart--;
+            }
+            int lineEnd = match + literal.length;
+            while (lineEnd < end && window.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            long number = lines.lineAt(windowStart + lineStart);
+            found.add(new MatchingLine(number, preview(window, lineStart, lineEnd, match)));
+            from = lineEnd + 1;
+        }
+    }
+
+    private int indexOf(ByteBuffer window, int from, int end) {
+        int last = literal.length - 1;
+        byte lastByte = literal[last];
+        for (int i = from + last; i < end; ) {
+            byte b = window.get(i);
+            if (foldCase) {
+                b = toLowerAscii(b);
+            }
+            if (b == lastByte && matchesAt(window, i - last)) {
+                return i - last;
+            }
+            i += shifts[b & 0xFF];
+        }
+        return -1;
+    }
+
+    private boolean matchesAt(ByteBuffer window, int start) {
+        for (int j = literal.length - 2; j >= 0; j--) {
+            byte b = window.get(start + j);
+            if ((foldCase ? toLowerAscii(b) : b) != literal[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //Decodes the line for display, cut around the match if it is long
+    private static String preview(ByteBuffer window, int lineStart, int lineEnd, int match) {
+        int start = Math.max(lineStart, match - PREVIEW_CONTEXT);
+        while (start > lineStart && (window.get(start) & 0xC0) == 0x80) {
+            start--; //Not inside a UTF-8 sequence
+        }
+        int end = Math.min(lineEnd, start + MAX_PREVIEW_CHARS);
+        byte[] bytes = new byte[end - start];
+        window.get(start, bytes);
+        return previewText(new String(bytes, StandardCharsets.UTF_8), start > lineStart, end < lineEnd);
+    }
+
+    /*
+    * Section: regex
+    * Lines are counted through every window here; matching chars costs more than that anyway.
+    * */
+    private void scanRegex(ByteBuffer window, int end, Buffers buffers, LineCounter lines,
+                           List<MatchingLine> found, int max) {
+        CharBuffer chars = buffers.decode(window, end);
+        int length = chars.limit();
+        Matcher matcher = regex.matcher(chars);
+        int counted = 0;
+        int from = 0;
+        while (found.size() < max && from <= length && matcher.find(from)) {
+            int match = matcher.start();
+            int lineStart = match;
+            while (lineStart > 0 && chars.get(lineStart - 1) != '\n') {
+                lineStart--;
+            }
+            int lineEnd = match;
+            while (lineEnd < length && chars.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            lines.line += countNewlines(chars, counted, lineStart);
+            counted = lineStart;
+
+            int start = Math.max(lineStart, match - PREVIEW_CONTEXT);
+            int previewEnd = Math.min(lineEnd, start + MAX_PREVIEW_CHARS);
+            found.add(new MatchingLine(lines.line,
+                    previewText(chars.subSequence(start, previewEnd).toString(), start > lineStart, previewEnd < lineEnd)));
+            from = lineEnd + 1;
+        }
+        lines.line += countNewlines(chars, counted, length);
+    }
+
+    private static int countNewlines(CharBuffer chars, int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (chars.get(i) == '\n') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /*
+    * Section: helpers
+    * */
+    private static String previewText(String text, boolean cutStart, boolean cutEnd) {
+        String stripped = cutStart ? text.stripTrailing() : text.strip();
+        return (cutStart ? "..." : "") + stripped + (cutEnd ? "..." : "");
+    }
+
+    private static boolean isBinary(ByteBuffer window) {
+        for (int i = 0, end = Math.min(window.limit(), SNIFF_BYTES); i < end; i++) {
+            if (window.get(i) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int lastIndexOf(ByteBuffer window, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (window.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //Non-ASCII bytes are negative and stay as they are
+    private static byte toLowerAscii(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    /*
+    * Line number at a byte position, counted lazily from the last position asked for.
+    * Bytes before the current window (only for files of several windows) are fetched again to count them.
+    * */
+    private static final class LineCounter {
+        private final Windows windows;
+        private long line = 1; //Line number at countedTo
+        private long countedTo;
+        private long windowStart;
+        private ByteBuffer window;
+
+        LineCounter(Windows windows) {
+            this.windows = windows;
+        }
+
+        void setWindow(long start, ByteBuffer window) {
+            this.windowStart = start;
+            this.window = window;
+        }
+
+        long lineAt(long position) throws IOException {
+            while (countedTo < windowStart) {
+                ByteBuffer counted = windows.get(countedTo, (int) Math.min(LITERAL_WINDOW_BYTES, windowStart - countedTo));
+                line += countNewlines(counted, 0, counted.limit());
+                countedTo += counted.limit();
+            }
+            line += countNewlines(window, (int) (countedTo - windowStart), (int) (position - windowStart));
+            countedTo = position;
+            return line;
+        }
+
+        private static int countNewlines(ByteBuffer bytes, int from, int to) {
+            int count = 0;
+            for (int i = from; i < to; i++) {
+                if (bytes.get(i) == '\n') {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    //Reused by every file a pool thread scans
+    private static final class Buffers {
+        private final ByteBuffer small = ByteBuffer.allocate(MAP_THRESHOLD);
+        private final CharBuffer chars = CharBuffer.allocate(REGEX_WINDOW_BYTES);
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        //The whole (small) file
+        ByteBuffer read(FileChannel channel) throws IOException {
+            small.clear();
+            while (small.hasRemaining() && channel.read(small) >= 0) {
+                //Until full or end of file
+            }
+            return small.flip();
+        }
+
+        //UTF-8 decodes to at most one char per byte, so the buffer always has room
+        CharBuffer decode(ByteBuffer window, int end) {
+            ByteBuffer in = window.duplicate();
+            in.position(0).limit(end);
+            chars.clear();
+            decoder.reset();
+            decoder.decode(in, chars, true);
+            decoder.flush(chars);
+            return chars.flip();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.logannelson.filesystem.service;
+//Which storage a FileSystemService runs on, chosen with -Dfms.backend=disk|memory.
+import java.nio.file.Path;
+import java.util.Locale;
+
+/*
+* DISK is the sandbox folder in the user's home. MEMORY is the same tree kept in RAM only:
+* nothing is read from or written to the disk, and it starts empty every run.
+* Both answer every FileSystemService call, so the UI and benchmarks run unchanged on either.
+* */
+public enum FileSystemBackend {
+
+    DISK {
+        @Override
+        public FileSystemService create() {
+            return new FileSystemServiceImpl();
+        }
+
+        @Override
+        public FileSystemService create(Path rootDirectory) {
+            return new FileSystemServiceImpl(rootDirectory);
+        }
+    },
+    MEMORY {
+        @Override
+        public FileSystemService create() {
+            return new InMemoryFileSystemService();
+        }
+
+        @Override
+        public FileSystemService create(Path rootDirectory) {
+            return new InMemoryFileSystemService(rootDirectory);
+        }
+    };
+
+    public static final String PROPERTY = "fms.backend";
+
+    //Rooted at <user.home>/FileSystemSandbox
+    public abstract FileSystemService create();
+
+    //Rooted somewhere else, e.g. a temporary folder for each benchmark trial
+    public abstract FileSystemService create(Path rootDirectory);
+
+    //The one named by the fms.backend property, DISK if it is not set
+    public static FileSystemBackend fromSystemProperty() {
+        String name = System.getProperty(PROPERTY, DISK.name());
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown " + PROPERTY + " '" + name + "', expected disk or memory", e);
+        }
+    }
+}
@@ -1,10 +1,19 @@
 package org.logannelson.filesystem.service;
 //Handles core file operations: CRUD, list directories.
+import org.logannelson.filesystem.model.DirectorySize;
+import org.logannelson.filesystem.model.DirectorySnapshot;
 import org.logannelson.filesystem.model.FileItem;
+import org.logannelson.filesystem.model.SearchResult;
+import org.logannelson.filesystem.model.TrashEntry;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
 
 /*
 * Section 2
@@ -12,7 +21,7 @@ import java.util.List;
 * CRUD operations on the interface level
 * */
 
-public interface FileSystemService {
+public interface FileSystemService extends Closeable {
 
     // Returns the starting directory.
     Path getStartDirectory();
@@ -21,15 +30,97 @@ public interface FileSystemService {
      */
     List<FileItem> listDirectory(Path directory) throws IOException;
 
+    /*
+    * Reads a directory into a compact column-wise snapshot, cached like listDirectory.
+    * If partialListener is given it receives the entries read so far every 50 ms
+    * (cheap, they share the snapshot's arrays) and can stop the read by returning false;
+    * the partial snapshot is then returned and not cached.
+    * */
+    DirectorySnapshot snapshotDirectory(Path directory, Predicate<DirectorySnapshot> partialListener)
+            throws IOException;
+
+    default DirectorySnapshot snapshotDirectory(Path directory) throws IOException {
+        return snapshotDirectory(directory, null);
+    }
+
+    /*
+    * Lazily streams the children of the given directory as they are read from disk.
+    * The caller must close the stream (try-with-resources).
+    * */
+    Stream<FileItem> streamDirectory(Path directory) throws IOException;
+
+    /*
+    * Opens a forward-only cursor over the given directory for paged reads.
+    * The caller must close the cursor.
+    * */
+    DirectoryCursor openDirectory(Path directory) throws IOException;
+
+    /*
+    * Returns at most limit children of the given directory, starting at offset.
+    * Only the requested page is held in memory.
+    * */
+    List<FileItem> listDirectory(Path directory, int offset, int limit) throws IOException;
+
+    //Size and modification time of one file or folder, as a listing shows it; NoSuchFileException if it is gone
+    FileItem getItem(Path path) throws IOException;
+
     //Reads the entire contents of a text file as a String
     String readFile(Path file) throws IOException;
 
+    /*
+    * Memory-maps a text file for read-only paged viewing.
+    * Nothing is read onto the heap until lines are requested. Caller must close it.
+    * */
+    MappedTextFile openMappedFile(Path file) throws IOException;
+
+    /*
+    * Sends up to count bytes of a file, starting at position, to target and returns how many
+    * were sent: fewer only at the end of the file. On disk this is FileChannel.transferTo,
+    * which the OS can do without copying the bytes through the JVM (sendfile).
+    * */
+    long transferTo(Path file, long position, long count, WritableByteChannel target) throws IOException;
+
+    /*
+    * Opens a file's current content for sending: its size and bytes stay as they are now
+    * even if the file is replaced, moved or deleted meanwhile. The file's lock is only held
+    * while opening. On disk that is an open FileChannel (writeFile replaces the file, so the
+    * channel keeps the old one); only an in-place patchFile of those bytes can show through.
+    * */
+    FileContent openContent(Path file) throws IOException;
+
+    /*
+    * Returns the line index for a mapped file, building it in the background if needed.
+    * Indexes are cached per path and modification time.
+    * */
+    LineIndex getLineIndex(MappedTextFile file);
+
     /*
     Writes the given text content into selected file.
-    Overwrites existing content!!!
+    Overwrites existing content!!! (atomically, via a temp file)
     * */
     void writeFile(Path file, String content) throws IOException;
 
+    /*
+    * Streams content from the source into the selected file (UTF-8).
+    * Written to a temp file first and then moved over the target, so the
+    * source may safely read from a mapping of the file being replaced,
+    * and a crash never leaves a half-written file behind.
+    * */
+    void writeFile(Path file, ContentSource source, SaveOptions options) throws IOException;
+
+    default void writeFile(Path file, ContentSource source) throws IOException {
+        writeFile(file, source, SaveOptions.DEFAULT);
+    }
+
+    /*
+    * Writes the given regions in place with positional writes, then sets the file
+    * length to newLength (pass -1 to keep it). Cost tracks the size of the regions,
+    * not of the file. Not atomic: meant for small edits when options allow it.
+    * Shortening a file that is mapped (an open MappedTextFile, a LineIndex, a scanner)
+    * makes reads of the cut tail fail through those mappings; rewrite it instead.
+    * */
+    void patchFile(Path file, List<FileRegion> regions, long newLength, SaveOptions options) throws IOException;
+
     /*
     * Creates a new empty directory with the given name in the parent directory
     * Returns path to created directory
@@ -49,9 +140,148 @@ public interface FileSystemService {
     Path rename(Path target, String newName) throws  IOException;
 
     /*
-    * Deletes a file or directory. Directories deleted recursively.
+    * Runs many creates, writes, renames and deletes in one call. Every path is checked
+    * against the sandbox first; if one is outside, this throws and nothing runs.
+    * Up to parallelism operations run at the same time on the operation pool, in no set
+    * order, so operations that depend on each other (a file in a folder created by the
+    * same batch) need parallelism 1. Each one succeeds or fails on its own; the results
+    * are in the order of the operations. Listeners get a single BATCH event with all the
+    * changes at the end, instead of one event per operation.
+    * */
+    List<BatchResult> runBatch(List<BatchOperation> operations, int parallelism) throws IOException;
+
+    /*
+    * Copies a file or directory tree into targetDirectory, keeping its name, and returns
+    * the copy's path. Subdirectories and batches of files are copied in parallel on the
+    * operation pool; large files go through FileChannel.transferTo.
+    * Blocks until done or cancelled through progress, which also has the bytes per second.
+    * Failures on single paths are collected in progress instead of stopping the copy.
+    * An existing target is merged into: files with the same size and modification time
+    * are skipped and others replaced, so running a copy that failed or was cancelled again
+    * resumes it, large files from where they stopped.
+    * */
+    Path copy(Path source, Path targetDirectory, OperationProgress progress) throws IOException;
+
+    /*
+    * Moves a file or directory tree into targetDirectory, keeping its name, and returns
+    * the new path. A single atomic rename when the target does not exist yet and both are
+    * on the same file store; otherwise a copy as above, after which the source is deleted
+    * only if all of it was copied. Running a move that did not finish again resumes it.
+    * */
+    Path move(Path source, Path targetDirectory, OperationProgress progress) throws IOException;
+
+    /*
+    * Deletes a file or directory by moving it to the trash.
+    * This is a single rename, so it takes the same time for any size of tree.
+    * Returns the trash entry, which can be passed to restore().
+    * */
+    TrashEntry delete(Path target) throws IOException;
+
+    /*
+    * Deletes a file or directory tree for good, subtrees in parallel.
+    * Blocks until done or cancelled through progress. Failures on single paths are
+    * collected in progress instead of stopping the delete; only a target that
+    * cannot be reached at all throws.
+    * */
+    void deletePermanently(Path target, OperationProgress progress) throws IOException;
+
+    //Items in the trash, oldest first
+    List<TrashEntry> listTrash();
+
+    /*
+    * Moves a trashed item back to its original path and returns that path.
+    * Fails if something now exists there, or the item was purged already.
+    * */
+    Path restore(TrashEntry entry) throws IOException;
+
+    //Purges everything in the trash in the background
+    void emptyTrash();
+
+    /*
+    * Finds files and directories anywhere under the root whose name matches the
+    * pattern, ignoring case: a substring, or a glob (*, ?, [...], {a,b}) over the whole name.
+    * Answered from a persistent name index, so nothing is read from disk.
+    * Returns at most limit paths; partial while the index is first being built.
+    * Throws IllegalArgumentException for a malformed glob, e.g. [] or an unclosed [ or {.
+    * */
+    List<Path> findByName(String pattern, int limit);
+
+    //False while the name index is still loading or walking the tree for the first time
+    boolean isNameIndexReady();
+
+    /*
+    * Finds text files under the root that contain every word of the query, ignoring
+    * case; a word ending in * matches as a prefix. Each result has its first few
+    * matching lines. Answered from a content index that is built in the background on
+    * first use (this call waits for it) and kept current with changes made through
+    * this service and seen by the watcher.
+    * */
+    List<SearchResult> searchContent(String query, int limit) throws IOException;
+
+    //Starts building the content index if that has not happened yet; searchContent does this too
+    void buildContentIndex();
+
+    //Size, build throughput and query latency of the content index
+    ContentIndexStatus getContentIndexStatus();
+
+    /*
+    * Searches the text files below directory for a literal or regex, without any index:
+    * the tree is walked and files are scanned in parallel on the operation pool, each
+    * through a memory mapping, one bounded window at a time. Binary files are skipped.
+    * Matching lines are passed to matchListener as they are found, on pool threads.
+    * Blocks until done or progress is cancelled; scanned files and bytes, and files that
+    * could not be read, are recorded in progress.
+    * Throws IllegalArgumentException for an empty pattern or an invalid regex.
+    * */
+    void searchInFolder(Path directory, String pattern, SearchOptions options,
+                        Consumer<SearchResult> matchListener, OperationProgress progress) throws IOException;
+
+    /*
+    * Total bytes, files and folders below the directory; the trash is not counted.
+    * The first call walks the whole sandbox once, each directory as a task on the
+    * operation pool, and waits for it. After that the totals are cached per directory and
+    * kept current with changes made through this service and seen by the watcher,
+    * so this is a lookup of one entry per path component.
+    * */
+    DirectorySize getDirectorySize(Path directory) throws IOException;
+
+    //Same, but never waits: null until the first walk is done (this starts it) or for an unknown directory
+    DirectorySize getCachedDirectorySize(Path directory);
+
+    //Directory entries left out of listings since start, because their attributes could not be read
+    long getSkippedEntryCount();
+
+    /*
+    * Runs long operations in the background: copy, move, delete, folder search.
+    * Interactive reads go first and disk-heavy jobs are limited per device;
+    * shared by everyone using this service so the limits hold across callers.
+    * */
+    OperationScheduler getScheduler();
+
+    /*
+    * The path locks this service's calls take: shared to read a file, exclusive to change
+    * a path, intent locks on the folders above it. Callers that need several calls to see
+    * one state hold a lock across them (e.g. shared across getItem and readFile); holds
+    * are reentrant, so the calls inside take the same locks again without waiting.
+    * */
+    PathLockManager getLockManager();
+
+    /*
+    * Registers a listener for created/modified/renamed/deleted events,
+    * both for changes made through this service and for external changes
+    * in directories that have been listed.
+    * */
+    void addChangeListener(FileChangeListener listener);
+
+    void removeChangeListener(FileChangeListener listener);
+
+    /*
+    * Stops the service's background threads (watcher, indexes, pools, scheduler), saving
+    * what it keeps between runs first. Operations still queued are cancelled; the service
+    * must not be used afterwards. Closing twice does nothing.
     * */
-    void delete(Path target) throws IOException;
+    @Override
+    void close();
 
 }
 
@@ -1,13 +1,50 @@
 package org.logannelson.filesystem.service;
 
+import org.logannelson.filesystem.model.DirectorySize;
+import org.logannelson.filesystem.model.DirectorySnapshot;
+import org.logannelson.filesystem.model.FileChangeEvent;
 import org.logannelson.filesystem.model.FileItem;
+import org.logannelson.filesystem.model.SearchResult;
+import org.logannelson.filesystem.model.TrashEntry;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NotDirectoryException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.stream.Stream;
 
 public class FileSystemServiceImpl implements FileSystemService {
@@ -20,18 +57,121 @@ public class FileSystemServiceImpl implements FileSystemService {
      */
     private final Path rootDirectory;
 
+    //Listing cache, kept correct by the watcher and by our own mutations
+    private static final int CACHE_MAX_DIRECTORIES = 256;
+    private static final long CACHE_MAX_ENTRIES = 2_000_000L; //Snapshot entries are ~25 bytes + name
+    private static final int MAX_WATCHED_DIRECTORIES = 1024;
+    private final DirectoryWatcher directoryWatcher;
+    private final DirectoryListingCache listingCache;
+
+    private final List<FileChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+
+    //Set on threads running a batch operation: its events are collected instead of fired
+    private final ThreadLocal<List<FileChangeEvent>> batchEvents = new ThreadLocal<>();
+
+    /*
+    * Paths we are changing or just changed, until when (System.nanoTime) the watcher's
+    * reports of them are only echoes of our own events. The window has to outlast the
+    * watcher's delay; a real outside change of the same path inside it still updates the
+    * caches and indexes, it just fires no second event.
+    * */
+    private static final long ECHO_WINDOW_NANOS = Long.getLong("fms.watcherEchoMillis", 2000L) * 1_000_000L;
+    private static final int ECHO_PRUNE_SIZE = 4096;
+    private final ConcurrentHashMap<Path, Long> ownChanges = new ConcurrentHashMap<>();
+    private volatile long nextEchoPrune = System.nanoTime();
+
+    //Deleted items go here first; hidden from listings and closed to normal operations
+    private static final int TRASH_MAX_ENTRIES = 1000;
+    private static final long TRASH_MAX_BYTES = Long.getLong("fms.trashMaxBytes", 2L * 1024 * 1024 * 1024);
+    private final Path trashDirectory;
+    private final Trash trash;
+
+    //Every name under the root, for findByName; saved next to the sandbox between runs
+    private final NameIndex nameIndex;
+    private final Thread shutdownHook; //Saves the name index if the JVM exits without close()
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    //Words of the text files under the root, for searchContent; built on first use
+    private final ContentIndex contentIndex;
+
+    //Recursive size of every directory, walked on first use and then kept current
+    private final DirectorySizes directorySizes;
+
+    private static final int WRITE_BUFFER_CHARS = 64 * 1024;
+
+    //How often snapshotDirectory hands out what it has read so far
+    private static final long PARTIAL_SNAPSHOT_NANOS = 50_000_000L; //50 ms
+
+    //Runs tree operations (delete, copy, folder search, size walk) with one task per directory
+    private final ForkJoinPool fileOperationPool = new ForkJoinPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()),
+            pool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("file-operation-" + thread.getPoolIndex());
+                return thread;
+            },
+            null, false);
+
+    //Entries listings had to leave out, for getSkippedEntryCount
+    private final LongAdder skippedEntries = new LongAdder();
+
+    //Background operations, with interactive reads ahead of bulk jobs
+    private final OperationScheduler scheduler = new OperationScheduler();
+
+    /*
+    * Every call that reads a file or changes a path locks it first (see Section 5), so two
+    * writers of one file take turns and a delete or move of a folder waits for, then keeps
+    * out, anything working below it. Listings, searches and size walks take no locks: they
+    * already cope with entries changing under them, and must not hold up writers.
+    * */
+    private final PathLockManager locks;
+
+    //Line indexes of recently viewed large files, keyed by path + mtime + size
+    private static final int MAX_CACHED_LINE_INDEXES = 4;
+    private record LineIndexKey(Path path, FileTime lastModifiedTime, long size) { }
+    private final Map<LineIndexKey, LineIndex> lineIndexes = new LinkedHashMap<>(8, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<LineIndexKey, LineIndex> eldest) {
+            return size() > MAX_CACHED_LINE_INDEXES;
+        }
+    };
+
     public FileSystemServiceImpl() {
         //Sandbox root: <user.home>/FileSystemSandbox
-        this.rootDirectory = Path
-                .of(System.getProperty("user.home"), "FileSystemSandbox")
-                .toAbsolutePath()
-                .normalize();
+        this(Path.of(System.getProperty("user.home"), "FileSystemSandbox"));
+    }
+
+    //A sandbox at rootDirectory, created if missing; its name index is saved next to it
+    public FileSystemServiceImpl(Path rootDirectory) {
+        this.rootDirectory = rootDirectory.toAbsolutePath().normalize();
+        this.locks = new PathLockManager(rootDirectory);
 
         try {
             Files.createDirectories(rootDirectory);
         } catch (IOException e) {
             throw new RuntimeException("Failed to initialize sandbox root: " + rootDirectory, e);
         }
+
+        this.trashDirectory = rootDirectory.resolve(Trash.DIRECTORY_NAME);
+        try {
+            //Also finishes any purge a previous run was killed in the middle of
+            this.trash = new Trash(rootDirectory, TRASH_MAX_ENTRIES, TRASH_MAX_BYTES);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to initialize trash: " + trashDirectory, e);
+        }
+
+        Path indexFile = Path.of(System.getProperty("fms.nameIndexFile",
+                rootDirectory.resolveSibling("." + rootDirectory.getFileName() + ".names").toString()));
+        this.nameIndex = new NameIndex(rootDirectory, indexFile, trashDirectory);
+        nameIndex.start();
+        this.shutdownHook = new Thread(nameIndex::close, "name-index-save");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+        this.contentIndex = new ContentIndex(rootDirectory, trashDirectory);
+        this.directorySizes = new DirectorySizes(rootDirectory, trashDirectory, fileOperationPool);
+
+        this.listingCache = new DirectoryListingCache(CACHE_MAX_DIRECTORIES, CACHE_MAX_ENTRIES, null);
+        this.directoryWatcher = new DirectoryWatcher(
+                rootDirectory.getFileSystem(), MAX_WATCHED_DIRECTORIES, this::onExternalChange);
     }
 
     /**
@@ -46,6 +186,9 @@ public class FileSystemServiceImpl implements FileSystemService {
         if (!normalizedPath.startsWith(normalizedRoot)) {
             throw new IOException("Operation outside sandbox is not allowed: " + normalizedPath);
         }
+        if (normalizedPath.startsWith(trashDirectory)) {
+            throw new IOException("The trash can only be changed through delete and restore: " + normalizedPath);
+        }
         return normalizedPath;
     }
 
@@ -57,64 +200,659 @@ public class FileSystemServiceImpl implements FileSystemService {
 
     @Override
     public List<FileItem> listDirectory(Path directory) throws IOException {
+        return snapshotDirectory(directory, null).asList();
+    }
+
+    @Override
+    public DirectorySnapshot snapshotDirectory(Path directory, Predicate<DirectorySnapshot> partialListener)
+            throws IOException {
         Path dir = ensureUnderRoot(directory);
 
-        List<FileItem> items = new ArrayList<>();
+        DirectorySnapshot cached = listingCache.get(dir);
+        if (cached != null) {
+            return cached;
+        }
+
+        //Watch before reading, so a change during the read invalidates it
+        long version = listingCache.version();
+        boolean watched = directoryWatcher.watch(dir);
+        DirectorySnapshot.Builder builder = new DirectorySnapshot.Builder(dir);
+        long lastPartial = System.nanoTime();
 
-        try (Stream<Path> stream = Files.list(dir)) {
-            stream.forEach(path -> {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                if (entry.equals(trashDirectory)) {
+                    continue;
+                }
                 try {
-                    BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
-                    FileItem item = new FileItem(
-                            path,
-                            path.getFileName().toString(),
-                            attrs.isDirectory(),
-                            attrs.isDirectory() ? 0L : attrs.size(),
-                            attrs.lastModifiedTime()
-                    );
-                    items.add(item);
+                    //Straight into the columns: no FileItem, FileTime or Path is kept.
+                    //Folders are 0, as in toFileItem, not the size of the directory inode
+                    BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class);
+                    builder.add(entry.getFileName().toString(), attrs.isDirectory(), attrs.isDirectory() ? 0L : attrs.size(),
+                            attrs.lastModifiedTime().toMillis());
                 } catch (IOException e) {
-                    //If one file fails, skip it for now. Log later.
+                    skippedEntries.increment(); //Removed while listing, or unreadable
+                    continue;
+                }
+
+                if (partialListener != null && System.nanoTime() - lastPartial >= PARTIAL_SNAPSHOT_NANOS) {
+                    lastPartial = System.nanoTime();
+                    if (!partialListener.test(builder.snapshot())) {
+                        return builder.snapshot(); //Stopped early: not complete, so not cached
+                    }
                 }
-            });
+            }
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
         }
 
-        return items;
+        DirectorySnapshot snapshot = builder.build();
+        if (watched) {
+            listingCache.put(dir, snapshot, version);
+        }
+        return snapshot;
+    }
+
+    @Override
+    public Stream<FileItem> streamDirectory(Path directory) throws IOException {
+        Path dir = ensureUnderRoot(directory);
+
+        DirectorySnapshot cached = listingCache.get(dir);
+        if (cached != null) {
+            return cached.asList().stream();
+        }
+
+        long version = listingCache.version();
+        DirectoryCursor cursor = openDirectory(dir);
+        if (!directoryWatcher.watch(dir)) {
+            return cursor.stream();
+        }
+
+        //Collect entries as the caller reads them, and cache them if the whole directory was read
+        DirectorySnapshot.Builder collected = new DirectorySnapshot.Builder(dir);
+        long maxCollected = listingCache.maxListingSize();
+        return cursor.stream()
+                .peek(item -> {
+                    if (collected.size() <= maxCollected) {
+                        collected.add(item);
+                    }
+                })
+                .onClose(() -> {
+                    if (cursor.isExhausted()) {
+                        listingCache.put(dir, collected.build(), version);
+                    }
+                });
+    }
+
+    @Override
+    public DirectoryCursor openDirectory(Path directory) throws IOException {
+        Path dir = ensureUnderRoot(directory);
+        //DirectoryStream reads entries on demand, nothing is materialized up front
+        return new DirectoryCursor(Files.newDirectoryStream(dir), this::toVisibleItem);
+    }
+
+    @Override
+    public List<FileItem> listDirectory(Path directory, int offset, int limit) throws IOException {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("offset and limit must be non-negative");
+        }
+
+        Path dir = ensureUnderRoot(directory);
+        DirectorySnapshot cached = listingCache.get(dir);
+        if (cached != null) {
+            int from = Math.min(offset, cached.size());
+            int to = (int) Math.min((long) from + limit, cached.size());
+            return new ArrayList<>(cached.asList().subList(from, to));
+        }
+
+        try (DirectoryCursor cursor = openDirectory(dir)) {
+            cursor.skip(offset);
+            return cursor.nextPage(limit);
+        }
+    }
+
+    @Override
+    public FileItem getItem(Path path) throws IOException {
+        Path safePath = ensureUnderRoot(path);
+        BasicFileAttributes attrs;
+        PathLockManager.Hold hold = locks.lockShared(safePath);
+        try {
+            attrs = Files.readAttributes(safePath, BasicFileAttributes.class);
+        } finally {
+            hold.close();
+        }
+        Path name = safePath.getFileName();
+        return new FileItem(safePath, name != null ? name.toString() : safePath.toString(), attrs.isDirectory(),
+                attrs.isDirectory() ? 0L : attrs.size(), attrs.lastModifiedTime());
+    }
+
+    @Override
+    public List<Path> findByName(String pattern, int limit) {
+        return nameIndex.find(pattern, limit);
+    }
+
+    @Override
+    public boolean isNameIndexReady() {
+        return nameIndex.isReady();
+    }
+
+    @Override
+    public List<SearchResult> searchContent(String query, int limit) throws IOException {
+        return contentIndex.search(query, limit);
+    }
+
+    @Override
+    public void buildContentIndex() {
+        contentIndex.start();
+    }
+
+    @Override
+    public ContentIndexStatus getContentIndexStatus() {
+        return contentIndex.status();
+    }
+
+    @Override
+    public void searchInFolder(Path directory, String pattern, SearchOptions options,
+                               Consumer<SearchResult> matchListener, OperationProgress progress) throws IOException {
+        Path safeDirectory = ensureUnderRoot(directory);
+        FileScanner scanner = FileScanner.create(pattern, options);
+        BasicFileAttributes attrs = Files.readAttributes(safeDirectory, BasicFileAttributes.class);
+        if (attrs.isDirectory()) {
+            fileOperationPool.invoke(new FolderSearchTask(safeDirectory, trashDirectory, scanner, matchListener, progress));
+        } else {
+            scanner.scan(safeDirectory, matchListener, progress);
+        }
+    }
+
+    @Override
+    public DirectorySize getDirectorySize(Path directory) throws IOException {
+        return directorySizes.get(ensureUnderRoot(directory));
+    }
+
+    @Override
+    public DirectorySize getCachedDirectorySize(Path directory) {
+        //Normalized like every other entry point, or the same folder would miss the cache
+        Path normalized = directory.toAbsolutePath().normalize();
+        return normalized.startsWith(rootDirectory) ? directorySizes.peek(normalized) : null;
+    }
+
+    @Override
+    public long getSkippedEntryCount() {
+        return skippedEntries.sum();
+    }
+
+    @Override
+    public OperationScheduler getScheduler() {
+        return scheduler;
+    }
+
+    @Override
+    public PathLockManager getLockManager() {
+        return locks;
+    }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            return; //Already exiting: the hook saves the index and the threads end with the JVM
+        }
+        scheduler.close();
+        try {
+            directoryWatcher.close();
+        } catch (IOException e) {
+            //Its thread ends either way
+        }
+        nameIndex.close();
+        contentIndex.close();
+        directorySizes.close();
+        trash.close();
+        fileOperationPool.shutdownNow();
+    }
+
+    //Hit/miss/eviction counters for the listing cache
+    public DirectoryListingCache getListingCache() {
+        return listingCache;
+    }
+
+    /*
+    * Called on the watcher thread for changes made by anyone, including us. Our own changes
+    * have fired their events already (one BATCH event for a whole batch), so for those the
+    * caches are brought up to date but nothing is fired, nor the entry read again.
+    * */
+    private void onExternalChange(Path directory, WatchEvent.Kind<?> kind, Path child) {
+        if (trashDirectory.equals(child)) {
+            return; //Hidden
+        }
+        boolean echo = child != null && isEcho(child);
+        listingCache.invalidate(directory);
+        if (child == null || kind == StandardWatchEventKinds.ENTRY_DELETE) {
+            //Lost events or a removed entry: anything below may be stale too
+            listingCache.invalidateTree(child != null ? child : directory);
+        }
+
+        if (child == null) {
+            nameIndex.refresh(directory);
+            contentIndex.changed(directory);
+            directorySizes.refresh(directory);
+            fireChange(FileChangeEvent.overflow(directory));
+        } else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+            nameIndex.removed(child);
+            contentIndex.removed(child);
+            directorySizes.removed(child);
+            if (!echo) {
+                fireChange(FileChangeEvent.deleted(child));
+            }
+        } else {
+            if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+                nameIndex.added(child);
+            }
+            contentIndex.changed(child); //Skipped if size and time are what was indexed
+            directorySizes.changed(child);
+            if (echo) {
+                return;
+            }
+            //The entry may already be gone again, then a DELETE event follows
+            FileItem item = toFileItem(child);
+            if (item != null) {
+                fireChange(kind == StandardWatchEventKinds.ENTRY_CREATE
+                        ? FileChangeEvent.created(item)
+                        : FileChangeEvent.modified(item));
+            }
+        }
+    }
+
+    @Override
+    public void addChangeListener(FileChangeListener listener) {
+        changeListeners.add(listener);
+    }
+
+    @Override
+    public void removeChangeListener(FileChangeListener listener) {
+        changeListeners.remove(listener);
+    }
+
+    private void fireChange(FileChangeEvent event) {
+        List<FileChangeEvent> collected = batchEvents.get();
+        if (collected != null) {
+            collected.add(event);
+            return;
+        }
+        for (FileChangeListener listener : changeListeners) {
+            try {
+                listener.onFileChange(event);
+            } catch (RuntimeException e) {
+                //One bad listener should not break the operation that caused the event
+            }
+        }
+    }
+
+    //Fires a CREATED or MODIFIED event for our own change, if the path can still be read
+    private void fireItemChange(FileChangeEvent.Type type, Path path) {
+        FileChangeEvent event = itemChange(type, path);
+        if (event != null) {
+            fireChange(event);
+        }
+    }
+
+    //The CREATED or MODIFIED event for path, or null if it cannot be read
+    private FileChangeEvent itemChange(FileChangeEvent.Type type, Path path) {
+        FileItem item = toFileItem(path);
+        if (item == null) {
+            return null;
+        }
+        return type == FileChangeEvent.Type.CREATED ? FileChangeEvent.created(item) : FileChangeEvent.modified(item);
+    }
+
+    //Events held back while a call had paths locked; nulls (items gone meanwhile) are skipped
+    private void fireAll(List<FileChangeEvent> events) {
+        for (FileChangeEvent event : events) {
+            if (event != null) {
+                fireChange(event);
+            }
+        }
+    }
+
+    //Locks paths for a change of ours; see ownChanges
+    private PathLockManager.Hold lockForChange(Path... paths) {
+        PathLockManager.Hold hold = locks.lockExclusive(paths);
+        expectEchoes(paths);
+        return hold;
+    }
+
+    //Before the change is made, so the watcher cannot report it first
+    private void expectEchoes(Path... paths) {
+        long now = System.nanoTime();
+        //At most once a window, so a big batch does not sweep the map on every change
+        if (ownChanges.size() >= ECHO_PRUNE_SIZE && now - nextEchoPrune > 0) {
+            nextEchoPrune = now + ECHO_WINDOW_NANOS;
+            ownChanges.values().removeIf(until -> until - now < 0);
+        }
+        for (Path path : paths) {
+            ownChanges.put(path, now + ECHO_WINDOW_NANOS);
+        }
+    }
+
+    /*
+    * Whether path itself is one we changed within the window. Only the exact path: an
+    * outside change anywhere below a folder we touched is a real change and is reported.
+    * (Entries a recursive copy or delete of ours touches inside a watched folder are then
+    * reported one by one, as before.)
+    * */
+    private boolean isEcho(Path path) {
+        Long until = ownChanges.get(path);
+        return until != null && until - System.nanoTime() > 0;
+    }
+
+    //Keeps the cache correct for our own mutations without waiting for the watcher
+    private void invalidateParent(Path path) {
+        Path parent = path.getParent();
+        if (parent != null) {
+            listingCache.invalidate(parent);
+        }
+    }
+
+    //Same as toFileItem, but null for the hidden trash folder; for listings, so failures are counted
+    private FileItem toVisibleItem(Path path) {
+        if (path.equals(trashDirectory)) {
+            return null;
+        }
+        FileItem item = toFileItem(path);
+        if (item == null) {
+            skippedEntries.increment();
+        }
+        return item;
+    }
+
+    //Reads the attributes of a single path. Returns null if it could not be read.
+    private FileItem toFileItem(Path path) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            return new FileItem(
+                    path,
+                    path.getFileName().toString(),
+                    attrs.isDirectory(),
+                    attrs.isDirectory() ? 0L : attrs.size(),
+                    attrs.lastModifiedTime()
+            );
+        } catch (IOException e) {
+            return null; //Removed meanwhile, or unreadable; listings count these as skipped
+        }
     }
 
     /*
     * Section 5
-    * The actual implementation of CRUD operations
+    * The actual implementation of CRUD operations.
+    * Each one holds the path locks of what it reads (shared) and changes (exclusive) while
+    * it runs; a mapped file is only locked while it is opened, it reads later on its own.
     * */
     @Override
     public String readFile(Path file) throws IOException {
         Path safeFile = ensureUnderRoot(file);
-        return Files.readString(safeFile);
+        PathLockManager.Hold hold = locks.lockShared(safeFile);
+        try {
+            return Files.readString(safeFile);
+        } finally {
+            hold.close();
+        }
+    }
+
+    @Override
+    public MappedTextFile openMappedFile(Path file) throws IOException {
+        Path safeFile = ensureUnderRoot(file);
+        PathLockManager.Hold hold = locks.lockShared(safeFile);
+        try {
+            return MappedTextFile.open(safeFile);
+        } finally {
+            hold.close();
+        }
+    }
+
+    @Override
+    public long transferTo(Path file, long position, long count, WritableByteChannel target) throws IOException {
+        try (FileContent content = openContent(file)) {
+            return content.transferTo(position, count, target);
+        }
+    }
+
+    @Override
+    public FileContent openContent(Path file) throws IOException {
+        Path safeFile = ensureUnderRoot(file);
+        //Locked only to open: the channel then keeps this version, whatever replaces it
+        PathLockManager.Hold hold = locks.lockShared(safeFile);
+        try {
+            if (Files.isDirectory(safeFile)) {
+                throw new IOException("Is a directory: " + safeFile);
+            }
+            FileChannel channel = FileChannel.open(safeFile, StandardOpenOption.READ);
+            try {
+                return new ChannelContent(channel, channel.size());
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        } finally {
+            hold.close();
+        }
+    }
+
+    //An open file; its size is taken once, so later growth by a patch is not sent
+    private static final class ChannelContent implements FileContent {
+
+        private final FileChannel channel;
+        private final long size;
+
+        ChannelContent(FileChannel channel, long size) {
+            this.channel = channel;
+            this.size = size;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            long remaining = Math.min(count, Math.max(0, size - position));
+            long sent = 0;
+            while (sent < remaining) {
+                long n = channel.transferTo(position + sent, remaining - sent, target);
+                if (n <= 0) {
+                    break; //Shrunk meanwhile
+                }
+                sent += n;
+            }
+            return sent;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    @Override
+    public LineIndex getLineIndex(MappedTextFile file) {
+        LineIndexKey key = new LineIndexKey(file.getPath(), file.getLastModifiedTime(), file.size());
+        synchronized (lineIndexes) {
+            LineIndex index = lineIndexes.get(key);
+            if (index == null || index.completion().isCompletedExceptionally()) {
+                //Chunks are scanned in parallel on the common pool
+                index = LineIndex.build(file, ForkJoinPool.commonPool());
+                lineIndexes.put(key, index);
+            }
+            return index;
+        }
     }
 
     @Override
     public void writeFile(Path file, String content) throws IOException {
+        writeFile(file, out -> out.write(content), SaveOptions.DEFAULT);
+    }
+
+    @Override
+    public void writeFile(Path file, ContentSource source, SaveOptions options) throws IOException {
         Path safeFile = ensureUnderRoot(file);
-        Files.writeString(safeFile, content);
+        Path parent = safeFile.getParent();
+        if (parent == null) {
+            throw new IOException("Cannot write root path: " + safeFile);
+        }
+
+        PathLockManager.Hold hold = lockForChange(safeFile);
+        try {
+            //Never truncate the target while the source may still be reading it
+            Path temp = createTempSibling(safeFile);
+            try {
+                copyPermissions(safeFile, temp);
+                try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+                     Writer out = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8), WRITE_BUFFER_CHARS)) {
+                    source.writeTo(out);
+                    out.flush();
+                    if (options.isFsync()) {
+                        channel.force(true);
+                    }
+                }
+                moveReplacing(temp, safeFile);
+                if (options.isFsync()) {
+                    forceDirectory(parent);
+                }
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+
+            invalidateParent(safeFile);
+            nameIndex.added(safeFile); //No-op unless the file is new
+            contentIndex.changed(safeFile);
+            directorySizes.changed(safeFile);
+        } finally {
+            hold.close();
+        }
+        fireItemChange(FileChangeEvent.Type.MODIFIED, safeFile);
+    }
+
+    @Override
+    public void patchFile(Path file, List<FileRegion> regions, long newLength, SaveOptions options) throws IOException {
+        Path safeFile = ensureUnderRoot(file);
+        if (!options.isInPlacePatching()) {
+            throw new IOException("In-place patching is disabled for this save: " + safeFile);
+        }
+
+        PathLockManager.Hold hold = lockForChange(safeFile);
+        try (FileChannel channel = FileChannel.open(safeFile, StandardOpenOption.WRITE)) {
+            for (FileRegion region : regions) {
+                ByteBuffer buffer = ByteBuffer.wrap(region.getData());
+                long position = region.getPosition();
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            }
+            if (newLength >= 0 && newLength < channel.size()) {
+                channel.truncate(newLength);
+            }
+            if (options.isFsync()) {
+                channel.force(true);
+            }
+            invalidateParent(safeFile);
+            contentIndex.changed(safeFile);
+            directorySizes.changed(safeFile);
+        } finally {
+            hold.close();
+        }
+        fireItemChange(FileChangeEvent.Type.MODIFIED, safeFile);
+    }
+
+    //Atomic rename when the file system supports it, plain replace otherwise
+    private static void moveReplacing(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /*
+    * An empty file next to file, for writing the new content into. Not Files.createTempFile:
+    * that makes it owner-only (0600) on POSIX, and a new file would keep that once renamed.
+    * Files.createFile gives the same default mode (umask) a plain write would have.
+    * */
+    private Path createTempSibling(Path file) throws IOException {
+        while (true) {
+            Path temp = file.resolveSibling("." + file.getFileName() + "."
+                    + Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36) + ".tmp");
+            expectEchoes(temp);
+            try {
+                return Files.createFile(temp);
+            } catch (FileAlreadyExistsException e) {
+                //Unlucky; another name
+            }
+        }
+    }
+
+    //A replaced file should keep the permissions of the one it replaces
+    private static void copyPermissions(Path from, Path to) {
+        try {
+            Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(from));
+        } catch (IOException | UnsupportedOperationException e) {
+            //New file, or no POSIX permissions on this platform
+        }
+    }
+
+    //Makes the rename itself durable. Not every platform can open a directory for this.
+    private static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException | UnsupportedOperationException e) {
+            //Best effort
+        }
     }
 
     @Override
     public Path createDirectory(Path parentDirectory, String name) throws IOException {
-        Path safeParent = ensureUnderRoot(parentDirectory);
-        Path newDir = safeParent.resolve(name);
-        return Files.createDirectory(newDir);
+        //The name may hold separators or "..": the result must still be in the sandbox, outside the trash
+        Path newDir = ensureUnderRoot(ensureUnderRoot(parentDirectory).resolve(name));
+        Path safeParent = newDir.getParent();
+        Path created;
+        PathLockManager.Hold hold = lockForChange(newDir);
+        try {
+            created = Files.createDirectory(newDir);
+            listingCache.invalidate(safeParent);
+            nameIndex.added(created);
+            directorySizes.changed(created);
+        } finally {
+            hold.close();
+        }
+        fireItemChange(FileChangeEvent.Type.CREATED, created);
+        return created;
     }
 
     @Override
     public Path createFile(Path parentDirectory, String name, String initialContent) throws IOException {
-        Path safeParent = ensureUnderRoot(parentDirectory);
-        Path newFile = safeParent.resolve(name);
-        Path created = Files.createFile(newFile);
+        //The name may hold separators or "..": the result must still be in the sandbox, outside the trash
+        Path newFile = ensureUnderRoot(ensureUnderRoot(parentDirectory).resolve(name));
+        Path safeParent = newFile.getParent();
+        Path created;
+        PathLockManager.Hold hold = lockForChange(newFile);
+        try {
+            created = Files.createFile(newFile);
 
-        if (initialContent != null && !initialContent.isEmpty()){
-            Files.writeString(created, initialContent);
-        }
+            if (initialContent != null && !initialContent.isEmpty()){
+                Files.writeString(created, initialContent);
+            }
 
+            listingCache.invalidate(safeParent);
+            nameIndex.added(created);
+            contentIndex.changed(created);
+            directorySizes.changed(created);
+        } finally {
+            hold.close();
+        }
+        fireItemChange(FileChangeEvent.Type.CREATED, created);
         return created;
     }
 
@@ -127,39 +865,351 @@ public class FileSystemServiceImpl implements FileSystemService {
         }
         Path newPath = parent.resolve(newName).toAbsolutePath().normalize();
         ensureUnderRoot(newPath);
-        return Files.move(safeTarget, newPath);
+        Path moved;
+        PathLockManager.Hold hold = lockForChange(safeTarget, newPath);
+        try {
+            moved = Files.move(safeTarget, newPath);
+            listingCache.invalidate(parent);
+            listingCache.invalidateTree(safeTarget);
+            nameIndex.renamed(safeTarget, moved);
+            contentIndex.renamed(safeTarget, moved);
+            directorySizes.renamed(safeTarget, moved);
+        } finally {
+            hold.close();
+        }
+
+        FileItem item = toFileItem(moved);
+        if (item != null) {
+            fireChange(FileChangeEvent.renamed(safeTarget, item));
+        }
+        return moved;
     }
 
     /*
-    * Section 6
-    * Recursive directory deletion.
-    * Contents are deleted before removing the directory.
+    * Batches: the operations are taken off a shared counter by up to parallelism tasks
+    * on the operation pool. Each one goes through the same method as a single call,
+    * only its events are kept and fired together at the end.
     * */
     @Override
-    public void delete(Path target) throws IOException {
-        Path safeTarget = ensureUnderRoot(target);
+    public List<BatchResult> runBatch(List<BatchOperation> operations, int parallelism) throws IOException {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        //Nothing runs unless every path is inside the sandbox
+        for (BatchOperation operation : operations) {
+            for (Path path : operation.affectedPaths()) {
+                ensureUnderRoot(path);
+            }
+        }
 
-        if (Files.isDirectory(safeTarget)) {
-            //Recursively delete directory contents first
-            try (var walk = Files.walk(safeTarget)) {
-                walk
-                        // delete children before parents
-                        .sorted((p1, p2) -> p2.getNameCount() - p1.getNameCount())
-                        .forEach(path -> {
-                            try {
-                                Files.delete(path);
-                            } catch (IOException e) {
-                                throw new RuntimeException(e);
-                            }
-                        });
-            } catch (RuntimeException e) {
-                if (e.getCause() instanceof IOException io) {
-                    throw io;
+        BatchResult[] results = new BatchResult[operations.size()];
+        List<List<FileChangeEvent>> eventsByOperation = new ArrayList<>(Collections.nCopies(results.length, null));
+        AtomicInteger next = new AtomicInteger();
+        Runnable worker = () -> {
+            for (int i = next.getAndIncrement(); i < results.length; i = next.getAndIncrement()) {
+                List<FileChangeEvent> events = new ArrayList<>(1);
+                batchEvents.set(events);
+                try {
+                    results[i] = runOperation(operations.get(i));
+                } finally {
+                    batchEvents.remove();
                 }
-                throw e;
+                eventsByOperation.set(i, events);
             }
+        };
+
+        int workers = Math.min(parallelism, results.length);
+        if (workers <= 1) {
+            worker.run();
         } else {
-            Files.delete(safeTarget);
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (int i = 0; i < workers; i++) {
+                tasks.add(fileOperationPool.submit(worker));
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        }
+
+        List<FileChangeEvent> changes = new ArrayList<>();
+        for (List<FileChangeEvent> events : eventsByOperation) {
+            changes.addAll(events);
+        }
+        if (!changes.isEmpty()) {
+            fireChange(FileChangeEvent.batch(changes));
+        }
+        return List.of(results);
+    }
+
+    private BatchResult runOperation(BatchOperation operation) {
+        try {
+            return switch (operation.getType()) {
+                case CREATE_FILE -> new BatchResult(operation,
+                        createFile(operation.getPath(), operation.getName(), operation.getContent()), null, null);
+                case CREATE_DIRECTORY -> new BatchResult(operation,
+                        createDirectory(operation.getPath(), operation.getName()), null, null);
+                case WRITE -> {
+                    String content = operation.getContent();
+                    writeFile(operation.getPath(), content != null ? content : "");
+                    yield new BatchResult(operation, ensureUnderRoot(operation.getPath()), null, null);
+                }
+                case RENAME -> new BatchResult(operation,
+                        rename(operation.getPath(), operation.getName()), null, null);
+                case DELETE -> new BatchResult(operation,
+                        ensureUnderRoot(operation.getPath()), delete(operation.getPath()), null);
+            };
+        } catch (IOException e) {
+            return new BatchResult(operation, null, null, e);
+        } catch (RuntimeException e) {
+            //E.g. a name that is not a valid path on this platform
+            return new BatchResult(operation, null, null, new IOException(e.getMessage(), e));
+        }
+    }
+
+    /*
+    * Copy and move into another directory, keeping the name.
+    * Both merge into an existing target of the same name, which is what lets a copy
+    * that failed or was cancelled part way be run again to finish it.
+    * */
+    @Override
+    public Path copy(Path source, Path targetDirectory, OperationProgress progress) throws IOException {
+        Path safeSource = ensureUnderRoot(source);
+        List<FileChangeEvent> events = new ArrayList<>(1);
+        try {
+            PathLockManager.Hold hold = lockForTransfer(safeSource, targetDirectory, false);
+            try {
+                Path target = resolveTarget(safeSource, targetDirectory);
+                copyTree(safeSource, target, progress, events);
+                return target;
+            } finally {
+                hold.close();
+            }
+        } finally {
+            fireAll(events);
+        }
+    }
+
+    @Override
+    public Path move(Path source, Path targetDirectory, OperationProgress progress) throws IOException {
+        Path safeSource = ensureUnderRoot(source);
+        List<FileChangeEvent> events = new ArrayList<>(2);
+        try {
+            PathLockManager.Hold hold = lockForTransfer(safeSource, targetDirectory, true);
+            try {
+                return moveLocked(safeSource, resolveTarget(safeSource, targetDirectory), progress, events);
+            } finally {
+                hold.close();
+            }
+        } finally {
+            fireAll(events);
+        }
+    }
+
+    //The source shared for a copy and exclusive for a move, the target exclusive
+    private PathLockManager.Hold lockForTransfer(Path safeSource, Path targetDirectory, boolean move) {
+        Path target = targetDirectory.toAbsolutePath().normalize().resolve(safeSource.getFileName().toString());
+        if (move) {
+            return lockForChange(safeSource, target);
+        }
+        PathLockManager.Hold hold = locks.lock(new Path[]{safeSource}, new Path[]{target});
+        expectEchoes(target);
+        return hold;
+    }
+
+    /*
+    * Under move()'s locks. Listeners must not run while they are held (one calling back into
+    * the service would take stripes out of order), so the events go into events, for move()
+    * to fire once it has let go.
+    * */
+    private Path moveLocked(Path safeSource, Path target, OperationProgress progress,
+                            List<FileChangeEvent> events) throws IOException {
+
+        if (!Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+            try {
+                //One rename, whatever the size of the tree
+                Files.move(safeSource, target, StandardCopyOption.ATOMIC_MOVE);
+                invalidateParent(safeSource);
+                invalidateParent(target);
+                listingCache.invalidateTree(safeSource);
+                nameIndex.renamed(safeSource, target);
+                contentIndex.renamed(safeSource, target);
+                directorySizes.renamed(safeSource, target);
+                FileItem item = toFileItem(target);
+                if (item != null) {
+                    progress.fileDone(target, 0);
+                    events.add(FileChangeEvent.renamed(safeSource, item));
+                }
+                return target;
+            } catch (AtomicMoveNotSupportedException e) {
+                //Another file store: copied below
+            }
+        }
+
+        //The source is only deleted once every part of it has arrived
+        if (copyTree(safeSource, target, progress, events) && !progress.isCancelled()) {
+            OperationProgress deleteProgress = new OperationProgress();
+            events.add(deletePermanentlyLocked(safeSource, deleteProgress));
+            for (OperationFailure failure : deleteProgress.getFailures()) {
+                progress.failed(failure.getPath(), failure.getError());
+            }
+        }
+        return target;
+    }
+
+    private Path resolveTarget(Path safeSource, Path targetDirectory) throws IOException {
+        Path safeDirectory = ensureUnderRoot(targetDirectory);
+        if (safeSource.equals(rootDirectory)) {
+            throw new IOException("The sandbox root cannot be copied or moved");
+        }
+        if (safeDirectory.startsWith(safeSource)) {
+            throw new IOException("Cannot copy or move a folder into itself: " + safeDirectory);
+        }
+        if (!Files.isDirectory(safeDirectory)) {
+            throw new NotDirectoryException(safeDirectory.toString());
+        }
+        Path target = safeDirectory.resolve(safeSource.getFileName().toString());
+        if (target.equals(safeSource)) {
+            throw new IOException("Already in that folder: " + safeSource);
+        }
+        return target;
+    }
+
+    //True if everything was copied; the change to the target goes into events
+    private boolean copyTree(Path safeSource, Path target, OperationProgress progress,
+                             List<FileChangeEvent> events) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(safeSource, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        boolean existed = Files.exists(target, LinkOption.NOFOLLOW_LINKS);
+        long failuresBefore = progress.getFailureCount();
+        try {
+            boolean clean = attrs.isDirectory()
+                    ? fileOperationPool.invoke(new RecursiveCopyTask(safeSource, target, progress))
+                    : RecursiveCopyTask.copyFile(safeSource, target, progress);
+            return clean && progress.getFailureCount() == failuresBefore;
+        } finally {
+            //Even a partial copy changes the listings
+            invalidateParent(target);
+            listingCache.invalidateTree(target);
+            if (existed) {
+                nameIndex.removed(target); //Merged: new entries anywhere below
+                nameIndex.added(target);
+                directorySizes.refresh(target);
+            } else {
+                nameIndex.added(target);
+                directorySizes.changed(target);
+            }
+            contentIndex.changed(target);
+            events.add(itemChange(existed ? FileChangeEvent.Type.MODIFIED : FileChangeEvent.Type.CREATED, target));
+        }
+    }
+
+    /*
+    * Section 6
+    * Deletion.
+    * delete() moves the item to the trash with one rename; the trash purges old
+    * items in the background. deletePermanently() removes a tree right away,
+    * contents before the directory.
+    * */
+    @Override
+    public TrashEntry delete(Path target) throws IOException {
+        Path safeTarget = ensureDeletable(target);
+        TrashEntry entry;
+        PathLockManager.Hold hold = lockForChange(safeTarget);
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(safeTarget, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            try {
+                entry = trash.moveIn(safeTarget, attrs.isDirectory());
+            } catch (AtomicMoveNotSupportedException e) {
+                throw new IOException("Cannot move to trash from another file system, delete it permanently instead: "
+                        + safeTarget, e);
+            } finally {
+                invalidateParent(safeTarget);
+                listingCache.invalidateTree(safeTarget);
+            }
+            nameIndex.removed(safeTarget);
+            contentIndex.removed(safeTarget);
+            directorySizes.removed(safeTarget);
+        } finally {
+            hold.close();
+        }
+        fireChange(FileChangeEvent.deleted(safeTarget));
+        return entry;
+    }
+
+    @Override
+    public void deletePermanently(Path target, OperationProgress progress) throws IOException {
+        Path safeTarget = ensureDeletable(target);
+        List<FileChangeEvent> events = new ArrayList<>(1);
+        try {
+            //Nothing can be created below the target while the walk runs
+            PathLockManager.Hold hold = lockForChange(safeTarget);
+            try {
+                events.add(deletePermanentlyLocked(safeTarget, progress));
+            } finally {
+                hold.close();
+            }
+        } finally {
+            fireAll(events);
+        }
+    }
+
+    //The event to fire once the lock on safeTarget is released: DELETED, or MODIFIED if some of it is left
+    private FileChangeEvent deletePermanentlyLocked(Path safeTarget, OperationProgress progress) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(safeTarget, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        try {
+            if (attrs.isDirectory()) {
+                //Subdirectories are deleted in parallel on the pool
+                fileOperationPool.invoke(new RecursiveDeleteTask(safeTarget, progress));
+            } else {
+                RecursiveDeleteTask.deleteEntry(safeTarget, attrs, progress);
+            }
+        } finally {
+            //Even a partial delete changes the listings; the index keeps whatever is left
+            invalidateParent(safeTarget);
+            listingCache.invalidateTree(safeTarget);
+            nameIndex.removed(safeTarget);
+            nameIndex.added(safeTarget);
+            contentIndex.changed(safeTarget);
+            directorySizes.refresh(safeTarget);
+        }
+        return Files.notExists(safeTarget, LinkOption.NOFOLLOW_LINKS)
+                ? FileChangeEvent.deleted(safeTarget)
+                : itemChange(FileChangeEvent.Type.MODIFIED, safeTarget);
+    }
+
+    @Override
+    public List<TrashEntry> listTrash() {
+        return trash.list();
+    }
+
+    @Override
+    public Path restore(TrashEntry entry) throws IOException {
+        Path original = ensureUnderRoot(entry.getOriginalPath());
+        Path restored;
+        PathLockManager.Hold hold = lockForChange(original);
+        try {
+            restored = trash.restore(entry);
+            invalidateParent(original);
+            listingCache.invalidateTree(original);
+            nameIndex.added(restored);
+            contentIndex.changed(restored);
+            directorySizes.changed(restored);
+        } finally {
+            hold.close();
+        }
+        fireItemChange(FileChangeEvent.Type.CREATED, restored);
+        return restored;
+    }
+
+    @Override
+    public void emptyTrash() {
+        trash.empty();
+    }
+
+    private Path ensureDeletable(Path target) throws IOException {
+        Path safeTarget = ensureUnderRoot(target);
+        if (safeTarget.equals(rootDirectory)) {
+            throw new IOException("The sandbox root cannot be deleted");
         }
+        return safeTarget;
     }
 }
@@ -0,0 +1,107 @@
+package org.logannelson.filesystem.service;
+//Searches the files of one directory tree, forking subtasks for subdirectories and batches of files.
+import org.logannelson.filesystem.model.SearchResult;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+/*
+* Walks like RecursiveDeleteTask: subdirectories go to subtasks that other pool
+* threads can steal, and the files of a directory are handed out in batches of
+* FILE_BATCH, so one large directory still keeps every thread busy.
+* Nothing collects the whole tree; each task holds its open DirectoryStream,
+* at most FORK_BATCH pending subtasks and one batch of paths.
+* Links are not followed.
+* */
+final class FolderSearchTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int FORK_BATCH = 64;
+    private static final int FILE_BATCH = 16;
+
+    private final Path directory;
+    private final Path excluded;
+    private final FileScanner scanner;
+    private final Consumer<SearchResult> listener;
+    private final OperationProgress progress;
+
+    FolderSearchTask(Path directory, Path excluded, FileScanner scanner,
+                     Consumer<SearchResult> listener, OperationProgress progress) {
+        this.directory = directory;
+        this.excluded = excluded;
+        this.scanner = scanner;
+        this.listener = listener;
+        this.progress = progress;
+    }
+
+    @Override
+    protected void compute() {
+        List<ForkJoinTask<?>> subtasks = new ArrayList<>();
+        List<Path> files = new ArrayList<>();
+
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                if (progress.isCancelled()) {
+                    break;
+                }
+
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (NoSuchFileException e) {
+                    continue; //Already gone
+                } catch (IOException e) {
+                    progress.failed(entry, e);
+                    continue;
+                }
+
+                if (attrs.isDirectory()) {
+                    if (!entry.equals(excluded)) {
+                        subtasks.add(new FolderSearchTask(entry, excluded, scanner, listener, progress));
+                    }
+                } else if (attrs.isRegularFile()) {
+                    files.add(entry);
+                    if (files.size() == FILE_BATCH) {
+                        List<Path> batch = files;
+                        subtasks.add(ForkJoinTask.adapt(() -> scanAll(batch)));
+                        files = new ArrayList<>();
+                    }
+                }
+                if (subtasks.size() == FORK_BATCH) {
+                    invokeAll(subtasks);
+                    subtasks.clear();
+                }
+            }
+        } catch (IOException e) {
+            progress.failed(directory, e);
+        } catch (DirectoryIteratorException e) {
+            progress.failed(directory, e.getCause());
+        }
+
+        invokeAll(subtasks);
+        scanAll(files);
+        progress.directoryDone(directory);
+    }
+
+    private void scanAll(List<Path> files) {
+        for (Path file : files) {
+            progress.checkpoint();
+            if (progress.isCancelled()) {
+                return;
+            }
+            scanner.scan(file, listener, progress);
+        }
+    }
+}
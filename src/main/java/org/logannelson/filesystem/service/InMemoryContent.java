@@ -0,0 +1,201 @@
+package org.logannelson.filesystem.service;
+//Immutable bytes of one file of the in-memory backend, kept off the heap.
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+* The bytes live in direct buffers, laid out in MappedTextFile's segments, so a file can
+* be opened as a MappedTextFile without copying and a large one costs the GC nothing.
+* Content never changes once built: a write builds new content and swaps it in, so readers
+* and open views keep seeing the old bytes, and a copied file simply shares them.
+* Direct memory is capped by -XX:MaxDirectMemorySize (by default the heap size).
+* */
+final class InMemoryContent {
+
+    static final InMemoryContent EMPTY = new InMemoryContent(new ByteBuffer[0], 0);
+
+    private static final int FIRST_BUFFER_BYTES = 4 * 1024;
+
+    private final ByteBuffer[] segments;
+    private final long size;
+
+    private InMemoryContent(ByteBuffer[] segments, long size) {
+        this.segments = segments;
+        this.size = size;
+    }
+
+    static InMemoryContent of(byte[] bytes) {
+        ByteBuffer[] segments = allocate(bytes.length);
+        put(segments, 0, bytes, bytes.length);
+        return new InMemoryContent(segments, bytes.length);
+    }
+
+    long size() {
+        return size;
+    }
+
+    //A read-only view; each one has its own positions, so any number can be open at once
+    MappedTextFile open(Path path, FileTime lastModifiedTime) {
+        ByteBuffer[] views = new ByteBuffer[segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            views[i] = segments[i].asReadOnlyBuffer();
+        }
+        return MappedTextFile.wrap(path, size, lastModifiedTime, views);
+    }
+
+    //Writes straight from the direct buffers, so the channel needs no copy of its own
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        long end = position + Math.min(count, Math.max(0, size - position));
+        long sent = 0;
+        while (position + sent < end) {
+            long at = position + sent;
+            ByteBuffer segment = segments[(int) (at >>> MappedTextFile.SEGMENT_SHIFT)];
+            int inSegment = (int) (at & MappedTextFile.SEGMENT_MASK);
+            ByteBuffer window = segment.slice(inSegment, (int) Math.min(segment.limit() - inSegment, end - at));
+            while (window.hasRemaining()) {
+                sent += target.write(window);
+            }
+        }
+        return sent;
+    }
+
+    byte[] toByteArray() throws IOException {
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IOException("Too large to read into memory at once: " + size + " bytes");
+        }
+        byte[] bytes = new byte[(int) size];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i].get(0, bytes, (int) ((long) i << MappedTextFile.SEGMENT_SHIFT), segments[i].limit());
+        }
+        return bytes;
+    }
+
+    //Strictly UTF-8 like Files.readString: malformed input is an error, not replaced
+    String decode() throws IOException {
+        return StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT)
+                .decode(ByteBuffer.wrap(toByteArray()))
+                .toString();
+    }
+
+    /*
+    * New content with each region written over this one, growing it where a region ends
+    * past the end, then cut to newLength if that is shorter (-1 to keep the length).
+    * This content is not changed.
+    * */
+    InMemoryContent patched(List<FileRegion> regions, long newLength) {
+        long length = size;
+        for (FileRegion region : regions) {
+            length = Math.max(length, region.getEnd());
+        }
+        if (newLength >= 0 && newLength < length) {
+            length = newLength;
+        }
+        if (regions.isEmpty() && length == size) {
+            return this;
+        }
+
+        //Both sides use the same segment layout, so segment i copies from segment i
+        ByteBuffer[] copy = allocate(length);
+        for (int i = 0; i < copy.length && i < segments.length; i++) {
+            copy[i].put(0, segments[i], 0, Math.min(copy[i].capacity(), segments[i].limit()));
+        }
+        for (FileRegion region : regions) {
+            if (region.getPosition() < length) {
+                byte[] data = region.getData();
+                put(copy, region.getPosition(), data, (int) Math.min(data.length, length - region.getPosition()));
+            }
+        }
+        return new InMemoryContent(copy, length);
+    }
+
+    //Exactly size bytes: full segments, then one for the rest
+    private static ByteBuffer[] allocate(long size) {
+        int count = (int) ((size + MappedTextFile.SEGMENT_SIZE - 1) >>> MappedTextFile.SEGMENT_SHIFT);
+        ByteBuffer[] segments = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long start = (long) i << MappedTextFile.SEGMENT_SHIFT;
+            segments[i] = ByteBuffer.allocateDirect((int) Math.min(MappedTextFile.SEGMENT_SIZE, size - start));
+        }
+        return segments;
+    }
+
+    //The first length bytes of data, at position
+    private static void put(ByteBuffer[] segments, long position, byte[] data, int length) {
+        int offset = 0;
+        while (offset < length) {
+            ByteBuffer segment = segments[(int) (position >>> MappedTextFile.SEGMENT_SHIFT)];
+            int inSegment = (int) (position & MappedTextFile.SEGMENT_MASK);
+            int n = Math.min(length - offset, segment.capacity() - inSegment);
+            segment.put(inSegment, data, offset, n);
+            position += n;
+            offset += n;
+        }
+    }
+
+    /*
+    * Collects written bytes into content of a length not known up front.
+    * The buffer being filled doubles until it is a whole segment, then the next one starts;
+    * build() trims the last one if much of it is unused.
+    * */
+    static final class Builder extends OutputStream {
+        private final List<ByteBuffer> full = new ArrayList<>();
+        private ByteBuffer current = ByteBuffer.allocateDirect(FIRST_BUFFER_BYTES);
+        private long size;
+
+        @Override
+        public void write(int b) {
+            ensureRoom();
+            current.put((byte) b);
+            size++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            while (length > 0) {
+                ensureRoom();
+                int n = Math.min(length, current.remaining());
+                current.put(bytes, offset, n);
+                offset += n;
+                length -= n;
+                size += n;
+            }
+        }
+
+        private void ensureRoom() {
+            if (current.hasRemaining()) {
+                return;
+            }
+            if (current.capacity() == MappedTextFile.SEGMENT_SIZE) {
+                full.add(current.flip());
+                current = ByteBuffer.allocateDirect(FIRST_BUFFER_BYTES);
+            } else {
+                ByteBuffer larger = ByteBuffer.allocateDirect(
+                        (int) Math.min((long) current.capacity() * 2, MappedTextFile.SEGMENT_SIZE));
+                larger.put(current.flip());
+                current = larger;
+            }
+        }
+
+        InMemoryContent build() {
+            ByteBuffer last = current.flip();
+            if (last.limit() < last.capacity() - last.capacity() / 4) {
+                last = ByteBuffer.allocateDirect(last.limit()).put(last).flip();
+            }
+            List<ByteBuffer> segments = new ArrayList<>(full);
+            if (last.limit() > 0) {
+                segments.add(last);
+            }
+            return new InMemoryContent(segments.toArray(new ByteBuffer[0]), size);
+        }
+    }
+}
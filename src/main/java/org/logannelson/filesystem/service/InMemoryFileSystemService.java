@@ -0,0 +1,1251 @@
+package org.logannelson.filesystem.service;
+//FileSystemService on a tree held in memory: nothing below the root ever touches the disk.
+import org.logannelson.filesystem.model.DirectorySize;
+import org.logannelson.filesystem.model.DirectorySnapshot;
+import org.logannelson.filesystem.model.FileChangeEvent;
+import org.logannelson.filesystem.model.FileItem;
+import org.logannelson.filesystem.model.SearchResult;
+import org.logannelson.filesystem.model.TrashEntry;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/*
+* Section 1
+* Directories are ConcurrentHashMaps from name to node; files hold immutable off-heap
+* content (InMemoryContent) that a write replaces as a whole, like the disk backend's
+* temp file and rename.
+*
+* Reads never lock: each map is always consistent on its own. Changes inside one
+* directory or one file (create, write, patch, copy) run in parallel on the read side of
+* structureLock; changes that take a node from one place to another (rename, move,
+* delete, restore) take the write side, so nobody sees a node in two places or writes
+* into a folder that is being moved. Every change also takes its paths in the
+* PathLockManager first, as on disk: structureLock only keeps single calls apart, and a
+* caller holding a path shared across several calls (its size, then its text) must not
+* see a write land in between. Events are fired after both.
+*
+* Every directory keeps the recursive totals of what is below it, updated with each change,
+* and its listing as a snapshot built on first use after a change, so getDirectorySize and
+* repeated listings are lookups. findByName, searchContent and searchInFolder walk the tree
+* instead of keeping indexes. There is no watcher: nothing else can change this tree.
+*
+* The root has the same path as the disk backend's by default, so paths look alike either
+* way; everything is gone when the JVM exits.
+* */
+public class InMemoryFileSystemService implements FileSystemService {
+
+    private static final int TRASH_MAX_ENTRIES = 1000;
+    private static final long TRASH_MAX_BYTES = Long.getLong("fms.trashMaxBytes", 2L * 1024 * 1024 * 1024);
+    private static final int WRITE_BUFFER_CHARS = 64 * 1024;
+
+    //How often snapshotDirectory hands out what it has read so far
+    private static final long PARTIAL_SNAPSHOT_NANOS = 50_000_000L; //50 ms
+
+    private final Path rootDirectory;
+    private final DirectoryNode root = new DirectoryNode(null, now());
+    private final ReentrantReadWriteLock structureLock = new ReentrantReadWriteLock();
+    private final PathLockManager locks;
+
+    private final List<FileChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+
+    //Set on threads running a batch operation: its events are collected instead of fired
+    private final ThreadLocal<List<FileChangeEvent>> batchEvents = new ThreadLocal<>();
+
+    //Deleted nodes, oldest first, guarded by itself
+    private final LinkedHashMap<String, Trashed> trash = new LinkedHashMap<>();
+    private final AtomicInteger trashIds = new AtomicInteger();
+    private long trashBytes;
+
+    //No device to protect, so more bulk jobs may run side by side than on a disk
+    private final OperationScheduler scheduler =
+            new OperationScheduler(Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    //searchContent has no index; these time its walks the same way
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong totalQueryNanos = new AtomicLong();
+    private volatile long lastQueryNanos;
+
+    //Line indexes of recently viewed large files, keyed by path + mtime + size
+    private static final int MAX_CACHED_LINE_INDEXES = 4;
+    private record LineIndexKey(Path path, FileTime lastModifiedTime, long size) { }
+    private final Map<LineIndexKey, LineIndex> lineIndexes = new LinkedHashMap<>(8, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<LineIndexKey, LineIndex> eldest) {
+            return size() > MAX_CACHED_LINE_INDEXES;
+        }
+    };
+
+    /*
+    * Section 2
+    * The tree
+    * */
+    private abstract static class Node {
+        volatile DirectoryNode parent; //null for the root and for anything in the trash
+    }
+
+    //Content and time change together, so a reader never sees one without the other
+    private record FileState(InMemoryContent content, FileTime lastModifiedTime) { }
+
+    private static final class FileNode extends Node {
+        volatile FileState state;
+
+        FileNode(DirectoryNode parent, FileState state) {
+            this.parent = parent;
+            this.state = state;
+        }
+
+        //Returns the state it replaced
+        synchronized FileState replace(FileState newState) {
+            FileState previous = state;
+            state = newState;
+            return previous;
+        }
+    }
+
+    private static final class DirectoryNode extends Node {
+        final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap<>();
+        volatile FileTime lastModifiedTime;
+
+        //Everything below, not counting the directory itself
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong files = new AtomicLong();
+        final AtomicLong directories = new AtomicLong();
+
+        private final AtomicLong version = new AtomicLong();
+        private volatile DirectorySnapshot snapshot;
+
+        DirectoryNode(DirectoryNode parent, FileTime lastModifiedTime) {
+            this.parent = parent;
+            this.lastModifiedTime = lastModifiedTime;
+        }
+
+        //After any change to the entries, so the next listing is built again
+        void changed() {
+            version.incrementAndGet();
+            snapshot = null;
+        }
+
+        //Moved nodes keep their snapshot, so its path is checked too
+        DirectorySnapshot cachedSnapshot(Path path) {
+            DirectorySnapshot cached = snapshot;
+            return cached != null && cached.getDirectory().equals(path) ? cached : null;
+        }
+
+        //Kept unless something changed since readVersion; a change racing this only costs a rebuild
+        void cache(DirectorySnapshot built, long readVersion) {
+            snapshot = built;
+            if (version.get() != readVersion) {
+                snapshot = null;
+            }
+        }
+    }
+
+    private record Trashed(TrashEntry entry, Node node, long bytes) { }
+
+    public InMemoryFileSystemService() {
+        //Same root as the disk backend: <user.home>/FileSystemSandbox
+        this(Path.of(System.getProperty("user.home"), "FileSystemSandbox"));
+    }
+
+    public InMemoryFileSystemService(Path rootDirectory) {
+        this.rootDirectory = rootDirectory.toAbsolutePath().normalize();
+        this.locks = new PathLockManager(this.rootDirectory);
+    }
+
+    /*
+    * Section 3
+    * Paths to nodes
+    * */
+    private Path ensureUnderRoot(Path path) throws IOException {
+        Path normalizedPath = path.toAbsolutePath().normalize();
+        if (!normalizedPath.startsWith(rootDirectory)) {
+            throw new IOException("Operation outside sandbox is not allowed: " + normalizedPath);
+        }
+        return normalizedPath;
+    }
+
+    private Path ensureDeletable(Path target) throws IOException {
+        Path safeTarget = ensureUnderRoot(target);
+        if (safeTarget.equals(rootDirectory)) {
+            throw new IOException("The sandbox root cannot be deleted");
+        }
+        return safeTarget;
+    }
+
+    //The node at a path already checked by ensureUnderRoot
+    private Node lookup(Path safePath) throws IOException {
+        Node node = root;
+        for (Path name : rootDirectory.relativize(safePath)) {
+            if (name.toString().isEmpty()) {
+                continue; //The root itself
+            }
+            if (!(node instanceof DirectoryNode directory)) {
+                throw new NotDirectoryException(safePath.toString());
+            }
+            node = directory.children.get(name.toString());
+            if (node == null) {
+                throw new NoSuchFileException(safePath.toString());
+            }
+        }
+        return node;
+    }
+
+    private DirectoryNode lookupDirectory(Path safePath) throws IOException {
+        if (lookup(safePath) instanceof DirectoryNode directory) {
+            return directory;
+        }
+        throw new NotDirectoryException(safePath.toString());
+    }
+
+    private FileNode lookupFile(Path safePath) throws IOException {
+        if (lookup(safePath) instanceof FileNode file) {
+            return file;
+        }
+        throw new IOException("Is a directory: " + safePath);
+    }
+
+    private static FileItem toFileItem(Path path, Node node) {
+        Path name = path.getFileName();
+        String text = name != null ? name.toString() : path.toString();
+        if (node instanceof FileNode file) {
+            FileState state = file.state;
+            return new FileItem(path, text, false, state.content().size(), state.lastModifiedTime());
+        }
+        return new FileItem(path, text, true, 0L, ((DirectoryNode) node).lastModifiedTime);
+    }
+
+    //null if the path is gone again
+    private FileItem toFileItem(Path path) {
+        try {
+            return toFileItem(path, lookup(path));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static FileTime now() {
+        return FileTime.from(Instant.now());
+    }
+
+    /*
+    * Section 4
+    * Structure changes. attach and detach keep the totals of every directory above the
+    * node current; callers hold structureLock (either side for attach into one directory,
+    * the write side whenever a node leaves its place).
+    * */
+    private static void attach(DirectoryNode parent, String name, Node node) throws FileAlreadyExistsException {
+        node.parent = parent;
+        if (parent.children.putIfAbsent(name, node) != null) {
+            node.parent = null;
+            throw new FileAlreadyExistsException(name);
+        }
+        addTotals(parent, node, 1);
+        parent.lastModifiedTime = now();
+        parent.changed();
+    }
+
+    private static void detach(DirectoryNode parent, String name, Node node) {
+        if (parent.children.remove(name, node)) {
+            addTotals(parent, node, -1);
+            parent.lastModifiedTime = now();
+            parent.changed();
+            node.parent = null;
+        }
+    }
+
+    //Adds (sign 1) or removes (-1) what node counts for, in parent and every directory above it
+    private static void addTotals(DirectoryNode parent, Node node, int sign) {
+        long bytes;
+        long files;
+        long directories;
+        if (node instanceof FileNode file) {
+            bytes = file.state.content().size();
+            files = 1;
+            directories = 0;
+        } else {
+            DirectoryNode directory = (DirectoryNode) node;
+            bytes = directory.bytes.get();
+            files = directory.files.get();
+            directories = directory.directories.get() + 1;
+        }
+        for (DirectoryNode d = parent; d != null; d = d.parent) {
+            d.bytes.addAndGet(sign * bytes);
+            d.files.addAndGet(sign * files);
+            d.directories.addAndGet(sign * directories);
+        }
+    }
+
+    //A file's new content: its size difference goes up the tree, its listing entry changes
+    private static void replaceContent(FileNode file, FileState state) {
+        FileState previous = file.replace(state);
+        long delta = state.content().size() - previous.content().size();
+        DirectoryNode parent = file.parent;
+        for (DirectoryNode d = parent; d != null && delta != 0; d = d.parent) {
+            d.bytes.addAndGet(delta);
+        }
+        if (parent != null) {
+            parent.changed();
+        }
+    }
+
+    /*
+    * Section 5
+    * Listing
+    * */
+    @Override
+    public Path getStartDirectory() {
+        return rootDirectory;
+    }
+
+    @Override
+    public List<FileItem> listDirectory(Path directory) throws IOException {
+        return snapshotDirectory(directory, null).asList();
+    }
+
+    @Override
+    public DirectorySnapshot snapshotDirectory(Path directory, Predicate<DirectorySnapshot> partialListener)
+            throws IOException {
+        Path dir = ensureUnderRoot(directory);
+        DirectoryNode node = lookupDirectory(dir);
+        DirectorySnapshot cached = node.cachedSnapshot(dir);
+        if (cached != null) {
+            return cached;
+        }
+
+        long version = node.version.get();
+        DirectorySnapshot.Builder builder = new DirectorySnapshot.Builder(dir);
+        long lastPartial = System.nanoTime();
+        for (Map.Entry<String, Node> entry : node.children.entrySet()) {
+            if (entry.getValue() instanceof FileNode file) {
+                FileState state = file.state;
+                builder.add(entry.getKey(), false, state.content().size(), state.lastModifiedTime().toMillis());
+            } else {
+                builder.add(entry.getKey(), true, 0L, ((DirectoryNode) entry.getValue()).lastModifiedTime.toMillis());
+            }
+
+            if (partialListener != null && System.nanoTime() - lastPartial >= PARTIAL_SNAPSHOT_NANOS) {
+                lastPartial = System.nanoTime();
+                if (!partialListener.test(builder.snapshot())) {
+                    return builder.snapshot(); //Stopped early: not complete, so not cached
+                }
+            }
+        }
+
+        DirectorySnapshot snapshot = builder.build();
+        node.cache(snapshot, version);
+        return snapshot;
+    }
+
+    @Override
+    public Stream<FileItem> streamDirectory(Path directory) throws IOException {
+        return snapshotDirectory(directory, null).asList().stream();
+    }
+
+    @Override
+    public DirectoryCursor openDirectory(Path directory) throws IOException {
+        Path dir = ensureUnderRoot(directory);
+        DirectoryNode node = lookupDirectory(dir);
+        //The map's own iterator: weakly consistent, and nothing is copied up front
+        Iterator<String> names = node.children.keySet().iterator();
+        DirectoryStream<Path> entries = new DirectoryStream<>() {
+            @Override
+            public Iterator<Path> iterator() {
+                return new Iterator<>() {
+                    @Override
+                    public boolean hasNext() {
+                        return names.hasNext();
+                    }
+
+                    @Override
+                    public Path next() {
+                        return dir.resolve(names.next());
+                    }
+                };
+            }
+
+            @Override
+            public void close() {
+                //Nothing to release
+            }
+        };
+        return new DirectoryCursor(entries, this::toFileItem);
+    }
+
+    @Override
+    public List<FileItem> listDirectory(Path directory, int offset, int limit) throws IOException {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("offset and limit must be non-negative");
+        }
+        DirectorySnapshot snapshot = snapshotDirectory(directory, null);
+        int from = Math.min(offset, snapshot.size());
+        int to = (int) Math.min((long) from + limit, snapshot.size());
+        return new ArrayList<>(snapshot.asList().subList(from, to));
+    }
+
+    @Override
+    public FileItem getItem(Path path) throws IOException {
+        Path safePath = ensureUnderRoot(path);
+        return toFileItem(safePath, lookup(safePath));
+    }
+
+    /*
+    * Section 6
+    * File contents
+    * */
+    @Override
+    public String readFile(Path file) throws IOException {
+        return lookupFile(ensureUnderRoot(file)).state.content().decode();
+    }
+
+    @Override
+    public MappedTextFile openMappedFile(Path file) throws IOException {
+        Path safeFile = ensureUnderRoot(file);
+        FileState state = lookupFile(safeFile).state;
+        return state.content().open(safeFile, state.lastModifiedTime());
+    }
+
+    @Override
+    public long transferTo(Path file, long position, long count, WritableByteChannel target) throws IOException {
+        return lookupFile(ensureUnderRoot(file)).state.content().transferTo(position, count, target);
+    }
+
+    @Override
+    public FileContent openContent(Path file) throws IOException {
+        //Contents are replaced, never changed in place, so keeping hold of one is the snapshot
+        InMemoryContent content = lookupFile(ensureUnderRoot(file)).state.content();
+        return new FileContent() {
+            @Override
+            public long size() {
+                return content.size();
+            }
+
+            @Override
+            public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+                return content.transferTo(position, count, target);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @Override
+    public LineIndex getLineIndex(MappedTextFile file) {
+        LineIndexKey key = new LineIndexKey(file.getPath(), file.getLastModifiedTime(), file.size());
+        synchronized (lineIndexes) {
+            LineIndex index = lineIndexes.get(key);
+            if (index == null || index.completion().isCompletedExceptionally()) {
+                index = LineIndex.build(file, ForkJoinPool.commonPool());
+                lineIndexes.put(key, index);
+            }
+            return index;
+        }
+    }
+
+    @Override
+    public void writeFile(Path file, String content) throws IOException {
+        writeFile(file, out -> out.write(content), SaveOptions.DEFAULT);
+    }
+
+    //Nothing is durable here, so fsync has nothing to do
+    @Override
+    public void writeFile(Path file, ContentSource source, SaveOptions options) throws IOException {
+        Path safeFile = ensureUnderRoot(file);
+        if (safeFile.equals(rootDirectory)) {
+            throw new IOException("Cannot write root path: " + safeFile);
+        }
+
+        //Encoded before anything changes, so a failing source leaves the file as it was
+        InMemoryContent.Builder bytes = new InMemoryContent.Builder();
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(bytes, StandardCharsets.UTF_8), WRITE_BUFFER_CHARS)) {
+            source.writeTo(out);
+        }
+        FileState state = new FileState(bytes.build(), now());
+
+        PathLockManager.Hold hold = locks.lockExclusive(safeFile);
+        try {
+            structureLock.readLock().lock();
+            try {
+                writeLocked(safeFile, state);
+            } finally {
+                structureLock.readLock().unlock();
+            }
+        } finally {
+            hold.close();
+        }
+        fireItemChange(FileChangeEvent.Type.MODIFIED, safeFile);
+    }
+
+    private void writeLocked(Path safeFile, FileState state) throws IOException {
+        DirectoryNode parent = lookupDirectory(safeFile.getParent());
+        String name = safeFile.getFileName().toString();
+        while (true) {
+            Node existing = parent.children.get(name);
+            if (existing instanceof DirectoryNode) {
+                throw new IOException("Is a directory: " + safeFile);
+            }
+            if (existing instanceof FileNode current) {
+                replaceContent(current, state);
+                return;
+            }
+            try {
+                attach(parent, name, new FileNode(parent, state));
+                return;
+            } catch (FileAlreadyExistsException e) {
+                //Created by someone else meanwhile: replace that one instead
+            }
+        }
+    }
+
+    @Override
+    public void patchFile(Path file, List<FileRegion> regions, long newLength, SaveOptions options) throws IOException {
+        Path safeFile = ensureUnderRoot(file);
+        if (!options.isInPlacePatching()) {
+            throw new IOException("In-place patching is disabled for this save: " + safeFile);
+        }
+
+        PathLockManager.Hold hold = locks.lockExclusive(safeFile);
+        try {
+            structureLock.readLock().lock();
+            try {
+                FileNode node = lookupFile(safeFile);
+                //Concurrent patches of one file must each see the other's bytes
+                synchronized (node) {
+                    replaceContent(node, new FileState(node.state.content().patched(regions, newLength), now()));
+                }
+            } finally {
+                structureLock.readLock().unlock();
+            }
+        } finally {
+            hold.close();
+        }
+        fireItemChange(FileChangeEvent.Type.MODIFIED, safeFile);
+    }
+
+    /*
+    * Section 7
+    * Creating and renaming
+    * */
+    @Override
+    public Path createDirectory(Path parentDirectory, String name) throws IOException {
+        Path created = ensureUnderRoot(ensureUnderRoot(parentDirectory).resolve(name));
+        PathLockManager.Hold hold = locks.lockExclusive(created);
+        try {
+            structureLock.readLock().lock();
+            try {
+                DirectoryNode parent = newEntryParent(created);
+                attach(parent, created.getFileName().toString(), new DirectoryNode(parent, now()));
+            } catch (FileAlreadyExistsException e) {
+                throw new FileAlreadyExistsException(created.toString());
+            } finally {
+                structureLock.readLock().unlock();
+            }
+        } finally {
+            hold.close();
+        }
+        fireItemChange(FileChangeEvent.Type.CREATED, created);
+        return created;
+    }
+
+    @Override
+    public Path createFile(Path parentDirectory, String name, String initialContent) throws IOException {
+        Path created = ensureUnderRoot(ensureUnderRoot(parentDirectory).resolve(name));
+        InMemoryContent content = initialContent == null || initialContent.isEmpty()
+                ? InMemoryContent.EMPTY
+                : InMemoryContent.of(initialContent.getBytes(StandardCharsets.UTF_8));
+        PathLockManager.Hold hold = locks.lockExclusive(created);
+        try {
+            structureLock.readLock().lock();
+            try {
+                DirectoryNode parent = newEntryParent(created);
+                attach(parent, created.getFileName().toString(), new FileNode(parent, new FileState(content, now())));
+            } catch (FileAlreadyExistsException e) {
+                throw new FileAlreadyExistsException(created.toString());
+            } finally {
+                structureLock.readLock().unlock();
+            }
+        } finally {
+            hold.close();
+        }
+        fireItemChange(FileChangeEvent.Type.CREATED, created);
+        return created;
+    }
+
+    private DirectoryNode newEntryParent(Path created) throws IOException {
+        if (created.equals(rootDirectory)) {
+            throw new FileAlreadyExistsException(created.toString());
+        }
+        return lookupDirectory(created.getParent());
+    }
+
+    @Override
+    public Path rename(Path target, String newName) throws IOException {
+        Path safeTarget = ensureUnderRoot(target);
+        if (safeTarget.equals(rootDirectory)) {
+            throw new IOException("Cannot rename root path: " + safeTarget);
+        }
+        Path newPath = ensureUnderRoot(safeTarget.getParent().resolve(newName));
+        if (newPath.equals(safeTarget)) {
+            return safeTarget;
+        }
+        if (newPath.startsWith(safeTarget)) {
+            throw new IOException("Cannot move a folder into itself: " + newPath);
+        }
+
+        PathLockManager.Hold hold = locks.lockExclusive(safeTarget, newPath);
+        try {
+            structureLock.writeLock().lock();
+            try {
+                Node node = lookup(safeTarget);
+                DirectoryNode newParent = lookupDirectory(newPath.getParent());
+                if (newParent.children.containsKey(newPath.getFileName().toString())) {
+                    throw new FileAlreadyExistsException(newPath.toString());
+                }
+                detach(node.parent, safeTarget.getFileName().toString(), node);
+                attach(newParent, newPath.getFileName().toString(), node);
+            } finally {
+                structureLock.writeLock().unlock();
+            }
+        } finally {
+            hold.close();
+        }
+
+        FileItem item = toFileItem(newPath);
+        if (item != null) {
+            fireChange(FileChangeEvent.renamed(safeTarget, item));
+        }
+        return newPath;
+    }
+
+    //Same as the disk backend: up to parallelism workers take operations off a shared counter
+    @Override
+    public List<BatchResult> runBatch(List<BatchOperation> operations, int parallelism) throws IOException {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        //Nothing runs unless every path is inside the sandbox
+        for (BatchOperation operation : operations) {
+            for (Path path : operation.affectedPaths()) {
+                ensureUnderRoot(path);
+            }
+        }
+
+        BatchResult[] results = new BatchResult[operations.size()];
+        List<List<FileChangeEvent>> eventsByOperation = new ArrayList<>(Collections.nCopies(results.length, null));
+        AtomicInteger next = new AtomicInteger();
+        Runnable worker = () -> {
+            for (int i = next.getAndIncrement(); i < results.length; i = next.getAndIncrement()) {
+                List<FileChangeEvent> events = new ArrayList<>(1);
+                batchEvents.set(events);
+                try {
+                    results[i] = runOperation(operations.get(i));
+                } finally {
+                    batchEvents.remove();
+                }
+                eventsByOperation.set(i, events);
+            }
+        };
+
+        int workers = Math.min(parallelism, results.length);
+        if (workers <= 1) {
+            worker.run();
+        } else {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (int i = 0; i < workers; i++) {
+                tasks.add(ForkJoinPool.commonPool().submit(worker));
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        }
+
+        List<FileChangeEvent> changes = new ArrayList<>();
+        for (List<FileChangeEvent> events : eventsByOperation) {
+            changes.addAll(events);
+        }
+        if (!changes.isEmpty()) {
+            fireChange(FileChangeEvent.batch(changes));
+        }
+        return List.of(results);
+    }
+
+    private BatchResult runOperation(BatchOperation operation) {
+        try {
+            return switch (operation.getType()) {
+                case CREATE_FILE -> new BatchResult(operation,
+                        createFile(operation.getPath(), operation.getName(), operation.getContent()), null, null);
+                case CREATE_DIRECTORY -> new BatchResult(operation,
+                        createDirectory(operation.getPath(), operation.getName()), null, null);
+                case WRITE -> {
+                    String content = operation.getContent();
+                    writeFile(operation.getPath(), content != null ? content : "");
+                    yield new BatchResult(operation, ensureUnderRoot(operation.getPath()), null, null);
+                }
+                case RENAME -> new BatchResult(operation,
+                        rename(operation.getPath(), operation.getName()), null, null);
+                case DELETE -> new BatchResult(operation,
+                        ensureUnderRoot(operation.getPath()), delete(operation.getPath()), null);
+            };
+        } catch (IOException e) {
+            return new BatchResult(operation, null, null, e);
+        } catch (RuntimeException e) {
+            //E.g. a name that is not a valid path on this platform
+            return new BatchResult(operation, null, null, new IOException(e.getMessage(), e));
+        }
+    }
+
+    /*
+    * Section 8
+    * Copy and move. A copied file shares its content with the original, so copying costs
+    * one node per entry whatever the sizes. Both merge into an existing target of the same
+    * name, like the disk backend.
+    * */
+    @Override
+    public Path copy(Path source, Path targetDirectory, OperationProgress progress) throws IOException {
+        Path safeSource = ensureUnderRoot(source);
+        Path target;
+        boolean existed;
+        PathLockManager.Hold hold = lockForTransfer(safeSource, targetDirectory, false);
+        try {
+            target = resolveTarget(safeSource, targetDirectory);
+            existed = toFileItem(target) != null;
+            copyTree(lookup(safeSource), safeSource, target, progress);
+        } finally {
+            hold.close();
+        }
+        fireItemChange(existed ? FileChangeEvent.Type.MODIFIED : FileChangeEvent.Type.CREATED, target);
+        return target;
+    }
+
+    @Override
+    public Path move(Path source, Path targetDirectory, OperationProgress progress) throws IOException {
+        Path safeSource = ensureUnderRoot(source);
+        Path target;
+        boolean renamed = false;
+        boolean existed = false;
+        boolean deleted = false;
+        PathLockManager.Hold hold = lockForTransfer(safeSource, targetDirectory, true);
+        try {
+            target = resolveTarget(safeSource, targetDirectory);
+            structureLock.writeLock().lock();
+            try {
+                Node node = lookup(safeSource);
+                DirectoryNode targetParent = lookupDirectory(target.getParent());
+                if (!targetParent.children.containsKey(target.getFileName().toString())) {
+                    //One detach and attach, whatever the size of the tree
+                    detach(node.parent, safeSource.getFileName().toString(), node);
+                    attach(targetParent, target.getFileName().toString(), node);
+                    renamed = true;
+                }
+            } finally {
+                structureLock.writeLock().unlock();
+            }
+
+            //Merging into an existing target: the source is only deleted once every part of it has arrived
+            if (!renamed) {
+                existed = toFileItem(target) != null;
+                boolean clean = copyTree(lookup(safeSource), safeSource, target, progress);
+                if (clean && !progress.isCancelled()) {
+                    OperationProgress deleteProgress = new OperationProgress();
+                    deletePermanentlyLocked(safeSource, deleteProgress);
+                    deleted = true;
+                    for (OperationFailure failure : deleteProgress.getFailures()) {
+                        progress.failed(failure.getPath(), failure.getError());
+                    }
+                }
+            }
+        } finally {
+            hold.close();
+        }
+
+        //Listeners only run once the locks are released
+        if (renamed) {
+            FileItem item = toFileItem(target);
+            if (item != null) {
+                progress.fileDone(target, 0);
+                fireChange(FileChangeEvent.renamed(safeSource, item));
+            }
+            return target;
+        }
+        fireItemChange(existed ? FileChangeEvent.Type.MODIFIED : FileChangeEvent.Type.CREATED, target);
+        if (deleted) {
+            fireChange(FileChangeEvent.deleted(safeSource));
+        }
+        return target;
+    }
+
+    //The source shared for a copy and exclusive for a move, the target exclusive, as on disk
+    private PathLockManager.Hold lockForTransfer(Path safeSource, Path targetDirectory, boolean move) {
+        Path target = targetDirectory.toAbsolutePath().normalize().resolve(safeSource.getFileName().toString());
+        return move
+                ? locks.lockExclusive(safeSource, target)
+                : locks.lock(new Path[]{safeSource}, new Path[]{target});
+    }
+
+    private Path resolveTarget(Path safeSource, Path targetDirectory) throws IOException {
+        Path safeDirectory = ensureUnderRoot(targetDirectory);
+        if (safeSource.equals(rootDirectory)) {
+            throw new IOException("The sandbox root cannot be copied or moved");
+        }
+        if (safeDirectory.startsWith(safeSource)) {
+            throw new IOException("Cannot copy or move a folder into itself: " + safeDirectory);
+        }
+        lookupDirectory(safeDirectory);
+        Path target = safeDirectory.resolve(safeSource.getFileName().toString());
+        if (target.equals(safeSource)) {
+            throw new IOException("Already in that folder: " + safeSource);
+        }
+        return target;
+    }
+
+    /*
+    * Copies one directory's entries at a time under the read lock, then goes down into
+    * its subdirectories. True if everything was copied.
+    * */
+    private boolean copyTree(Node source, Path sourcePath, Path target, OperationProgress progress) {
+        progress.checkpoint();
+        if (progress.isCancelled()) {
+            return false;
+        }
+        List<Map.Entry<String, Node>> children;
+        structureLock.readLock().lock();
+        try {
+            DirectoryNode parent = lookupDirectory(target.getParent());
+            String name = target.getFileName().toString();
+            Node existing = parent.children.get(name);
+            if (source instanceof FileNode file) {
+                FileState state = file.state;
+                if (existing instanceof FileNode current) {
+                    replaceContent(current, state);
+                } else if (existing == null) {
+                    attach(parent, name, new FileNode(parent, state));
+                } else {
+                    throw new FileAlreadyExistsException(target.toString(), null, "A folder is in the way");
+                }
+                progress.fileDone(target, state.content().size());
+                return true;
+            }
+
+            if (existing == null) {
+                attach(parent, name, new DirectoryNode(parent, now()));
+            } else if (existing instanceof FileNode) {
+                throw new FileAlreadyExistsException(target.toString(), null, "A file is in the way");
+            }
+            children = new ArrayList<>(((DirectoryNode) source).children.entrySet());
+        } catch (IOException e) {
+            progress.failed(sourcePath, e);
+            return false;
+        } finally {
+            structureLock.readLock().unlock();
+        }
+
+        progress.directoryDone(target);
+        boolean clean = true;
+        for (Map.Entry<String, Node> child : children) {
+            clean &= copyTree(child.getValue(), sourcePath.resolve(child.getKey()), target.resolve(child.getKey()),
+                    progress);
+        }
+        return clean;
+    }
+
+    /*
+    * Section 9
+    * Deletion. delete() takes the node out of the tree into the trash, which keeps the
+    * newest TRASH_MAX_ENTRIES items up to TRASH_MAX_BYTES; deletePermanently() just lets go of it.
+    * */
+    @Override
+    public TrashEntry delete(Path target) throws IOException {
+        Path safeTarget = ensureDeletable(target);
+        Trashed trashed;
+        PathLockManager.Hold hold = locks.lockExclusive(safeTarget);
+        try {
+            structureLock.writeLock().lock();
+            try {
+                Node node = lookup(safeTarget);
+                DirectoryNode parent = node.parent;
+                long bytes = node instanceof FileNode file
+                        ? file.state.content().size()
+                        : ((DirectoryNode) node).bytes.get();
+                String id = Long.toString(System.currentTimeMillis(), 36) + "-" + Integer.toString(trashIds.incrementAndGet(), 36);
+                trashed = new Trashed(new TrashEntry(id, safeTarget, Instant.now(), node instanceof DirectoryNode), node, bytes);
+                detach(parent, safeTarget.getFileName().toString(), node);
+            } finally {
+                structureLock.writeLock().unlock();
+            }
+        } finally {
+            hold.close();
+        }
+
+        synchronized (trash) {
+            trash.put(trashed.entry().getId(), trashed);
+            trashBytes += trashed.bytes();
+            //Oldest first, but never the item just deleted
+            Iterator<Trashed> oldest = trash.values().iterator();
+            while (trash.size() > 1 && (trash.size() > TRASH_MAX_ENTRIES || trashBytes > TRASH_MAX_BYTES)) {
+                trashBytes -= oldest.next().bytes();
+                oldest.remove();
+            }
+        }
+        fireChange(FileChangeEvent.deleted(safeTarget));
+        return trashed.entry();
+    }
+
+    @Override
+    public void deletePermanently(Path target, OperationProgress progress) throws IOException {
+        Path safeTarget = ensureDeletable(target);
+        PathLockManager.Hold hold = locks.lockExclusive(safeTarget);
+        try {
+            deletePermanentlyLocked(safeTarget, progress);
+        } finally {
+            hold.close();
+        }
+        fireChange(FileChangeEvent.deleted(safeTarget));
+    }
+
+    private void deletePermanentlyLocked(Path safeTarget, OperationProgress progress) throws IOException {
+        Node node;
+        structureLock.writeLock().lock();
+        try {
+            node = lookup(safeTarget);
+            detach(node.parent, safeTarget.getFileName().toString(), node);
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+
+        //Gone in one step; the walk only reports what went with it
+        Deque<Map.Entry<Path, Node>> pending = new ArrayDeque<>();
+        pending.push(Map.entry(safeTarget, node));
+        while (!pending.isEmpty()) {
+            Map.Entry<Path, Node> next = pending.pop();
+            if (next.getValue() instanceof FileNode file) {
+                progress.fileDone(next.getKey(), file.state.content().size());
+            } else {
+                for (Map.Entry<String, Node> child : ((DirectoryNode) next.getValue()).children.entrySet()) {
+                    pending.push(Map.entry(next.getKey().resolve(child.getKey()), child.getValue()));
+                }
+                progress.directoryDone(next.getKey());
+            }
+        }
+    }
+
+    @Override
+    public List<TrashEntry> listTrash() {
+        synchronized (trash) {
+            List<TrashEntry> entries = new ArrayList<>(trash.size());
+            for (Trashed trashed : trash.values()) {
+                entries.add(trashed.entry());
+            }
+            return entries;
+        }
+    }
+
+    @Override
+    public Path restore(TrashEntry entry) throws IOException {
+        Path original = ensureUnderRoot(entry.getOriginalPath());
+        PathLockManager.Hold hold = locks.lockExclusive(original);
+        try {
+            structureLock.writeLock().lock();
+            try {
+                if (toFileItem(original) != null) {
+                    throw new FileAlreadyExistsException(original.toString(), null, "Cannot restore over an existing item");
+                }
+                Trashed trashed;
+                synchronized (trash) {
+                    trashed = trash.get(entry.getId());
+                }
+                if (trashed == null) {
+                    throw new NoSuchFileException(original.toString(), null, "No longer in the trash");
+                }
+                attach(createDirectories(original.getParent()), original.getFileName().toString(), trashed.node());
+                synchronized (trash) {
+                    trash.remove(entry.getId());
+                    trashBytes -= trashed.bytes();
+                }
+            } finally {
+                structureLock.writeLock().unlock();
+            }
+        } finally {
+            hold.close();
+        }
+        fireItemChange(FileChangeEvent.Type.CREATED, original);
+        return original;
+    }
+
+    //Under the write lock: the folders the original sat in may have been deleted since
+    private DirectoryNode createDirectories(Path safeDirectory) throws IOException {
+        DirectoryNode directory = root;
+        for (Path name : rootDirectory.relativize(safeDirectory)) {
+            if (name.toString().isEmpty()) {
+                continue;
+            }
+            Node child = directory.children.get(name.toString());
+            if (child == null) {
+                DirectoryNode created = new DirectoryNode(directory, now());
+                attach(directory, name.toString(), created);
+                child = created;
+            }
+            if (!(child instanceof DirectoryNode next)) {
+                throw new NotDirectoryException(safeDirectory.toString());
+            }
+            directory = next;
+        }
+        return directory;
+    }
+
+    @Override
+    public void emptyTrash() {
+        synchronized (trash) {
+            trash.clear();
+            trashBytes = 0;
+        }
+    }
+
+    /*
+    * Section 10
+    * Searching: walks of the tree, no indexes
+    * */
+    @Override
+    public List<Path> findByName(String pattern, int limit) {
+        String lowerCase = pattern.toLowerCase(Locale.ROOT);
+        Pattern regex = NameIndex.isGlob(lowerCase) ? NameIndex.compileGlob(lowerCase) : null;
+        List<Path> results = new ArrayList<>();
+        walk(rootDirectory, root, (path, node) -> {
+            String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+            if (regex != null ? regex.matcher(name).matches() : name.contains(lowerCase)) {
+                results.add(path);
+            }
+            return results.size() < limit;
+        });
+        return results;
+    }
+
+    @Override
+    public boolean isNameIndexReady() {
+        return true;
+    }
+
+    /*
+    * Files up to the content index's size limit are read and tokenized like the disk
+    * backend's index does, so the same query finds the same files; text is only in memory
+    * anyway, so a walk is what the index would cost to keep current.
+    * */
+    @Override
+    public List<SearchResult> searchContent(String query, int limit) throws IOException {
+        List<ContentIndex.QueryTerm> terms = ContentIndex.parseQuery(query);
+        if (terms.isEmpty()) {
+            return List.of();
+        }
+
+        long start = System.nanoTime();
+        List<SearchResult> results = new ArrayList<>();
+        walk(rootDirectory, root, (path, node) -> {
+            if (node instanceof FileNode file && file.state.content().size() <= ContentIndex.MAX_FILE_BYTES) {
+                try {
+                    byte[] bytes = file.state.content().toByteArray();
+                    if (!ContentIndex.isBinary(bytes)) {
+                        String text = new String(bytes, StandardCharsets.UTF_8);
+                        boolean[] found = new boolean[terms.size()];
+                        ContentIndex.tokenize(text, word -> {
+                            for (int i = 0; i < found.length; i++) {
+                                found[i] |= terms.get(i).matches(word);
+                            }
+                        });
+                        boolean all = true;
+                        for (boolean termFound : found) {
+                            all &= termFound;
+                        }
+                        if (all) {
+                            results.add(new SearchResult(path,
+                                    ContentIndex.matchingLines(new BufferedReader(new StringReader(text)), terms)));
+                        }
+                    }
+                } catch (IOException e) {
+                    //Cannot happen for bytes already in memory
+                }
+            }
+            return results.size() < limit;
+        });
+        long nanos = System.nanoTime() - start;
+        queries.incrementAndGet();
+        totalQueryNanos.addAndGet(nanos);
+        lastQueryNanos = nanos;
+        return results;
+    }
+
+    @Override
+    public void buildContentIndex() {
+        //Nothing to build
+    }
+
+    @Override
+    public ContentIndexStatus getContentIndexStatus() {
+        return new ContentIndexStatus(ContentIndexStatus.State.READY, root.files.get(), 0, 0, 0, 0, 0,
+                queries.get(), totalQueryNanos.get(), lastQueryNanos);
+    }
+
+    //The disk backend's scanner, fed straight from the content; files are scanned in parallel on the common pool
+    @Override
+    public void searchInFolder(Path directory, String pattern, SearchOptions options,
+                               Consumer<SearchResult> matchListener, OperationProgress progress) throws IOException {
+        Path safeDirectory = ensureUnderRoot(directory);
+        FileScanner scanner = FileScanner.create(pattern, options);
+        Node start = lookup(safeDirectory);
+
+        Map<Path, FileState> files = new LinkedHashMap<>();
+        walk(safeDirectory, start, (path, node) -> {
+            progress.checkpoint();
+            if (node instanceof FileNode file) {
+                files.put(path, file.state);
+            } else {
+                progress.directoryDone(path);
+            }
+            return !progress.isCancelled();
+        });
+        files.entrySet().parallelStream().forEach(file -> {
+            if (!progress.isCancelled()) {
+                FileState state = file.getValue();
+                scanner.scan(state.content().open(file.getKey(), state.lastModifiedTime()), matchListener, progress);
+            }
+        });
+    }
+
+    /*
+    * Visits start and everything below it, parents before children, until the visitor
+    * returns false. Lock-free, so a concurrent change may or may not be seen.
+    * */
+    private interface Visitor {
+        boolean visit(Path path, Node node);
+    }
+
+    private static void walk(Path startPath, Node start, Visitor visitor) {
+        Deque<Map.Entry<Path, Node>> pending = new ArrayDeque<>();
+        if (start instanceof DirectoryNode directory) {
+            for (Map.Entry<String, Node> child : directory.children.entrySet()) {
+                pending.push(Map.entry(startPath.resolve(child.getKey()), child.getValue()));
+            }
+        } else {
+            pending.push(Map.entry(startPath, start));
+        }
+        while (!pending.isEmpty()) {
+            Map.Entry<Path, Node> next = pending.pop();
+            if (!visitor.visit(next.getKey(), next.getValue())) {
+                return;
+            }
+            if (next.getValue() instanceof DirectoryNode directory) {
+                for (Map.Entry<String, Node> child : directory.children.entrySet()) {
+                    pending.push(Map.entry(next.getKey().resolve(child.getKey()), child.getValue()));
+                }
+            }
+        }
+    }
+
+    /*
+    * Section 11
+    * Sizes, scheduling and events
+    * */
+    @Override
+    public DirectorySize getDirectorySize(Path directory) throws IOException {
+        DirectoryNode node = lookupDirectory(ensureUnderRoot(directory));
+        return new DirectorySize(node.bytes.get(), node.files.get(), node.directories.get());
+    }
+
+    @Override
+    public DirectorySize getCachedDirectorySize(Path directory) {
+        try {
+            return getDirectorySize(directory);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public long getSkippedEntryCount() {
+        return 0; //Every entry can always be read
+    }
+
+    @Override
+    public OperationScheduler getScheduler() {
+        return scheduler;
+    }
+
+    //Taken by every change here, as on disk, so a caller holding a path across several calls sees one state
+    @Override
+    public PathLockManager getLockManager() {
+        return locks;
+    }
+
+    //Only the scheduler has threads; the tree is left for the garbage collector
+    @Override
+    public void close() {
+        scheduler.close();
+    }
+
+    private void fireChange(FileChangeEvent event) {
+        List<FileChangeEvent> collected = batchEvents.get();
+        if (collected != null) {
+            collected.add(event);
+            return;
+        }
+        for (FileChangeListener listener : changeListeners) {
+            try {
+                listener.onFileChange(event);
+            } catch (RuntimeException e) {
+                //One bad listener should not break the operation that caused the event
+            }
+        }
+    }
+
+    private void fireItemChange(FileChangeEvent.Type type, Path path) {
+        FileItem item = toFileItem(path);
+        if (item != null) {
+            fireChange(type == FileChangeEvent.Type.CREATED
+                    ? FileChangeEvent.created(item)
+                    : FileChangeEvent.modified(item));
+        }
+    }
+
+    @Override
+    public void addChangeListener(FileChangeListener listener) {
+        changeListeners.add(listener);
+    }
+
+    @Override
+    public void removeChangeListener(FileChangeListener listener) {
+        changeListeners.remove(listener);
+    }
+}
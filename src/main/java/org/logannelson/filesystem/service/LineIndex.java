@@ -0,0 +1,210 @@
+package org.logannelson.filesystem.service;
+//Maps line numbers to byte offsets in a memory-mapped text file.
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/*
+* Built in the background by scanning the file in fixed-size chunks in parallel.
+* Each chunk stores its line starts as int offsets relative to the chunk start,
+* so the whole index costs 4 bytes per line.
+* Chunks can finish in any order; lines become addressable as soon as every
+* chunk before them is done, so the top of the file is usable almost at once.
+* A line is a run of bytes ended by '\n' (lines are numbered from 0).
+* */
+public class LineIndex {
+
+    private static final int CHUNK_SHIFT = 26; //64 MB, divides the mapping segment size
+    private static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+
+    private static final long NEWLINES = 0x0A0A0A0A0A0A0A0AL;
+    private static final long LOW_SEVEN_BITS = 0x7F7F7F7F7F7F7F7FL;
+
+    private final Path path;
+    private final long fileSize;
+    private final FileTime lastModifiedTime;
+
+    private final int[][] chunkStarts;  //Relative line starts per chunk, null until scanned
+    private final long[] firstLineOfChunk; //Valid for chunks below readyChunks
+    private volatile int readyChunks;   //Chunks 0..readyChunks-1 are done and contiguous
+    private volatile long readyLines;   //Lines in those chunks
+
+    private final CompletableFuture<LineIndex> completion = new CompletableFuture<>();
+
+    private LineIndex(MappedTextFile file) {
+        this.path = file.getPath();
+        this.fileSize = file.size();
+        this.lastModifiedTime = file.getLastModifiedTime();
+
+        int chunks = (int) Math.max(1, (fileSize + CHUNK_SIZE - 1) >>> CHUNK_SHIFT);
+        this.chunkStarts = new int[chunks][];
+        this.firstLineOfChunk = new long[chunks + 1];
+    }
+
+    /*
+    * Starts building the index for the file on the given executor and returns at once.
+    * The mapped file must stay reachable until the build completes (closing it is fine).
+    * */
+    static LineIndex build(MappedTextFile file, Executor executor) {
+        LineIndex index = new LineIndex(file);
+        if (file.size() == 0) {
+            index.chunkDone(0, new int[]{0});
+            return index;
+        }
+        for (int chunk = 0; chunk < index.chunkStarts.length; chunk++) {
+            int c = chunk;
+            executor.execute(() -> {
+                try {
+                    index.chunkDone(c, index.scanChunk(file, c));
+                } catch (RuntimeException e) {
+                    index.completion.completeExceptionally(e);
+                }
+            });
+        }
+        return index;
+    }
+
+    /*
+    * Scans one chunk for '\n', eight bytes at a time.
+    * A newline at position p starts a line at p + 1, unless p is the last byte.
+    * */
+    private int[] scanChunk(MappedTextFile file, int chunk) {
+        long base = (long) chunk << CHUNK_SHIFT;
+        int length = (int) Math.min(CHUNK_SIZE, fileSize - base);
+        ByteBuffer buffer = file.window(base, length).order(ByteOrder.LITTLE_ENDIAN);
+
+        int[] starts = new int[1024];
+        int count = 0;
+        if (chunk == 0) {
+            starts[count++] = 0;
+        }
+
+        int i = 0;
+        int wordLimit = length - 7;
+        while (i < wordLimit) {
+            //Exact zero-byte test on word ^ "\n\n\n...": sets the high bit of every byte that was '\n'
+            long word = buffer.getLong(i) ^ NEWLINES;
+            long found = ~(((word & LOW_SEVEN_BITS) + LOW_SEVEN_BITS) | word | LOW_SEVEN_BITS);
+            while (found != 0) {
+                int position = i + (Long.numberOfTrailingZeros(found) >>> 3);
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                }
+                starts[count++] = position + 1;
+                found &= found - 1;
+            }
+            i += 8;
+        }
+        for (; i < length; i++) {
+            if (buffer.get(i) == '\n') {
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                }
+                starts[count++] = i + 1;
+            }
+        }
+
+        //A trailing newline does not start another line
+        if (count > 0 && base + starts[count - 1] == fileSize && fileSize > 0) {
+            count--;
+        }
+        return Arrays.copyOf(starts, count);
+    }
+
+    //Records a finished chunk and extends the contiguous ready prefix
+    private synchronized void chunkDone(int chunk, int[] starts) {
+        chunkStarts[chunk] = starts;
+
+        int ready = readyChunks;
+        long lines = readyLines;
+        while (ready < chunkStarts.length && chunkStarts[ready] != null) {
+            firstLineOfChunk[ready] = lines;
+            lines += chunkStarts[ready].length;
+            ready++;
+        }
+        firstLineOfChunk[ready] = lines;
+
+        //Write lines first: readers check readyChunks, then trust readyLines
+        readyLines = lines;
+        readyChunks = ready;
+
+        if (ready == chunkStarts.length) {
+            completion.complete(this);
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public FileTime getLastModifiedTime() {
+        return lastModifiedTime;
+    }
+
+    public boolean isComplete() {
+        return readyChunks == chunkStarts.length;
+    }
+
+    //Completes once every chunk is indexed
+    public CompletableFuture<LineIndex> completion() {
+        return completion;
+    }
+
+    //Number of lines that can be addressed right now (the total once complete)
+    public long getKnownLineCount() {
+        return readyLines;
+    }
+
+    //Byte offset where the line starts, or -1 if it is not indexed (yet)
+    public long lineStart(long line) {
+        int ready = readyChunks;
+        if (line < 0 || line >= firstLineOfChunk[ready]) {
+            return -1;
+        }
+        //Last chunk whose first line is <= line
+        int lo = 0;
+        int hi = ready - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (firstLineOfChunk[mid] <= line) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        long base = (long) lo << CHUNK_SHIFT;
+        return base + chunkStarts[lo][(int) (line - firstLineOfChunk[lo])];
+    }
+
+    //Line number containing the byte offset, or -1 if that part is not indexed (yet)
+    public long lineAt(long offset) {
+        int chunk = (int) Math.min(offset >>> CHUNK_SHIFT, chunkStarts.length - 1);
+        int ready = readyChunks;
+        if (offset < 0 || chunk >= ready) {
+            return -1;
+        }
+        long base = (long) chunk << CHUNK_SHIFT;
+        int[] starts = chunkStarts[chunk];
+        //Number of starts in this chunk that are <= offset
+        int relative = (int) Math.min(offset - base, Integer.MAX_VALUE);
+        int lo = 0;
+        int hi = starts.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (starts[mid] <= relative) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return Math.max(0, firstLineOfChunk[chunk] + lo - 1);
+    }
+}
@@ -0,0 +1,313 @@
+package org.logannelson.filesystem.service;
+//Random access to the decoded characters of a memory-mapped UTF-8 file.
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/*
+* Text components address characters, while the mapped file holds UTF-8 bytes.
+* On open the file is decoded once, block by block, to record how many chars each
+* block holds; nothing is kept except that table. Reads then decode only the
+* block(s) they touch, with the last decoded block cached.
+* Blocks never split a UTF-8 sequence, so each one decodes on its own.
+* Bytes that are not valid UTF-8 read as U+FFFD, and the source says so (isMalformed),
+* since writing that text back would replace them for good.
+* */
+public class MappedCharSource {
+
+    private static final int BLOCK_BYTES = 64 * 1024;
+
+    private final MappedTextFile file;
+    private final long[] blockByteStart; //blocks + 1 entries
+    private final int[] blockCharStart;  //blocks + 1 entries
+    private final int blockCount;
+    private final boolean byteExact;
+    private final boolean malformed;
+    private final CharsetDecoder decoder;
+
+    private int cachedBlock = -1;
+    private char[] cachedChars;
+
+    private MappedCharSource(MappedTextFile file, BlockTable table) {
+        this.file = file;
+        this.blockByteStart = Arrays.copyOf(table.byteStarts, table.count + 1);
+        this.blockCharStart = Arrays.copyOf(table.charStarts, table.count + 1);
+        this.blockCount = table.count;
+        this.byteExact = table.byteExact;
+        this.malformed = table.malformed;
+        this.decoder = newDecoder();
+    }
+
+    /*
+    * Builds the block table in one pass over the file.
+    * newlineListener (optional) receives the char offset of every '\n'.
+    * Throws if the text has more chars than a Swing document can address.
+    * */
+    public static MappedCharSource open(MappedTextFile file, IntConsumer newlineListener) throws IOException {
+        BlockTable table = new BlockTable((int) Math.min(Integer.MAX_VALUE - 8, file.size() / BLOCK_BYTES + 2));
+        long chars = table.decode(file, 0, file.size(), 0, newlineListener);
+        table.finish(file.size(), checkedChars(chars, file));
+        return new MappedCharSource(file, table);
+    }
+
+    /*
+    * Builds the source for the same file after bytes [changedFrom, changedTo) were
+    * rewritten in place (and possibly the file was cut or extended at changedTo).
+    * Only blocks around the change are decoded again; the rest of the table is reused,
+    * so this costs about the size of the change.
+    * */
+    public MappedCharSource patched(MappedTextFile newFile, long changedFrom, long changedTo) throws IOException {
+        int first = Math.max(0, findBlockByByte(changedFrom));
+        //First old boundary at or past the change that still exists in the new file
+        int resume = first + 1;
+        while (resume < blockCount && blockByteStart[resume] < changedTo) {
+            resume++;
+        }
+        boolean reuseTail = resume < blockCount && blockByteStart[resume] < newFile.size()
+                && changedTo <= newFile.size() && blockByteStart[resume] >= changedTo;
+        long decodeEnd = reuseTail ? blockByteStart[resume] : newFile.size();
+
+        BlockTable table = new BlockTable(blockCount + (int) ((newFile.size() - decodeEnd) / BLOCK_BYTES) + 4);
+        for (int i = 0; i < first; i++) {
+            table.add(blockByteStart[i], blockCharStart[i]);
+        }
+        table.byteExact = byteExact;
+        table.malformed = malformed;
+        long charPos = table.decode(newFile, blockByteStart[first], decodeEnd, blockCharStart[first], null);
+
+        if (reuseTail) {
+            long shift = charPos - blockCharStart[resume];
+            for (int i = resume; i < blockCount; i++) {
+                table.add(blockByteStart[i], checkedChars(blockCharStart[i] + shift, newFile));
+            }
+            charPos = blockCharStart[blockCount] + shift;
+        }
+        table.finish(newFile.size(), checkedChars(charPos, newFile));
+        return new MappedCharSource(newFile, table);
+    }
+
+    //Number of chars in the decoded file
+    public int length() {
+        return blockCharStart[blockCount];
+    }
+
+    public MappedTextFile getFile() {
+        return file;
+    }
+
+    /*
+    * True if every block re-encodes to exactly its bytes, i.e. the file was valid UTF-8.
+    * Only then can char ranges be mapped back to byte ranges for in-place patching.
+    * */
+    public boolean isByteExact() {
+        return byteExact;
+    }
+
+    /*
+    * True if some bytes of the file are not valid UTF-8 and read as U+FFFD.
+    * Such a file must not be saved from this text: the original bytes would be lost.
+    * */
+    public boolean isMalformed() {
+        return malformed;
+    }
+
+    /*
+    * Byte offset of the char at charOffset (length() maps to the file size).
+    * Returns -1 if the offset falls between the two halves of a surrogate pair.
+    * */
+    public synchronized long byteOffset(int charOffset) {
+        if (charOffset >= length()) {
+            return blockByteStart[blockCount];
+        }
+        int block = findBlock(charOffset);
+        char[] chars = blockChars(block);
+        int inBlock = charOffset - blockCharStart[block];
+        if (inBlock > 0 && Character.isHighSurrogate(chars[inBlock - 1])) {
+            return -1;
+        }
+        return blockByteStart[block] + utf8Length(chars, 0, inBlock);
+    }
+
+    //Copies length chars starting at charOffset into dest
+    public synchronized void getChars(int charOffset, char[] dest, int destOffset, int length) {
+        while (length > 0) {
+            int block = findBlock(charOffset);
+            char[] chars = blockChars(block);
+            int inBlock = charOffset - blockCharStart[block];
+            int n = Math.min(length, chars.length - inBlock);
+            System.arraycopy(chars, inBlock, dest, destOffset, n);
+            charOffset += n;
+            destOffset += n;
+            length -= n;
+        }
+    }
+
+    //Last block whose first char is <= charOffset
+    private int findBlock(int charOffset) {
+        int index = Arrays.binarySearch(blockCharStart, 0, blockCount, charOffset);
+        if (index < 0) {
+            index = -index - 2;
+        }
+        return index;
+    }
+
+    //Last block whose first byte is <= byteOffset
+    private int findBlockByByte(long byteOffset) {
+        int index = Arrays.binarySearch(blockByteStart, 0, blockCount, byteOffset);
+        if (index < 0) {
+            index = -index - 2;
+        }
+        return Math.min(index, Math.max(0, blockCount - 1));
+    }
+
+    private char[] blockChars(int block) {
+        if (block != cachedBlock) {
+            int length = (int) (blockByteStart[block + 1] - blockByteStart[block]);
+            byte[] bytes = new byte[length];
+            file.read(blockByteStart[block], bytes, 0, length);
+            CharBuffer chars = decode(decoder, bytes, length);
+            cachedChars = new char[chars.remaining()];
+            chars.get(cachedChars);
+            cachedBlock = block;
+        }
+        return cachedChars;
+    }
+
+    //Number of bytes the chars take in UTF-8 (lone surrogates count as the 1-byte '?')
+    private static long utf8Length(char[] chars, int from, int to) {
+        long bytes = 0;
+        for (int i = from; i < to; i++) {
+            char c = chars[i];
+            if (c < 0x80) {
+                bytes += 1;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(chars[i + 1])) {
+                bytes += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                bytes += 1;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    private static int checkedChars(long chars, MappedTextFile file) throws IOException {
+        if (chars > Integer.MAX_VALUE - 1) {
+            throw new IOException("File has too many characters for the editor: " + file.getPath());
+        }
+        return (int) chars;
+    }
+
+    //Moves a block end back so it does not cut a multi-byte sequence
+    private static long blockEnd(MappedTextFile file, long start, long limitEnd) {
+        long end = Math.min(limitEnd, start + BLOCK_BYTES);
+        long limit = Math.max(start + 1, end - 3);
+        while (end < limitEnd && end > limit && (file.byteAt(end) & 0xC0) == 0x80) {
+            end--;
+        }
+        return end;
+    }
+
+    private static CharBuffer decode(CharsetDecoder decoder, byte[] bytes, int length) {
+        try {
+            return decoder.reset().decode(ByteBuffer.wrap(bytes, 0, length));
+        } catch (CharacterCodingException e) {
+            //Cannot happen with REPLACE, but keep the compiler happy
+            throw new IllegalStateException(e);
+        }
+    }
+
+    //Malformed input becomes U+FFFD, the same way every time a block is decoded
+    private static CharsetDecoder newDecoder() {
+        return StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    //Growable block table used while decoding
+    private static final class BlockTable {
+        long[] byteStarts;
+        int[] charStarts;
+        int count;
+        boolean byteExact = true;
+        boolean malformed;
+
+        BlockTable(int capacity) {
+            byteStarts = new long[Math.max(2, capacity)];
+            charStarts = new int[Math.max(2, capacity)];
+        }
+
+        void add(long byteStart, int charStart) {
+            if (count + 1 >= byteStarts.length) {
+                byteStarts = Arrays.copyOf(byteStarts, byteStarts.length * 2);
+                charStarts = Arrays.copyOf(charStarts, charStarts.length * 2);
+            }
+            byteStarts[count] = byteStart;
+            charStarts[count] = charStart;
+            count++;
+        }
+
+        //Decodes [from, to) as blocks starting at char charStart; returns the char position after them
+        long decode(MappedTextFile file, long from, long to, long charStart, IntConsumer newlineListener)
+                throws IOException {
+            CharsetDecoder reporting = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT);
+            CharsetDecoder decoder = newDecoder();
+            byte[] bytes = new byte[BLOCK_BYTES];
+            long bytePos = from;
+            long charPos = charStart;
+            while (bytePos < to) {
+                long end = blockEnd(file, bytePos, to);
+                int length = (int) (end - bytePos);
+                file.read(bytePos, bytes, 0, length);
+                CharBuffer chars;
+                try {
+                    chars = reporting.reset().decode(ByteBuffer.wrap(bytes, 0, length));
+                } catch (CharacterCodingException e) {
+                    //Decoded again the way blockChars will, with U+FFFD for the bad bytes
+                    malformed = true;
+                    chars = MappedCharSource.decode(decoder, bytes, length);
+                }
+                char[] array = chars.array();
+                int offset = chars.arrayOffset() + chars.position();
+
+                if (newlineListener != null) {
+                    for (int i = 0; i < chars.remaining(); i++) {
+                        if (array[offset + i] == '\n') {
+                            newlineListener.accept((int) (charPos + i));
+                        }
+                    }
+                }
+                if (utf8Length(array, offset, offset + chars.remaining()) != length) {
+                    byteExact = false;
+                }
+
+                add(bytePos, checkedChars(charPos, file));
+                bytePos = end;
+                charPos += chars.remaining();
+                checkedChars(charPos, file);
+            }
+            return charPos;
+        }
+
+        //Writes the closing entry (end of the last block)
+        void finish(long byteEnd, int charEnd) {
+            if (count >= byteStarts.length) {
+                byteStarts = Arrays.copyOf(byteStarts, count + 1);
+                charStarts = Arrays.copyOf(charStarts, count + 1);
+            }
+            byteStarts[count] = byteEnd;
+            charStarts[count] = charEnd;
+        }
+    }
+}
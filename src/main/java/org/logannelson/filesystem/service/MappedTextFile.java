@@ -0,0 +1,181 @@
+package org.logannelson.filesystem.service;
+//Read-only, memory-mapped view of a (possibly huge) text file.
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+
+/*
+* Maps the file with FileChannel.map so nothing is copied onto the heap up front.
+* A single mapping is limited to 2 GB, so the file is mapped in fixed-size segments.
+* Text is assumed to be UTF-8 (same as readFile); '\n' never occurs inside a
+* multi-byte sequence, so lines can be found by scanning raw bytes.
+* Lines longer than MAX_LINE_BYTES are split into several display lines,
+* which keeps every scan bounded no matter what the file looks like.
+* The in-memory backend hands out the same view over its own off-heap buffers,
+* laid out in the same segments, with nothing to close.
+* */
+public class MappedTextFile implements Closeable {
+
+    public static final int MAX_LINE_BYTES = 16 * 1024;
+
+    static final int SEGMENT_SHIFT = 30; //1 GB segments
+    static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+    static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private final Path path;
+    private final Closeable channel; //null when there is nothing to release
+    private final long size;
+    private final FileTime lastModifiedTime;
+    private final ByteBuffer[] segments;
+
+    private MappedTextFile(Path path, Closeable channel, long size, FileTime lastModifiedTime,
+                           ByteBuffer[] segments) {
+        this.path = path;
+        this.channel = channel;
+        this.size = size;
+        this.lastModifiedTime = lastModifiedTime;
+        this.segments = segments;
+    }
+
+    //Opened through FileSystemService so the sandbox check always applies
+    static MappedTextFile open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            FileTime lastModifiedTime = Files.getLastModifiedTime(path);
+            long size = channel.size();
+            int count = (int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+            ByteBuffer[] segments = new ByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long start = (long) i << SEGMENT_SHIFT;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+            }
+            return new MappedTextFile(path, channel, size, lastModifiedTime, segments);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    //Segments already in memory: all SEGMENT_SIZE bytes except the last, which ends at size
+    static MappedTextFile wrap(Path path, long size, FileTime lastModifiedTime, ByteBuffer[] segments) {
+        return new MappedTextFile(path, null, size, lastModifiedTime, segments);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    //Modification time when the file was mapped
+    public FileTime getLastModifiedTime() {
+        return lastModifiedTime;
+    }
+
+    /*
+    * Returns an independent read-only view of length bytes starting at position.
+    * The range must not cross a segment boundary (SEGMENT_SIZE).
+    * */
+    ByteBuffer window(long position, int length) {
+        ByteBuffer segment = segments[(int) (position >>> SEGMENT_SHIFT)];
+        return segment.slice((int) (position & SEGMENT_MASK), length);
+    }
+
+    public byte byteAt(long position) {
+        return segments[(int) (position >>> SEGMENT_SHIFT)].get((int) (position & SEGMENT_MASK));
+    }
+
+    //Copies length bytes starting at position into dest
+    public void read(long position, byte[] dest, int destOffset, int length) {
+        while (length > 0) {
+            ByteBuffer segment = segments[(int) (position >>> SEGMENT_SHIFT)];
+            int inSegment = (int) (position & SEGMENT_MASK);
+            int n = Math.min(length, segment.limit() - inSegment);
+            segment.get(inSegment, dest, destOffset, n);
+            position += n;
+            destOffset += n;
+            length -= n;
+        }
+    }
+
+    /*
+    * Returns the start of the display line after the one starting at lineStart,
+    * or size() if it is the last line.
+    * */
+    public long nextLineStart(long lineStart) {
+        long limit = Math.min(size, lineStart + MAX_LINE_BYTES);
+        for (long pos = lineStart; pos < limit; pos++) {
+            if (byteAt(pos) == '\n') {
+                return pos + 1;
+            }
+        }
+        return limit;
+    }
+
+    /*
+    * Returns the start of the display line before the one starting at lineStart.
+    * Scans back at most MAX_LINE_BYTES.
+    * */
+    public long previousLineStart(long lineStart) {
+        if (lineStart <= 0) {
+            return 0;
+        }
+        //Skip the newline that ends the previous line
+        long pos = lineStart - 1;
+        if (byteAt(pos) == '\n') {
+            pos--;
+        }
+        long limit = Math.max(0, lineStart - MAX_LINE_BYTES);
+        for (; pos >= limit; pos--) {
+            if (byteAt(pos) == '\n') {
+                return pos + 1;
+            }
+        }
+        return limit;
+    }
+
+    /*
+    * Returns the start of the display line containing position.
+    * Scans back at most MAX_LINE_BYTES.
+    * */
+    public long lineStartAt(long position) {
+        long limit = Math.max(0, position - MAX_LINE_BYTES);
+        for (long pos = position - 1; pos >= limit; pos--) {
+            if (byteAt(pos) == '\n') {
+                return pos + 1;
+            }
+        }
+        return limit;
+    }
+
+    //Decodes the display line starting at lineStart, without its line terminator
+    public String readLine(long lineStart) {
+        long end = nextLineStart(lineStart);
+        int length = (int) (end - lineStart);
+        if (length > 0 && byteAt(lineStart + length - 1) == '\n') {
+            length--;
+        }
+        if (length > 0 && byteAt(lineStart + length - 1) == '\r') {
+            length--;
+        }
+        byte[] bytes = new byte[length];
+        read(lineStart, bytes, 0, length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        //Mapped segments are released by the GC once unreachable
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
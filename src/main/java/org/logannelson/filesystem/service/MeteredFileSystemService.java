@@ -0,0 +1,480 @@
+package org.logannelson.filesystem.service;
+//Decorates another FileSystemService, recording metrics for every call that does work.
+import org.logannelson.filesystem.model.DirectorySize;
+import org.logannelson.filesystem.model.DirectorySnapshot;
+import org.logannelson.filesystem.model.FileItem;
+import org.logannelson.filesystem.model.SearchResult;
+import org.logannelson.filesystem.model.TrashEntry;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/*
+* Each call is timed with two System.nanoTime() reads and recorded into its operation's
+* OperationMetrics: adders and one histogram bucket, no locks, no allocation beyond the
+* lambda. MeteringOverheadBenchmark puts that at about 100 ns per call, most of it the
+* two clock reads; calls that touch the disk take microseconds to seconds, so it can
+* stay on all the time.
+*
+* Bytes and items are recorded where the result tells them: entries listed, results
+* found, characters read or written (equal to bytes for ASCII text), and the counts an
+* OperationProgress collected during the call. Streams and cursors are timed until
+* they are open, not while they are read.
+* Getters that only return state (start directory, scheduler, index status), the
+* listener methods and close are passed through without metrics.
+* */
+public class MeteredFileSystemService implements FileSystemService {
+
+    private final FileSystemService delegate;
+    private final ServiceMetrics metrics;
+
+    //One entry per operation, created up front so JMX lists them all
+    private final OperationMetrics listDirectory;
+    private final OperationMetrics snapshotDirectory;
+    private final OperationMetrics streamDirectory;
+    private final OperationMetrics openDirectory;
+    private final OperationMetrics listDirectoryPage;
+    private final OperationMetrics getItem;
+    private final OperationMetrics readFile;
+    private final OperationMetrics openMappedFile;
+    private final OperationMetrics transferTo;
+    private final OperationMetrics openContent;
+    private final OperationMetrics getLineIndex;
+    private final OperationMetrics writeFile;
+    private final OperationMetrics writeFileStreamed;
+    private final OperationMetrics patchFile;
+    private final OperationMetrics createDirectory;
+    private final OperationMetrics createFile;
+    private final OperationMetrics rename;
+    private final OperationMetrics runBatch;
+    private final OperationMetrics copy;
+    private final OperationMetrics move;
+    private final OperationMetrics delete;
+    private final OperationMetrics deletePermanently;
+    private final OperationMetrics listTrash;
+    private final OperationMetrics restore;
+    private final OperationMetrics emptyTrash;
+    private final OperationMetrics findByName;
+    private final OperationMetrics searchContent;
+    private final OperationMetrics buildContentIndex;
+    private final OperationMetrics searchInFolder;
+    private final OperationMetrics getDirectorySize;
+    private final OperationMetrics getCachedDirectorySize;
+
+    @FunctionalInterface
+    private interface Call<T> {
+        T call() throws IOException;
+    }
+
+    public MeteredFileSystemService(FileSystemService delegate, ServiceMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+        metrics.setSkippedEntries(delegate::getSkippedEntryCount);
+
+        listDirectory = metrics.operation("listDirectory");
+        snapshotDirectory = metrics.operation("snapshotDirectory");
+        streamDirectory = metrics.operation("streamDirectory");
+        openDirectory = metrics.operation("openDirectory");
+        listDirectoryPage = metrics.operation("listDirectoryPage");
+        getItem = metrics.operation("getItem");
+        readFile = metrics.operation("readFile");
+        openMappedFile = metrics.operation("openMappedFile");
+        transferTo = metrics.operation("transferTo");
+        openContent = metrics.operation("openContent");
+        getLineIndex = metrics.operation("getLineIndex");
+        writeFile = metrics.operation("writeFile");
+        writeFileStreamed = metrics.operation("writeFileStreamed");
+        patchFile = metrics.operation("patchFile");
+        createDirectory = metrics.operation("createDirectory");
+        createFile = metrics.operation("createFile");
+        rename = metrics.operation("rename");
+        runBatch = metrics.operation("runBatch");
+        copy = metrics.operation("copy");
+        move = metrics.operation("move");
+        delete = metrics.operation("delete");
+        deletePermanently = metrics.operation("deletePermanently");
+        listTrash = metrics.operation("listTrash");
+        restore = metrics.operation("restore");
+        emptyTrash = metrics.operation("emptyTrash");
+        findByName = metrics.operation("findByName");
+        searchContent = metrics.operation("searchContent");
+        buildContentIndex = metrics.operation("buildContentIndex");
+        searchInFolder = metrics.operation("searchInFolder");
+        getDirectorySize = metrics.operation("getDirectorySize");
+        getCachedDirectorySize = metrics.operation("getCachedDirectorySize");
+    }
+
+    //Getters
+    public FileSystemService getDelegate() {
+        return delegate;
+    }
+
+    public ServiceMetrics getMetrics() {
+        return metrics;
+    }
+
+    /*
+    * Section: listing
+    * */
+    @Override
+    public Path getStartDirectory() {
+        return delegate.getStartDirectory();
+    }
+
+    @Override
+    public List<FileItem> listDirectory(Path directory) throws IOException {
+        long start = System.nanoTime();
+        List<FileItem> items = meter(listDirectory, start, () -> delegate.listDirectory(directory));
+        listDirectory.succeeded(start, 0, items.size());
+        return items;
+    }
+
+    @Override
+    public DirectorySnapshot snapshotDirectory(Path directory, Predicate<DirectorySnapshot> partialListener)
+            throws IOException {
+        long start = System.nanoTime();
+        DirectorySnapshot snapshot = meter(snapshotDirectory, start,
+                () -> delegate.snapshotDirectory(directory, partialListener));
+        snapshotDirectory.succeeded(start, 0, snapshot.size());
+        return snapshot;
+    }
+
+    @Override
+    public Stream<FileItem> streamDirectory(Path directory) throws IOException {
+        long start = System.nanoTime();
+        Stream<FileItem> stream = meter(streamDirectory, start, () -> delegate.streamDirectory(directory));
+        streamDirectory.succeeded(start, 0, 0);
+        return stream;
+    }
+
+    @Override
+    public DirectoryCursor openDirectory(Path directory) throws IOException {
+        long start = System.nanoTime();
+        DirectoryCursor cursor = meter(openDirectory, start, () -> delegate.openDirectory(directory));
+        openDirectory.succeeded(start, 0, 0);
+        return cursor;
+    }
+
+    @Override
+    public List<FileItem> listDirectory(Path directory, int offset, int limit) throws IOException {
+        long start = System.nanoTime();
+        List<FileItem> items = meter(listDirectoryPage, start, () -> delegate.listDirectory(directory, offset, limit));
+        listDirectoryPage.succeeded(start, 0, items.size());
+        return items;
+    }
+
+    @Override
+    public FileItem getItem(Path path) throws IOException {
+        long start = System.nanoTime();
+        FileItem item = meter(getItem, start, () -> delegate.getItem(path));
+        getItem.succeeded(start, 0, 1);
+        return item;
+    }
+
+    /*
+    * Section: file contents
+    * */
+    @Override
+    public String readFile(Path file) throws IOException {
+        long start = System.nanoTime();
+        String content = meter(readFile, start, () -> delegate.readFile(file));
+        readFile.succeeded(start, content.length(), 1);
+        return content;
+    }
+
+    @Override
+    public MappedTextFile openMappedFile(Path file) throws IOException {
+        long start = System.nanoTime();
+        MappedTextFile mapped = meter(openMappedFile, start, () -> delegate.openMappedFile(file));
+        openMappedFile.succeeded(start, mapped.size(), 1);
+        return mapped;
+    }
+
+    @Override
+    public long transferTo(Path file, long position, long count, WritableByteChannel target) throws IOException {
+        long start = System.nanoTime();
+        long sent = meter(transferTo, start, () -> delegate.transferTo(file, position, count, target));
+        transferTo.succeeded(start, sent, 1);
+        return sent;
+    }
+
+    @Override
+    public FileContent openContent(Path file) throws IOException {
+        long start = System.nanoTime();
+        FileContent content = meter(openContent, start, () -> delegate.openContent(file));
+        openContent.succeeded(start, content.size(), 1);
+        return content;
+    }
+
+    @Override
+    public LineIndex getLineIndex(MappedTextFile file) {
+        long start = System.nanoTime();
+        LineIndex index = meterUnchecked(getLineIndex, start, () -> delegate.getLineIndex(file));
+        getLineIndex.succeeded(start, 0, 1);
+        return index;
+    }
+
+    @Override
+    public void writeFile(Path file, String content) throws IOException {
+        long start = System.nanoTime();
+        meter(writeFile, start, () -> {
+            delegate.writeFile(file, content);
+            return null;
+        });
+        writeFile.succeeded(start, content.length(), 1);
+    }
+
+    @Override
+    public void writeFile(Path file, ContentSource source, SaveOptions options) throws IOException {
+        long start = System.nanoTime();
+        meter(writeFileStreamed, start, () -> {
+            delegate.writeFile(file, source, options);
+            return null;
+        });
+        writeFileStreamed.succeeded(start, 0, 1);
+    }
+
+    @Override
+    public void patchFile(Path file, List<FileRegion> regions, long newLength, SaveOptions options) throws IOException {
+        long start = System.nanoTime();
+        meter(patchFile, start, () -> {
+            delegate.patchFile(file, regions, newLength, options);
+            return null;
+        });
+        patchFile.succeeded(start, 0, regions.size());
+    }
+
+    /*
+    * Section: changes
+    * */
+    @Override
+    public Path createDirectory(Path parentDirectory, String name) throws IOException {
+        long start = System.nanoTime();
+        Path created = meter(createDirectory, start, () -> delegate.createDirectory(parentDirectory, name));
+        createDirectory.succeeded(start, 0, 1);
+        return created;
+    }
+
+    @Override
+    public Path createFile(Path parentDirectory, String name, String initialContent) throws IOException {
+        long start = System.nanoTime();
+        Path created = meter(createFile, start, () -> delegate.createFile(parentDirectory, name, initialContent));
+        createFile.succeeded(start, initialContent == null ? 0 : initialContent.length(), 1);
+        return created;
+    }
+
+    @Override
+    public Path rename(Path target, String newName) throws IOException {
+        long start = System.nanoTime();
+        Path renamed = meter(rename, start, () -> delegate.rename(target, newName));
+        rename.succeeded(start, 0, 1);
+        return renamed;
+    }
+
+    @Override
+    public List<BatchResult> runBatch(List<BatchOperation> operations, int parallelism) throws IOException {
+        long start = System.nanoTime();
+        List<BatchResult> results = meter(runBatch, start, () -> delegate.runBatch(operations, parallelism));
+        runBatch.succeeded(start, 0, results.size());
+        return results;
+    }
+
+    @Override
+    public Path copy(Path source, Path targetDirectory, OperationProgress progress) throws IOException {
+        long start = System.nanoTime();
+        long bytesBefore = progress.getBytesProcessed();
+        long filesBefore = progress.getFilesProcessed();
+        Path target = meter(copy, start, () -> delegate.copy(source, targetDirectory, progress));
+        copy.succeeded(start, progress.getBytesProcessed() - bytesBefore, progress.getFilesProcessed() - filesBefore);
+        return target;
+    }
+
+    @Override
+    public Path move(Path source, Path targetDirectory, OperationProgress progress) throws IOException {
+        long start = System.nanoTime();
+        long bytesBefore = progress.getBytesProcessed();
+        long filesBefore = progress.getFilesProcessed();
+        Path target = meter(move, start, () -> delegate.move(source, targetDirectory, progress));
+        move.succeeded(start, progress.getBytesProcessed() - bytesBefore, progress.getFilesProcessed() - filesBefore);
+        return target;
+    }
+
+    @Override
+    public TrashEntry delete(Path target) throws IOException {
+        long start = System.nanoTime();
+        TrashEntry entry = meter(delete, start, () -> delegate.delete(target));
+        delete.succeeded(start, 0, 1);
+        return entry;
+    }
+
+    @Override
+    public void deletePermanently(Path target, OperationProgress progress) throws IOException {
+        long start = System.nanoTime();
+        long filesBefore = progress.getFilesProcessed();
+        meter(deletePermanently, start, () -> {
+            delegate.deletePermanently(target, progress);
+            return null;
+        });
+        deletePermanently.succeeded(start, 0, progress.getFilesProcessed() - filesBefore);
+    }
+
+    /*
+    * Section: trash
+    * */
+    @Override
+    public List<TrashEntry> listTrash() {
+        long start = System.nanoTime();
+        List<TrashEntry> entries = meterUnchecked(listTrash, start, delegate::listTrash);
+        listTrash.succeeded(start, 0, entries.size());
+        return entries;
+    }
+
+    @Override
+    public Path restore(TrashEntry entry) throws IOException {
+        long start = System.nanoTime();
+        Path restored = meter(restore, start, () -> delegate.restore(entry));
+        restore.succeeded(start, 0, 1);
+        return restored;
+    }
+
+    @Override
+    public void emptyTrash() {
+        long start = System.nanoTime();
+        meterUnchecked(emptyTrash, start, () -> {
+            delegate.emptyTrash();
+            return null;
+        });
+        emptyTrash.succeeded(start, 0, 0);
+    }
+
+    /*
+    * Section: search and sizes
+    * */
+    @Override
+    public List<Path> findByName(String pattern, int limit) {
+        long start = System.nanoTime();
+        List<Path> found = meterUnchecked(findByName, start, () -> delegate.findByName(pattern, limit));
+        findByName.succeeded(start, 0, found.size());
+        return found;
+    }
+
+    @Override
+    public boolean isNameIndexReady() {
+        return delegate.isNameIndexReady();
+    }
+
+    @Override
+    public List<SearchResult> searchContent(String query, int limit) throws IOException {
+        long start = System.nanoTime();
+        List<SearchResult> found = meter(searchContent, start, () -> delegate.searchContent(query, limit));
+        searchContent.succeeded(start, 0, found.size());
+        return found;
+    }
+
+    @Override
+    public void buildContentIndex() {
+        long start = System.nanoTime();
+        meterUnchecked(buildContentIndex, start, () -> {
+            delegate.buildContentIndex();
+            return null;
+        });
+        buildContentIndex.succeeded(start, 0, 0);
+    }
+
+    @Override
+    public ContentIndexStatus getContentIndexStatus() {
+        return delegate.getContentIndexStatus();
+    }
+
+    @Override
+    public void searchInFolder(Path directory, String pattern, SearchOptions options,
+                               Consumer<SearchResult> matchListener, OperationProgress progress) throws IOException {
+        long start = System.nanoTime();
+        long bytesBefore = progress.getBytesProcessed();
+        long filesBefore = progress.getFilesProcessed();
+        meter(searchInFolder, start, () -> {
+            delegate.searchInFolder(directory, pattern, options, matchListener, progress);
+            return null;
+        });
+        searchInFolder.succeeded(start, progress.getBytesProcessed() - bytesBefore,
+                progress.getFilesProcessed() - filesBefore);
+    }
+
+    @Override
+    public DirectorySize getDirectorySize(Path directory) throws IOException {
+        long start = System.nanoTime();
+        DirectorySize size = meter(getDirectorySize, start, () -> delegate.getDirectorySize(directory));
+        getDirectorySize.succeeded(start, 0, 1);
+        return size;
+    }
+
+    @Override
+    public DirectorySize getCachedDirectorySize(Path directory) {
+        long start = System.nanoTime();
+        DirectorySize size = meterUnchecked(getCachedDirectorySize, start,
+                () -> delegate.getCachedDirectorySize(directory));
+        getCachedDirectorySize.succeeded(start, 0, size == null ? 0 : 1);
+        return size;
+    }
+
+    /*
+    * Section: passed through
+    * */
+    @Override
+    public long getSkippedEntryCount() {
+        return delegate.getSkippedEntryCount();
+    }
+
+    @Override
+    public OperationScheduler getScheduler() {
+        return delegate.getScheduler();
+    }
+
+    @Override
+    public PathLockManager getLockManager() {
+        return delegate.getLockManager();
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    @Override
+    public void addChangeListener(FileChangeListener listener) {
+        delegate.addChangeListener(listener);
+    }
+
+    @Override
+    public void removeChangeListener(FileChangeListener listener) {
+        delegate.removeChangeListener(listener);
+    }
+
+    /*
+    * Runs the call and records a failure if it throws. Success is recorded by the
+    * caller, which knows the byte and item counts of the result.
+    * */
+    private static <T> T meter(OperationMetrics metrics, long start, Call<T> call) throws IOException {
+        try {
+            return call.call();
+        } catch (IOException | RuntimeException e) {
+            metrics.failed(start);
+            throw e;
+        }
+    }
+
+    private static <T> T meterUnchecked(OperationMetrics metrics, long start, Supplier<T> call) {
+        try {
+            return call.get();
+        } catch (RuntimeException e) {
+            metrics.failed(start);
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,1137 @@
+package org.logannelson.filesystem.service;
+//Sandbox-wide index of file names, for find-by-name without walking the tree.
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/*
+* Every path under the root, as a tree of entries in primitive arrays:
+* parent and sibling links, the name (UTF-8, in one shared byte array), a directory
+* bit and a modification time. A hash table maps (parent, name) to an entry, so a path
+* is found in one probe per component, and a rename or move only relinks one entry.
+*
+* Lookups by name go through trigram postings: for every three-byte sequence of a
+* lower-cased name, the entries whose name contains it. A query only looks at the
+* entries of its rarest trigram and checks each of those against the full pattern.
+* Postings are append-only; entries removed or renamed since are filtered by that
+* check, and everything is rebuilt once such garbage outweighs the live entries.
+*
+* The index is saved to indexFile (a few seconds after changes, and on exit) and
+* loaded on the next start. Then only directories whose modification time changed
+* while the app was not running are listed again, instead of walking the whole tree.
+* Updates run in order on one background thread; queries only take a read lock.
+* */
+final class NameIndex implements Closeable {
+
+    private static final int MAGIC = 0x464D534E; //"FMSN"
+    private static final int VERSION = 1;
+    private static final int ROOT = 0;
+    private static final int NONE = -1;
+    private static final int FREE_SLOT = -1;
+    private static final int DELETED_SLOT = -2;
+    private static final long SAVE_DELAY_SECONDS = 10;
+    private static final int MIN_COMPACT_GARBAGE = 10_000;
+
+    private final Path root;
+    private final Path indexFile;
+    private final Path excluded; //Not indexed, with everything below it
+    private final ScheduledExecutorService worker;
+    private final AtomicBoolean saveScheduled = new AtomicBoolean();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean ready;
+
+    //Entries, guarded by lock. Entry 0 is the root.
+    private int count;
+    private int liveCount;
+    private int garbage; //Dead entries and stale postings
+    private boolean dirty;
+    private int[] parents = new int[1024];
+    private int[] firstChild = new int[1024];
+    private int[] nextSibling = new int[1024];
+    private int[] previousSibling = new int[1024];
+    private int[] nameStarts = new int[1024];
+    private int[] nameLengths = new int[1024];
+    private long[] modifiedMillis = new long[1024];
+    private long[] directoryBits = new long[16];
+    private long[] liveBits = new long[16];
+    private byte[] names = new byte[16 * 1024];
+    private int namesLength;
+
+    //(parent, name) -> entry; open addressing
+    private int[] slots = newSlots(2048);
+    private int slotsUsed; //Including deleted slots
+
+    private final TrigramPostings postings = new TrigramPostings();
+
+    NameIndex(Path root, Path indexFile, Path excluded) {
+        this.root = root;
+        this.indexFile = indexFile;
+        this.excluded = excluded;
+        this.worker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "name-index");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        clear();
+    }
+
+    /*
+    * Loads the saved index, or walks the tree if there is none, in the background.
+    * Queries work meanwhile and see whatever has been indexed so far.
+    * */
+    void start() {
+        worker.execute(() -> {
+            if (load()) {
+                ready = true;
+                reconcile();
+            } else {
+                build();
+                ready = true;
+            }
+            scheduleSave();
+        });
+    }
+
+    //True once the saved index was loaded or the first walk has finished
+    boolean isReady() {
+        return ready;
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return liveCount - 1;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+    * Section: updates
+    * Called by the service after its own changes and for watcher events.
+    * All of them are queued, so the caller never waits for a walk.
+    * */
+
+    //A file or directory appeared; directories are indexed with everything in them
+    void added(Path path) {
+        worker.execute(() -> addPath(path));
+    }
+
+    //A file or directory is gone, with everything below it
+    void removed(Path path) {
+        worker.execute(() -> {
+            lock.writeLock().lock();
+            try {
+                int id = find(path);
+                if (id > ROOT) {
+                    removeTree(id);
+                    touchParent(path);
+                    compactIfNeeded();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        });
+    }
+
+    //Moved or renamed; only the entry itself changes, its subtree follows along
+    void renamed(Path from, Path to) {
+        worker.execute(() -> {
+            if (!relink(from, to)) {
+                addPath(to); //Did not know it, or moved to somewhere unknown
+            }
+        });
+    }
+
+    //False if from or the new parent is not indexed
+    private boolean relink(Path from, Path to) {
+        lock.writeLock().lock();
+        try {
+            int id = find(from);
+            int newParent = find(to.getParent());
+            if (id <= ROOT || newParent < ROOT) {
+                return false;
+            }
+            byte[] name = encode(to.getFileName().toString());
+            int existing = lookup(newParent, name);
+            if (existing > ROOT && existing != id) {
+                removeTree(existing); //Replaced
+            }
+
+            unlink(id);
+            removeSlot(id);
+            parents[id] = newParent;
+            setName(id, name);
+            link(id);
+            insertSlot(id);
+            addTrigrams(id);
+            garbage++; //Postings of the old name
+            touchParent(from);
+            touchParent(to);
+            markDirty();
+            compactIfNeeded();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //Lists the directory again and adds or drops whatever differs, e.g. after lost watch events
+    void refresh(Path directory) {
+        worker.execute(() -> refreshDirectory(directory));
+    }
+
+    /*
+    * Section: queries
+    * */
+
+    /*
+    * Paths whose name matches the pattern, ignoring case, at most limit of them.
+    * A pattern with *, ?, [...] or {a,b} is a glob over the whole name, anything else
+    * is a substring. A malformed glob ([] or an unclosed [ or {) throws IllegalArgumentException. Patterns with a run of three or more literal characters are
+    * answered from the trigram postings; shorter ones scan all names.
+    * */
+    List<Path> find(String pattern, int limit) {
+        String lowerCase = pattern.toLowerCase(Locale.ROOT);
+        boolean glob = isGlob(lowerCase);
+        Pattern regex = glob ? compileGlob(lowerCase) : null;
+        List<String> literals = glob ? literalRuns(lowerCase) : List.of(lowerCase);
+
+        List<Path> results = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            //Rarest trigram of any literal part; every match contains it
+            int best = NONE;
+            boolean anyTrigram = false;
+            for (String literal : literals) {
+                byte[] bytes = encode(literal);
+                for (int i = 0; i + 3 <= bytes.length; i++) {
+                    int slot = postings.find(trigram(bytes, i));
+                    if (slot < 0) {
+                        return results; //No name contains it
+                    }
+                    if (!anyTrigram || postings.sizes[slot] < postings.sizes[best]) {
+                        best = slot;
+                    }
+                    anyTrigram = true;
+                }
+            }
+
+            int[] candidates = anyTrigram ? postings.lists[best] : null;
+            int candidateCount = anyTrigram ? postings.sizes[best] : count;
+            Set<Integer> seen = new HashSet<>(); //A posting list can hold an entry twice after renames
+            for (int k = 0; k < candidateCount && results.size() < limit; k++) {
+                int id = candidates != null ? candidates[k] : k;
+                if (id == ROOT || !isLive(id)) {
+                    continue;
+                }
+                String name = nameOf(id).toLowerCase(Locale.ROOT);
+                boolean matches = glob ? regex.matcher(name).matches() : name.contains(lowerCase);
+                if (matches && seen.add(id)) {
+                    results.add(pathOf(id));
+                }
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    static boolean isGlob(String pattern) {
+        return pattern.indexOf('*') >= 0 || pattern.indexOf('?') >= 0 || pattern.indexOf('[') >= 0
+                || pattern.indexOf('{') >= 0;
+    }
+
+    //The glob as a regex over a whole name; IllegalArgumentException naming the glob if it is malformed
+    static Pattern compileGlob(String glob) {
+        try {
+            return Pattern.compile(globToRegex(glob), Pattern.DOTALL);
+        } catch (PatternSyntaxException e) {
+            throw new IllegalArgumentException("Invalid pattern: " + glob, e);
+        }
+    }
+
+    //*, ? and [...] as in PathMatcher globs; {a,b} alternatives too
+    static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        boolean inClass = false;
+        boolean inGroup = false;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (inClass) {
+                if (c == ']') {
+                    inClass = false;
+                    regex.append(']');
+                } else if (c == '\\' || c == '[' || c == '&') {
+                    regex.append('\\').append(c);
+                } else {
+                    regex.append(c);
+                }
+                continue;
+            }
+            switch (c) {
+                case '*' -> regex.append(".*");
+                case '?' -> regex.append('.');
+                case '[' -> {
+                    inClass = true;
+                    regex.append('[');
+                    if (i + 1 < glob.length() && (glob.charAt(i + 1) == '!' || glob.charAt(i + 1) == '^')) {
+                        regex.append('^');
+                        i++;
+                    }
+                }
+                case '{' -> {
+                    inGroup = true;
+                    regex.append("(?:");
+                }
+                case '}' -> {
+                    if (inGroup) {
+                        inGroup = false;
+                        regex.append(')');
+                    } else {
+                        regex.append("\\}");
+                    }
+                }
+                case ',' -> regex.append(inGroup ? "|" : ",");
+                default -> regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        if (inClass) {
+            throw new IllegalArgumentException("Unclosed [ in pattern: " + glob);
+        }
+        return regex.toString();
+    }
+
+    //Literal text between wildcards that every match must contain
+    private static List<String> literalRuns(String glob) {
+        List<String> runs = new ArrayList<>();
+        StringBuilder run = new StringBuilder();
+        int depth = 0; //Inside [...] or {...}
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '[' || c == '{') {
+                depth++;
+            }
+            if (depth == 0 && c != '*' && c != '?') {
+                run.append(c);
+            } else if (run.length() > 0) {
+                runs.add(run.toString());
+                run.setLength(0);
+            }
+            if ((c == ']' || c == '}') && depth > 0) {
+                depth--;
+            }
+        }
+        if (run.length() > 0) {
+            runs.add(run.toString());
+        }
+        return runs;
+    }
+
+    /*
+    * Section: building and reconciling
+    * */
+
+    //Full walk of the tree. Entries become visible to queries as they are added.
+    private void build() {
+        lock.writeLock().lock();
+        try {
+            clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        walk(root, ROOT);
+    }
+
+    //Adds everything below directory (indexed as parentId) that is not indexed yet
+    private void walk(Path directory, int parentId) {
+        try {
+            Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+                private final List<Integer> stack = new ArrayList<>();
+
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (dir.equals(excluded)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    int id = dir.equals(directory)
+                            ? parentId
+                            : addChild(stack.get(stack.size() - 1), dir, true, attrs.lastModifiedTime().toMillis());
+                    if (dir.equals(directory)) {
+                        setModified(id, attrs.lastModifiedTime().toMillis());
+                    }
+                    stack.add(id);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    addChild(stack.get(stack.size() - 1), file, false, attrs.lastModifiedTime().toMillis());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE; //Gone or unreadable
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+                    stack.remove(stack.size() - 1);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            //The walk reports per-entry failures above; this is the start directory itself
+        }
+    }
+
+    private int addChild(int parent, Path path, boolean directory, long modified) {
+        lock.writeLock().lock();
+        try {
+            byte[] name = encode(path.getFileName().toString());
+            int existing = lookup(parent, name);
+            if (existing >= 0) {
+                return existing;
+            }
+            return addEntry(parent, name, directory, modified);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void setModified(int id, long modified) {
+        lock.writeLock().lock();
+        try {
+            modifiedMillis[id] = modified;
+            markDirty();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+    * After loading: a directory's modification time changes whenever an entry is
+    * added, removed or renamed in it, so only directories whose time differs from the
+    * saved one have to be listed again.
+    * */
+    private void reconcile() {
+        List<Path> directories = new ArrayList<>();
+        List<Long> times = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (int id = 0; id < count; id++) {
+                if (isLive(id) && isDirectory(id)) {
+                    directories.add(pathOf(id));
+                    times.add(modifiedMillis[id]);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        for (int i = 0; i < directories.size(); i++) {
+            try {
+                long modified = Files.getLastModifiedTime(directories.get(i), LinkOption.NOFOLLOW_LINKS).toMillis();
+                if (modified != times.get(i)) {
+                    refreshDirectory(directories.get(i));
+                }
+            } catch (IOException e) {
+                //Gone; refreshing its parent drops it
+                Path parent = directories.get(i).getParent();
+                if (parent != null) {
+                    refreshDirectory(parent);
+                }
+            }
+        }
+    }
+
+    private void refreshDirectory(Path directory) {
+        Map<String, BasicFileAttributes> onDisk = new HashMap<>();
+        long modified;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            modified = Files.getLastModifiedTime(directory, LinkOption.NOFOLLOW_LINKS).toMillis();
+            for (Path entry : entries) {
+                if (entry.equals(excluded)) {
+                    continue;
+                }
+                try {
+                    onDisk.put(entry.getFileName().toString(),
+                            Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS));
+                } catch (IOException e) {
+                    //Removed while listing
+                }
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            removed(directory); //Gone or no longer readable
+            return;
+        }
+
+        List<Path> newDirectories = new ArrayList<>();
+        lock.writeLock().lock();
+        try {
+            int id = find(directory);
+            if (id < ROOT) {
+                return; //Its parent will pick it up
+            }
+            //Drop what is gone, and entries that changed between file and directory
+            for (int child = firstChild[id]; child != NONE; ) {
+                int next = nextSibling[child];
+                BasicFileAttributes attrs = onDisk.get(nameOf(child));
+                if (attrs == null || attrs.isDirectory() != isDirectory(child)) {
+                    removeTree(child);
+                }
+                child = next;
+            }
+            for (Map.Entry<String, BasicFileAttributes> entry : onDisk.entrySet()) {
+                byte[] name = encode(entry.getKey());
+                if (lookup(id, name) < 0) {
+                    BasicFileAttributes attrs = entry.getValue();
+                    addEntry(id, name, attrs.isDirectory(), attrs.lastModifiedTime().toMillis());
+                    if (attrs.isDirectory()) {
+                        newDirectories.add(directory.resolve(entry.getKey()));
+                    }
+                }
+            }
+            modifiedMillis[id] = modified;
+            markDirty();
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        //New directories may already have contents (moved in from elsewhere)
+        for (Path newDirectory : newDirectories) {
+            addPath(newDirectory);
+        }
+    }
+
+    //Adds the path, any missing parents, and for a directory everything below it
+    private void addPath(Path path) {
+        if (!path.startsWith(root) || path.startsWith(excluded)) {
+            return;
+        }
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            return; //Already gone again
+        }
+
+        int id;
+        lock.writeLock().lock();
+        try {
+            id = path.equals(root) ? ROOT : ensurePath(path, attrs);
+            touchParent(path);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (id >= ROOT && attrs.isDirectory()) {
+            walk(path, id);
+        }
+    }
+
+    //Finds or creates the entry for path, creating parent directories as needed
+    private int ensurePath(Path path, BasicFileAttributes attrs) {
+        int id = ROOT;
+        Path relative = root.relativize(path);
+        for (int i = 0; i < relative.getNameCount(); i++) {
+            byte[] name = encode(relative.getName(i).toString());
+            int child = lookup(id, name);
+            if (child < 0) {
+                boolean last = i == relative.getNameCount() - 1;
+                child = addEntry(id, name, !last || attrs.isDirectory(), last ? attrs.lastModifiedTime().toMillis() : 0);
+            }
+            id = child;
+        }
+        return id;
+    }
+
+    //Keeps the saved directory time current for our own changes, so reconcile skips it
+    private void touchParent(Path path) {
+        Path parent = path.getParent();
+        int id = parent != null ? find(parent) : NONE;
+        if (id >= ROOT) {
+            try {
+                modifiedMillis[id] = Files.getLastModifiedTime(parent, LinkOption.NOFOLLOW_LINKS).toMillis();
+            } catch (IOException e) {
+                //Refreshed when it is next seen
+            }
+        }
+    }
+
+    /*
+    * Section: entry table
+    * Callers hold the write lock (find/lookup/nameOf/pathOf: at least the read lock).
+    * */
+    private void clear() {
+        count = 0;
+        liveCount = 0;
+        garbage = 0;
+        namesLength = 0;
+        slots = newSlots(2048);
+        slotsUsed = 0;
+        Arrays.fill(directoryBits, 0);
+        Arrays.fill(liveBits, 0);
+        postings.clear();
+        addEntry(NONE, new byte[0], true, 0); //Root
+    }
+
+    private int addEntry(int parent, byte[] name, boolean directory, long modified) {
+        if (count == parents.length) {
+            grow(count * 2);
+        }
+        int id = count++;
+        parents[id] = parent;
+        firstChild[id] = NONE;
+        modifiedMillis[id] = modified;
+        setName(id, name);
+        if (directory) {
+            directoryBits[id >>> 6] |= 1L << id;
+        } else {
+            directoryBits[id >>> 6] &= ~(1L << id);
+        }
+        liveBits[id >>> 6] |= 1L << id;
+        liveCount++;
+        if (parent != NONE) {
+            link(id);
+            insertSlot(id);
+            addTrigrams(id);
+        }
+        markDirty();
+        return id;
+    }
+
+    private void grow(int capacity) {
+        parents = Arrays.copyOf(parents, capacity);
+        firstChild = Arrays.copyOf(firstChild, capacity);
+        nextSibling = Arrays.copyOf(nextSibling, capacity);
+        previousSibling = Arrays.copyOf(previousSibling, capacity);
+        nameStarts = Arrays.copyOf(nameStarts, capacity);
+        nameLengths = Arrays.copyOf(nameLengths, capacity);
+        modifiedMillis = Arrays.copyOf(modifiedMillis, capacity);
+        directoryBits = Arrays.copyOf(directoryBits, (capacity + 63) >>> 6);
+        liveBits = Arrays.copyOf(liveBits, (capacity + 63) >>> 6);
+    }
+
+    private void setName(int id, byte[] name) {
+        if (namesLength + name.length > names.length) {
+            names = Arrays.copyOf(names, Math.max(names.length * 2, namesLength + name.length));
+        }
+        System.arraycopy(name, 0, names, namesLength, name.length);
+        nameStarts[id] = namesLength;
+        nameLengths[id] = name.length;
+        namesLength += name.length;
+    }
+
+    //Removes the entry and everything below it
+    private void removeTree(int top) {
+        unlink(top);
+        int[] stack = new int[16];
+        int depth = 0;
+        stack[depth++] = top;
+        while (depth > 0) {
+            int id = stack[--depth];
+            for (int child = firstChild[id]; child != NONE; child = nextSibling[child]) {
+                if (depth == stack.length) {
+                    stack = Arrays.copyOf(stack, depth * 2);
+                }
+                stack[depth++] = child;
+            }
+            removeSlot(id);
+            liveBits[id >>> 6] &= ~(1L << id);
+            liveCount--;
+            garbage++;
+        }
+        markDirty();
+    }
+
+    private void link(int id) {
+        int parent = parents[id];
+        previousSibling[id] = NONE;
+        nextSibling[id] = firstChild[parent];
+        if (firstChild[parent] != NONE) {
+            previousSibling[firstChild[parent]] = id;
+        }
+        firstChild[parent] = id;
+    }
+
+    private void unlink(int id) {
+        int previous = previousSibling[id];
+        int next = nextSibling[id];
+        if (previous != NONE) {
+            nextSibling[previous] = next;
+        } else {
+            firstChild[parents[id]] = next;
+        }
+        if (next != NONE) {
+            previousSibling[next] = previous;
+        }
+    }
+
+    private boolean isLive(int id) {
+        return (liveBits[id >>> 6] & (1L << id)) != 0;
+    }
+
+    private boolean isDirectory(int id) {
+        return (directoryBits[id >>> 6] & (1L << id)) != 0;
+    }
+
+    private String nameOf(int id) {
+        return new String(names, nameStarts[id], nameLengths[id], StandardCharsets.UTF_8);
+    }
+
+    private Path pathOf(int id) {
+        List<String> parts = new ArrayList<>();
+        for (int e = id; e != ROOT; e = parents[e]) {
+            parts.add(nameOf(e));
+        }
+        Path path = root;
+        for (int i = parts.size() - 1; i >= 0; i--) {
+            path = path.resolve(parts.get(i));
+        }
+        return path;
+    }
+
+    //Entry for the path, or NONE if it is not indexed
+    private int find(Path path) {
+        if (path == null || !path.startsWith(root)) {
+            return NONE;
+        }
+        Path relative = root.relativize(path);
+        int id = ROOT;
+        for (int i = 0; i < relative.getNameCount() && id != NONE; i++) {
+            String name = relative.getName(i).toString();
+            if (!name.isEmpty()) {
+                id = lookup(id, encode(name));
+            }
+        }
+        return id;
+    }
+
+    //(parent, name) hash table
+    private int lookup(int parent, byte[] name) {
+        int mask = slots.length - 1;
+        for (int slot = hash(parent, name, 0, name.length) & mask; slots[slot] != FREE_SLOT; slot = (slot + 1) & mask) {
+            int id = slots[slot];
+            if (id >= 0 && parents[id] == parent
+                    && Arrays.equals(names, nameStarts[id], nameStarts[id] + nameLengths[id], name, 0, name.length)) {
+                return id;
+            }
+        }
+        return NONE;
+    }
+
+    private void insertSlot(int id) {
+        if ((slotsUsed + 1) * 2 > slots.length) {
+            rehash(liveCount * 4 > slots.length ? slots.length * 2 : slots.length);
+        }
+        int mask = slots.length - 1;
+        int slot = hashOf(id) & mask;
+        while (slots[slot] >= 0) {
+            slot = (slot + 1) & mask;
+        }
+        if (slots[slot] == FREE_SLOT) {
+            slotsUsed++;
+        }
+        slots[slot] = id;
+    }
+
+    private void removeSlot(int id) {
+        int mask = slots.length - 1;
+        for (int slot = hashOf(id) & mask; slots[slot] != FREE_SLOT; slot = (slot + 1) & mask) {
+            if (slots[slot] == id) {
+                slots[slot] = DELETED_SLOT;
+                return;
+            }
+        }
+    }
+
+    //Also clears deleted slots
+    private void rehash(int capacity) {
+        int[] old = slots;
+        slots = newSlots(capacity);
+        slotsUsed = 0;
+        int mask = capacity - 1;
+        for (int id : old) {
+            if (id >= 0) {
+                int slot = hashOf(id) & mask;
+                while (slots[slot] != FREE_SLOT) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = id;
+                slotsUsed++;
+            }
+        }
+    }
+
+    private int hashOf(int id) {
+        return hash(parents[id], names, nameStarts[id], nameStarts[id] + nameLengths[id]);
+    }
+
+    private static int hash(int parent, byte[] bytes, int from, int to) {
+        int h = parent * 0x9E3779B1;
+        for (int i = from; i < to; i++) {
+            h = 31 * h + bytes[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static int[] newSlots(int capacity) {
+        int[] table = new int[capacity];
+        Arrays.fill(table, FREE_SLOT);
+        return table;
+    }
+
+    private void addTrigrams(int id) {
+        byte[] lowerCase = encode(nameOf(id).toLowerCase(Locale.ROOT));
+        for (int i = 0; i + 3 <= lowerCase.length; i++) {
+            postings.add(trigram(lowerCase, i), id);
+        }
+    }
+
+    private static int trigram(byte[] bytes, int i) {
+        return (bytes[i] & 0xFF) << 16 | (bytes[i + 1] & 0xFF) << 8 | (bytes[i + 2] & 0xFF);
+    }
+
+    private static byte[] encode(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /*
+    * Rebuilds the table from the live entries once garbage outweighs them:
+    * drops dead entries, old names and stale postings. Entry ids change, so this
+    * only runs at the end of an update.
+    * */
+    private void compactIfNeeded() {
+        if (garbage < MIN_COMPACT_GARBAGE || garbage < liveCount) {
+            return;
+        }
+        Entries live = collect();
+        clear();
+        live.addTo(this);
+    }
+
+    private void markDirty() {
+        dirty = true;
+        if (ready) {
+            scheduleSave();
+        }
+    }
+
+    /*
+    * Section: persistence
+    * Entries are written parents first, each with the position of its parent,
+    * so loading is a single pass. Postings are not saved; they are rebuilt from
+    * the names while loading, which costs no disk access.
+    * */
+    private void scheduleSave() {
+        if (saveScheduled.compareAndSet(false, true)) {
+            worker.schedule(() -> {
+                saveScheduled.set(false);
+                save();
+            }, SAVE_DELAY_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    //Writes the index if it changed since it was last saved
+    void save() {
+        Entries live;
+        long rootModified;
+        lock.readLock().lock();
+        try {
+            if (!dirty || !ready) {
+                return;
+            }
+            live = collect();
+            rootModified = modifiedMillis[ROOT];
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        try {
+            Files.createDirectories(indexFile.getParent());
+            Path temp = Files.createTempFile(indexFile.getParent(), indexFile.getFileName().toString(), ".tmp");
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeUTF(root.toString());
+                    out.writeLong(rootModified);
+                    live.writeTo(out);
+                }
+                try {
+                    Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            lock.writeLock().lock();
+            try {
+                dirty = false; //Changes made meanwhile have scheduled another save
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } catch (IOException e) {
+            //Rebuilt or reconciled on the next start
+        }
+    }
+
+    //False if there is no usable saved index
+    private boolean load() {
+        if (!Files.isRegularFile(indexFile)) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(root.toString())) {
+                return false;
+            }
+            long rootModified = in.readLong();
+            Entries saved = Entries.readFrom(in);
+
+            lock.writeLock().lock();
+            try {
+                clear();
+                modifiedMillis[ROOT] = rootModified;
+                saved.addTo(this);
+                dirty = false;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            lock.writeLock().lock();
+            try {
+                clear();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            return false; //Damaged or from an older version: walk instead
+        }
+    }
+
+    //Live entries below the root, depth first; call with the lock held
+    private Entries collect() {
+        Entries entries = new Entries(liveCount - 1, namesLength);
+        int[] position = new int[count];
+        int[] stack = new int[16];
+        int depth = 0;
+        for (int child = firstChild[ROOT]; child != NONE; child = nextSibling[child]) {
+            if (depth == stack.length) {
+                stack = Arrays.copyOf(stack, depth * 2);
+            }
+            stack[depth++] = child;
+        }
+        while (depth > 0) {
+            int id = stack[--depth];
+            int parent = parents[id];
+            position[id] = entries.add(parent == ROOT ? NONE : position[parent], isDirectory(id),
+                    modifiedMillis[id], names, nameStarts[id], nameLengths[id]);
+            for (int child = firstChild[id]; child != NONE; child = nextSibling[child]) {
+                if (depth == stack.length) {
+                    stack = Arrays.copyOf(stack, depth * 2);
+                }
+                stack[depth++] = child;
+            }
+        }
+        return entries;
+    }
+
+    //Saves a last time; called on exit
+    @Override
+    public void close() {
+        worker.shutdownNow();
+        save();
+    }
+
+    //Flat copy of the live entries, parents before children
+    private static final class Entries {
+        private int size;
+        private int[] parents;
+        private boolean[] directories;
+        private long[] modified;
+        private int[] nameEnds;
+        private byte[] names;
+        private int namesLength;
+
+        Entries(int capacity, int namesCapacity) {
+            parents = new int[Math.max(capacity, 1)];
+            directories = new boolean[parents.length];
+            modified = new long[parents.length];
+            nameEnds = new int[parents.length];
+            names = new byte[Math.max(namesCapacity, 1)];
+        }
+
+        int add(int parent, boolean directory, long modifiedMillis, byte[] source, int from, int length) {
+            if (size == parents.length) {
+                int capacity = size * 2;
+                parents = Arrays.copyOf(parents, capacity);
+                directories = Arrays.copyOf(directories, capacity);
+                modified = Arrays.copyOf(modified, capacity);
+                nameEnds = Arrays.copyOf(nameEnds, capacity);
+            }
+            if (namesLength + length > names.length) {
+                names = Arrays.copyOf(names, Math.max(names.length * 2, namesLength + length));
+            }
+            System.arraycopy(source, from, names, namesLength, length);
+            namesLength += length;
+            parents[size] = parent;
+            directories[size] = directory;
+            modified[size] = modifiedMillis;
+            nameEnds[size] = namesLength;
+            return size++;
+        }
+
+        //Into a freshly cleared index, where entry i becomes id i + 1
+        void addTo(NameIndex index) {
+            for (int i = 0; i < size; i++) {
+                int from = i == 0 ? 0 : nameEnds[i - 1];
+                int parent = parents[i] == NONE ? ROOT : parents[i] + 1;
+                if (parent >= index.count) {
+                    throw new IllegalStateException("Entry " + i + " comes before its parent");
+                }
+                index.addEntry(parent, Arrays.copyOfRange(names, from, nameEnds[i]), directories[i], modified[i]);
+            }
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                int from = i == 0 ? 0 : nameEnds[i - 1];
+                out.writeInt(parents[i]);
+                out.writeBoolean(directories[i]);
+                out.writeLong(modified[i]);
+                out.writeShort(nameEnds[i] - from);
+                out.write(names, from, nameEnds[i] - from);
+            }
+        }
+
+        static Entries readFrom(DataInputStream in) throws IOException {
+            int size = in.readInt();
+            Entries entries = new Entries(size, size * 16);
+            byte[] name = new byte[0xFFFF];
+            for (int i = 0; i < size; i++) {
+                int parent = in.readInt();
+                boolean directory = in.readBoolean();
+                long modifiedMillis = in.readLong();
+                int length = in.readUnsignedShort();
+                in.readFully(name, 0, length);
+                entries.add(parent, directory, modifiedMillis, name, 0, length);
+            }
+            return entries;
+        }
+    }
+
+    //Trigram -> entries whose lower-cased name contains it, in the order they were added
+    private static final class TrigramPostings {
+        private int[] keys; //Trigram + 1, 0 for a free slot
+        private int[][] lists;
+        private int[] sizes;
+        private int used;
+
+        TrigramPostings() {
+            clear();
+        }
+
+        void clear() {
+            keys = new int[1024];
+            lists = new int[1024][];
+            sizes = new int[1024];
+            used = 0;
+        }
+
+        int find(int trigram) {
+            int mask = keys.length - 1;
+            for (int slot = mix(trigram) & mask; keys[slot] != 0; slot = (slot + 1) & mask) {
+                if (keys[slot] == trigram + 1) {
+                    return slot;
+                }
+            }
+            return NONE;
+        }
+
+        void add(int trigram, int id) {
+            int slot = find(trigram);
+            if (slot < 0) {
+                if ((used + 1) * 2 > keys.length) {
+                    resize();
+                }
+                int mask = keys.length - 1;
+                slot = mix(trigram) & mask;
+                while (keys[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = trigram + 1;
+                lists[slot] = new int[4];
+                used++;
+            }
+            int size = sizes[slot];
+            if (size > 0 && lists[slot][size - 1] == id) {
+                return; //Same trigram twice in one name
+            }
+            if (size == lists[slot].length) {
+                lists[slot] = Arrays.copyOf(lists[slot], size * 2);
+            }
+            lists[slot][size] = id;
+            sizes[slot] = size + 1;
+        }
+
+        private void resize() {
+            int[] oldKeys = keys;
+            int[][] oldLists = lists;
+            int[] oldSizes = sizes;
+            keys = new int[oldKeys.length * 2];
+            lists = new int[keys.length][];
+            sizes = new int[keys.length];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    int slot = mix(oldKeys[i] - 1) & mask;
+                    while (keys[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    lists[slot] = oldLists[i];
+                    sizes[slot] = oldSizes[i];
+                }
+            }
+        }
+
+        private static int mix(int trigram) {
+            int h = trigram * 0x9E3779B1;
+            return h ^ (h >>> 15);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package org.logannelson.filesystem.service;
+//One path that a file operation could not process, and why.
+import java.io.IOException;
+import java.nio.file.Path;
+
+public class OperationFailure {
+
+    private final Path path;
+    private final IOException error;
+
+    public OperationFailure(Path path, IOException error) {
+        this.path = path;
+        this.error = error;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public IOException getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return path + ": " + (error.getMessage() != null ? error.getMessage() : error.getClass().getSimpleName());
+    }
+}
@@ -0,0 +1,102 @@
+package org.logannelson.filesystem.service;
+//Counts, bytes, items and latencies of one FileSystemService operation.
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+* Bytes are what the operation read, wrote or copied, where it knows; items are entries
+* listed or results found. Failed calls count as calls and errors, and their latency is
+* recorded like any other.
+* */
+public class OperationMetrics implements OperationMetricsMXBean {
+
+    private final String operation;
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder items = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    OperationMetrics(String operation) {
+        this.operation = operation;
+    }
+
+    //Getters
+    @Override
+    public String getOperation() {
+        return operation;
+    }
+
+    //Every call has its latency recorded, so the histogram counts them
+    @Override
+    public long getCalls() {
+        return latency.getCount();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    @Override
+    public long getItems() {
+        return items.sum();
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    @Override
+    public double getMeanMicros() {
+        return latency.getMean() / 1000;
+    }
+
+    @Override
+    public long getP50Micros() {
+        return latency.getValueAtPercentile(50) / 1000;
+    }
+
+    @Override
+    public long getP99Micros() {
+        return latency.getValueAtPercentile(99) / 1000;
+    }
+
+    @Override
+    public long getP999Micros() {
+        return latency.getValueAtPercentile(99.9) / 1000;
+    }
+
+    @Override
+    public long getMaxMicros() {
+        return latency.getMax() / 1000;
+    }
+
+    //Methods//
+    @Override
+    public String toString() {
+        return String.format("%s: %,d calls, %,d errors, p50 %,d us, p99 %,d us, max %,d us",
+                operation, getCalls(), getErrors(), getP50Micros(), getP99Micros(), getMaxMicros());
+    }
+
+    /*
+    * Section: recorded by MeteredFileSystemService
+    * */
+    void succeeded(long startNanos, long byteCount, long itemCount) {
+        latency.record(System.nanoTime() - startNanos);
+        if (byteCount > 0) {
+            bytes.add(byteCount);
+        }
+        if (itemCount > 0) {
+            items.add(itemCount);
+        }
+    }
+
+    void failed(long startNanos) {
+        latency.record(System.nanoTime() - startNanos);
+        errors.increment();
+    }
+}
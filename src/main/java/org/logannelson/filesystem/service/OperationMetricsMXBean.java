@@ -0,0 +1,24 @@
+package org.logannelson.filesystem.service;
+//What JMX shows for one service operation; times are in microseconds.
+public interface OperationMetricsMXBean {
+
+    String getOperation();
+
+    long getCalls();
+
+    long getErrors();
+
+    long getBytes();
+
+    long getItems();
+
+    double getMeanMicros();
+
+    long getP50Micros();
+
+    long getP99Micros();
+
+    long getP999Micros();
+
+    long getMaxMicros();
+}
@@ -0,0 +1,159 @@
+package org.logannelson.filesystem.service;
+//Live counts, failures and cancellation for a long-running file operation.
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/*
+* Created by the caller and handed to the operation, so the caller can read the
+* counts from another thread (e.g. a Swing timer) and cancel at any time.
+* Operations do not stop at the first IOException: each failing path is recorded
+* and the rest of the work continues.
+* */
+public class OperationProgress {
+
+    //How long one checkpoint waits at most for higher-priority work, so a bulk job never stalls for good
+    private static final long MAX_YIELD_NANOS = 100_000_000L; //100 ms
+    private static final long YIELD_POLL_NANOS = 1_000_000L;
+
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong directories = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private volatile long startNanos = System.nanoTime();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final Queue<OperationFailure> failures = new ConcurrentLinkedQueue<>();
+    private volatile Path currentPath;
+    private volatile boolean cancelled;
+    private volatile BooleanSupplier yieldCondition;
+
+    //Asks the operation to stop; work already done is not undone
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public long getFilesProcessed() {
+        return files.get();
+    }
+
+    public long getDirectoriesProcessed() {
+        return directories.get();
+    }
+
+    public long getBytesProcessed() {
+        return bytes.get();
+    }
+
+    //Files an earlier, interrupted run had already done (copy resume); not in the other counts
+    public long getFilesSkipped() {
+        return skipped.get();
+    }
+
+    public long getElapsedMillis() {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+
+    //Average since this progress was created
+    public long getBytesPerSecond() {
+        long nanos = Math.max(System.nanoTime() - startNanos, 1);
+        return (long) (bytes.get() * 1e9 / nanos);
+    }
+
+    //Last path the operation finished with; handy for a status line
+    public Path getCurrentPath() {
+        return currentPath;
+    }
+
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    public List<OperationFailure> getFailures() {
+        return new ArrayList<>(failures);
+    }
+
+    /*
+    * Throws an IOException describing the failures, if there were any.
+    * For callers that want the old all-or-nothing behavior.
+    * */
+    public void throwIfFailed(String action) throws IOException {
+        List<OperationFailure> all = getFailures();
+        if (all.isEmpty()) {
+            return;
+        }
+        IOException error = new IOException("Failed to " + action + " " + all.size() + " item(s), first: " + all.get(0));
+        for (OperationFailure failure : all) {
+            error.addSuppressed(failure.getError());
+        }
+        throw error;
+    }
+
+    /*
+    * Section: set by the scheduler
+    * */
+
+    //Restarts the clock when a queued operation actually starts, so throughput ignores the wait
+    void started() {
+        startNanos = System.nanoTime();
+    }
+
+    //While this returns true, checkpoint() holds the operation back
+    void setYieldCondition(BooleanSupplier yieldCondition) {
+        this.yieldCondition = yieldCondition;
+    }
+
+    /*
+    * Called by operations between units of work (a file, a chunk of a large file).
+    * Waits while the scheduler says higher-priority work needs the same disk, but at most
+    * MAX_YIELD_NANOS per call, and never once cancelled.
+    * */
+    void checkpoint() {
+        BooleanSupplier condition = yieldCondition;
+        if (condition == null) {
+            return;
+        }
+        long deadline = System.nanoTime() + MAX_YIELD_NANOS;
+        while (!cancelled && condition.getAsBoolean() && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(YIELD_POLL_NANOS);
+        }
+    }
+
+    /*
+    * Section: recorded by the operation
+    * */
+    void fileDone(Path path, long size) {
+        files.incrementAndGet();
+        bytes.addAndGet(size);
+        currentPath = path;
+    }
+
+    //Part of a large file, so the byte count moves while it is still being processed
+    void bytesDone(long count) {
+        bytes.addAndGet(count);
+    }
+
+    void fileSkipped(Path path) {
+        skipped.incrementAndGet();
+        currentPath = path;
+    }
+
+    void directoryDone(Path path) {
+        directories.incrementAndGet();
+        currentPath = path;
+    }
+
+    void failed(Path path, IOException error) {
+        failureCount.incrementAndGet();
+        failures.add(new OperationFailure(path, error));
+    }
+}
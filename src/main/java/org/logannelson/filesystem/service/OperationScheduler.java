@@ -0,0 +1,176 @@
+package org.logannelson.filesystem.service;
+//Runs long file operations in the background, ordered by priority and limited per disk.
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+* Every operation gets its own thread, which mostly waits on the disk: a virtual thread
+* where the runtime has them (Java 21+), otherwise a daemon thread from a cached pool.
+* The build targets Java 17, so the virtual thread executor is looked up reflectively.
+*
+* Operations are grouped by the FileStore (device) of their path:
+* - BULK operations need one of maxBulkPerDevice slots on their device and wait in
+*   FIFO order for one; more parallel streams on one disk only add seeking.
+* - INTERACTIVE operations start at once. While any is running on a device, the bulk
+*   operations there hold back at their next checkpoint (between files and chunks),
+*   so the reads the user is waiting for do not queue behind a saturating copy.
+* Cancelling a queued operation drops it without running it.
+* */
+public final class OperationScheduler implements Closeable {
+
+    public static final int DEFAULT_MAX_BULK_PER_DEVICE = 2;
+
+    //How often a queued operation checks whether it was cancelled
+    private static final long QUEUE_POLL_MILLIS = 100;
+
+    private final int maxBulkPerDevice;
+    private final ExecutorService executor;
+    private final Map<Object, Device> devices = new ConcurrentHashMap<>();
+    private final List<ScheduledOperation<?>> operations = new CopyOnWriteArrayList<>();
+
+    //Per FileStore: bulk slots and the number of interactive operations running on it
+    private final class Device {
+        final Semaphore bulkSlots = new Semaphore(maxBulkPerDevice, true);
+        final AtomicInteger interactive = new AtomicInteger();
+    }
+
+    public OperationScheduler() {
+        this(DEFAULT_MAX_BULK_PER_DEVICE);
+    }
+
+    public OperationScheduler(int maxBulkPerDevice) {
+        if (maxBulkPerDevice < 1) {
+            throw new IllegalArgumentException("maxBulkPerDevice must be at least 1");
+        }
+        this.maxBulkPerDevice = maxBulkPerDevice;
+        this.executor = newExecutor();
+    }
+
+    /*
+    * Starts the task in the background and returns at once; safe to call on the EDT.
+    * path decides the device (the nearest existing ancestor's FileStore); progress is
+    * what the task reports to and what cancel() sets.
+    * */
+    public <T> ScheduledOperation<T> submit(String name, ScheduledOperation.Priority priority, Path path,
+                                            OperationProgress progress, ScheduledOperation.Task<T> task) {
+        ScheduledOperation<T> operation = new ScheduledOperation<>(name, priority, progress, task);
+        operations.add(operation);
+        executor.execute(() -> {
+            try {
+                execute(operation, path);
+            } finally {
+                operations.remove(operation);
+            }
+        });
+        return operation;
+    }
+
+    /*
+    * Runs an interactive task on the calling thread (which must not be the EDT), for
+    * callers that already are in the background, such as a directory listing worker.
+    * Bulk work on the same device holds back until it returns.
+    * */
+    public <T> T runInteractive(Path path, ScheduledOperation.Task<T> task) throws IOException {
+        Device device = deviceOf(path);
+        device.interactive.incrementAndGet();
+        try {
+            return task.run();
+        } finally {
+            device.interactive.decrementAndGet();
+        }
+    }
+
+    //Queued and running operations, oldest first
+    public List<ScheduledOperation<?>> getOperations() {
+        return new ArrayList<>(operations);
+    }
+
+    //Cancels everything still queued or running and stops taking new work
+    @Override
+    public void close() {
+        for (ScheduledOperation<?> operation : operations) {
+            operation.cancel();
+        }
+        executor.shutdown();
+    }
+
+    private void execute(ScheduledOperation<?> operation, Path path) {
+        Device device = deviceOf(path);
+        OperationProgress progress = operation.getProgress();
+
+        if (operation.getPriority() == ScheduledOperation.Priority.INTERACTIVE) {
+            device.interactive.incrementAndGet();
+            try {
+                operation.run();
+            } finally {
+                device.interactive.decrementAndGet();
+            }
+            return;
+        }
+
+        try {
+            while (!device.bulkSlots.tryAcquire(QUEUE_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (progress.isCancelled()) {
+                    operation.dropped();
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            operation.dropped();
+            return;
+        }
+        try {
+            if (progress.isCancelled()) {
+                operation.dropped();
+                return;
+            }
+            progress.setYieldCondition(() -> device.interactive.get() > 0);
+            operation.run();
+        } finally {
+            progress.setYieldCondition(null);
+            device.bulkSlots.release();
+        }
+    }
+
+    private Device deviceOf(Path path) {
+        return devices.computeIfAbsent(storeOf(path), store -> new Device());
+    }
+
+    //The FileStore of the nearest existing ancestor; paths it cannot place share one device
+    private static Object storeOf(Path path) {
+        for (Path current = path == null ? null : path.toAbsolutePath(); current != null; current = current.getParent()) {
+            try {
+                return Files.getFileStore(current);
+            } catch (IOException e) {
+                //Not there (yet), try the parent
+            }
+        }
+        return path == null ? "default" : path.getFileSystem();
+    }
+
+    private static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "scheduled-operation-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package org.logannelson.filesystem.service;
+//Shared and exclusive locks on paths, with intent locks on their ancestors, over a fixed set of stripes.
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+* Locking a path also locks every directory above it (up to, not including, the root) with
+* an intent lock, the usual multiple-granularity scheme:
+*
+*                  held: INTENT_SHARED  INTENT_EXCLUSIVE  SHARED  EXCLUSIVE
+*   INTENT_SHARED          yes            yes              yes     no
+*   INTENT_EXCLUSIVE       yes            yes              no      no
+*   SHARED                 yes            no               yes     no
+*   EXCLUSIVE              no             no               no      no
+*
+* So an exclusive lock on a folder (delete, move) waits for, and then keeps out, anyone
+* working below it, while writers of two files in one folder only share an intent lock.
+* Readers never wait for each other.
+*
+* Paths are hashed onto a fixed number of stripes instead of getting a lock each, so
+* nothing is allocated or cleaned up per path. Two paths on one stripe share its state;
+* that can make one wait for the other needlessly, never let a conflict through. All the
+* stripes a call needs are taken at once, in stripe order, which rules out deadlocks
+* between callers. Holds are reentrant per thread: a thread holding a path may lock it
+* again in the same or a weaker mode, but not upgrade (a reader asking to write throws).
+* A new request waits while a writer is queued on its stripe, so writers are not starved.
+* */
+public final class PathLockManager {
+
+    public static final int DEFAULT_STRIPES = 1024;
+
+    public enum Mode {
+        INTENT_SHARED,
+        INTENT_EXCLUSIVE,
+        SHARED,
+        EXCLUSIVE;
+
+        //Whether holding this already gives other
+        boolean covers(Mode other) {
+            return this == other || this == EXCLUSIVE
+                    || (other == INTENT_SHARED && (this == INTENT_EXCLUSIVE || this == SHARED));
+        }
+
+        //The weakest mode covering both; SHARED plus INTENT_EXCLUSIVE has to be EXCLUSIVE here
+        Mode join(Mode other) {
+            if (covers(other)) {
+                return this;
+            }
+            return other.covers(this) ? other : EXCLUSIVE;
+        }
+    }
+
+    //What a lock call returns; closing it (on the same thread) unlocks
+    @FunctionalInterface
+    public interface Hold extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private final Path root;
+    private final Stripe[] stripes;
+    private final int mask;
+
+    //Per thread: the stripes it holds, by index, for reentrancy
+    private final ThreadLocal<Map<Integer, Held>> held = ThreadLocal.withInitial(HashMap::new);
+
+    private static final class Held {
+        final Mode mode;
+        int count;
+
+        Held(Mode mode) {
+            this.mode = mode;
+        }
+    }
+
+    public PathLockManager(Path root) {
+        this(root, DEFAULT_STRIPES);
+    }
+
+    //stripes is rounded up to a power of two
+    public PathLockManager(Path root, int stripes) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("stripes must be at least 1");
+        }
+        this.root = root.toAbsolutePath().normalize();
+        int size = 1;
+        while (size < stripes) {
+            size <<= 1;
+        }
+        this.stripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        this.mask = size - 1;
+    }
+
+    public Hold lockShared(Path path) {
+        return lock(new Path[]{path}, new Path[0]);
+    }
+
+    public Hold lockExclusive(Path... paths) {
+        return lock(new Path[0], paths);
+    }
+
+    //A path in both arrays is locked exclusively
+    public Hold lock(Path[] shared, Path[] exclusive) {
+        TreeMap<Integer, Mode> needed = new TreeMap<>();
+        for (Path path : shared) {
+            require(needed, path, Mode.SHARED, Mode.INTENT_SHARED);
+        }
+        for (Path path : exclusive) {
+            require(needed, path, Mode.EXCLUSIVE, Mode.INTENT_EXCLUSIVE);
+        }
+
+        Map<Integer, Held> mine = held.get();
+        int[] taken = new int[needed.size()];
+        int count = 0;
+        try {
+            for (Map.Entry<Integer, Mode> entry : needed.entrySet()) {
+                int index = entry.getKey();
+                Mode mode = entry.getValue();
+                Held current = mine.get(index);
+                if (current != null) {
+                    if (!current.mode.covers(mode)) {
+                        throw new IllegalStateException("Cannot upgrade a " + current.mode + " lock to " + mode
+                                + " (stripe " + index + ")");
+                    }
+                    current.count++;
+                } else {
+                    stripes[index].lock(mode);
+                    Held fresh = new Held(mode);
+                    fresh.count = 1;
+                    mine.put(index, fresh);
+                }
+                taken[count++] = index;
+            }
+        } catch (RuntimeException e) {
+            release(taken, count);
+            throw e;
+        }
+        int acquired = count;
+        return () -> release(taken, acquired);
+    }
+
+    //Stripes that are locked right now, for tests and monitoring
+    public int getLockedStripeCount() {
+        int locked = 0;
+        for (Stripe stripe : stripes) {
+            if (stripe.isLocked()) {
+                locked++;
+            }
+        }
+        return locked;
+    }
+
+    private void require(Map<Integer, Mode> needed, Path path, Mode mode, Mode intent) {
+        Path normalized = path.toAbsolutePath().normalize();
+        needed.merge(stripeOf(normalized), mode, Mode::join);
+        for (Path ancestor = normalized.getParent();
+             ancestor != null && ancestor.startsWith(root) && !ancestor.equals(root);
+             ancestor = ancestor.getParent()) {
+            needed.merge(stripeOf(ancestor), intent, Mode::join);
+        }
+    }
+
+    private int stripeOf(Path path) {
+        int hash = path.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    //Last taken, first released
+    private void release(int[] taken, int count) {
+        Map<Integer, Held> mine = held.get();
+        for (int i = count - 1; i >= 0; i--) {
+            Held current = mine.get(taken[i]);
+            if (--current.count == 0) {
+                mine.remove(taken[i]);
+                stripes[taken[i]].unlock(current.mode);
+            }
+        }
+    }
+
+    /*
+    * Counts of the holders per mode. Waiting goes through ForkJoinPool.managedBlock, so a
+    * pool thread waiting here (a batch operation) gets a spare thread in its place, and a
+    * holder waiting on the same pool (a recursive delete) still finds workers.
+    * */
+    private static final class Stripe {
+        private int intentShared;
+        private int intentExclusive;
+        private int shared;
+        private int exclusive;
+        private int exclusiveWaiting;
+
+        void lock(Mode mode) {
+            synchronized (this) {
+                if (exclusiveWaiting == 0 && tryAcquire(mode)) {
+                    return;
+                }
+                if (mode == Mode.EXCLUSIVE) {
+                    exclusiveWaiting++;
+                }
+            }
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                        @Override
+                        public boolean block() throws InterruptedException {
+                            synchronized (Stripe.this) {
+                                while (!acquireWaiting(mode)) {
+                                    Stripe.this.wait();
+                                }
+                            }
+                            return true;
+                        }
+
+                        @Override
+                        public boolean isReleasable() {
+                            synchronized (Stripe.this) {
+                                return acquireWaiting(mode);
+                            }
+                        }
+                    });
+                    break;
+                } catch (InterruptedException e) {
+                    //File operations do not give up their turn; the flag is restored below
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized void unlock(Mode mode) {
+            switch (mode) {
+                case INTENT_SHARED -> intentShared--;
+                case INTENT_EXCLUSIVE -> intentExclusive--;
+                case SHARED -> shared--;
+                case EXCLUSIVE -> exclusive--;
+            }
+            notifyAll();
+        }
+
+        synchronized boolean isLocked() {
+            return intentShared + intentExclusive + shared + exclusive > 0;
+        }
+
+        //A queued writer goes first; everyone else waits until no writer is queued
+        private boolean acquireWaiting(Mode mode) {
+            if (mode != Mode.EXCLUSIVE && exclusiveWaiting > 0) {
+                return false;
+            }
+            if (!tryAcquire(mode)) {
+                return false;
+            }
+            if (mode == Mode.EXCLUSIVE) {
+                exclusiveWaiting--;
+            }
+            return true;
+        }
+
+        private boolean tryAcquire(Mode mode) {
+            boolean free = switch (mode) {
+                case INTENT_SHARED -> exclusive == 0;
+                case INTENT_EXCLUSIVE -> shared == 0 && exclusive == 0;
+                case SHARED -> intentExclusive == 0 && exclusive == 0;
+                case EXCLUSIVE -> intentShared == 0 && intentExclusive == 0 && shared == 0 && exclusive == 0;
+            };
+            if (!free) {
+                return false;
+            }
+            switch (mode) {
+                case INTENT_SHARED -> intentShared++;
+                case INTENT_EXCLUSIVE -> intentExclusive++;
+                case SHARED -> shared++;
+                case EXCLUSIVE -> exclusive++;
+            }
+            return true;
+        }
+    }
+}
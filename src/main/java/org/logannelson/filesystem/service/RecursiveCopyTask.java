@@ -0,0 +1,234 @@
+package org.logannelson.filesystem.service;
+//Copies one directory tree, forking subtasks for subdirectories and batches of files.
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/*
+* Walks like RecursiveDeleteTask, but pre-order: the target directory is created before
+* its entries are read, subdirectories go to subtasks that other pool threads can steal,
+* and files are handed out in batches of FILE_BATCH, so one large directory still keeps
+* every thread busy. Each task holds its open DirectoryStream, at most FORK_BATCH
+* pending subtasks and one batch of paths.
+*
+* Files of TRANSFER_THRESHOLD or more go through FileChannel.transferTo, which lets the
+* kernel move the bytes without copying them through the heap where the platform can,
+* in TRANSFER_CHUNK steps so progress and cancellation stay live. They are written to
+* a ".part" file next to the target and renamed when complete.
+*
+* Copying again resumes: a target file with the same size and modification time as its
+* source is skipped, and a .part file that is not older than its source is continued
+* from its end. Anything else at the target is replaced.
+* Links are copied as links, never followed. Returns true if everything was copied.
+* */
+final class RecursiveCopyTask extends RecursiveTask<Boolean> {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int FORK_BATCH = 64;
+    private static final int FILE_BATCH = 16;
+    static final long TRANSFER_THRESHOLD = 1024 * 1024;
+    private static final long TRANSFER_CHUNK = 16L * 1024 * 1024;
+    private static final String PART_SUFFIX = ".part";
+
+    private final Path source;
+    private final Path target;
+    private final OperationProgress progress;
+
+    RecursiveCopyTask(Path source, Path target, OperationProgress progress) {
+        this.source = source;
+        this.target = target;
+        this.progress = progress;
+    }
+
+    @Override
+    protected Boolean compute() {
+        try {
+            Files.createDirectories(target);
+        } catch (IOException e) {
+            progress.failed(target, e);
+            return false;
+        }
+
+        boolean clean = true;
+        List<ForkJoinTask<Boolean>> subtasks = new ArrayList<>();
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(source)) {
+            for (Path entry : entries) {
+                if (progress.isCancelled()) {
+                    clean = false;
+                    break;
+                }
+
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (NoSuchFileException e) {
+                    continue; //Gone since it was listed
+                } catch (IOException e) {
+                    progress.failed(entry, e);
+                    clean = false;
+                    continue;
+                }
+
+                if (attrs.isDirectory()) {
+                    subtasks.add(new RecursiveCopyTask(entry, target.resolve(entry.getFileName().toString()), progress));
+                } else {
+                    files.add(entry);
+                    if (files.size() == FILE_BATCH) {
+                        List<Path> batch = files;
+                        subtasks.add(ForkJoinTask.adapt(() -> copyAll(batch)));
+                        files = new ArrayList<>();
+                    }
+                }
+                if (subtasks.size() == FORK_BATCH) {
+                    clean &= runAll(subtasks);
+                }
+            }
+        } catch (IOException e) {
+            progress.failed(source, e);
+            clean = false;
+        } catch (DirectoryIteratorException e) {
+            progress.failed(source, e.getCause());
+            clean = false;
+        }
+
+        clean &= runAll(subtasks);
+        clean &= copyAll(files);
+        copyModifiedTime(source, target); //After the entries, which change it
+        progress.directoryDone(target);
+        return clean && !progress.isCancelled();
+    }
+
+    private static boolean runAll(List<ForkJoinTask<Boolean>> subtasks) {
+        boolean clean = true;
+        invokeAll(subtasks);
+        for (ForkJoinTask<Boolean> subtask : subtasks) {
+            clean &= subtask.join();
+        }
+        subtasks.clear();
+        return clean;
+    }
+
+    private boolean copyAll(List<Path> files) {
+        boolean clean = true;
+        for (Path file : files) {
+            progress.checkpoint();
+            if (progress.isCancelled()) {
+                return false;
+            }
+            clean &= copyFile(file, target.resolve(file.getFileName().toString()), progress);
+        }
+        return clean;
+    }
+
+    //Copies a single file or link, recording the outcome; false if it failed or was cancelled
+    static boolean copyFile(Path source, Path target, OperationProgress progress) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(source, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (isSameFile(attrs, target)) {
+                progress.fileSkipped(target);
+                return true;
+            }
+            if (!attrs.isRegularFile() || attrs.size() < TRANSFER_THRESHOLD) {
+                //Small files cost more in system calls than in bytes; the JDK copies them in one call
+                Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES,
+                        LinkOption.NOFOLLOW_LINKS);
+                progress.fileDone(target, attrs.size());
+                return true;
+            }
+            return transfer(source, target, attrs, progress);
+        } catch (NoSuchFileException e) {
+            if (source.toString().equals(e.getFile())) {
+                return true; //Gone since it was listed
+            }
+            progress.failed(source, e);
+            return false;
+        } catch (IOException e) {
+            progress.failed(source, e);
+            return false;
+        }
+    }
+
+    private static boolean transfer(Path source, Path target, BasicFileAttributes attrs, OperationProgress progress)
+            throws IOException {
+        Path part = target.resolveSibling(target.getFileName() + PART_SUFFIX);
+        long size = attrs.size();
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(part, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+            //Continue an earlier attempt, unless the source changed since it was written
+            long position = 0;
+            BasicFileAttributes partAttrs = Files.readAttributes(part, BasicFileAttributes.class);
+            if (partAttrs.size() <= size
+                    && partAttrs.lastModifiedTime().compareTo(attrs.lastModifiedTime()) >= 0) {
+                position = partAttrs.size();
+            } else {
+                out.truncate(0);
+            }
+
+            while (position < size) {
+                progress.checkpoint();
+                if (progress.isCancelled()) {
+                    return false; //The .part file stays for the next attempt
+                }
+                long count = in.transferTo(position, Math.min(TRANSFER_CHUNK, size - position), out.position(position));
+                if (count <= 0) {
+                    throw new IOException("Source ended at " + position + " of " + size + " bytes: " + source);
+                }
+                position += count;
+                progress.bytesDone(count);
+            }
+        }
+
+        Files.setLastModifiedTime(part, attrs.lastModifiedTime());
+        copyPermissions(source, part);
+        try {
+            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        progress.fileDone(target, 0);
+        return true;
+    }
+
+    //Already copied by an earlier attempt. Millis only: copies may keep the time at a coarser precision.
+    private static boolean isSameFile(BasicFileAttributes attrs, Path target) {
+        try {
+            BasicFileAttributes existing = Files.readAttributes(target, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            return attrs.isRegularFile() && existing.isRegularFile()
+                    && existing.size() == attrs.size()
+                    && existing.lastModifiedTime().toMillis() == attrs.lastModifiedTime().toMillis();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void copyModifiedTime(Path from, Path to) {
+        try {
+            Files.setLastModifiedTime(to, Files.getLastModifiedTime(from, LinkOption.NOFOLLOW_LINKS));
+        } catch (IOException e) {
+            //Best effort
+        }
+    }
+
+    private static void copyPermissions(Path from, Path to) {
+        try {
+            Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(from));
+        } catch (IOException | UnsupportedOperationException e) {
+            //No POSIX permissions on this platform
+        }
+    }
+}
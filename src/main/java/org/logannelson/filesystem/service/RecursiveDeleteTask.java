@@ -0,0 +1,109 @@
+package org.logannelson.filesystem.service;
+//Deletes one directory tree, forking a subtask per subdirectory.
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+/*
+* Post-order delete: files are removed while the directory is read,
+* subdirectories go to subtasks that other pool threads can steal, and the
+* directory itself is removed once its children are gone.
+* Nothing collects or sorts the whole tree: each task only holds its open
+* DirectoryStream and at most FORK_BATCH pending subtasks.
+* Returns true if the directory was removed.
+* */
+final class RecursiveDeleteTask extends RecursiveTask<Boolean> {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int FORK_BATCH = 64;
+
+    private final Path directory;
+    private final OperationProgress progress;
+
+    RecursiveDeleteTask(Path directory, OperationProgress progress) {
+        this.directory = directory;
+        this.progress = progress;
+    }
+
+    @Override
+    protected Boolean compute() {
+        boolean clean = true;
+        List<RecursiveDeleteTask> subtasks = new ArrayList<>();
+
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                progress.checkpoint();
+                if (progress.isCancelled()) {
+                    clean = false;
+                    break;
+                }
+
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (NoSuchFileException e) {
+                    continue; //Already gone
+                } catch (IOException e) {
+                    progress.failed(entry, e);
+                    clean = false;
+                    continue;
+                }
+
+                //Symlinks to directories are deleted as links, never followed
+                if (attrs.isDirectory()) {
+                    subtasks.add(new RecursiveDeleteTask(entry, progress));
+                    if (subtasks.size() == FORK_BATCH) {
+                        clean &= runAll(subtasks);
+                    }
+                } else {
+                    clean &= deleteEntry(entry, attrs, progress);
+                }
+            }
+        } catch (IOException e) {
+            progress.failed(directory, e);
+            clean = false;
+        } catch (DirectoryIteratorException e) {
+            progress.failed(directory, e.getCause());
+            clean = false;
+        }
+
+        clean &= runAll(subtasks);
+        //A directory with failed children would only fail again as "not empty"
+        return clean && !progress.isCancelled() && deleteEntry(directory, null, progress);
+    }
+
+    private static boolean runAll(List<RecursiveDeleteTask> subtasks) {
+        boolean clean = true;
+        invokeAll(subtasks);
+        for (RecursiveDeleteTask subtask : subtasks) {
+            clean &= subtask.join();
+        }
+        subtasks.clear();
+        return clean;
+    }
+
+    //Deletes a single file, link or empty directory (attrs null), recording the outcome
+    static boolean deleteEntry(Path path, BasicFileAttributes attrs, OperationProgress progress) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            progress.failed(path, e);
+            return false;
+        }
+        if (attrs == null || attrs.isDirectory()) {
+            progress.directoryDone(path);
+        } else {
+            progress.fileDone(path, attrs.size());
+        }
+        return true;
+    }
+}
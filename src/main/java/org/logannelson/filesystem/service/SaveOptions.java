@@ -0,0 +1,37 @@
+package org.logannelson.filesystem.service;
+//Controls how a save reaches the disk.
+public class SaveOptions {
+
+    //No fsync, small edits may be patched in place
+    public static final SaveOptions DEFAULT = new SaveOptions(false, true);
+
+    private final boolean fsync;
+    private final boolean inPlacePatching;
+
+    /*
+    * fsync: force written data (and the rename) to the device before returning
+    * inPlacePatching: allow callers to patch a fixed-length region or the tail in place
+    *                  instead of rewriting the file. Full rewrites always go through
+    *                  a temp file and an atomic move.
+    * */
+    public SaveOptions(boolean fsync, boolean inPlacePatching) {
+        this.fsync = fsync;
+        this.inPlacePatching = inPlacePatching;
+    }
+
+    public boolean isFsync() {
+        return fsync;
+    }
+
+    public boolean isInPlacePatching() {
+        return inPlacePatching;
+    }
+
+    public SaveOptions withFsync(boolean fsync) {
+        return new SaveOptions(fsync, inPlacePatching);
+    }
+
+    public SaveOptions withInPlacePatching(boolean inPlacePatching) {
+        return new SaveOptions(fsync, inPlacePatching);
+    }
+}
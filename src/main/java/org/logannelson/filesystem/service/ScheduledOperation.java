@@ -0,0 +1,130 @@
+package org.logannelson.filesystem.service;
+//One operation handed to the OperationScheduler: its state, progress and result.
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+public class ScheduledOperation<T> {
+
+    public enum Priority {
+        //Something the user is waiting to see: opening a file, listing a folder
+        INTERACTIVE,
+        //Disk-heavy work that may take long: copy, move, delete, folder search
+        BULK
+    }
+
+    public enum State {
+        QUEUED,
+        RUNNING,
+        DONE,
+        FAILED,
+        CANCELLED
+    }
+
+    //The work itself; it reports to the OperationProgress it was scheduled with
+    @FunctionalInterface
+    public interface Task<T> {
+        T run() throws IOException;
+    }
+
+    private final String name;
+    private final Priority priority;
+    private final OperationProgress progress;
+    private final Task<T> task;
+    private final CompletableFuture<T> future = new CompletableFuture<>();
+    private volatile State state = State.QUEUED;
+
+    ScheduledOperation(String name, Priority priority, OperationProgress progress, Task<T> task) {
+        this.name = name;
+        this.priority = priority;
+        this.progress = progress;
+        this.task = task;
+    }
+
+    //Getters
+    public String getName() {
+        return name;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public OperationProgress getProgress() {
+        return progress;
+    }
+
+    /*
+    * Completes with the task's result, or exceptionally with its IOException.
+    * An operation cancelled before it started completes with a CancellationException;
+    * one cancelled while running completes however its task returns.
+    * */
+    public CompletableFuture<T> getFuture() {
+        return future;
+    }
+
+    public boolean isDone() {
+        return future.isDone();
+    }
+
+    //Methods//
+
+    //Asks the operation to stop; a queued one is dropped without running
+    public void cancel() {
+        progress.cancel();
+    }
+
+    //Waits for the result on a background thread
+    public T await() throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + name);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw new IOException(name + " failed", e.getCause());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + state.name().toLowerCase() + ")";
+    }
+
+    /*
+    * Section: driven by the scheduler
+    * */
+    void run() {
+        state = State.RUNNING;
+        progress.started();
+        try {
+            T result = task.run();
+            state = progress.isCancelled() ? State.CANCELLED : State.DONE;
+            future.complete(result);
+        } catch (IOException | RuntimeException e) {
+            state = State.FAILED;
+            future.completeExceptionally(e);
+        } catch (Error e) {
+            state = State.FAILED;
+            future.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    void dropped() {
+        state = State.CANCELLED;
+        future.completeExceptionally(new CancellationException(name + " cancelled before it started"));
+    }
+}
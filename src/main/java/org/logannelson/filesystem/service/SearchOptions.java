@@ -0,0 +1,36 @@
+package org.logannelson.filesystem.service;
+//Controls how searchInFolder interprets its pattern.
+public class SearchOptions {
+
+    //Literal text, ignoring case
+    public static final SearchOptions DEFAULT = new SearchOptions(false, false);
+
+    private final boolean regex;
+    private final boolean matchCase;
+
+    /*
+    * regex: the pattern is a java.util.regex expression, matched within lines
+    *        (^ and $ match at line breaks); otherwise it is literal text
+    * matchCase: compare case-sensitively
+    * */
+    public SearchOptions(boolean regex, boolean matchCase) {
+        this.regex = regex;
+        this.matchCase = matchCase;
+    }
+
+    public boolean isRegex() {
+        return regex;
+    }
+
+    public boolean isMatchCase() {
+        return matchCase;
+    }
+
+    public SearchOptions withRegex(boolean regex) {
+        return new SearchOptions(regex, matchCase);
+    }
+
+    public SearchOptions withMatchCase(boolean matchCase) {
+        return new SearchOptions(regex, matchCase);
+    }
+}
@@ -0,0 +1,89 @@
+package org.logannelson.filesystem.service;
+//All operation metrics of one service, and their registration with JMX.
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/*
+* Filled in by MeteredFileSystemService. registerMBeans() publishes it on the platform
+* MBean server (jconsole, VisualVM, any JMX agent) as
+*   org.logannelson.filesystem:type=ServiceMetrics
+*   org.logannelson.filesystem:type=Operation,name=<operation>
+* */
+public class ServiceMetrics implements ServiceMetricsMXBean {
+
+    public static final String JMX_DOMAIN = "org.logannelson.filesystem";
+
+    private final Map<String, OperationMetrics> operations = new ConcurrentHashMap<>();
+    private volatile LongSupplier skippedEntries = () -> 0;
+
+    //Getters
+    public OperationMetrics get(String operation) {
+        return operations.get(operation);
+    }
+
+    //Every operation, called or not, by name
+    public List<OperationMetrics> getOperations() {
+        List<OperationMetrics> all = new ArrayList<>(operations.values());
+        all.sort(Comparator.comparing(OperationMetrics::getOperation));
+        return all;
+    }
+
+    @Override
+    public long getCalls() {
+        return operations.values().stream().mapToLong(OperationMetrics::getCalls).sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return operations.values().stream().mapToLong(OperationMetrics::getErrors).sum();
+    }
+
+    //Directory entries that listings left out because their attributes could not be read
+    @Override
+    public long getSkippedEntries() {
+        return skippedEntries.getAsLong();
+    }
+
+    @Override
+    public String[] getSummary() {
+        return getOperations().stream()
+                .filter(metrics -> metrics.getCalls() > 0)
+                .map(OperationMetrics::toString)
+                .toArray(String[]::new);
+    }
+
+    //Methods//
+
+    //Publishes these metrics over JMX; false if the names are taken (e.g. a second service)
+    public boolean registerMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(this, new ObjectName(JMX_DOMAIN + ":type=ServiceMetrics"));
+            for (OperationMetrics metrics : getOperations()) {
+                server.registerMBean(metrics, new ObjectName(JMX_DOMAIN + ":type=Operation,name=" + metrics.getOperation()));
+            }
+            return true;
+        } catch (JMException e) {
+            return false;
+        }
+    }
+
+    /*
+    * Section: set up by MeteredFileSystemService
+    * */
+    OperationMetrics operation(String operation) {
+        return operations.computeIfAbsent(operation, OperationMetrics::new);
+    }
+
+    void setSkippedEntries(LongSupplier skippedEntries) {
+        this.skippedEntries = skippedEntries;
+    }
+}
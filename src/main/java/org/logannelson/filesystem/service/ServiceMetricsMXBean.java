@@ -0,0 +1,13 @@
+package org.logannelson.filesystem.service;
+//Totals over all operations, for JMX; the per-operation beans have the details.
+public interface ServiceMetricsMXBean {
+
+    long getCalls();
+
+    long getErrors();
+
+    long getSkippedEntries();
+
+    //One line per operation that was called at least once
+    String[] getSummary();
+}
@@ -0,0 +1,307 @@
+package org.logannelson.filesystem.service;
+//Hidden folder that makes delete a single rename and lets it be undone.
+import org.logannelson.filesystem.model.TrashEntry;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+* Layout inside <root>/.trash:
+*   <id>          the deleted file or directory, moved here with one atomic rename
+*   <id>.info     where it came from and when (written before the rename)
+*   <id>.purging  an item that is being deleted for good
+*
+* Purging runs on a single low-priority thread. Every step leaves a state that
+* recover() knows how to finish, so a crash at any point only delays the purge:
+* an info without an item is dropped, an item without an info and any
+* .purging leftovers are deleted on the next start.
+* The trash keeps at most maxEntries items and maxBytes bytes; the oldest go first.
+* */
+final class Trash implements Closeable {
+
+    static final String DIRECTORY_NAME = ".trash";
+    private static final String INFO_SUFFIX = ".info";
+    private static final String PURGING_SUFFIX = ".purging";
+
+    private final Path directory;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final ForkJoinPool purgePool;
+    private final AtomicInteger idCounter = new AtomicInteger();
+
+    //Oldest first, guarded by this
+    private final LinkedHashMap<String, TrashEntry> entries = new LinkedHashMap<>();
+    private final Map<String, Long> sizes = new HashMap<>();
+    private long knownBytes;
+
+    Trash(Path rootDirectory, int maxEntries, long maxBytes) throws IOException {
+        this.directory = rootDirectory.resolve(DIRECTORY_NAME);
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+
+        //One thread at minimum priority: purging should never compete with the UI
+        this.purgePool = new ForkJoinPool(1, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("trash-purge");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }, null, false);
+
+        recover();
+    }
+
+    Path getDirectory() {
+        return directory;
+    }
+
+    /*
+    * Moves target into the trash. This is one rename, whatever the size of target.
+    * Throws AtomicMoveNotSupportedException if target is on another file system.
+    * */
+    TrashEntry moveIn(Path target, boolean isDirectory) throws IOException {
+        String id = Long.toString(System.currentTimeMillis(), 36) + "-" + Integer.toString(idCounter.incrementAndGet(), 36);
+        TrashEntry entry = new TrashEntry(id, target, Instant.now(), isDirectory);
+
+        writeInfo(entry);
+        try {
+            Files.move(target, itemPath(id), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(infoPath(id));
+            throw e;
+        }
+
+        synchronized (this) {
+            entries.put(id, entry);
+        }
+        purgePool.execute(() -> measure(entry));
+        return entry;
+    }
+
+    synchronized List<TrashEntry> list() {
+        return new ArrayList<>(entries.values());
+    }
+
+    //Moves the item back to where it was. Fails if something else took its place.
+    Path restore(TrashEntry entry) throws IOException {
+        Path original = entry.getOriginalPath();
+        if (Files.exists(original, LinkOption.NOFOLLOW_LINKS)) {
+            throw new FileAlreadyExistsException(original.toString(), null, "Cannot restore over an existing item");
+        }
+        //Claim it first, so a purge cannot start on it meanwhile
+        if (!claim(entry.getId())) {
+            throw new NoSuchFileException(original.toString(), null, "No longer in the trash");
+        }
+
+        try {
+            Files.createDirectories(original.getParent());
+            Files.move(itemPath(entry.getId()), original, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            synchronized (this) {
+                entries.put(entry.getId(), entry); //Still in the trash; order is restored on next start
+            }
+            throw e;
+        }
+        Files.deleteIfExists(infoPath(entry.getId()));
+        return original;
+    }
+
+    //Deletes everything in the trash for good, in the background
+    void empty() {
+        List<String> ids;
+        synchronized (this) {
+            ids = new ArrayList<>(entries.keySet());
+        }
+        for (String id : ids) {
+            if (claim(id)) {
+                purgePool.execute(() -> purge(id));
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        purgePool.shutdownNow();
+    }
+
+    /*
+    * Section: background work
+    * */
+
+    //Removes the entry from the live set; false if a restore or purge already has it
+    private synchronized boolean claim(String id) {
+        if (entries.remove(id) == null) {
+            return false;
+        }
+        Long size = sizes.remove(id);
+        if (size != null) {
+            knownBytes -= size;
+        }
+        return true;
+    }
+
+    //Adds up the size of a new item, then trims the trash to its caps
+    private void measure(TrashEntry entry) {
+        long[] total = {0};
+        try {
+            Files.walkFileTree(itemPath(entry.getId()), new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    total[0] += attrs.size();
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            //Restored or purged in the meantime
+        }
+
+        List<String> evicted = new ArrayList<>();
+        synchronized (this) {
+            if (entries.containsKey(entry.getId())) {
+                sizes.put(entry.getId(), total[0]);
+                knownBytes += total[0];
+            }
+            while (!entries.isEmpty() && (entries.size() > maxEntries || knownBytes > maxBytes)) {
+                evicted.add(entries.keySet().iterator().next());
+                claim(evicted.get(evicted.size() - 1));
+            }
+        }
+        evicted.forEach(this::purge);
+    }
+
+    //Deletes an item for good. Renamed first, so recover() can tell a half-done purge.
+    private void purge(String id) {
+        Path purging = directory.resolve(id + PURGING_SUFFIX);
+        try {
+            Path item = itemPath(id);
+            if (Files.exists(item, LinkOption.NOFOLLOW_LINKS)) {
+                Files.move(item, purging, StandardCopyOption.ATOMIC_MOVE);
+            }
+            Files.deleteIfExists(infoPath(id));
+        } catch (IOException e) {
+            return; //Left for the next start
+        }
+        deleteTree(purging);
+    }
+
+    private void deleteTree(Path path) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (attrs.isDirectory()) {
+                //Runs on the purge thread, so subtrees are deleted one at a time
+                purgePool.invoke(new RecursiveDeleteTask(path, new OperationProgress()));
+            } else {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException e) {
+            //Gone already, or retried on the next start
+        }
+    }
+
+    /*
+    * Section: recovery and metadata
+    * Reloads the entries left by a previous run and finishes interrupted purges.
+    * */
+    private void recover() throws IOException {
+        List<TrashEntry> found = new ArrayList<>();
+        List<Path> leftovers = new ArrayList<>();
+
+        try (DirectoryStream<Path> names = Files.newDirectoryStream(directory)) {
+            for (Path path : names) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(PURGING_SUFFIX)) {
+                    leftovers.add(path);
+                } else if (name.endsWith(INFO_SUFFIX)) {
+                    String id = name.substring(0, name.length() - INFO_SUFFIX.length());
+                    boolean hasItem = Files.exists(itemPath(id), LinkOption.NOFOLLOW_LINKS);
+                    TrashEntry entry = hasItem ? readInfo(id) : null;
+                    if (entry != null) {
+                        found.add(entry);
+                    } else {
+                        //Item never arrived or was restored, or the info is unreadable
+                        Files.deleteIfExists(path);
+                        if (hasItem) {
+                            leftovers.add(itemPath(id));
+                        }
+                    }
+                } else if (Files.notExists(infoPath(name)) && !leftovers.contains(path)) {
+                    leftovers.add(path); //No record of where it came from
+                }
+            }
+        }
+
+        found.sort(Comparator.comparing(TrashEntry::getDeletedAt));
+        synchronized (this) {
+            for (TrashEntry entry : found) {
+                entries.put(entry.getId(), entry);
+            }
+        }
+        for (Path leftover : leftovers) {
+            purgePool.execute(() -> deleteTree(leftover));
+        }
+        for (TrashEntry entry : found) {
+            purgePool.execute(() -> measure(entry));
+        }
+    }
+
+    private Path itemPath(String id) {
+        return directory.resolve(id);
+    }
+
+    private Path infoPath(String id) {
+        return directory.resolve(id + INFO_SUFFIX);
+    }
+
+    private void writeInfo(TrashEntry entry) throws IOException {
+        Properties info = new Properties();
+        info.setProperty("originalPath", entry.getOriginalPath().toString());
+        info.setProperty("deletedAt", Long.toString(entry.getDeletedAt().toEpochMilli()));
+        info.setProperty("directory", Boolean.toString(entry.isDirectory()));
+        try (Writer out = Files.newBufferedWriter(infoPath(entry.getId()))) {
+            info.store(out, null);
+        }
+    }
+
+    //Returns null for an info file that cannot be read (e.g. torn by a crash)
+    private TrashEntry readInfo(String id) {
+        Properties info = new Properties();
+        try (Reader in = Files.newBufferedReader(infoPath(id))) {
+            info.load(in);
+            return new TrashEntry(
+                    id,
+                    Path.of(info.getProperty("originalPath")),
+                    Instant.ofEpochMilli(Long.parseLong(info.getProperty("deletedAt"))),
+                    Boolean.parseBoolean(info.getProperty("directory")));
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+}
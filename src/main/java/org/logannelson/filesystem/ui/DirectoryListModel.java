@@ -0,0 +1,626 @@
+package org.logannelson.filesystem.ui;
+
+import org.logannelson.filesystem.model.DirectorySnapshot;
+import org.logannelson.filesystem.model.FileItem;
+import org.logannelson.filesystem.model.SnapshotSortKeys;
+import org.logannelson.filesystem.model.SortColumn;
+
+import javax.swing.AbstractListModel;
+import javax.swing.SwingUtilities;
+import java.nio.file.Path;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntPredicate;
+
+/*
+* ListModel that renders straight from a DirectorySnapshot.
+* A FileItem is only created for rows the JList actually asks for.
+*
+* Change events are applied as a small overlay on top of the snapshot instead of
+* copying it: base rows can be hidden (deleted) or replaced (modified), and new
+* entries are appended. Once the overlay grows past a fraction of the listing it is
+* folded into a fresh snapshot, so lookups stay cheap.
+*
+* Sorting and filtering are a view on top of that: an int[] of rows built from the
+* snapshot's precomputed sort orders (see SnapshotSortKeys) in one linear pass.
+* All methods must be called on the EDT.
+* */
+public class DirectoryListModel extends AbstractListModel<FileItem> {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int MIN_COMPACT_THRESHOLD = 1024;
+
+    private DirectorySnapshot base;
+    private int[] removed = new int[0]; //Sorted base indexes that are hidden
+    private int removedCount;
+    private final Map<Integer, FileItem> replaced = new HashMap<>();
+    private final List<FileItem> added = new ArrayList<>();
+    private boolean batching; //Inside batch(): no per-row events
+
+    //View settings
+    private SortColumn sortColumn; //null: listing order
+    private boolean descending;
+    private boolean directoriesFirst;
+    private String filter = ""; //Lower case
+    private int fileLimit; //0: no limit
+
+    //Current view, or null when rows are shown in listing order
+    private int[] view; //Base index, or -(extra index + 1)
+    private int viewSize;
+    private DirectorySnapshot viewBase; //Snapshot the view was built from
+    private FileItem[] viewExtras; //Overlay entries placed in the view
+    private int[] viewRowOf; //The inverse of view, built on first lookup: base indexes, then extras; -1 if not shown
+    private boolean viewRebuildPending;
+    private DirectorySnapshot sortKeysPending; //Snapshot whose order is being computed
+    private final Collator collator = SnapshotSortKeys.nameCollator();
+
+    public DirectoryListModel(Path directory) {
+        this.base = DirectorySnapshot.empty(directory);
+    }
+
+    /*
+    * Swaps in a new snapshot in one step, with a single event whatever its size.
+    * If it only extends the one shown (a listing still being read) the new rows are
+    * announced as one added interval; otherwise one contents-changed event covers
+    * everything. The owner should clear the selection before swapping directories.
+    * */
+    public void setSnapshot(DirectorySnapshot snapshot) {
+        DirectorySnapshot previous = base;
+        int oldSize = getSize();
+        boolean extendsPrevious = !hasOverlay()
+                && previous.getDirectory().equals(snapshot.getDirectory())
+                && snapshot.size() >= previous.size();
+
+        base = snapshot;
+        clearOverlay();
+        if (isViewActive()) {
+            rebuildView();
+            return;
+        }
+
+        int newSize = snapshot.size();
+        if (extendsPrevious) {
+            if (newSize > oldSize) {
+                fireIntervalAdded(this, oldSize, newSize - 1);
+            }
+        } else {
+            fireAllChanged(oldSize, newSize);
+        }
+    }
+
+    public DirectorySnapshot getSnapshot() {
+        return base;
+    }
+
+    @Override
+    public int getSize() {
+        return view != null ? viewSize : base.size() - removedCount + added.size();
+    }
+
+    @Override
+    public FileItem getElementAt(int index) {
+        if (view != null) {
+            if (index >= viewSize) {
+                throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + viewSize);
+            }
+            int code = view[index];
+            return code >= 0 ? viewBase.getItem(code) : viewExtras[-code - 1];
+        }
+
+        int baseVisible = base.size() - removedCount;
+        if (index >= baseVisible) {
+            return added.get(index - baseVisible);
+        }
+        int baseIndex = toBaseIndex(index);
+        FileItem item = replaced.get(baseIndex);
+        return item != null ? item : base.getItem(baseIndex);
+    }
+
+    /*
+    * Section: in-place updates
+    * */
+
+    /*
+    * Replaces the entry with the same path, or appends it.
+    * While a view is active the change is only recorded, and the view is rebuilt once
+    * for the whole burst of changes.
+    * */
+    public void put(FileItem item) {
+        int index = naturalIndexOf(item.getPath());
+        if (index < 0) {
+            added.add(item);
+            if (view != null) {
+                scheduleViewRebuild();
+            } else if (!batching) {
+                int row = getSize() - 1;
+                fireIntervalAdded(this, row, row);
+            }
+            compactIfLarge();
+            return;
+        }
+
+        int baseVisible = base.size() - removedCount;
+        if (index >= baseVisible) {
+            added.set(index - baseVisible, item);
+        } else {
+            replaced.put(toBaseIndex(index), item);
+        }
+        if (view != null) {
+            scheduleViewRebuild();
+        } else if (!batching) {
+            fireContentsChanged(this, index, index);
+        }
+    }
+
+    /*
+    * Runs many put and remove calls with one list event at the end instead of one
+    * per row, so a burst of changes costs one repaint and one layout pass.
+    * */
+    public void batch(Runnable changes) {
+        if (batching) {
+            changes.run();
+            return;
+        }
+        int oldSize = getSize();
+        batching = true;
+        try {
+            changes.run();
+        } finally {
+            batching = false;
+        }
+        if (view == null) {
+            fireAllChanged(oldSize, getSize());
+        }
+    }
+
+    //Removes the row for the path; false if there is none
+    public boolean remove(Path path) {
+        int index = naturalIndexOf(path);
+        if (index < 0) {
+            return false;
+        }
+
+        int baseVisible = base.size() - removedCount;
+        if (index >= baseVisible) {
+            added.remove(index - baseVisible);
+        } else {
+            int baseIndex = toBaseIndex(index);
+            replaced.remove(baseIndex);
+            insertRemoved(baseIndex);
+        }
+        if (view != null) {
+            scheduleViewRebuild();
+        } else if (!batching) {
+            fireIntervalRemoved(this, index, index);
+        }
+        compactIfLarge();
+        return true;
+    }
+
+    //Row of the entry with this path, or -1
+    public int indexOf(Path path) {
+        if (view == null) {
+            return naturalIndexOf(path);
+        }
+        if (path == null || !viewBase.getDirectory().equals(path.getParent())) {
+            return -1;
+        }
+
+        int[] rowOf = viewRowOf();
+        int baseIndex = viewBase.indexOf(path.getFileName().toString());
+        if (baseIndex >= 0 && rowOf[baseIndex] >= 0) {
+            return rowOf[baseIndex];
+        }
+        //Overlay entries are few
+        for (int i = 0; i < viewExtras.length; i++) {
+            if (viewExtras[i].getPath().equals(path)) {
+                return rowOf[viewBase.size() + i];
+            }
+        }
+        return -1;
+    }
+
+    //One pass over the view, so restoring a selection of k paths costs O(n + k), not O(n * k)
+    private int[] viewRowOf() {
+        if (viewRowOf == null) {
+            int[] rowOf = new int[viewBase.size() + viewExtras.length];
+            Arrays.fill(rowOf, -1);
+            for (int row = 0; row < viewSize; row++) {
+                int code = view[row];
+                rowOf[code >= 0 ? code : viewBase.size() - code - 1] = row;
+            }
+            viewRowOf = rowOf;
+        }
+        return viewRowOf;
+    }
+
+    //Row in listing order, ignoring the view
+    private int naturalIndexOf(Path path) {
+        if (path == null || !base.getDirectory().equals(path.getParent())) {
+            return -1;
+        }
+
+        for (int i = 0; i < added.size(); i++) {
+            if (added.get(i).getPath().equals(path)) {
+                return base.size() - removedCount + i;
+            }
+        }
+        int baseIndex = base.indexOf(path.getFileName().toString());
+        if (baseIndex < 0 || isRemoved(baseIndex)) {
+            return -1;
+        }
+        return baseIndex - removedBefore(baseIndex);
+    }
+
+    /*
+    * Section: index mapping
+    * Row i of the base part is the base entry b with b - (hidden entries before b) == i.
+    * */
+    private int toBaseIndex(int row) {
+        if (removedCount == 0) {
+            return row;
+        }
+        int baseIndex = row;
+        while (true) {
+            int next = row + removedBefore(baseIndex);
+            if (next == baseIndex) {
+                break;
+            }
+            baseIndex = next;
+        }
+        //Each hidden entry we land on pushes the row one further
+        while (isRemoved(baseIndex)) {
+            baseIndex++;
+        }
+        return baseIndex;
+    }
+
+    //Number of hidden base entries with an index below baseIndex
+    private int removedBefore(int baseIndex) {
+        int position = Arrays.binarySearch(removed, 0, removedCount, baseIndex);
+        return position >= 0 ? position : -position - 1;
+    }
+
+    private boolean isRemoved(int baseIndex) {
+        return Arrays.binarySearch(removed, 0, removedCount, baseIndex) >= 0;
+    }
+
+    private void insertRemoved(int baseIndex) {
+        int position = -Arrays.binarySearch(removed, 0, removedCount, baseIndex) - 1;
+        if (removedCount == removed.length) {
+            removed = Arrays.copyOf(removed, Math.max(16, removedCount * 2));
+        }
+        System.arraycopy(removed, position, removed, position + 1, removedCount - position);
+        removed[position] = baseIndex;
+        removedCount++;
+    }
+
+    private boolean hasOverlay() {
+        return removedCount > 0 || !replaced.isEmpty() || !added.isEmpty();
+    }
+
+    private void clearOverlay() {
+        removed = new int[0];
+        removedCount = 0;
+        replaced.clear();
+        added.clear();
+    }
+
+    //Folds the overlay into a new snapshot. Rows stay the same, so no event is fired.
+    private void compactIfLarge() {
+        int overlay = removedCount + replaced.size() + added.size();
+        if (overlay < Math.max(MIN_COMPACT_THRESHOLD, base.size() / 16)) {
+            return;
+        }
+
+        //One pass over the base in order, walking the sorted hidden list alongside
+        DirectorySnapshot.Builder builder = new DirectorySnapshot.Builder(base.getDirectory());
+        int nextRemoved = 0;
+        for (int i = 0; i < base.size(); i++) {
+            if (nextRemoved < removedCount && removed[nextRemoved] == i) {
+                nextRemoved++;
+                continue;
+            }
+            FileItem replacement = replaced.get(i);
+            if (replacement != null) {
+                builder.add(replacement);
+            } else {
+                builder.add(base, i);
+            }
+        }
+        for (FileItem item : added) {
+            builder.add(item);
+        }
+        base = builder.build();
+        clearOverlay();
+        if (view != null) {
+            scheduleViewRebuild(); //The new snapshot needs its own sort order
+        }
+    }
+
+    /*
+    * Section: sorting and filtering
+    * */
+
+    //column null shows listing order; directoriesFirst applies either way
+    public void setOrder(SortColumn column, boolean descending, boolean directoriesFirst) {
+        this.sortColumn = column;
+        this.descending = descending;
+        this.directoriesFirst = directoriesFirst;
+        rebuildView();
+    }
+
+    //Type-ahead filter: only names containing the text (ignoring case) are shown
+    public void setFilter(String text) {
+        String lowerCase = text == null ? "" : text.trim().toLowerCase(Locale.ROOT);
+        if (!lowerCase.equals(filter)) {
+            filter = lowerCase;
+            rebuildView();
+        }
+    }
+
+    //Shows only the first n files of the order (no directories), e.g. the 100 largest; 0 shows everything
+    public void setFileLimit(int limit) {
+        if (limit != fileLimit) {
+            fileLimit = Math.max(0, limit);
+            rebuildView();
+        }
+    }
+
+    public SortColumn getSortColumn() {
+        return sortColumn;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+
+    public boolean isDirectoriesFirst() {
+        return directoriesFirst;
+    }
+
+    public int getFileLimit() {
+        return fileLimit;
+    }
+
+    //Entries in the listing, whether or not the view shows them
+    public int getTotalSize() {
+        return base.size() - removedCount + added.size();
+    }
+
+    private boolean isViewActive() {
+        return sortColumn != null || directoriesFirst || !filter.isEmpty() || fileLimit > 0;
+    }
+
+    private void scheduleViewRebuild() {
+        if (!viewRebuildPending) {
+            viewRebuildPending = true;
+            SwingUtilities.invokeLater(() -> {
+                if (viewRebuildPending) {
+                    rebuildView();
+                }
+            });
+        }
+    }
+
+    /*
+    * Builds the view rows, then announces them with one contents-changed event.
+    * Base entries come from the snapshot's sort order (or listing order while that is
+    * still being computed), read forwards or backwards, folders first if asked.
+    * Overlay entries are few; they are sorted on their own and binary-inserted.
+    * */
+    private void rebuildView() {
+        viewRebuildPending = false;
+        int oldSize = getSize();
+        if (!isViewActive()) {
+            view = null;
+            viewBase = null;
+            viewExtras = null;
+            viewRowOf = null;
+            fireAllChanged(oldSize, getSize());
+            return;
+        }
+
+        DirectorySnapshot snapshot = base;
+        BitSet hidden = new BitSet(snapshot.size()); //Removed, replaced or filtered out base entries
+        for (int i = 0; i < removedCount; i++) {
+            hidden.set(removed[i]);
+        }
+        for (Integer index : replaced.keySet()) {
+            hidden.set(index);
+        }
+        //Matched in listing order: walking names in sort order would miss the cache on every entry
+        if (!filter.isEmpty()) {
+            IntPredicate matcher = snapshot.nameMatcher(filter);
+            for (int i = 0; i < snapshot.size(); i++) {
+                if (!matcher.test(i)) {
+                    hidden.set(i);
+                }
+            }
+        }
+
+        int[] order = null;
+        int[] top = null;
+        if (sortColumn != null) {
+            SnapshotSortKeys keys = snapshot.getSortKeys();
+            order = keys.orderIfComputed(sortColumn);
+            if (order == null && fileLimit > 0 && sortColumn != SortColumn.NAME) {
+                //Partial sort is cheap enough to do here
+                top = keys.top(sortColumn, descending, fileLimit, i -> !hidden.get(i) && !snapshot.isDirectory(i));
+            } else if (order == null) {
+                computeSortKeysLater(snapshot);
+            }
+        }
+        boolean sorted = order != null || top != null;
+
+        int[] rows;
+        int count = 0;
+        if (top != null) {
+            rows = Arrays.copyOf(top, top.length + added.size() + replaced.size());
+            count = top.length;
+        } else {
+            rows = new int[snapshot.size() + added.size() + replaced.size()];
+            if (fileLimit > 0) {
+                count = appendBase(rows, count, snapshot, order, hidden, false);
+            } else if (directoriesFirst) {
+                count = appendBase(rows, count, snapshot, order, hidden, true);
+                count = appendBase(rows, count, snapshot, order, hidden, false);
+            } else {
+                count = appendBase(rows, count, snapshot, order, hidden, null);
+            }
+        }
+
+        //Overlay entries, in view order
+        List<FileItem> extras = new ArrayList<>(replaced.values());
+        extras.addAll(added);
+        extras.removeIf(item -> !item.getName().toLowerCase(Locale.ROOT).contains(filter)
+                || (fileLimit > 0 && item.isDirectory()));
+        if (sorted) {
+            extras.sort(itemComparator());
+        }
+        count = insertExtras(rows, count, snapshot, extras, sorted);
+
+        if (fileLimit > 0) {
+            count = Math.min(count, fileLimit);
+        }
+        view = rows;
+        viewSize = count;
+        viewBase = snapshot;
+        viewExtras = extras.toArray(new FileItem[0]);
+        viewRowOf = null;
+        fireAllChanged(oldSize, count);
+    }
+
+    /*
+    * Appends the visible base entries in order (listing order if order is null).
+    * directories selects folders only (true), files only (false) or both (null).
+    * */
+    private int appendBase(int[] rows, int count, DirectorySnapshot snapshot, int[] order,
+                           BitSet hidden, Boolean directories) {
+        int size = snapshot.size();
+        boolean reverse = order != null && descending;
+        for (int k = 0; k < size; k++) {
+            int index = order == null ? k : order[reverse ? size - 1 - k : k];
+            if (hidden.get(index) || (directories != null && snapshot.isDirectory(index) != directories)) {
+                continue;
+            }
+            rows[count++] = index;
+        }
+        return count;
+    }
+
+    //Merges the (already sorted) extras into rows[0, count); each goes after its equals
+    private int insertExtras(int[] rows, int count, DirectorySnapshot snapshot, List<FileItem> extras, boolean sorted) {
+        if (extras.isEmpty()) {
+            return count;
+        }
+
+        int[] positions = new int[extras.size()];
+        for (int j = 0; j < positions.length; j++) {
+            FileItem item = extras.get(j);
+            int low = j > 0 ? positions[j - 1] : 0;
+            int high = count;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (compareToBase(item, snapshot, rows[mid], sorted) < 0) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            positions[j] = low;
+        }
+
+        //Shift base rows right, back to front, dropping each extra into its gap
+        int total = count + positions.length;
+        int from = count;
+        for (int j = positions.length - 1; j >= 0; j--) {
+            int length = from - positions[j];
+            System.arraycopy(rows, positions[j], rows, positions[j] + j + 1, length);
+            rows[positions[j] + j] = -(j + 1);
+            from = positions[j];
+        }
+        return total;
+    }
+
+    private int compareToBase(FileItem item, DirectorySnapshot snapshot, int index, boolean sorted) {
+        if (directoriesFirst && fileLimit == 0 && item.isDirectory() != snapshot.isDirectory(index)) {
+            return item.isDirectory() ? -1 : 1;
+        }
+        if (!sorted) {
+            return 1; //Listing order: overlay entries come last
+        }
+        int result = switch (sortColumn) {
+            case NAME -> collator.compare(item.getName(), snapshot.getName(index));
+            case SIZE -> Long.compare(item.getSize(), snapshot.getSize(index));
+            case MODIFIED -> Long.compare(modifiedMillis(item), snapshot.getLastModifiedMillis(index));
+        };
+        result = descending ? -result : result;
+        return result != 0 ? result : 1;
+    }
+
+    private Comparator<FileItem> itemComparator() {
+        Comparator<FileItem> comparator = switch (sortColumn) {
+            case NAME -> Comparator.comparing(FileItem::getName, collator);
+            case SIZE -> Comparator.comparingLong(FileItem::getSize);
+            case MODIFIED -> Comparator.comparingLong(DirectoryListModel::modifiedMillis);
+        };
+        if (descending) {
+            comparator = comparator.reversed();
+        }
+        if (directoriesFirst && fileLimit == 0) {
+            comparator = Comparator.comparing((FileItem item) -> !item.isDirectory()).thenComparing(comparator);
+        }
+        return comparator;
+    }
+
+    private static long modifiedMillis(FileItem item) {
+        return item.getLastModifiedTime() != null ? item.getLastModifiedTime().toMillis() : 0;
+    }
+
+    /*
+    * Sorts the snapshot in the background, then rebuilds the view. Until then it is shown
+    * in listing order. One computation at a time; a snapshot that was replaced in the
+    * meantime (e.g. by a newer partial listing) just triggers the next one.
+    * */
+    private void computeSortKeysLater(DirectorySnapshot snapshot) {
+        if (sortKeysPending != null) {
+            return;
+        }
+        sortKeysPending = snapshot;
+        SortColumn column = sortColumn;
+        CompletableFuture.runAsync(() -> snapshot.getSortKeys().order(column))
+                .whenComplete((ignored, error) -> SwingUtilities.invokeLater(() -> {
+                    sortKeysPending = null;
+                    if (error == null && isViewActive()) {
+                        rebuildView();
+                    }
+                }));
+    }
+
+    /*
+    * At most two events: the rows past the new end removed (or the new ones added), then
+    * the rest changed. A contents-changed event reaching past the end would leave the
+    * selection on rows that no longer exist; intervalRemoved makes JList drop them.
+    * */
+    private void fireAllChanged(int oldSize, int newSize) {
+        if (newSize < oldSize) {
+            fireIntervalRemoved(this, newSize, oldSize - 1);
+        } else if (newSize > oldSize) {
+            fireIntervalAdded(this, oldSize, newSize - 1);
+        }
+        int common = Math.min(oldSize, newSize);
+        if (common > 0) {
+            fireContentsChanged(this, 0, common - 1);
+        }
+    }
+}
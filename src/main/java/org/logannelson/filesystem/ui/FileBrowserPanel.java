@@ -1,22 +1,44 @@
 package org.logannelson.filesystem.ui;
 
+import org.logannelson.filesystem.model.DirectorySize;
+import org.logannelson.filesystem.model.DirectorySnapshot;
+import org.logannelson.filesystem.model.FileChangeEvent;
 import org.logannelson.filesystem.model.FileItem;
+import org.logannelson.filesystem.model.SortColumn;
 import org.logannelson.filesystem.service.FileSystemService;
 
 import javax.swing.BorderFactory;
-import javax.swing.DefaultListModel;
+import javax.swing.DefaultListCellRenderer;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JLabel;
 import javax.swing.JList;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
+import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
 import java.awt.BorderLayout;
+import java.awt.Component;
 import java.awt.FlowLayout;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 
 
@@ -26,29 +48,59 @@ import java.util.function.Consumer;
 * */
 public class FileBrowserPanel extends JPanel {
 
+    private static final long serialVersionUID = 1L;
+
+    /*
+    * Every row has the size of this one, so the JList never measures rows:
+    * layout and scrolling cost the same for 10 entries or a million.
+    * */
+    private static final FileItem PROTOTYPE_ITEM =
+            new FileItem(Path.of("prototype"), "a-fairly-long-file-name-for-sizing.txt", true, 0, null);
+    private static final DirectorySize PROTOTYPE_SIZE = new DirectorySize(999_999_999L, 99_999, 9_999);
+
+    //Sort choices; the last one is a top-N view
+    private static final String[] SORT_CHOICES = {"Listing order", "Name", "Size", "Modified", "Largest 100 files"};
+    private static final SortColumn[] SORT_COLUMNS = {null, SortColumn.NAME, SortColumn.SIZE, SortColumn.MODIFIED, SortColumn.SIZE};
+    private static final int LARGEST_FILES_CHOICE = 4;
+    private static final int LARGEST_FILES_LIMIT = 100;
+    private static final int FILTER_DELAY_MILLIS = 150; //Filter once typing pauses
+    private static final int SIZE_REPAINT_MILLIS = 1000; //Folder totals change without a list event
+    private static final int MAX_RESTORED_SELECTION = 1000; //Larger selections keep only the lead row across rebuilds
+
     private final FileSystemService fileSystemService;
     private final Consumer<String> statusConsumer;
     private final Consumer<FileItem> fileOpenConsumer;
+    private final Consumer<Boolean> loadingConsumer;
 
     private final JLabel currentPathLabel;
-    private final DefaultListModel<FileItem> listModel;
+    private final DirectoryListModel listModel;
     private final JList<FileItem> fileList;
     private final Path rootDirectory; //Guard rails
     private Path currentDirectory;
+    private DirectoryLoader activeLoader; //In-flight listing, if any
+    private final List<FileChangeEvent> pendingChanges = new ArrayList<>(); //Arrived during a load
+    private final Queue<FileChangeEvent> incomingChanges = new ConcurrentLinkedQueue<>(); //Not yet on the EDT
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+    private final JTextField filterField;
+    private final JComboBox<String> sortChoice;
+    private final JCheckBox descendingBox;
+    private final JCheckBox directoriesFirstBox;
+    private List<Path> selectedPaths = List.of(); //Kept across view rebuilds, which reorder rows
+    private Path pendingSelection; //Selected once the current load finishes
 
     public FileBrowserPanel(FileSystemService fileSystemService,
                             Consumer<String> statusConsumer,
-                            Consumer<FileItem> fileOpenConsumer) {
+                            Consumer<FileItem> fileOpenConsumer,
+                            Consumer<Boolean> loadingConsumer) {
         super(new BorderLayout());
         this.fileSystemService = fileSystemService;
         this.statusConsumer = statusConsumer;
         this.fileOpenConsumer = fileOpenConsumer;
+        this.loadingConsumer = loadingConsumer;
 
         setBorder(BorderFactory.createTitledBorder("File Browser"));
 
-        //Start directory for the browser
-        this.rootDirectory = fileSystemService.getStartDirectory();
-
         //Top bar: "Current path" and Up button
         JPanel topPanel = new JPanel(new BorderLayout());
         JPanel pathPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 5, 2));
@@ -62,13 +114,99 @@ public class FileBrowserPanel extends JPanel {
         topPanel.add(pathPanel, BorderLayout.CENTER);
         topPanel.add(upButton, BorderLayout.EAST);
 
+        //Second row: filter and sort controls
+        JPanel viewPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 5, 2));
+        filterField = new JTextField(12);
+        sortChoice = new JComboBox<>(SORT_CHOICES);
+        descendingBox = new JCheckBox("Descending");
+        directoriesFirstBox = new JCheckBox("Folders first");
+
+        viewPanel.add(new JLabel("Filter:"));
+        viewPanel.add(filterField);
+        viewPanel.add(new JLabel("Sort:"));
+        viewPanel.add(sortChoice);
+        viewPanel.add(descendingBox);
+        viewPanel.add(directoriesFirstBox);
+        topPanel.add(viewPanel, BorderLayout.SOUTH);
+
         add(topPanel, BorderLayout.NORTH);
 
-        //Center: list of files/directories
-        listModel = new DefaultListModel<>();
+        //Start directory for the browser
+        this.rootDirectory = fileSystemService.getStartDirectory();
+
+        //Center: list of files/directories, rendered straight from the listing snapshot
+        listModel = new DirectoryListModel(rootDirectory);
         fileList = new JList<>(listModel);
+        fileList.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                                                          boolean selected, boolean focused) {
+                super.getListCellRendererComponent(list, value, index, selected, focused);
+                setText(describe((FileItem) value));
+                return this;
+            }
+        });
+        fileList.setPrototypeCellValue(PROTOTYPE_ITEM); //Fixes cell height and width
+        new Timer(SIZE_REPAINT_MILLIS, e -> fileList.repaint()).start(); //Only visible rows are painted
         add(new JScrollPane(fileList), BorderLayout.CENTER);
 
+        //Sorting and filtering only rebuild the model's view, nothing is re-read
+        Timer filterTimer = new Timer(FILTER_DELAY_MILLIS, e -> applyView());
+        filterTimer.setRepeats(false);
+        filterField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                filterTimer.restart();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                filterTimer.restart();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                filterTimer.restart();
+            }
+        });
+        sortChoice.addActionListener(e -> applyView());
+        descendingBox.addActionListener(e -> applyView());
+        directoriesFirstBox.addActionListener(e -> applyView());
+
+        //Follow the selected entries when a view rebuild moves them to other rows
+        fileList.addListSelectionListener(e -> {
+            if (!e.getValueIsAdjusting()) {
+                List<FileItem> selected = fileList.getSelectedIndices().length <= MAX_RESTORED_SELECTION
+                        ? fileList.getSelectedValuesList()
+                        : List.of(fileList.getSelectedValue());
+                selectedPaths = selected.stream().map(FileItem::getPath).toList();
+            }
+        });
+        listModel.addListDataListener(new ListDataListener() {
+            @Override
+            public void contentsChanged(ListDataEvent e) {
+                if (e.getIndex0() == 0 && e.getIndex1() >= listModel.getSize() - 1) {
+                    restoreSelection();
+                }
+            }
+
+            @Override
+            public void intervalAdded(ListDataEvent e) {
+            }
+
+            @Override
+            public void intervalRemoved(ListDataEvent e) {
+            }
+        });
+
+        //Patch the list in place when the service reports a change; a burst becomes one list update
+        fileSystemService.addChangeListener(event -> {
+            incomingChanges.add(event);
+            if (drainScheduled.compareAndSet(false, true)) {
+                SwingUtilities.invokeLater(this::drainChanges);
+            }
+        });
+
         //Initially load the root/start directory
         this.currentDirectory = rootDirectory; //Use new sandbox root
         loadDirectory(currentDirectory);
@@ -106,22 +244,258 @@ public class FileBrowserPanel extends JPanel {
 
     /*
     * Section 8
-    * Loads file/folder list into JList for given directory
+    * Loads file/folder list into JList for given directory.
+    * Listing runs on a background worker and the list grows as entries are read,
+    * so the EDT never waits on the disk. Starting a new load cancels the old one.
     * */
     private void loadDirectory(Path directory) {
-        try {
-            List<FileItem> items = fileSystemService.listDirectory(directory);
+        cancelActiveLoad();
+
+        fileList.clearSelection();
+        listModel.setSnapshot(DirectorySnapshot.empty(directory));
+        pendingChanges.clear();
+        currentDirectory = directory;
+        currentPathLabel.setText(directory.toString());
+        setStatus("Loading: " + directory);
+        setLoading(true);
+
+        activeLoader = new DirectoryLoader(directory);
+        activeLoader.execute();
+    }
+
+    private void cancelActiveLoad() {
+        if (activeLoader != null) {
+            activeLoader.cancel(false);
+            activeLoader = null;
+        }
+    }
+
+    /*
+    * Applies the filter and sort controls to the list model.
+    * The snapshot's sort orders are computed once, so switching column or direction
+    * is a linear pass over the listing.
+    * */
+    private void applyView() {
+        int choice = sortChoice.getSelectedIndex();
+        boolean largestFiles = choice == LARGEST_FILES_CHOICE;
+        descendingBox.setEnabled(!largestFiles);
+        directoriesFirstBox.setEnabled(!largestFiles);
+
+        long start = System.nanoTime();
+        listModel.setFilter(filterField.getText());
+        listModel.setFileLimit(largestFiles ? LARGEST_FILES_LIMIT : 0);
+        listModel.setOrder(SORT_COLUMNS[choice],
+                largestFiles || descendingBox.isSelected(),
+                !largestFiles && directoriesFirstBox.isSelected());
+        long millis = (System.nanoTime() - start) / 1_000_000;
+
+        setStatus("Showing " + listModel.getSize() + " of " + listModel.getTotalSize()
+                + " items (" + millis + " ms)");
+    }
+
+    /*
+    * Name and size; folders show the recursive totals, which are cached lookups
+    * once the service has walked the sandbox, and blank before that.
+    * */
+    private String describe(FileItem item) {
+        if (!item.isDirectory()) {
+            return item + "  (" + formatBytes(item.getSize()) + ")";
+        }
+        DirectorySize size = item == PROTOTYPE_ITEM ? PROTOTYPE_SIZE
+                : fileSystemService.getCachedDirectorySize(item.getPath());
+        if (size == null) {
+            return item.toString();
+        }
+        return item + "  (" + formatBytes(size.getBytes()) + ", " + String.format("%,d", size.getFileCount()) + " files)";
+    }
 
-            listModel.clear();
-            for (FileItem item : items) {
-                listModel.addElement(item);
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        String[] units = {"KB", "MB", "GB", "TB"};
+        double value = bytes;
+        int unit = -1;
+        while (value >= 1024 && unit < units.length - 1) {
+            value /= 1024;
+            unit++;
+        }
+        return String.format("%.1f %s", value, units[unit]);
+    }
+
+    //Opens the directory containing path and selects it, e.g. for a search result
+    public void showPath(Path path) {
+        Path parent = path.getParent();
+        if (parent == null || !parent.startsWith(rootDirectory)) {
+            return;
+        }
+        loadDirectory(parent);
+        pendingSelection = path;
+    }
+
+    private void selectPending() {
+        Path path = pendingSelection;
+        pendingSelection = null;
+        int row = path != null ? listModel.indexOf(path) : -1;
+        if (row >= 0) {
+            fileList.setSelectedIndex(row);
+            fileList.ensureIndexIsVisible(row);
+        }
+    }
+
+    private void restoreSelection() {
+        if (selectedPaths.isEmpty()) {
+            return;
+        }
+        int[] rows = selectedPaths.stream().mapToInt(listModel::indexOf).filter(row -> row >= 0).sorted().toArray();
+        if (rows.length == 0) {
+            fileList.clearSelection();
+        } else if (!Arrays.equals(rows, fileList.getSelectedIndices())) {
+            fileList.setSelectedIndices(rows);
+        }
+    }
+
+    /*
+    * Reads a directory snapshot in the background.
+    * The service hands out what it has read so far every 50 ms; those partial
+    * snapshots share one set of arrays, so publishing them costs nothing and the
+    * first entries show up quickly regardless of directory size.
+    * If a sort is active its order is computed here too, off the EDT.
+    * */
+    private class DirectoryLoader extends SwingWorker<DirectorySnapshot, DirectorySnapshot> {
+
+        private final Path directory;
+        private final SortColumn sortColumn;
+
+        DirectoryLoader(Path directory) {
+            this.directory = directory;
+            this.sortColumn = listModel.getSortColumn();
+        }
+
+        @Override
+        protected DirectorySnapshot doInBackground() throws IOException {
+            //Interactive, so a bulk job on the same disk holds back while this reads
+            DirectorySnapshot snapshot = fileSystemService.getScheduler().runInteractive(directory,
+                    () -> fileSystemService.snapshotDirectory(directory, partial -> {
+                        publish(partial);
+                        return !isCancelled();
+                    }));
+            if (sortColumn != null && !isCancelled()) {
+                snapshot.getSortKeys().order(sortColumn);
+            }
+            return snapshot;
+        }
+
+        @Override
+        protected void process(List<DirectorySnapshot> snapshots) {
+            //Ignore snapshots that arrive after the user navigated away
+            if (isCancelled() || activeLoader != this) {
+                return;
+            }
+            //Each one contains the previous ones, so only the newest matters
+            DirectorySnapshot latest = snapshots.get(snapshots.size() - 1);
+            listModel.setSnapshot(latest);
+            setStatus("Loading: " + directory + " (" + latest.size() + " items)");
+        }
+
+        @Override
+        protected void done() {
+            if (activeLoader != this) {
+                return;
             }
+            activeLoader = null;
+            setLoading(false);
+
+            try {
+                DirectorySnapshot snapshot = get();
+                listModel.setSnapshot(snapshot);
+                setStatus("Opened: " + directory + " (" + snapshot.size() + " items)");
+                selectPending();
 
-            currentDirectory = directory;
-            currentPathLabel.setText(directory.toString());
-            setStatus("Opened: " + directory);
-        } catch (IOException e) {
-            setStatus("Error reading directory: " + e.getMessage());
+                //Replay changes that raced with the listing. Applying them is idempotent.
+                List<FileChangeEvent> changes = new ArrayList<>(pendingChanges);
+                pendingChanges.clear();
+                for (FileChangeEvent change : changes) {
+                    applyChange(change);
+                }
+            } catch (CancellationException e) {
+                //Superseded by another load
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                setStatus("Error reading directory: " + cause.getMessage());
+            }
+        }
+    }
+
+    //Applies everything that arrived since the last drain; more than one change goes in as one list event
+    private void drainChanges() {
+        drainScheduled.set(false);
+        FileChangeEvent first = incomingChanges.poll();
+        if (first == null) {
+            return;
+        }
+        if (incomingChanges.isEmpty() && first.getType() != FileChangeEvent.Type.BATCH) {
+            handleChange(first);
+            return;
+        }
+        listModel.batch(() -> {
+            handleChange(first);
+            for (FileChangeEvent event = incomingChanges.poll(); event != null; event = incomingChanges.poll()) {
+                handleChange(event);
+            }
+        });
+    }
+
+    /*
+    * Applies a change event from the service to the current listing.
+    * Runs on the EDT. Each change touches a single row of the model,
+    * so there is no relist and at most one list event per change.
+    * */
+    private void handleChange(FileChangeEvent event) {
+        if (currentDirectory == null) {
+            return;
+        }
+        if (event.getType() == FileChangeEvent.Type.BATCH) {
+            listModel.batch(() -> event.getChanges().forEach(this::handleChange));
+            return;
+        }
+
+        //The directory we are showing (or one above it) was removed
+        if (event.getType() == FileChangeEvent.Type.DELETED
+                && currentDirectory.startsWith(event.getPath())) {
+            Path parent = event.getPath().getParent();
+            loadDirectory(parent != null && parent.startsWith(rootDirectory) ? parent : rootDirectory);
+            return;
+        }
+
+        boolean affectsCurrent = currentDirectory.equals(event.getDirectory())
+                || (event.getPreviousPath() != null
+                    && currentDirectory.equals(event.getPreviousPath().getParent()));
+        if (!affectsCurrent) {
+            return;
+        }
+
+        if (activeLoader != null) {
+            pendingChanges.add(event);
+        } else {
+            applyChange(event);
+        }
+    }
+
+    private void applyChange(FileChangeEvent event) {
+        switch (event.getType()) {
+            case CREATED, MODIFIED -> listModel.put(event.getItem());
+            case RENAMED -> {
+                listModel.remove(event.getPreviousPath());
+                if (currentDirectory.equals(event.getPath().getParent())) {
+                    listModel.put(event.getItem());
+                }
+            }
+            case DELETED -> listModel.remove(event.getPath());
+            case OVERFLOW -> reloadCurrentDirectory();
+            case BATCH -> event.getChanges().forEach(this::applyChange);
         }
     }
 
@@ -158,9 +532,20 @@ public class FileBrowserPanel extends JPanel {
         return fileList.getSelectedValue();
     }
 
+    //All selected entries, in row order (Ctrl/Shift-click selects several)
+    public List<FileItem> getSelectedItems() {
+        return fileList.getSelectedValuesList();
+    }
+
     private void setStatus(String message) {
         if (statusConsumer != null) {
             statusConsumer.accept(message);
         }
     }
+
+    private void setLoading(boolean loading) {
+        if (loadingConsumer != null) {
+            loadingConsumer.accept(loading);
+        }
+    }
 }
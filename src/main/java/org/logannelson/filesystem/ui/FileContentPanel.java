@@ -1,6 +1,10 @@
 package org.logannelson.filesystem.ui;
 
 import org.logannelson.filesystem.service.FileSystemService;
+import org.logannelson.filesystem.service.MappedTextFile;
+import org.logannelson.filesystem.service.OperationProgress;
+import org.logannelson.filesystem.service.SaveOptions;
+import org.logannelson.filesystem.service.ScheduledOperation;
 
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
@@ -8,20 +12,42 @@ import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.EditorKit;
+import javax.swing.text.PlainDocument;
 import java.awt.BorderLayout;
+import java.awt.CardLayout;
 import java.awt.FlowLayout;
 import java.io.IOException;
+import java.io.Writer;
 import java.nio.file.Path;
 import java.util.function.Consumer;
 
 public class FileContentPanel extends JPanel {
 
+    private static final long serialVersionUID = 1L;
+
+    //Files at or above this size open in the read-only paged viewer
+    public static final long DEFAULT_LARGE_FILE_THRESHOLD = 16L * 1024 * 1024;
+
+    private static final String EDITOR_CARD = "editor";
+    private static final String VIEWER_CARD = "viewer";
+
     private final FileSystemService fileSystemService;
     private final Consumer<String> statusConsumer;
 
     private final JLabel filePathLabel;
+    private final JButton saveButton;
     private final JTextArea textArea;
+    private final LargeFileViewer largeFileViewer;
+    private final CardLayout cardLayout;
+    private final JPanel cardPanel;
     private Path currentFile;
+    private Document saving; //Being written out by a worker, null when no save is running
+    private long largeFileThreshold = Long.getLong("fms.largeFileThreshold", DEFAULT_LARGE_FILE_THRESHOLD);
+    private SaveOptions saveOptions = SaveOptions.DEFAULT.withFsync(Boolean.getBoolean("fms.fsyncOnSave"));
 
     public FileContentPanel(FileSystemService fileSystemService, Consumer<String> statusConsumer) {
         super(new BorderLayout());
@@ -37,55 +63,261 @@ public class FileContentPanel extends JPanel {
         topPanel.add(filePathLabel, BorderLayout.CENTER);
 
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT, 5, 2));
-        JButton saveButton = new JButton("Save");
+        saveButton = new JButton("Save");
         buttonPanel.add(saveButton);
         topPanel.add(buttonPanel, BorderLayout.EAST);
 
         add(topPanel, BorderLayout.NORTH);
 
-        //Center: text area inside scroll pane
+        //Center: text area inside scroll pane, or the large file viewer
         textArea = new JTextArea();
         textArea.setEditable(true);
         JScrollPane scrollPane = new JScrollPane(textArea);
-        add(scrollPane, BorderLayout.CENTER);
+        largeFileViewer = new LargeFileViewer(statusConsumer);
+
+        cardLayout = new CardLayout();
+        cardPanel = new JPanel(cardLayout);
+        cardPanel.add(scrollPane, EDITOR_CARD);
+        cardPanel.add(largeFileViewer, VIEWER_CARD);
+        add(cardPanel, BorderLayout.CENTER);
 
         //Save button behavior
         saveButton.addActionListener(e -> saveCurrentFile());
     }
 
     public void displayFile(Path file, String content) {
+        closeLargeFile();
+        closeEditorDocument(new PlainDocument());
         this.currentFile = file;
         filePathLabel.setText(file.toString());
         textArea.setText(content);
         textArea.setCaretPosition(0); // scroll to top
+        showEditor(true);
+    }
+
+    /*
+    * Opens a file in the editor on top of a piece table over the mapped file.
+    * The text is not copied onto the heap; only edits are.
+    * Returns the length of the document in chars.
+    * */
+    public int openFile(Path file) throws IOException {
+        return openFile(file, loadDocument(fileSystemService, file));
+    }
+
+    /*
+    * Shows a document loaded with loadDocument, e.g. by a background operation.
+    * A file that is not valid UTF-8 shows U+FFFD for the bytes that could not be decoded,
+    * so it opens read-only: saving that text would write the replacement characters over them.
+    * */
+    public int openFile(Path file, PieceTableDocument document) {
+        closeLargeFile();
+        closeEditorDocument(document);
+        this.currentFile = file;
+        textArea.setCaretPosition(0); // scroll to top
+        showEditor(true);
+        if (document.isMalformed()) {
+            filePathLabel.setText(file + " (read-only, not valid UTF-8)");
+            textArea.setEditable(false);
+            saveButton.setEnabled(false);
+            setStatus("Opened read-only: " + file + " is not valid UTF-8; undecodable bytes show as \uFFFD");
+        } else {
+            filePathLabel.setText(file.toString());
+        }
+        return document.getLength();
+    }
+
+    /*
+    * Shows a file in the read-only paged viewer.
+    * The file is memory-mapped, so this takes about the same time for any size.
+    * */
+    public void displayLargeFile(Path file) throws IOException {
+        displayLargeFile(file, fileSystemService.openMappedFile(file));
+    }
+
+    public void displayLargeFile(Path file, MappedTextFile mapped) {
+        closeLargeFile();
+        this.currentFile = file;
+        filePathLabel.setText(file + " (read-only, " + mapped.size() + " bytes)");
+        closeEditorDocument(new PlainDocument()); //Drop the previous document
+        //Line index builds in the background; lines become addressable as it goes
+        largeFileViewer.setFile(mapped, fileSystemService.getLineIndex(mapped));
+        showEditor(false);
+    }
+
+    /*
+    * Maps the file and finds its lines; the slow part of openFile, safe to run off the EDT.
+    * The document owns the mapping from then on.
+    * */
+    public static PieceTableDocument loadDocument(FileSystemService fileSystemService, Path file) throws IOException {
+        MappedTextFile mapped = fileSystemService.openMappedFile(file);
+        try {
+            return PieceTableDocument.open(mapped);
+        } catch (IOException | RuntimeException e) {
+            mapped.close();
+            throw e;
+        }
     }
 
     public void clearContent() {
+        closeLargeFile();
+        closeEditorDocument(new PlainDocument());
         this.currentFile = null;
         filePathLabel.setText("No file selected");
-        textArea.setText("");
+        showEditor(true);
     }
 
     public Path getCurrentFile() {
         return currentFile;
     }
 
+    //Updates the path of the open file after a rename. Content stays the same.
+    public void updateFilePath(Path newPath) {
+        this.currentFile = newPath;
+        if (isLargeFileMode()) {
+            filePathLabel.setText(newPath + " (read-only, " + largeFileViewer.getFile().size() + " bytes)");
+        } else if (isMalformedDocument()) {
+            filePathLabel.setText(newPath + " (read-only, not valid UTF-8)");
+        } else {
+            filePathLabel.setText(newPath.toString());
+        }
+    }
+
+    //Returns the editor text, or null when a large file is shown in the read-only viewer
     public String getCurrentContent() {
-        return textArea.getText();
+        return isLargeFileMode() ? null : textArea.getText();
     }
 
+    public boolean isLargeFileMode() {
+        return largeFileViewer.getFile() != null;
+    }
+
+    public long getLargeFileThreshold() {
+        return largeFileThreshold;
+    }
+
+    public void setLargeFileThreshold(long largeFileThreshold) {
+        this.largeFileThreshold = largeFileThreshold;
+    }
+
+    public SaveOptions getSaveOptions() {
+        return saveOptions;
+    }
+
+    public void setSaveOptions(SaveOptions saveOptions) {
+        this.saveOptions = saveOptions;
+    }
+
+    private boolean isMalformedDocument() {
+        return textArea.getDocument() instanceof PieceTableDocument pieceTable && pieceTable.isMalformed();
+    }
+
+    private void showEditor(boolean editor) {
+        cardLayout.show(cardPanel, editor ? EDITOR_CARD : VIEWER_CARD);
+        textArea.setEditable(true);
+        saveButton.setEnabled(editor);
+    }
+
+    //Swaps in a new editor document, releasing the mapping behind the old one (after its save, if one is running)
+    private void closeEditorDocument(Document replacement) {
+        Document previous = textArea.getDocument();
+        textArea.setDocument(replacement);
+        if (previous instanceof PieceTableDocument pieceTable && previous != saving) {
+            try {
+                pieceTable.getFile().close();
+            } catch (IOException e) {
+                setStatus("Error closing file: " + e.getMessage());
+            }
+        }
+    }
+
+    private void closeLargeFile() {
+        MappedTextFile mapped = largeFileViewer.getFile();
+        if (mapped != null) {
+            largeFileViewer.clear();
+            try {
+                mapped.close();
+            } catch (IOException e) {
+                setStatus("Error closing file: " + e.getMessage());
+            }
+        }
+    }
+
+    /*
+    * Saves as an interactive operation on a worker: the file's lock may be held by a bulk
+    * job on its folder, and the window must not wait for it.
+    * */
     private void saveCurrentFile() {
+        if (saving != null) {
+            setStatus("Still saving the previous version.");
+            return;
+        }
         if (currentFile == null) {
             setStatus("No file selected to save.");
             return;
         }
+        if (isLargeFileMode()) {
+            setStatus("Large files are opened read-only.");
+            return;
+        }
+        if (isMalformedDocument()) {
+            setStatus("This file is opened read-only: it is not valid UTF-8.");
+            return;
+        }
+
+        Path file = currentFile;
+        Document document = textArea.getDocument();
+        ScheduledOperation.Task<Long> save;
+        if (document instanceof PieceTableDocument pieceTable) {
+            //Only the changed bytes are written when the file is unchanged on disk
+            save = () -> pieceTable.save(fileSystemService, file, saveOptions);
+        } else {
+            //Stream the document out instead of copying it into one String
+            EditorKit kit = textArea.getUI().getEditorKit(textArea);
+            save = () -> {
+                fileSystemService.writeFile(file, out -> write(kit, document, out), saveOptions);
+                return -1L;
+            };
+        }
+
+        //Read-only until saved: the document is written out on a worker and must not change meanwhile
+        saving = document;
+        textArea.setEditable(false);
+        saveButton.setEnabled(false);
+        setStatus("Saving: " + file);
+        fileSystemService.getScheduler().submit("Save " + file.getFileName(), ScheduledOperation.Priority.INTERACTIVE,
+                        file, new OperationProgress(), save).getFuture()
+                .whenComplete((written, error) ->
+                        SwingUtilities.invokeLater(() -> finishSave(file, document, written, error)));
+    }
+
+    private void finishSave(Path file, Document document, Long written, Throwable error) {
+        saving = null;
+        if (textArea.getDocument() == document) {
+            textArea.setEditable(true);
+            saveButton.setEnabled(true);
+        } else if (document instanceof PieceTableDocument pieceTable) {
+            //Replaced while it was being saved; closeEditorDocument left its mapping for this
+            try {
+                pieceTable.getFile().close();
+            } catch (IOException e) {
+                setStatus("Error closing file: " + e.getMessage());
+            }
+        }
+
+        if (error != null) {
+            setStatus("Error saving file: " + error.getMessage());
+        } else if (written >= 0) {
+            setStatus("Saved: " + file + " (" + written + " bytes written)");
+        } else {
+            setStatus("Saved: " + file);
+        }
+    }
 
+    private static void write(EditorKit kit, Document document, Writer out) throws IOException {
         try {
-            String content = textArea.getText();
-            fileSystemService.writeFile(currentFile, content);
-            setStatus("Saved: " + currentFile);
-        } catch (IOException e) {
-            setStatus("Error saving file: " + e.getMessage());
+            kit.write(out, document, 0, document.getLength());
+        } catch (BadLocationException e) {
+            throw new IOException(e);
         }
     }
 
@@ -0,0 +1,412 @@
+package org.logannelson.filesystem.ui;
+
+import org.logannelson.filesystem.model.SearchResult;
+import org.logannelson.filesystem.service.ContentIndexStatus;
+import org.logannelson.filesystem.service.FileSystemService;
+import org.logannelson.filesystem.service.OperationProgress;
+import org.logannelson.filesystem.service.ScheduledOperation;
+import org.logannelson.filesystem.service.SearchOptions;
+
+import javax.swing.BorderFactory;
+import javax.swing.DefaultListCellRenderer;
+import javax.swing.DefaultListModel;
+import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
+import javax.swing.JDialog;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextField;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.FlowLayout;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/*
+* Find by name or by content across the whole sandbox, answered from the service's
+* name and content indexes, or by scanning the current folder without an index.
+* Searches as you type; Enter or double-click shows the result in the browser.
+* Content results list their matching lines under the path.
+* */
+public class FindDialog extends JDialog {
+
+    private static final long serialVersionUID = 1L;
+
+    public enum Mode {
+        NAMES("Names", "Name contains, or glob (*.txt):"),
+        CONTENTS("Contents", "Files containing all words (prefix*):"),
+        FOLDER("In Folder", "Text in the current folder and below (no index):");
+
+        private final String label;
+        private final String prompt;
+
+        Mode(String label, String prompt) {
+            this.label = label;
+            this.prompt = prompt;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    private static final int MAX_RESULTS = 1000;
+    private static final int MAX_CONTENT_RESULTS = 200; //Each one reads its file for the previews
+    private static final int SEARCH_DELAY_MILLIS = 150;
+    private static final int STATUS_INTERVAL_MILLIS = 250;
+
+    private final FileSystemService fileSystemService;
+    private final Consumer<Path> showConsumer;
+    private final Supplier<Path> folderSupplier;
+    private final Path rootDirectory;
+
+    private final JTextField patternField = new JTextField(30);
+    private final JComboBox<Mode> modeBox = new JComboBox<>(Mode.values());
+    private final JLabel promptLabel = new JLabel(Mode.NAMES.prompt);
+    private final JCheckBox regexBox = new JCheckBox("Regex");
+    private final JCheckBox matchCaseBox = new JCheckBox("Match case");
+    private final JButton stopButton = new JButton("Stop");
+    private final DefaultListModel<SearchResult> results = new DefaultListModel<>();
+    private final JList<SearchResult> resultList = new JList<>(results);
+    private final JLabel summaryLabel = new JLabel(" ");
+    private final Timer statusTimer = new Timer(STATUS_INTERVAL_MILLIS, e -> showProgress());
+    private SwingWorker<?, ?> activeSearch;
+
+    //Folder search in progress or last finished, for the summary line
+    private OperationProgress folderProgress;
+    private Path folder;
+    private long folderStart;
+
+    public FindDialog(JFrame owner, FileSystemService fileSystemService, Supplier<Path> folderSupplier,
+                      Consumer<Path> showConsumer) {
+        super(owner, "Find", false);
+        this.fileSystemService = fileSystemService;
+        this.showConsumer = showConsumer;
+        this.folderSupplier = folderSupplier;
+        this.rootDirectory = fileSystemService.getStartDirectory();
+
+        JPanel optionsPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 5, 0));
+        optionsPanel.add(regexBox);
+        optionsPanel.add(matchCaseBox);
+        optionsPanel.add(stopButton);
+
+        JPanel topPanel = new JPanel(new BorderLayout(5, 5));
+        topPanel.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
+        topPanel.add(promptLabel, BorderLayout.NORTH);
+        topPanel.add(patternField, BorderLayout.CENTER);
+        topPanel.add(modeBox, BorderLayout.EAST);
+        topPanel.add(optionsPanel, BorderLayout.SOUTH);
+
+        //Paths relative to the sandbox root, with matching lines below for content results
+        resultList.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                                                          boolean selected, boolean focused) {
+                super.getListCellRendererComponent(list, value, index, selected, focused);
+                SearchResult result = (SearchResult) value;
+                String path = rootDirectory.relativize(result.getPath()).toString();
+                if (result.getLines().isEmpty()) {
+                    setText(path);
+                } else {
+                    StringBuilder html = new StringBuilder("<html><b>").append(escape(path)).append("</b>");
+                    for (SearchResult.MatchingLine line : result.getLines()) {
+                        html.append("<br>&nbsp;&nbsp;").append(line.getNumber()).append(": ")
+                                .append(escape(line.getText()));
+                    }
+                    setText(html.append("</html>").toString());
+                }
+                return this;
+            }
+        });
+
+        add(topPanel, BorderLayout.NORTH);
+        add(new JScrollPane(resultList), BorderLayout.CENTER);
+        add(summaryLabel, BorderLayout.SOUTH);
+
+        Timer searchTimer = new Timer(SEARCH_DELAY_MILLIS, e -> search());
+        searchTimer.setRepeats(false);
+        patternField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                searchTimer.restart();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                searchTimer.restart();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                searchTimer.restart();
+            }
+        });
+        patternField.addActionListener(e -> showSelected());
+        modeBox.addActionListener(e -> {
+            Mode mode = getMode();
+            promptLabel.setText(mode.prompt);
+            if (mode == Mode.CONTENTS) {
+                //Building can take a while, so start as soon as content search is picked
+                fileSystemService.buildContentIndex();
+            }
+            search();
+        });
+        regexBox.addActionListener(e -> search());
+        matchCaseBox.addActionListener(e -> search());
+        stopButton.addActionListener(e -> {
+            if (folderProgress != null) {
+                folderProgress.cancel();
+            }
+        });
+        resultList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2) {
+                    showSelected();
+                }
+            }
+        });
+        resultList.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyPressed(KeyEvent e) {
+                if (e.getKeyCode() == KeyEvent.VK_ENTER) {
+                    showSelected();
+                }
+            }
+        });
+
+        updateOptions();
+        setSize(650, 450);
+        setLocationRelativeTo(owner);
+    }
+
+    private Mode getMode() {
+        return (Mode) modeBox.getSelectedItem();
+    }
+
+    //Regex, case and Stop only apply to folder search
+    private void updateOptions() {
+        boolean folderMode = getMode() == Mode.FOLDER;
+        regexBox.setEnabled(folderMode);
+        matchCaseBox.setEnabled(folderMode);
+        stopButton.setEnabled(folderMode && activeSearch != null);
+    }
+
+    /*
+    * Queries run off the EDT: they take milliseconds, but may have to wait
+    * while an index is loading or building. A newer query supersedes an older one.
+    * */
+    private void search() {
+        if (activeSearch != null) {
+            activeSearch.cancel(false);
+            activeSearch = null;
+        }
+        if (folderProgress != null) {
+            folderProgress.cancel();
+            folderProgress = null;
+        }
+        statusTimer.stop();
+        String pattern = patternField.getText();
+        Mode mode = getMode();
+        if (pattern.isBlank()) {
+            results.clear();
+            summaryLabel.setText(" ");
+            updateOptions();
+            if (mode == Mode.CONTENTS) {
+                showProgress();
+                statusTimer.start();
+            }
+            return;
+        }
+        if (mode == Mode.FOLDER) {
+            searchFolder(pattern);
+            return;
+        }
+
+        int limit = mode == Mode.CONTENTS ? MAX_CONTENT_RESULTS : MAX_RESULTS;
+        long start = System.nanoTime();
+        SwingWorker<List<SearchResult>, Void> worker = new SwingWorker<>() {
+            @Override
+            protected List<SearchResult> doInBackground() throws Exception {
+                if (mode == Mode.CONTENTS) {
+                    return fileSystemService.searchContent(pattern, limit);
+                }
+                List<SearchResult> found = new ArrayList<>();
+                for (Path path : fileSystemService.findByName(pattern, limit)) {
+                    found.add(new SearchResult(path, List.of()));
+                }
+                return found;
+            }
+
+            @Override
+            protected void done() {
+                if (activeSearch != this || isCancelled()) {
+                    return;
+                }
+                activeSearch = null;
+                statusTimer.stop();
+                try {
+                    List<SearchResult> found = get();
+                    long millis = (System.nanoTime() - start) / 1_000_000;
+                    results.clear();
+                    results.addAll(found);
+                    if (!found.isEmpty()) {
+                        resultList.setSelectedIndex(0);
+                    }
+                    String summary = found.size() + (found.size() == limit ? "+" : "") + " found in " + millis + " ms";
+                    if (mode == Mode.CONTENTS) {
+                        summary += ". " + fileSystemService.getContentIndexStatus();
+                    } else if (!fileSystemService.isNameIndexReady()) {
+                        summary += " (index still building)";
+                    }
+                    summaryLabel.setText(summary);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    summaryLabel.setText((mode == Mode.CONTENTS ? "Search failed: " : "Invalid pattern: ")
+                            + e.getCause().getMessage());
+                }
+            }
+        };
+        activeSearch = worker;
+        updateOptions();
+        worker.execute();
+        if (mode == Mode.CONTENTS) {
+            showProgress();
+            statusTimer.start(); //Shows indexing progress until the search returns
+        }
+    }
+
+    /*
+    * Scans the folder shown in the browser; matches are appended as the pool threads
+    * find them. Stops by itself after MAX_RESULTS rows.
+    * */
+    private void searchFolder(String pattern) {
+        OperationProgress progress = new OperationProgress();
+        SearchOptions options = new SearchOptions(regexBox.isSelected(), matchCaseBox.isSelected());
+        Path directory = folderSupplier.get();
+        results.clear();
+        SwingWorker<Void, SearchResult> worker = new SwingWorker<>() {
+            @Override
+            protected Void doInBackground() throws Exception {
+                //A bulk job: it waits for a disk slot and shows up in the operations panel
+                fileSystemService.getScheduler().submit("Search /" + rootDirectory.relativize(directory),
+                        ScheduledOperation.Priority.BULK, directory, progress, () -> {
+                            fileSystemService.searchInFolder(directory, pattern, options, this::publish, progress);
+                            return null;
+                        }).await();
+                return null;
+            }
+
+            @Override
+            protected void process(List<SearchResult> found) {
+                if (activeSearch != this) {
+                    return;
+                }
+                boolean first = results.isEmpty();
+                for (SearchResult result : found) {
+                    if (results.size() == MAX_RESULTS) {
+                        progress.cancel();
+                        break;
+                    }
+                    results.addElement(result);
+                }
+                if (first && !results.isEmpty()) {
+                    resultList.setSelectedIndex(0);
+                }
+            }
+
+            @Override
+            protected void done() {
+                if (activeSearch != this) {
+                    return;
+                }
+                activeSearch = null;
+                statusTimer.stop();
+                updateOptions();
+                try {
+                    get();
+                    showProgress();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof CancellationException) {
+                        showProgress(); //Stopped while still waiting for the disk
+                    } else {
+                        summaryLabel.setText("Search failed: " + e.getCause().getMessage());
+                    }
+                }
+            }
+        };
+        activeSearch = worker;
+        folderProgress = progress;
+        folder = directory;
+        folderStart = System.nanoTime();
+        updateOptions();
+        worker.execute();
+        showProgress();
+        statusTimer.start();
+    }
+
+    //Scanning or indexing progress; the final numbers once done
+    private void showProgress() {
+        OperationProgress progress = folderProgress;
+        if (getMode() == Mode.FOLDER && progress != null) {
+            double seconds = Math.max((System.nanoTime() - folderStart) / 1e9, 1e-3);
+            String state = activeSearch != null ? (progress.isCancelled() ? "Stopping" : "Searching")
+                    : (progress.isCancelled() ? "Stopped" : "Done");
+            summaryLabel.setText(String.format("%s: %,d results in /%s; %,d files, %,.1f MB in %.1f s (%,.0f MB/s)%s",
+                    state, results.size(), rootDirectory.relativize(folder),
+                    progress.getFilesProcessed(), progress.getBytesProcessed() / 1e6, seconds,
+                    progress.getBytesProcessed() / 1e6 / seconds,
+                    progress.getFailureCount() > 0 ? "; " + progress.getFailureCount() + " unreadable" : ""));
+            return;
+        }
+        ContentIndexStatus status = fileSystemService.getContentIndexStatus();
+        if (status.getState() == ContentIndexStatus.State.BUILDING) {
+            summaryLabel.setText(status.toString());
+        } else if (activeSearch == null) {
+            summaryLabel.setText(status.toString());
+            statusTimer.stop();
+        }
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private void showSelected() {
+        SearchResult selected = resultList.getSelectedValue();
+        if (selected != null) {
+            showConsumer.accept(selected.getPath());
+        }
+    }
+
+    //Opens the dialog in the given mode with the pattern field focused
+    public void open(Mode mode) {
+        if (mode != getMode()) {
+            modeBox.setSelectedItem(mode);
+        }
+        setVisible(true);
+        patternField.requestFocusInWindow();
+        patternField.selectAll();
+    }
+}
@@ -0,0 +1,285 @@
+package org.logannelson.filesystem.ui;
+
+import org.logannelson.filesystem.service.LineIndex;
+import org.logannelson.filesystem.service.MappedTextFile;
+
+import javax.swing.BorderFactory;
+import javax.swing.JButton;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JScrollBar;
+import javax.swing.JTextArea;
+import javax.swing.Timer;
+import java.awt.BorderLayout;
+import java.awt.FlowLayout;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.util.function.Consumer;
+
+/*
+* Read-only paged view over a memory-mapped file.
+* Only the lines that fit on screen are decoded, so the cost of showing a
+* page does not depend on the size of the file.
+* The scrollbar maps straight to byte offsets. With a LineIndex the viewer
+* can also jump to a line number; lines become reachable while it is still building.
+* */
+public class LargeFileViewer extends JPanel {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int WHEEL_LINES = 3;
+    private static final int SCROLL_RESOLUTION = 1_000_000;
+    private static final int INDEX_POLL_MILLIS = 250;
+
+    private final Consumer<String> statusConsumer;
+    private final JTextArea textArea;
+    private final JScrollBar scrollBar;
+    private final JLabel positionLabel;
+    private final Timer indexProgressTimer;
+
+    private MappedTextFile file;
+    private LineIndex lineIndex;
+    private long topOffset;    //Start of the first visible line
+    private long bottomOffset; //Start of the first line below the window
+    private int visibleLines = 1;
+    private boolean updatingScrollBar; //Guards against feedback from our own setValues
+
+    public LargeFileViewer(Consumer<String> statusConsumer) {
+        super(new BorderLayout());
+        this.statusConsumer = statusConsumer;
+
+        textArea = new JTextArea();
+        textArea.setEditable(false);
+        textArea.setBorder(BorderFactory.createEmptyBorder(2, 4, 2, 4));
+        add(textArea, BorderLayout.CENTER);
+
+        scrollBar = new JScrollBar(JScrollBar.VERTICAL);
+        add(scrollBar, BorderLayout.EAST);
+
+        //Bottom: paging buttons and position
+        JPanel navPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 5, 2));
+        JButton topButton = new JButton("Top");
+        JButton pageUpButton = new JButton("Page Up");
+        JButton pageDownButton = new JButton("Page Down");
+        JButton endButton = new JButton("End");
+        JButton goToLineButton = new JButton("Go to Line");
+        positionLabel = new JLabel();
+
+        navPanel.add(topButton);
+        navPanel.add(pageUpButton);
+        navPanel.add(pageDownButton);
+        navPanel.add(endButton);
+        navPanel.add(goToLineButton);
+        navPanel.add(positionLabel);
+        add(navPanel, BorderLayout.SOUTH);
+
+        topButton.addActionListener(e -> scrollTo(0));
+        pageUpButton.addActionListener(e -> scrollLines(-visibleLines));
+        pageDownButton.addActionListener(e -> pageDown());
+        endButton.addActionListener(e -> scrollToEnd());
+        goToLineButton.addActionListener(e -> promptGoToLine());
+
+        textArea.addMouseWheelListener(e -> scrollLines(e.getWheelRotation() * WHEEL_LINES));
+        scrollBar.addAdjustmentListener(e -> {
+            if (!updatingScrollBar) {
+                scrollToByte(offsetForScrollValue(e.getValue()));
+            }
+        });
+
+        //Re-fill the window when its height changes
+        textArea.addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                render();
+            }
+        });
+
+        //Refresh line numbers while the index is still being built
+        indexProgressTimer = new Timer(INDEX_POLL_MILLIS, e -> {
+            updatePositionLabel();
+            if (lineIndex == null || lineIndex.isComplete()) {
+                ((Timer) e.getSource()).stop();
+            }
+        });
+    }
+
+    public void setFile(MappedTextFile file, LineIndex lineIndex) {
+        this.file = file;
+        this.lineIndex = lineIndex;
+        this.topOffset = 0;
+        render();
+        if (lineIndex != null && !lineIndex.isComplete()) {
+            indexProgressTimer.restart();
+        }
+    }
+
+    public MappedTextFile getFile() {
+        return file;
+    }
+
+    public void clear() {
+        indexProgressTimer.stop();
+        this.file = null;
+        this.lineIndex = null;
+        this.topOffset = 0;
+        textArea.setText("");
+        positionLabel.setText("");
+    }
+
+    private void promptGoToLine() {
+        if (file == null || lineIndex == null) {
+            return;
+        }
+
+        String input = JOptionPane.showInputDialog(this, "Go to line:", "Go to Line", JOptionPane.PLAIN_MESSAGE);
+        if (input == null) {
+            return;
+        }
+
+        long line;
+        try {
+            line = Long.parseLong(input.trim());
+        } catch (NumberFormatException e) {
+            setStatus("Not a line number: " + input);
+            return;
+        }
+
+        //Lines are shown 1-based, the index is 0-based
+        long offset = lineIndex.lineStart(line - 1);
+        if (offset >= 0) {
+            scrollTo(offset);
+        } else if (lineIndex.isComplete()) {
+            setStatus("Line " + line + " is out of range (file has " + lineIndex.getKnownLineCount() + " lines).");
+        } else {
+            setStatus("Line " + line + " is not indexed yet (" + lineIndex.getKnownLineCount() + " lines so far).");
+        }
+    }
+
+    private void pageDown() {
+        if (file != null && bottomOffset < file.size()) {
+            scrollTo(bottomOffset);
+        }
+    }
+
+    private void scrollToEnd() {
+        if (file == null) {
+            return;
+        }
+        long offset = file.size();
+        for (int i = 0; i < visibleLines && offset > 0; i++) {
+            offset = file.previousLineStart(offset);
+        }
+        scrollTo(offset);
+    }
+
+    //Moves the window by the given number of lines (negative is up)
+    private void scrollLines(int lines) {
+        if (file == null) {
+            return;
+        }
+        long offset = topOffset;
+        if (lines > 0) {
+            for (int i = 0; i < lines && file.nextLineStart(offset) < file.size(); i++) {
+                offset = file.nextLineStart(offset);
+            }
+        } else {
+            for (int i = 0; i < -lines && offset > 0; i++) {
+                offset = file.previousLineStart(offset);
+            }
+        }
+        scrollTo(offset);
+    }
+
+    //Scrolls to the start of the line containing an arbitrary byte offset
+    private void scrollToByte(long offset) {
+        if (file == null) {
+            return;
+        }
+        long line = lineIndex != null ? lineIndex.lineAt(offset) : -1;
+        scrollTo(line >= 0 ? lineIndex.lineStart(line) : file.lineStartAt(offset));
+    }
+
+    private void scrollTo(long offset) {
+        topOffset = offset;
+        render();
+    }
+
+    private long offsetForScrollValue(int value) {
+        long resolution = scrollResolution();
+        return resolution == 0 ? 0 : Math.min(file.size(), (value * file.size()) / resolution);
+    }
+
+    private int scrollResolution() {
+        return (int) Math.min(SCROLL_RESOLUTION, file.size());
+    }
+
+    /*
+    * Decodes just enough lines to fill the window, starting at topOffset.
+    * */
+    private void render() {
+        if (file == null) {
+            return;
+        }
+
+        int lineHeight = textArea.getFontMetrics(textArea.getFont()).getHeight();
+        int height = textArea.getHeight() - textArea.getInsets().top - textArea.getInsets().bottom;
+        visibleLines = Math.max(1, height / Math.max(1, lineHeight));
+
+        StringBuilder text = new StringBuilder();
+        long offset = topOffset;
+        for (int i = 0; i < visibleLines && offset < file.size(); i++) {
+            if (i > 0) {
+                text.append('\n');
+            }
+            text.append(file.readLine(offset));
+            offset = file.nextLineStart(offset);
+        }
+        bottomOffset = offset;
+
+        textArea.setText(text.toString());
+        textArea.setCaretPosition(0);
+        updateScrollBar();
+        updatePositionLabel();
+    }
+
+    private void updateScrollBar() {
+        int resolution = scrollResolution();
+        if (resolution == 0) {
+            return;
+        }
+        int value = (int) ((topOffset * resolution) / file.size());
+        int extent = (int) Math.max(1, ((bottomOffset - topOffset) * resolution) / file.size());
+        updatingScrollBar = true;
+        try {
+            scrollBar.setValues(value, extent, 0, resolution + extent);
+            scrollBar.setBlockIncrement(extent);
+        } finally {
+            updatingScrollBar = false;
+        }
+    }
+
+    private void updatePositionLabel() {
+        if (file == null) {
+            return;
+        }
+        long percent = file.size() == 0 ? 100 : (bottomOffset * 100) / file.size();
+        String bytes = "Bytes " + topOffset + "-" + bottomOffset + " of " + file.size() + " (" + percent + "%)";
+
+        long line = lineIndex != null ? lineIndex.lineAt(topOffset) : -1;
+        if (line < 0) {
+            positionLabel.setText(bytes);
+        } else if (lineIndex.isComplete()) {
+            positionLabel.setText("Line " + (line + 1) + " of " + lineIndex.getKnownLineCount() + " | " + bytes);
+        } else {
+            positionLabel.setText("Line " + (line + 1) + " (indexing, "
+                    + lineIndex.getKnownLineCount() + " lines so far) | " + bytes);
+        }
+    }
+
+    private void setStatus(String message) {
+        if (statusConsumer != null) {
+            statusConsumer.accept(message);
+        }
+    }
+}
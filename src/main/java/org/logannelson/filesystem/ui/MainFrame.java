@@ -1,26 +1,62 @@
 package org.logannelson.filesystem.ui;
 
+import org.logannelson.filesystem.model.FileItem;
+import org.logannelson.filesystem.model.TrashEntry;
+import org.logannelson.filesystem.service.BatchOperation;
+import org.logannelson.filesystem.service.BatchResult;
+import org.logannelson.filesystem.service.FileSystemBackend;
 import org.logannelson.filesystem.service.FileSystemService;
-import org.logannelson.filesystem.service.FileSystemServiceImpl;
+import org.logannelson.filesystem.service.MappedTextFile;
+import org.logannelson.filesystem.service.MeteredFileSystemService;
+import org.logannelson.filesystem.service.OperationFailure;
+import org.logannelson.filesystem.service.OperationProgress;
+import org.logannelson.filesystem.service.ScheduledOperation;
+import org.logannelson.filesystem.service.ServiceMetrics;
 
 import javax.swing.*;
 import java.awt.BorderLayout;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.function.BiConsumer;
 
 public class MainFrame extends JFrame {
 
+    private static final long serialVersionUID = 1L;
+
+    private static final int MAX_FAILURES_SHOWN = 10;
+    private static final int BATCH_PARALLELISM = 4;
+
     private final FileSystemService fileSystemService;
     private final StatusBarPanel statusBarPanel;
 
     private FileBrowserPanel browserPanel;
     private FileContentPanel contentPanel;
+    private FindDialog findDialog; //Created on first use
+    private Object pendingOpen; //Newest file open still being read
+
+    //Deletes of this session, most recent first, for Undo Delete; a multi-select delete is one group
+    private final Deque<List<TrashEntry>> recentlyDeleted = new ArrayDeque<>();
 
     public MainFrame() {
         super("File Management System");
 
-        this.fileSystemService = new FileSystemServiceImpl();
+        //Disk unless -Dfms.backend=memory; every call is metered, shown in the status bar and over JMX
+        FileSystemBackend backend = FileSystemBackend.fromSystemProperty();
+        if (backend == FileSystemBackend.MEMORY) {
+            setTitle(getTitle() + " (in memory)");
+        }
+        ServiceMetrics metrics = new ServiceMetrics();
+        this.fileSystemService = new MeteredFileSystemService(backend.create(), metrics);
+        metrics.registerMBeans();
         this.statusBarPanel = new StatusBarPanel();
+        statusBarPanel.showMetrics(metrics);
 
         initFrameSettings();
         initLayout(); //Now create the panels first
@@ -54,13 +90,44 @@ public class MainFrame extends JFrame {
 
         JMenu editMenu = new JMenu("Edit");
         JMenuItem renameItem = new JMenuItem("Rename");
+        JMenuItem copyItem = new JMenuItem("Copy To...");
+        JMenuItem moveItem = new JMenuItem("Move To...");
         JMenuItem deleteItem = new JMenuItem("Delete");
+        JMenuItem deletePermanentlyItem = new JMenuItem("Delete Permanently...");
+        JMenuItem undoDeleteItem = new JMenuItem("Undo Delete");
+        JMenuItem emptyTrashItem = new JMenuItem("Empty Trash...");
+        JMenuItem findItem = new JMenuItem("Find by Name...");
+        JMenuItem findContentItem = new JMenuItem("Find in Files...");
+        JMenuItem searchFolderItem = new JMenuItem("Search in Folder...");
+
+        findItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F, InputEvent.CTRL_DOWN_MASK | InputEvent.SHIFT_DOWN_MASK));
+        findContentItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_G, InputEvent.CTRL_DOWN_MASK | InputEvent.SHIFT_DOWN_MASK));
+        searchFolderItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_H, InputEvent.CTRL_DOWN_MASK | InputEvent.SHIFT_DOWN_MASK));
+        undoDeleteItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z, InputEvent.CTRL_DOWN_MASK));
 
         renameItem.addActionListener(e -> renameSelectedItem());
+        copyItem.addActionListener(e -> transferSelectedItem(false));
+        moveItem.addActionListener(e -> transferSelectedItem(true));
         deleteItem.addActionListener(e -> deleteSelectedItem());
+        deletePermanentlyItem.addActionListener(e -> deleteSelectedItemPermanently());
+        undoDeleteItem.addActionListener(e -> undoDelete());
+        emptyTrashItem.addActionListener(e -> emptyTrash());
+        findItem.addActionListener(e -> showFindDialog(FindDialog.Mode.NAMES));
+        findContentItem.addActionListener(e -> showFindDialog(FindDialog.Mode.CONTENTS));
+        searchFolderItem.addActionListener(e -> showFindDialog(FindDialog.Mode.FOLDER));
 
         editMenu.add(renameItem);
+        editMenu.add(copyItem);
+        editMenu.add(moveItem);
         editMenu.add(deleteItem);
+        editMenu.add(deletePermanentlyItem);
+        editMenu.addSeparator();
+        editMenu.add(undoDeleteItem);
+        editMenu.add(emptyTrashItem);
+        editMenu.addSeparator();
+        editMenu.add(findItem);
+        editMenu.add(findContentItem);
+        editMenu.add(searchFolderItem);
 
         menuBar.add(fileMenu);
         menuBar.add(editMenu);
@@ -81,18 +148,8 @@ public class MainFrame extends JFrame {
                 new FileBrowserPanel(
                         fileSystemService,
                         statusBarPanel::setStatusMessage,
-                        fileItem -> {
-                            try {
-                                String content = fileSystemService.readFile(fileItem.getPath());
-                                statusBarPanel.setStatusMessage(
-                                        "Opened file: " + fileItem.getPath() +
-                                                " (length: " + content.length() + ")"
-                                );
-                                contentPanel.displayFile(fileItem.getPath(), content);
-                            } catch (IOException e) {
-                                statusBarPanel.setStatusMessage("Error reading file: " + e.getMessage());
-                            }
-                        }
+                        this::openItem,
+                        statusBarPanel::setBusy
                 );
 
         JSplitPane splitPane = new JSplitPane(
@@ -102,8 +159,84 @@ public class MainFrame extends JFrame {
         );
         splitPane.setDividerLocation(300);
 
+        //Background operations stack up above the status line
+        JPanel southPanel = new JPanel(new BorderLayout());
+        southPanel.add(new OperationsPanel(fileSystemService.getScheduler()), BorderLayout.CENTER);
+        southPanel.add(statusBarPanel, BorderLayout.SOUTH);
+
         add(splitPane, BorderLayout.CENTER);
-        add(statusBarPanel, BorderLayout.SOUTH);
+        add(southPanel, BorderLayout.SOUTH);
+    }
+
+    /*
+    * Reads the file as an interactive operation, ahead of any bulk job on the disk, and
+    * shows it when ready. The newest request wins: an older one that finishes later is
+    * closed without being shown.
+    * */
+    private void openItem(FileItem fileItem) {
+        Path path = fileItem.getPath();
+        Object request = new Object();
+        pendingOpen = request;
+        statusBarPanel.setStatusMessage("Opening: " + path);
+
+        //Big files go to the memory-mapped viewer instead of the editor
+        if (fileItem.getSize() >= contentPanel.getLargeFileThreshold()) {
+            schedule("Open " + fileItem.getName(), ScheduledOperation.Priority.INTERACTIVE, path,
+                    new OperationProgress(), () -> fileSystemService.openMappedFile(path), (mapped, error) -> {
+                        if (pendingOpen != request || error != null) {
+                            closeQuietly(mapped);
+                            finishOpen(request, error);
+                            return;
+                        }
+                        pendingOpen = null;
+                        contentPanel.displayLargeFile(path, mapped);
+                        statusBarPanel.setStatusMessage(
+                                "Opened large file: " + path +
+                                        " (size: " + fileItem.getSize() + " bytes, read-only)"
+                        );
+                    });
+            return;
+        }
+
+        schedule("Open " + fileItem.getName(), ScheduledOperation.Priority.INTERACTIVE, path, new OperationProgress(),
+                () -> FileContentPanel.loadDocument(fileSystemService, path), (document, error) -> {
+                    if (pendingOpen != request || error != null) {
+                        closeQuietly(document == null ? null : document.getFile());
+                        finishOpen(request, error);
+                        return;
+                    }
+                    pendingOpen = null;
+                    int length = contentPanel.openFile(path, document);
+                    statusBarPanel.setStatusMessage(
+                            "Opened file: " + path +
+                                    " (length: " + length + ")"
+                    );
+                });
+    }
+
+    //A failed open, or one overtaken by a newer request, which then reports nothing
+    private void finishOpen(Object request, Throwable error) {
+        if (pendingOpen == request) {
+            pendingOpen = null;
+            statusBarPanel.setStatusMessage("Error reading file: " + error.getMessage());
+        }
+    }
+
+    private void closeQuietly(MappedTextFile mapped) {
+        if (mapped != null) {
+            try {
+                mapped.close();
+            } catch (IOException e) {
+                //Never shown, nothing to report
+            }
+        }
+    }
+
+    //Runs the task through the service's scheduler and hands its result or error to the EDT
+    private <T> void schedule(String name, ScheduledOperation.Priority priority, Path path, OperationProgress progress,
+                              ScheduledOperation.Task<T> task, BiConsumer<T, Throwable> whenDone) {
+        fileSystemService.getScheduler().submit(name, priority, path, progress, task).getFuture()
+                .whenComplete((result, error) -> SwingUtilities.invokeLater(() -> whenDone.accept(result, error)));
     }
 
     //Helper for createNewFile
@@ -137,21 +270,23 @@ public class MainFrame extends JFrame {
             return;
         }
 
-        try {
-            fileSystemService.createFile(currentDir, name, "");
-            browserPanel.reloadCurrentDirectory();
-            statusBarPanel.setStatusMessage("Created file: " + currentDir.resolve(name));
-        } catch (IOException e) {
-            statusBarPanel.setStatusMessage("Error creating file: " + e.getMessage());
-            JOptionPane.showMessageDialog(
-                    this,
-                    "Failed to create file:\n" + e.getMessage(),
-                    "Error",
-                    JOptionPane.ERROR_MESSAGE
-            );
-        }
-
-
+        //On a worker: the folder may be locked by a bulk job, and the window must not wait for it
+        String fileName = name;
+        schedule("Create " + fileName, ScheduledOperation.Priority.INTERACTIVE, currentDir, new OperationProgress(),
+                () -> fileSystemService.createFile(currentDir, fileName, ""), (created, error) -> {
+                    if (error != null) {
+                        statusBarPanel.setStatusMessage("Error creating file: " + error.getMessage());
+                        JOptionPane.showMessageDialog(
+                                MainFrame.this,
+                                "Failed to create file:\n" + error.getMessage(),
+                                "Error",
+                                JOptionPane.ERROR_MESSAGE
+                        );
+                        return;
+                    }
+                    //The browser picks up the new entry from the service's change event
+                    statusBarPanel.setStatusMessage("Created file: " + created);
+                });
     }
 
     private void createNewFolder() {
@@ -185,19 +320,21 @@ public class MainFrame extends JFrame {
             return;
         }
 
-        try {
-            fileSystemService.createDirectory(currentDir, name);
-            browserPanel.reloadCurrentDirectory();
-            statusBarPanel.setStatusMessage("Created folder: " + currentDir.resolve(name));
-        } catch (IOException e) {
-            statusBarPanel.setStatusMessage("Error creating folder: " + e.getMessage());
-            JOptionPane.showMessageDialog(
-                    this,
-                    "Failed to create folder:\n" + e.getMessage(),
-                    "Error",
-                    JOptionPane.ERROR_MESSAGE
-            );
-        }
+        String folderName = name;
+        schedule("Create " + folderName, ScheduledOperation.Priority.INTERACTIVE, currentDir, new OperationProgress(),
+                () -> fileSystemService.createDirectory(currentDir, folderName), (created, error) -> {
+                    if (error != null) {
+                        statusBarPanel.setStatusMessage("Error creating folder: " + error.getMessage());
+                        JOptionPane.showMessageDialog(
+                                MainFrame.this,
+                                "Failed to create folder:\n" + error.getMessage(),
+                                "Error",
+                                JOptionPane.ERROR_MESSAGE
+                        );
+                        return;
+                    }
+                    statusBarPanel.setStatusMessage("Created folder: " + created);
+                });
     }
 
     private void renameSelectedItem() {
@@ -230,31 +367,288 @@ public class MainFrame extends JFrame {
             return;
         }
 
-        try {
-            Path oldPath = selected.getPath();
-            Path newPath = fileSystemService.rename(oldPath, newName);
-            statusBarPanel.setStatusMessage("Renamed to: " + newPath);
+        Path oldPath = selected.getPath();
+        String name = newName;
+        statusBarPanel.setStatusMessage("Renaming: " + oldPath);
+        schedule("Rename " + oldName, ScheduledOperation.Priority.INTERACTIVE, oldPath, new OperationProgress(),
+                () -> fileSystemService.rename(oldPath, name), (newPath, error) -> {
+                    if (error != null) {
+                        statusBarPanel.setStatusMessage("Error renaming: " + error.getMessage());
+                        JOptionPane.showMessageDialog(
+                                MainFrame.this,
+                                "Failed to rename:\n" + error.getMessage(),
+                                "Error",
+                                JOptionPane.ERROR_MESSAGE
+                        );
+                        return;
+                    }
+                    statusBarPanel.setStatusMessage("Renamed to: " + newPath);
+
+                    //If this file is currently open in the content panel, update the label/content path
+                    Path openFile = contentPanel.getCurrentFile();
+                    if (openFile != null && openFile.equals(oldPath)) {
+                        //Just update the label path. Content stays the same
+                        contentPanel.updateFilePath(newPath);
+                    }
+                });
+    }
 
-            //If this file is currently open in the content panel, update the label/content path
-            Path openFile = contentPanel.getCurrentFile();
-            if (openFile != null && openFile.equals(oldPath)) {
-                //Just update the label path. Content stays the same
-                contentPanel.displayFile(newPath, contentPanel.getCurrentContent());
-            }
+    /*
+    * Moves the selection to the trash. This is a single rename, run as an interactive
+    * operation so it goes ahead of bulk jobs, and can be undone from the Edit menu.
+    * */
+    private void deleteSelectedItem() {
+        if (browserPanel == null) {
+            statusBarPanel.setStatusMessage("File browser not ready.");
+            return;
+        }
 
-            browserPanel.reloadCurrentDirectory();
-        } catch (IOException e) {
-            statusBarPanel.setStatusMessage("Error renaming: " + e.getMessage());
-            JOptionPane.showMessageDialog(
-                    this,
-                    "Failed to rename:\n" + e.getMessage(),
-                    "Error",
-                    JOptionPane.ERROR_MESSAGE
-            );
+        List<FileItem> selected = browserPanel.getSelectedItems();
+        if (selected.isEmpty()) {
+            statusBarPanel.setStatusMessage("No file or folder selected to delete.");
+            return;
         }
+        if (selected.size() > 1) {
+            deleteItems(selected);
+            return;
+        }
+
+        Path target = selected.get(0).getPath();
+        closeIfOpen(target);
+        statusBarPanel.setStatusMessage("Moving to trash: " + target);
+        schedule("Move " + target.getFileName() + " to trash", ScheduledOperation.Priority.INTERACTIVE, target,
+                new OperationProgress(), () -> fileSystemService.delete(target), (entry, error) -> {
+                    if (error != null) {
+                        statusBarPanel.setStatusMessage("Error deleting: " + error.getMessage());
+                        JOptionPane.showMessageDialog(
+                                MainFrame.this,
+                                "Failed to delete:\n" + error.getMessage(),
+                                "Error",
+                                JOptionPane.ERROR_MESSAGE
+                        );
+                        return;
+                    }
+                    recentlyDeleted.push(List.of(entry));
+                    statusBarPanel.setStatusMessage("Moved to trash: " + target + " (Edit > Undo Delete to restore)");
+                });
     }
 
-    private void deleteSelectedItem() {
+    /*
+    * Moves several selected items to the trash as one batch, in the background:
+    * one call to the service and one update of the list, however many there are.
+    * */
+    private void deleteItems(List<FileItem> items) {
+        List<BatchOperation> operations = new ArrayList<>();
+        for (FileItem item : items) {
+            closeIfOpen(item.getPath());
+            operations.add(BatchOperation.delete(item.getPath()));
+        }
+
+        statusBarPanel.setStatusMessage("Moving " + items.size() + " items to trash...");
+        schedule("Move " + items.size() + " items to trash", ScheduledOperation.Priority.BULK,
+                items.get(0).getPath(), new OperationProgress(),
+                () -> fileSystemService.runBatch(operations, BATCH_PARALLELISM), (results, error) -> {
+                    if (error instanceof CancellationException) {
+                        statusBarPanel.setStatusMessage("Delete cancelled.");
+                        return;
+                    }
+                    if (error != null) {
+                        statusBarPanel.setStatusMessage("Error deleting: " + error.getMessage());
+                        JOptionPane.showMessageDialog(
+                                MainFrame.this,
+                                "Failed to delete:\n" + error.getMessage(),
+                                "Error",
+                                JOptionPane.ERROR_MESSAGE
+                        );
+                        return;
+                    }
+
+                    List<TrashEntry> deleted = new ArrayList<>();
+                    List<OperationFailure> failures = new ArrayList<>();
+                    for (BatchResult result : results) {
+                        if (result.isSuccess()) {
+                            deleted.add(result.getTrashEntry());
+                        } else {
+                            failures.add(new OperationFailure(result.getOperation().getPath(), result.getError()));
+                        }
+                    }
+                    if (!deleted.isEmpty()) {
+                        recentlyDeleted.push(deleted);
+                    }
+                    statusBarPanel.setStatusMessage("Moved " + deleted.size() + " item(s) to trash"
+                            + (failures.isEmpty() ? "" : "; " + failures.size() + " failed")
+                            + " (Edit > Undo Delete to restore)");
+                    if (!failures.isEmpty()) {
+                        showFailures("Some items could not be deleted:\n", failures);
+                    }
+                });
+    }
+
+    //Restores the most recent delete of this session, all of its items
+    private void undoDelete() {
+        List<TrashEntry> entries = recentlyDeleted.poll();
+        if (entries == null) {
+            statusBarPanel.setStatusMessage("Nothing to undo.");
+            return;
+        }
+
+        //Filled on the worker, read once it is done
+        List<String> problems = new ArrayList<>();
+        statusBarPanel.setStatusMessage("Restoring...");
+        schedule("Restore " + entries.size() + " item(s)", ScheduledOperation.Priority.INTERACTIVE,
+                entries.get(0).getOriginalPath(), new OperationProgress(), () -> {
+                    Path restored = null;
+                    for (TrashEntry entry : entries) {
+                        try {
+                            restored = fileSystemService.restore(entry);
+                        } catch (IOException e) {
+                            //Purged because the trash was full, or the path is taken again
+                            problems.add(entry.getOriginalPath() + ": " + e.getMessage());
+                        }
+                    }
+                    return restored;
+                }, (restored, error) -> {
+                    if (error != null) {
+                        problems.add(error.getMessage());
+                    }
+                    if (!problems.isEmpty()) {
+                        statusBarPanel.setStatusMessage("Cannot restore " + problems.get(0)
+                                + (problems.size() > 1 ? " (and " + (problems.size() - 1) + " more)" : ""));
+                    } else if (entries.size() == 1) {
+                        statusBarPanel.setStatusMessage("Restored: " + restored);
+                    } else {
+                        statusBarPanel.setStatusMessage("Restored " + entries.size() + " items.");
+                    }
+                });
+    }
+
+    private void emptyTrash() {
+        int choice = JOptionPane.showConfirmDialog(
+                this,
+                "Permanently delete all " + fileSystemService.listTrash().size() + " item(s) in the trash?",
+                "Empty Trash",
+                JOptionPane.YES_NO_OPTION,
+                JOptionPane.WARNING_MESSAGE
+        );
+        if (choice == JOptionPane.YES_OPTION) {
+            fileSystemService.emptyTrash();
+            recentlyDeleted.clear();
+            statusBarPanel.setStatusMessage("Emptying trash in the background.");
+        }
+    }
+
+    private void showFindDialog(FindDialog.Mode mode) {
+        if (findDialog == null) {
+            findDialog = new FindDialog(this, fileSystemService, browserPanel::getCurrentDirectory, path -> {
+                browserPanel.showPath(path);
+                statusBarPanel.setStatusMessage("Showing: " + path);
+            });
+        }
+        findDialog.open(mode);
+    }
+
+    /*
+    * Copies or moves the selection into a folder given relative to the sandbox root.
+    * Runs in the background with live counts and bytes per second; running it again
+    * after a failure or cancel resumes it.
+    * */
+    private void transferSelectedItem(boolean move) {
+        if (browserPanel == null) {
+            statusBarPanel.setStatusMessage("File browser not ready.");
+            return;
+        }
+
+        var selected = browserPanel.getSelectedItem();
+        String verb = move ? "Move" : "Copy";
+        if (selected == null) {
+            statusBarPanel.setStatusMessage("No file or folder selected to " + verb.toLowerCase() + ".");
+            return;
+        }
+
+        Path root = fileSystemService.getStartDirectory();
+        String folder = JOptionPane.showInputDialog(
+                this,
+                verb + " " + selected.getName() + " to folder (relative to the sandbox root):",
+                root.relativize(browserPanel.getCurrentDirectory()).toString()
+        );
+        if (folder == null) {
+            statusBarPanel.setStatusMessage(verb + " cancelled.");
+            return;
+        }
+
+        Path source = selected.getPath();
+        Path targetDirectory = root.resolve(folder.trim()).normalize();
+        if (move) {
+            closeIfOpen(source);
+        }
+
+        //Progress, throughput and Cancel show up in the operations panel
+        OperationProgress progress = new OperationProgress();
+        String action = move ? "Moving " : "Copying ";
+        statusBarPanel.setStatusMessage(action + source + " to " + targetDirectory + "...");
+        schedule(verb + " " + source.getFileName(), ScheduledOperation.Priority.BULK, source, progress,
+                () -> move
+                        ? fileSystemService.move(source, targetDirectory, progress)
+                        : fileSystemService.copy(source, targetDirectory, progress),
+                (target, error) -> {
+                    if (error instanceof CancellationException) {
+                        statusBarPanel.setStatusMessage(verb + " cancelled before it started.");
+                        return;
+                    }
+                    if (error != null) {
+                        statusBarPanel.setStatusMessage("Error: " + error.getMessage());
+                        JOptionPane.showMessageDialog(
+                                MainFrame.this,
+                                "Failed to " + verb.toLowerCase() + ":\n" + error.getMessage(),
+                                "Error",
+                                JOptionPane.ERROR_MESSAGE
+                        );
+                        return;
+                    }
+
+                    List<OperationFailure> failures = progress.getFailures();
+                    if (!failures.isEmpty()) {
+                        statusBarPanel.setStatusMessage(verb + " incomplete, " + failures.size()
+                                + " item(s) failed; run it again to resume. " + describeTransfer(progress));
+                        showFailures("Some items could not be " + (move ? "moved" : "copied") + ":\n", failures);
+                    } else if (progress.isCancelled()) {
+                        statusBarPanel.setStatusMessage(verb + " cancelled; run it again to resume. "
+                                + describeTransfer(progress));
+                    } else {
+                        statusBarPanel.setStatusMessage((move ? "Moved to: " : "Copied to: ") + target
+                                + " (" + describeTransfer(progress) + ")");
+                    }
+                });
+    }
+
+    private static String describeTransfer(OperationProgress progress) {
+        String text = String.format("%,d files, %,.1f MB at %,.1f MB/s", progress.getFilesProcessed(),
+                progress.getBytesProcessed() / 1e6, progress.getBytesPerSecond() / 1e6);
+        if (progress.getFilesSkipped() > 0) {
+            text += String.format(", %,d already there", progress.getFilesSkipped());
+        }
+        return text;
+    }
+
+    private void showFailures(String heading, List<OperationFailure> failures) {
+        StringBuilder details = new StringBuilder(heading);
+        failures.stream().limit(MAX_FAILURES_SHOWN).forEach(f -> details.append(f).append('\n'));
+        if (failures.size() > MAX_FAILURES_SHOWN) {
+            details.append("... and ").append(failures.size() - MAX_FAILURES_SHOWN).append(" more");
+        }
+        JOptionPane.showMessageDialog(this, details.toString(), "Error", JOptionPane.ERROR_MESSAGE);
+    }
+
+    //If the open file is being deleted or moved, clear the content panel
+    private void closeIfOpen(Path target) {
+        Path openFile = contentPanel.getCurrentFile();
+        if (openFile != null && openFile.startsWith(target)) {
+            contentPanel.clearContent();
+        }
+    }
+
+    //Deletes the selection for good, bypassing the trash
+    private void deleteSelectedItemPermanently() {
         if (browserPanel == null) {
             statusBarPanel.setStatusMessage("File browser not ready.");
             return;
@@ -268,8 +662,8 @@ public class MainFrame extends JFrame {
 
         Path target = selected.getPath();
         String message = selected.isDirectory()
-                ? "Delete this folder and all its contents?\n" + target
-                : "Delete this file?\n" + target;
+                ? "Permanently delete this folder and all its contents?\n" + target
+                : "Permanently delete this file?\n" + target;
 
         int choice = JOptionPane.showConfirmDialog(
                 this,
@@ -284,24 +678,43 @@ public class MainFrame extends JFrame {
             return;
         }
 
-        try {
-            //If the open file is being deleted, clear the content panel
-            Path openFile = contentPanel.getCurrentFile();
-            if (openFile != null && openFile.equals(target)) {
-                contentPanel.clearContent();
-            }
+        closeIfOpen(target);
 
-            fileSystemService.delete(target);
-            browserPanel.reloadCurrentDirectory();
-            statusBarPanel.setStatusMessage("Deleted: " + target);
-        } catch (IOException e) {
-            statusBarPanel.setStatusMessage("Error deleting: " + e.getMessage());
+        //Large trees take a while, so delete in the background; the operations panel shows the counts
+        OperationProgress progress = new OperationProgress();
+        statusBarPanel.setStatusMessage("Deleting " + target + "...");
+        schedule("Delete " + target.getFileName(), ScheduledOperation.Priority.BULK, target, progress, () -> {
+            fileSystemService.deletePermanently(target, progress);
+            return null;
+        }, (ignored, error) -> finishDelete(target, progress, error));
+    }
+
+    //Reports the outcome of a background delete, listing the paths that failed
+    private void finishDelete(Path target, OperationProgress progress, Throwable error) {
+        String counts = progress.getFilesProcessed() + " files, " + progress.getDirectoriesProcessed() + " folders";
+        if (error instanceof CancellationException) {
+            statusBarPanel.setStatusMessage("Delete cancelled before it started.");
+            return;
+        }
+        if (error != null) {
+            statusBarPanel.setStatusMessage("Error deleting: " + error.getMessage());
             JOptionPane.showMessageDialog(
                     this,
-                    "Failed to delete:\n" + e.getMessage(),
+                    "Failed to delete:\n" + error.getMessage(),
                     "Error",
                     JOptionPane.ERROR_MESSAGE
             );
+            return;
+        }
+
+        List<OperationFailure> failures = progress.getFailures();
+        if (!failures.isEmpty()) {
+            statusBarPanel.setStatusMessage("Deleted " + counts + "; " + failures.size() + " item(s) failed.");
+            showFailures("Some items could not be deleted:\n", failures);
+        } else if (progress.isCancelled()) {
+            statusBarPanel.setStatusMessage("Delete cancelled after " + counts + ".");
+        } else {
+            statusBarPanel.setStatusMessage("Deleted: " + target + " (" + counts + ")");
         }
     }
 
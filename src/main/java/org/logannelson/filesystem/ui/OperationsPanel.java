@@ -0,0 +1,120 @@
+package org.logannelson.filesystem.ui;
+
+import org.logannelson.filesystem.service.OperationProgress;
+import org.logannelson.filesystem.service.OperationScheduler;
+import org.logannelson.filesystem.service.ScheduledOperation;
+
+import javax.swing.BorderFactory;
+import javax.swing.BoxLayout;
+import javax.swing.JButton;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.Timer;
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.FlowLayout;
+import java.awt.Insets;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+* One row per queued or running background operation, above the status bar:
+* what it is doing, how far it got, its throughput and a Cancel button.
+* Polls the scheduler on a Swing timer, so the operations never touch the EDT;
+* hidden while nothing runs.
+* */
+public class OperationsPanel extends JPanel {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int REFRESH_MILLIS = 250;
+
+    private final OperationScheduler scheduler;
+    private final List<Row> rows = new ArrayList<>();
+
+    //One operation's line; its label is updated in place on every tick
+    private static class Row extends JPanel {
+        private static final long serialVersionUID = 1L;
+
+        final ScheduledOperation<?> operation;
+        final JLabel label = new JLabel();
+        final JButton cancelButton = new JButton("Cancel");
+
+        Row(ScheduledOperation<?> operation) {
+            super(new BorderLayout());
+            this.operation = operation;
+
+            JProgressBar bar = new JProgressBar();
+            bar.setIndeterminate(true);
+            bar.setPreferredSize(new Dimension(80, 12));
+
+            cancelButton.setMargin(new Insets(0, 6, 0, 6));
+            cancelButton.addActionListener(e -> {
+                operation.cancel();
+                cancelButton.setEnabled(false);
+            });
+
+            JPanel eastPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT, 4, 0));
+            eastPanel.add(bar);
+            eastPanel.add(cancelButton);
+            add(label, BorderLayout.CENTER);
+            add(eastPanel, BorderLayout.EAST);
+            update();
+        }
+
+        void update() {
+            label.setText(describe(operation));
+        }
+    }
+
+    public OperationsPanel(OperationScheduler scheduler) {
+        this.scheduler = scheduler;
+        setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
+        setBorder(BorderFactory.createEmptyBorder(2, 4, 2, 0));
+        setVisible(false);
+
+        Timer refreshTimer = new Timer(REFRESH_MILLIS, e -> refresh());
+        refreshTimer.start();
+    }
+
+    //Adds rows for new operations, drops finished ones and updates the rest
+    private void refresh() {
+        List<ScheduledOperation<?>> operations = scheduler.getOperations();
+        boolean changed = rows.removeIf(row -> !operations.contains(row.operation));
+        for (ScheduledOperation<?> operation : operations) {
+            if (rows.stream().noneMatch(row -> row.operation == operation)) {
+                rows.add(new Row(operation));
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            removeAll();
+            rows.forEach(this::add);
+            setVisible(!rows.isEmpty());
+            revalidate();
+            repaint();
+        }
+        for (Row row : rows) {
+            row.update();
+        }
+    }
+
+    private static String describe(ScheduledOperation<?> operation) {
+        OperationProgress progress = operation.getProgress();
+        String name = operation.getName();
+        if (operation.getState() == ScheduledOperation.State.QUEUED) {
+            return name + ": waiting for the disk";
+        }
+        if (progress.getFilesProcessed() == 0 && progress.getBytesProcessed() == 0) {
+            return progress.isCancelled() ? name + " (stopping)" : name + "...";
+        }
+        String text = String.format("%s: %,d files, %,.1f MB at %,.1f MB/s", name, progress.getFilesProcessed(),
+                progress.getBytesProcessed() / 1e6, progress.getBytesPerSecond() / 1e6);
+        if (progress.getFailureCount() > 0) {
+            text += String.format(", %,d failed", progress.getFailureCount());
+        }
+        return progress.isCancelled() ? text + " (stopping)" : text;
+    }
+}
@@ -0,0 +1,460 @@
+package org.logannelson.filesystem.ui;
+
+import org.logannelson.filesystem.service.MappedCharSource;
+
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+import javax.swing.undo.UndoableEdit;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+* Document content stored as a piece table.
+* The text is a sequence of pieces, each pointing either into the original
+* (memory-mapped) file or into an append-only buffer of typed text.
+* The pieces live in a treap ordered by position, with subtree lengths,
+* so inserting or removing text is O(log pieces) and never copies the file.
+*
+* Positions are tracked the way GapContent does it, but with a virtual gap:
+* a mark stores its offset, plus gapSize if it lies after the gap. Moving the gap
+* only touches the marks it passes over, so edits close together stay cheap.
+* */
+public class PieceTableContent implements AbstractDocument.Content {
+
+    private static final int WRITE_CHUNK = 64 * 1024;
+
+    //One run of chars from one of the two sources
+    private static final class Piece {
+        final boolean added; //true: add buffer, false: original file
+        final long start;
+        int length;
+        int size;            //Total chars in this subtree
+        final int priority;
+        Piece left;
+        Piece right;
+
+        Piece(boolean added, long start, int length) {
+            this.added = added;
+            this.start = start;
+            this.length = length;
+            this.size = length;
+            this.priority = ThreadLocalRandom.current().nextInt();
+        }
+    }
+
+    private MappedCharSource original;
+    private final StringBuilder addBuffer = new StringBuilder();
+    private Piece root;
+
+    //Position tracking
+    private final List<MarkData> marks = new ArrayList<>();
+    private final ReferenceQueue<StickyPosition> collectedPositions = new ReferenceQueue<>();
+    private int collectedCount;
+    private long gapStart;
+    private long gapSize = Long.MAX_VALUE / 4;
+
+    /*
+    * Starts with the whole original text as one piece,
+    * followed by the implied newline every Content must end with.
+    * */
+    public PieceTableContent(MappedCharSource original) {
+        this.original = original;
+        if (original != null && original.length() > 0) {
+            root = new Piece(false, 0, original.length());
+        }
+        addBuffer.append('\n');
+        root = merge(root, new Piece(true, 0, 1));
+    }
+
+    public PieceTableContent() {
+        this(null);
+    }
+
+    @Override
+    public int length() {
+        return size(root);
+    }
+
+    //Number of pieces, mostly useful to see how fragmented the text is
+    public int getPieceCount() {
+        return count(root);
+    }
+
+    @Override
+    public UndoableEdit insertString(int where, String str) throws BadLocationException {
+        if (where < 0 || where >= length()) {
+            throw new BadLocationException("Invalid insert", where);
+        }
+        if (str.isEmpty()) {
+            return null;
+        }
+
+        int addStart = addBuffer.length();
+        addBuffer.append(str);
+
+        Piece[] parts = split(root, where);
+        Piece last = last(parts[0]);
+        if (last != null && last.added && last.start + last.length == addStart) {
+            //Typing: the new text directly follows the previous piece in the add buffer
+            extendLast(parts[0], str.length());
+            root = merge(parts[0], parts[1]);
+        } else {
+            root = merge(merge(parts[0], new Piece(true, addStart, str.length())), parts[1]);
+        }
+
+        updateMarksForInsert(where, str.length());
+        return null; //Undo is not supported
+    }
+
+    @Override
+    public UndoableEdit remove(int where, int nitems) throws BadLocationException {
+        if (where < 0 || nitems < 0 || where + nitems >= length()) {
+            throw new BadLocationException("Invalid remove", where + nitems);
+        }
+        if (nitems == 0) {
+            return null;
+        }
+
+        Piece[] head = split(root, where);
+        Piece[] tail = split(head[1], nitems);
+        root = merge(head[0], tail[1]);
+
+        updateMarksForRemove(where, nitems);
+        return null;
+    }
+
+    @Override
+    public String getString(int where, int len) throws BadLocationException {
+        checkRange(where, len);
+        char[] chars = new char[len];
+        copy(root, where, len, chars, 0);
+        return new String(chars);
+    }
+
+    @Override
+    public void getChars(int where, int len, Segment txt) throws BadLocationException {
+        checkRange(where, len);
+        char[] chars = new char[len];
+        copy(root, where, len, chars, 0);
+        txt.array = chars;
+        txt.offset = 0;
+        txt.count = len;
+    }
+
+    /*
+    * Streams the first len chars to out, one window at a time.
+    * Used for saving: the document is never turned into one big String.
+    * */
+    public void writeTo(Writer out, int len) throws IOException {
+        char[] buffer = new char[Math.min(WRITE_CHUNK, Math.max(1, len))];
+        for (int pos = 0; pos < len; pos += buffer.length) {
+            int n = Math.min(buffer.length, len - pos);
+            copy(root, pos, n, buffer, 0);
+            out.write(buffer, 0, n);
+        }
+    }
+
+    /*
+    * Lengths of the leading and trailing text that still come straight from the
+    * original file, at the same distance from its start and end.
+    * Only the text between them differs from the file, so that is all a save has to write.
+    * */
+    int[] unchangedEnds() {
+        List<Piece> pieces = new ArrayList<>();
+        collect(root, pieces);
+        int textLength = length() - 1; //Without the implied newline
+        int originalLength = original == null ? 0 : original.length();
+
+        int prefix = 0;
+        for (Piece piece : pieces) {
+            if (piece.added || piece.start != prefix) {
+                break;
+            }
+            prefix += piece.length;
+        }
+        int suffix = 0;
+        for (int i = pieces.size() - 2; i >= 0; i--) { //Last piece is the implied newline
+            Piece piece = pieces.get(i);
+            if (piece.added || piece.start + piece.length != originalLength - suffix) {
+                break;
+            }
+            suffix += piece.length;
+        }
+        //Both ends can claim the same chars when text was only removed or duplicated
+        suffix = Math.max(0, Math.min(suffix, Math.min(textLength, originalLength) - prefix));
+        return new int[]{prefix, suffix};
+    }
+
+    public MappedCharSource getOriginal() {
+        return original;
+    }
+
+    /*
+    * Makes the given source the new original, after the document text was saved to it.
+    * The text does not change, so positions stay where they are; only the
+    * pieces collapse back to one and the add buffer is dropped.
+    * */
+    void rebase(MappedCharSource saved) {
+        if (saved.length() != length() - 1) {
+            throw new IllegalArgumentException("Saved text has " + saved.length()
+                    + " chars, document has " + (length() - 1));
+        }
+        original = saved;
+        addBuffer.setLength(0);
+        addBuffer.append('\n');
+        root = saved.length() > 0 ? new Piece(false, 0, saved.length()) : null;
+        root = merge(root, new Piece(true, 0, 1));
+    }
+
+    private void checkRange(int where, int len) throws BadLocationException {
+        if (where < 0 || len < 0 || where + len > length()) {
+            throw new BadLocationException("Invalid range", where + len);
+        }
+    }
+
+    /*
+    * Section: treap operations
+    * */
+    private static int size(Piece piece) {
+        return piece == null ? 0 : piece.size;
+    }
+
+    private static int count(Piece piece) {
+        return piece == null ? 0 : 1 + count(piece.left) + count(piece.right);
+    }
+
+    private static void collect(Piece piece, List<Piece> out) {
+        if (piece != null) {
+            collect(piece.left, out);
+            out.add(piece);
+            collect(piece.right, out);
+        }
+    }
+
+    private static void update(Piece piece) {
+        piece.size = size(piece.left) + piece.length + size(piece.right);
+    }
+
+    //Splits into [0, k) and [k, size), cutting a piece in two if k falls inside it
+    private Piece[] split(Piece t, int k) {
+        if (t == null) {
+            return new Piece[]{null, null};
+        }
+        int leftSize = size(t.left);
+        if (k <= leftSize) {
+            Piece[] parts = split(t.left, k);
+            t.left = parts[1];
+            update(t);
+            return new Piece[]{parts[0], t};
+        }
+        if (k >= leftSize + t.length) {
+            Piece[] parts = split(t.right, k - leftSize - t.length);
+            t.right = parts[0];
+            update(t);
+            return new Piece[]{t, parts[1]};
+        }
+
+        int cut = k - leftSize;
+        Piece tail = new Piece(t.added, t.start + cut, t.length - cut);
+        Piece rest = t.right;
+        t.length = cut;
+        t.right = null;
+        update(t);
+        return new Piece[]{t, merge(tail, rest)};
+    }
+
+    private Piece merge(Piece a, Piece b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            update(a);
+            return a;
+        }
+        b.left = merge(a, b.left);
+        update(b);
+        return b;
+    }
+
+    private static Piece last(Piece t) {
+        if (t == null) {
+            return null;
+        }
+        while (t.right != null) {
+            t = t.right;
+        }
+        return t;
+    }
+
+    private static void extendLast(Piece t, int n) {
+        while (t != null) {
+            t.size += n;
+            if (t.right == null) {
+                t.length += n;
+                return;
+            }
+            t = t.right;
+        }
+    }
+
+    //Copies len chars starting at from (relative to subtree t) into out
+    private void copy(Piece t, int from, int len, char[] out, int outPos) {
+        while (t != null && len > 0) {
+            int leftSize = size(t.left);
+            if (from < leftSize) {
+                int n = Math.min(len, leftSize - from);
+                copy(t.left, from, n, out, outPos);
+                outPos += n;
+                len -= n;
+                from += n;
+            }
+            if (len == 0) {
+                return;
+            }
+
+            int inPiece = from - leftSize;
+            if (inPiece < t.length) {
+                int n = Math.min(len, t.length - inPiece);
+                readPiece(t, inPiece, n, out, outPos);
+                outPos += n;
+                len -= n;
+                from += n;
+            }
+
+            from -= leftSize + t.length;
+            t = t.right;
+        }
+    }
+
+    private void readPiece(Piece piece, int offset, int n, char[] out, int outPos) {
+        int start = (int) (piece.start + offset);
+        if (piece.added) {
+            addBuffer.getChars(start, start + n, out, outPos);
+        } else {
+            original.getChars(start, out, outPos, n);
+        }
+    }
+
+    /*
+    * Section: positions
+    * */
+    @Override
+    public Position createPosition(int offset) throws BadLocationException {
+        if (offset < 0 || offset > length()) {
+            throw new BadLocationException("Invalid position", offset);
+        }
+        purgeCollectedMarks();
+
+        StickyPosition position = new StickyPosition();
+        MarkData mark = new MarkData(position, collectedPositions);
+        mark.stored = offset < gapStart ? offset : offset + gapSize;
+        position.mark = mark;
+        marks.add(insertionIndex(mark.stored), mark);
+        return position;
+    }
+
+    private long offsetOf(MarkData mark) {
+        return mark.stored < gapStart ? mark.stored : mark.stored - gapSize;
+    }
+
+    //Marks at or after where move forward, except marks at 0 (same as GapContent)
+    private void updateMarksForInsert(int where, int length) {
+        moveGap(where);
+        if (where == 0) {
+            for (int i = 0; i < marks.size() && marks.get(i).stored == gapSize; i++) {
+                marks.get(i).stored = 0;
+            }
+        }
+        gapStart += length;
+        gapSize -= length;
+    }
+
+    //Marks inside the removed range collapse to where, marks after it move back
+    private void updateMarksForRemove(int where, int nitems) {
+        long end = where + (long) nitems;
+        moveGap(end);
+        gapStart = where;
+        gapSize += nitems;
+        //These now sit where the gap starts, in front of every later mark
+        for (int i = insertionIndex(where); i < marks.size() && marks.get(i).stored < end; i++) {
+            marks.get(i).stored = gapStart + gapSize;
+        }
+    }
+
+    //Shifts the virtual gap, converting only the marks it passes over
+    private void moveGap(long newStart) {
+        if (newStart < gapStart) {
+            int from = insertionIndex(newStart);
+            for (int i = from; i < marks.size() && marks.get(i).stored < gapStart; i++) {
+                marks.get(i).stored += gapSize;
+            }
+        } else if (newStart > gapStart) {
+            int from = insertionIndex(gapStart + gapSize);
+            long limit = newStart + gapSize;
+            for (int i = from; i < marks.size() && marks.get(i).stored < limit; i++) {
+                marks.get(i).stored -= gapSize;
+            }
+        }
+        gapStart = newStart;
+    }
+
+    //First index whose stored value is >= stored
+    private int insertionIndex(long stored) {
+        int lo = 0;
+        int hi = marks.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (marks.get(mid).stored < stored) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    //Drops marks whose Position is no longer referenced, once enough have piled up
+    private void purgeCollectedMarks() {
+        while (collectedPositions.poll() != null) {
+            collectedCount++;
+        }
+        if (collectedCount > 64 && collectedCount > marks.size() / 4) {
+            marks.removeIf(mark -> mark.get() == null);
+            collectedCount = 0;
+        }
+    }
+
+    //Holds a mark's stored offset; weakly refers back to its Position
+    private static final class MarkData extends WeakReference<StickyPosition> {
+        long stored;
+
+        MarkData(StickyPosition position, ReferenceQueue<StickyPosition> queue) {
+            super(position, queue);
+        }
+    }
+
+    private final class StickyPosition implements Position {
+        MarkData mark;
+
+        @Override
+        public int getOffset() {
+            return (int) offsetOf(mark);
+        }
+
+        @Override
+        public String toString() {
+            return Integer.toString(getOffset());
+        }
+    }
+}
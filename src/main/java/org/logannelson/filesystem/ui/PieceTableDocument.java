@@ -0,0 +1,241 @@
+package org.logannelson.filesystem.ui;
+
+import org.logannelson.filesystem.model.FileItem;
+import org.logannelson.filesystem.service.FileRegion;
+import org.logannelson.filesystem.service.FileSystemService;
+import org.logannelson.filesystem.service.MappedCharSource;
+import org.logannelson.filesystem.service.MappedTextFile;
+import org.logannelson.filesystem.service.SaveOptions;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.PlainDocument;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+* PlainDocument whose text lives in a PieceTableContent over a mapped file.
+* Opening only decodes the file once to find line breaks; the text itself
+* stays in the mapping. Line elements are built up front because the
+* Swing views need them, which costs a few objects per line but no copy of the text.
+* */
+public class PieceTableDocument extends PlainDocument {
+
+    private static final long serialVersionUID = 1L;
+
+    //Edits with a bigger middle than this are saved with a full rewrite
+    private static final int MAX_PATCH_CHARS = 4 * 1024 * 1024;
+
+    private final PieceTableContent content;
+    private volatile MappedTextFile file; //Swapped by save, which may run off the EDT
+
+    private PieceTableDocument(PieceTableContent content, MappedTextFile file) {
+        super(content);
+        this.content = content;
+        this.file = file;
+    }
+
+    public static PieceTableDocument open(MappedTextFile file) throws IOException {
+        int[][] newlines = {new int[1024]};
+        int[] count = {0};
+        MappedCharSource source = MappedCharSource.open(file, offset -> {
+            if (count[0] == newlines[0].length) {
+                newlines[0] = Arrays.copyOf(newlines[0], count[0] * 2);
+            }
+            newlines[0][count[0]++] = offset;
+        });
+
+        PieceTableDocument document = new PieceTableDocument(new PieceTableContent(source), file);
+        document.buildLineElements(newlines[0], count[0]);
+        return document;
+    }
+
+    //Replaces the single default line with one element per line of the file
+    private void buildLineElements(int[] newlines, int count) {
+        writeLock();
+        try {
+            BranchElement root = (BranchElement) getDefaultRootElement();
+            Element[] lines = new Element[count + 1];
+            int start = 0;
+            for (int i = 0; i < count; i++) {
+                int end = newlines[i] + 1;
+                lines[i] = createLeafElement(root, null, start, end);
+                start = end;
+            }
+            //Last line runs up to and including the implied newline
+            lines[count] = createLeafElement(root, null, start, content.length());
+            root.replace(0, root.getElementCount(), lines);
+        } finally {
+            writeUnlock();
+        }
+    }
+
+    //The mapped file this document was opened from
+    public MappedTextFile getFile() {
+        return file;
+    }
+
+    //True if the file is not valid UTF-8: it shows U+FFFD for the bad bytes and cannot be saved
+    public boolean isMalformed() {
+        return content.getOriginal().isMalformed();
+    }
+
+    public int getPieceCount() {
+        readLock();
+        try {
+            return content.getPieceCount();
+        } finally {
+            readUnlock();
+        }
+    }
+
+    //Streams the text piece by piece, without building one String
+    public void writeTo(Writer out) throws IOException {
+        readLock();
+        try {
+            content.writeTo(out, getLength());
+        } finally {
+            readUnlock();
+        }
+    }
+
+    /*
+    * Saves the document to target and returns the number of bytes written.
+    *
+    * If target is still the file this document was opened from (same size and
+    * modification time), only the changed middle is written: in place when it keeps
+    * its byte length, or as a new, longer tail when nothing after it is unchanged.
+    * Anything else is a full streaming rewrite through a temp file.
+    * Either way the document then sits on the saved file again, so the next small
+    * edit can be patched as well and the old mapping is released.
+    *
+    * Meant to run off the EDT, since the service may wait for the file's lock: the
+    * document is only read-locked while it is written out, so it keeps painting, and the
+    * caller must keep it from being edited until this returns (FileContentPanel makes the
+    * text area read-only). Only the switch to the saved file takes the write lock.
+    * */
+    public long save(FileSystemService service, Path target, SaveOptions options) throws IOException {
+        if (isMalformed()) {
+            throw new IOException("Not valid UTF-8, saving would replace the bytes that could not be read: "
+                    + file.getPath());
+        }
+        long[] changed = {-1, -1}; //Byte range to decode again, if only that was written
+        long written;
+        readLock();
+        try {
+            written = options.isInPlacePatching() ? patch(service, target, options, changed) : -1;
+            if (written < 0) {
+                service.writeFile(target, this::writeTo, options);
+                written = service.getItem(target).getSize();
+            } else if (changed[0] < 0) {
+                return written; //Nothing changed, nothing written
+            }
+        } finally {
+            readUnlock();
+        }
+        try {
+            reopen(service, target, changed[0], changed[1]);
+        } catch (IOException | IllegalArgumentException e) {
+            //Saved fine; the document just stays on the old mapping, which still holds its text
+        }
+        return written;
+    }
+
+    //Writes just the changed bytes and stores their range in changed; returns -1 if the edit cannot be patched
+    private long patch(FileSystemService service, Path target, SaveOptions options, long[] changed)
+            throws IOException {
+        MappedCharSource source = content.getOriginal();
+        if (!target.toAbsolutePath().normalize().equals(file.getPath().toAbsolutePath().normalize()) || !source.isByteExact()) {
+            return -1;
+        }
+        FileItem current;
+        try {
+            current = service.getItem(target);
+        } catch (NoSuchFileException e) {
+            return -1;
+        }
+        if (current.getSize() != file.size() || !current.getLastModifiedTime().equals(file.getLastModifiedTime())) {
+            return -1;
+        }
+
+        int[] ends = content.unchangedEnds();
+        int prefix = ends[0];
+        int suffix = ends[1];
+        int middleLength = getLength() - suffix - prefix;
+        long from = source.byteOffset(prefix);
+        long to = source.byteOffset(source.length() - suffix);
+        if (from < 0 || to < 0 || middleLength > MAX_PATCH_CHARS) {
+            return -1;
+        }
+        if (middleLength == 0 && to == from && suffix + prefix == source.length()) {
+            return 0; //Nothing changed
+        }
+
+        byte[] bytes;
+        try {
+            String middle = content.getString(prefix, middleLength);
+            ByteBuffer encoded = StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .encode(CharBuffer.wrap(middle));
+            bytes = new byte[encoded.remaining()];
+            encoded.get(bytes);
+        } catch (BadLocationException | CharacterCodingException e) {
+            return -1; //Let the full rewrite report it
+        }
+
+        /*
+        * Never shorter: the file is still mapped, by this document and maybe by other open
+        * files, line indexes or scanners, and touching a truncated tail through a mapping
+        * is a SIGBUS. A shrinking edit goes through the rewrite, which leaves the old inode alone.
+        * */
+        List<FileRegion> regions = List.of(new FileRegion(from, bytes));
+        if (bytes.length == to - from) {
+            service.patchFile(target, regions, -1, options);
+            changed[1] = to;
+        } else if (suffix == 0 && from + bytes.length >= file.size()) {
+            service.patchFile(target, regions, -1, options);
+            changed[1] = from + bytes.length;
+        } else {
+            return -1;
+        }
+        changed[0] = from;
+        return bytes.length;
+    }
+
+    /*
+    * Moves the document onto the freshly saved file.
+    * With a changed byte range only that part is decoded again; otherwise (-1) the whole file is.
+    * Mapping and decoding happen unlocked; the write lock is held only for the switch.
+    * */
+    private void reopen(FileSystemService service, Path target, long changedFrom, long changedTo) throws IOException {
+        MappedTextFile saved = service.openMappedFile(target);
+        MappedTextFile previous;
+        try {
+            MappedCharSource source = changedFrom >= 0
+                    ? content.getOriginal().patched(saved, changedFrom, changedTo)
+                    : MappedCharSource.open(saved, null);
+            writeLock();
+            try {
+                content.rebase(source);
+                previous = file;
+                file = saved;
+            } finally {
+                writeUnlock();
+            }
+        } catch (IOException | RuntimeException e) {
+            saved.close();
+            throw e;
+        }
+        previous.close();
+    }
+}
@@ -1,13 +1,26 @@
 package org.logannelson.filesystem.ui;
 
+import org.logannelson.filesystem.service.OperationMetrics;
+import org.logannelson.filesystem.service.ServiceMetrics;
+
 import javax.swing.BorderFactory;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.Timer;
 import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.FlowLayout;
 
 public class StatusBarPanel extends JPanel {
 
+    private static final long serialVersionUID = 1L;
+
+    private static final int METRICS_REFRESH_MILLIS = 1000;
+
     private final JLabel statusLabel;
+    private final JProgressBar progressBar;
+    private final JLabel metricsLabel;
 
     public StatusBarPanel() {
         super(new BorderLayout());
@@ -15,10 +28,80 @@ public class StatusBarPanel extends JPanel {
         statusLabel = new JLabel("Ready");
         setBorder(BorderFactory.createEtchedBorder());
 
+        //Hidden until a background operation is running
+        progressBar = new JProgressBar();
+        progressBar.setIndeterminate(true);
+        progressBar.setPreferredSize(new Dimension(120, 14));
+        progressBar.setVisible(false);
+
+        //Hidden until showMetrics is called
+        metricsLabel = new JLabel();
+        metricsLabel.setVisible(false);
+
+        JPanel eastPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT, 4, 0));
+        eastPanel.add(progressBar);
+        eastPanel.add(metricsLabel);
+
         add(statusLabel, BorderLayout.WEST);
+        add(eastPanel, BorderLayout.EAST);
     }
 
     public void setStatusMessage(String message) {
         statusLabel.setText(message);
     }
+
+    //Shows or hides the busy indicator for background work
+    public void setBusy(boolean busy) {
+        progressBar.setVisible(busy);
+    }
+
+    /*
+    * Shows live service metrics at the right: calls, errors, skipped listing entries and
+    * the p99 of listing a folder. Hovering shows every operation with its percentiles.
+    * */
+    public void showMetrics(ServiceMetrics metrics) {
+        metricsLabel.setVisible(true);
+        updateMetrics(metrics);
+        new Timer(METRICS_REFRESH_MILLIS, e -> updateMetrics(metrics)).start();
+    }
+
+    private void updateMetrics(ServiceMetrics metrics) {
+        OperationMetrics listing = metrics.get("snapshotDirectory");
+        String text = String.format("%,d calls, %,d errors", metrics.getCalls(), metrics.getErrors());
+        if (metrics.getSkippedEntries() > 0) {
+            text += String.format(", %,d skipped", metrics.getSkippedEntries());
+        }
+        if (listing != null && listing.getCalls() > 0) {
+            text += " | list p99 " + formatMicros(listing.getP99Micros());
+        }
+        metricsLabel.setText(text);
+
+        //Only operations that ran; the tooltip is rebuilt on every tick, so it stays live while shown
+        StringBuilder details = new StringBuilder("<html><table><tr><th align=left>Operation</th>"
+                + "<th>Calls</th><th>Errors</th><th>p50</th><th>p99</th><th>p99.9</th><th>Max</th></tr>");
+        for (OperationMetrics operation : metrics.getOperations()) {
+            if (operation.getCalls() == 0) {
+                continue;
+            }
+            details.append("<tr><td>").append(operation.getOperation())
+                    .append("</td><td align=right>").append(String.format("%,d", operation.getCalls()))
+                    .append("</td><td align=right>").append(String.format("%,d", operation.getErrors()))
+                    .append("</td><td align=right>").append(formatMicros(operation.getP50Micros()))
+                    .append("</td><td align=right>").append(formatMicros(operation.getP99Micros()))
+                    .append("</td><td align=right>").append(formatMicros(operation.getP999Micros()))
+                    .append("</td><td align=right>").append(formatMicros(operation.getMaxMicros()))
+                    .append("</td></tr>");
+        }
+        metricsLabel.setToolTipText(details.append("</table></html>").toString());
+    }
+
+    private static String formatMicros(long micros) {
+        if (micros < 1000) {
+            return micros + " us";
+        }
+        if (micros < 1_000_000) {
+            return String.format("%.1f ms", micros / 1000.0);
+        }
+        return String.format("%.2f s", micros / 1_000_000.0);
+    }
 }